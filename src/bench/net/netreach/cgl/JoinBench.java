@@ -0,0 +1,67 @@
+package net.netreach.cgl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.netreach.util.FileLocatedException;
+
+/**
+ * Times evaluating a template of nested sep/forall chains to a value, as a set
+ * or an eq would, and then using it as a string. Each level is a forall over
+ * the same list, with a separator, so the result has width^depth items.
+ * Usage: JoinBench [depth [width [runs [chars]]]] - the defaults give 15625
+ * items; chars pads each item's text, to see what copying long text costs.
+ */
+public class JoinBench {
+  public static void main(String[] args) throws IOException,
+      FileLocatedException {
+    int depth = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+    int width = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    int chars = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+    String body = "$x$";
+    for (int d = 0; d < depth; d++) {
+      body = "sep [,] forall $xs$ {[(]; $x$; [:]; " + body + "; [)]}";
+    }
+    File file = File.createTempFile("joinbench", ".cgl");
+    file.deleteOnExit();
+    Writer out = new FileWriter(file);
+    try {
+      out.write("template {\n  define { set result " + body
+          + "; } { $result$ };\n};\n");
+    } finally {
+      out.close();
+    }
+    Expr template = CGLParser.parseTemplate(file);
+
+    List xs = new ArrayList();
+    for (int i = 0; i < width; i++) {
+      Map item = new HashMap();
+      StringBuffer x = new StringBuffer("item" + i);
+      while (x.length() < chars) x.append('.');
+      item.put("x", x.toString());
+      xs.add(item);
+    }
+    Map vars = new HashMap();
+    vars.put("xs", xs);
+    vars.put("x", "top");
+
+    // Once to load everything, and once more for the JIT.
+    int length = template.evaluate(vars).toString().length();
+    template.evaluate(vars).toString();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < runs; i++) {
+      template.evaluate(vars).toString();
+    }
+    long time = System.currentTimeMillis() - start;
+    System.out.println("Evaluated " + runs + " x " + length + " chars in "
+        + time + "ms");
+  }
+}
@@ -0,0 +1,93 @@
+package net.netreach.nrdo.tools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+
+import net.netreach.util.FileLocatedException;
+
+/**
+ * Times matching references to gets on a generated schema: one target table
+ * with a get on every pair of its fields, and several tables with a reference
+ * to each of those gets. Usage: RefMatchBench [fields [sources]] - the default
+ * of 25 fields gives 300 gets and 300 references per source table.
+ */
+public class RefMatchBench {
+  public static void main(String[] args) throws IOException,
+      FileLocatedException {
+    int fields = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+    int sources = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    File dir = File.createTempFile("refbench", "");
+    dir.delete();
+    new File(dir, "dfn").mkdirs();
+    new File(dir, "cache").mkdirs();
+    write(new File(dir, "empty.cgl"), "");
+    write(new File(dir, "bench.nrdo"), "config {\n  module bench;\n"
+        + "  dfnbase dfn;\n  srcbase out;\n  cachebase cache;\n"
+        + "  cgltemplate empty.cgl;\n  querytemplate empty.cgl;\n"
+        + "  dbdriver x;\n  dburl x;\n  dbadapter mssqlserver;\n"
+        + "  nodatabase;\n};\n");
+
+    StringBuffer target = new StringBuffer("table bench:target {\n"
+        + "  fields {\n    int id int notnull readonly [id];\n");
+    for (int i = 0; i < fields; i++) {
+      target.append("    int f" + i + " int notnull readwrite [f" + i + "];\n");
+    }
+    target.append("  };\n  pkey sequenced id;\n");
+    for (int i = 0; i < fields; i++) {
+      for (int j = i + 1; j < fields; j++) {
+        target.append("  get multi { fields {f" + i + "; f" + j
+            + "}; called by_" + i + "_" + j + "; };\n");
+      }
+    }
+    target.append("};\n");
+    write(new File(dir, "dfn/target.dfn"), target.toString());
+
+    for (int s = 0; s < sources; s++) {
+      StringBuffer source = new StringBuffer("table bench:source" + s + " {\n"
+          + "  fields {\n    int id int notnull readonly [id];\n");
+      for (int i = 0; i < fields; i++) {
+        source.append("    int x" + i + " int notnull readwrite [x" + i
+            + "];\n");
+      }
+      source.append("  };\n  pkey sequenced id;\n");
+      for (int i = 0; i < fields; i++) {
+        for (int j = i + 1; j < fields; j++) {
+          source.append("  references multi bench:target { by {x" + i + " f"
+              + i + "; x" + j + " f" + j + "}; called by_" + i + "_" + j
+              + "; };\n");
+        }
+      }
+      source.append("};\n");
+      write(new File(dir, "dfn/source" + s + ".dfn"), source.toString());
+    }
+
+    Config cfg = Config.get(new File(dir, "bench.nrdo").getPath());
+    List tables = cfg.dfnbase.getFromArgs(null);
+
+    // Load everything first so that only the matching itself is timed.
+    for (Iterator i = tables.iterator(); i.hasNext();) {
+      ((TableDef) i.next()).resolveGetsFully();
+    }
+    long start = System.currentTimeMillis();
+    for (Iterator i = tables.iterator(); i.hasNext();) {
+      ((TableDef) i.next()).resolveRefs();
+    }
+    long time = System.currentTimeMillis() - start;
+    System.out.println("Matched " + sources + " x " + (fields * (fields - 1) / 2)
+        + " references in " + time + "ms");
+  }
+
+  private static void write(File file, String text) throws IOException {
+    Writer out = new FileWriter(file);
+    try {
+      out.write(text);
+    } finally {
+      out.close();
+    }
+  }
+}
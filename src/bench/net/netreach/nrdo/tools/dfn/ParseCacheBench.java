@@ -0,0 +1,130 @@
+package net.netreach.nrdo.tools.dfn;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.netreach.smelt.ParseException;
+
+/**
+ * Times parsing a tree of .dfn files with no parse cache, with an empty one and
+ * with a full one. Usage: ParseCacheBench [dfndir] - if no directory is given,
+ * a corpus of generated tables is written to a temporary directory and used.
+ * CGL extras are forced in every run, so the figures include everything
+ * TableDef would otherwise have had parsed for it.
+ */
+public class ParseCacheBench {
+  public static void main(String[] args) throws IOException, ParseException {
+    File dfnDir;
+    if (args.length > 0) {
+      dfnDir = new File(args[0]);
+    } else {
+      dfnDir = tempDir("dfnbench");
+      generate(dfnDir, 2000, 40);
+    }
+    List files = new ArrayList();
+    findDfns(dfnDir, files);
+    System.out.println(files.size() + " files in " + dfnDir);
+
+    File cacheDir = tempDir("parsecache");
+    for (int pass = 0; pass < 3; pass++) {
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < files.size(); i++) {
+        force(Parser.parseTable((File) files.get(i)));
+      }
+      report("uncached", start, null);
+
+      clear(cacheDir);
+      ParseCache cold = new ParseCache(cacheDir);
+      start = System.currentTimeMillis();
+      for (int i = 0; i < files.size(); i++) {
+        force(cold.getTable((File) files.get(i)));
+      }
+      report("cold", start, cold);
+
+      ParseCache warm = new ParseCache(cacheDir);
+      start = System.currentTimeMillis();
+      for (int i = 0; i < files.size(); i++) {
+        force(warm.getTable((File) files.get(i)));
+      }
+      report("warm", start, warm);
+    }
+  }
+
+  private static void report(String what, long start, ParseCache pc) {
+    long time = System.currentTimeMillis() - start;
+    System.out.println("  " + what + ": " + time + "ms"
+        + (pc == null ? "" : " (" + pc.hits + " hits, " + pc.misses
+            + " misses)"));
+  }
+
+  private static void force(RawTable t) throws IOException, ParseException {
+    if (t.extra != null) t.extra.getDefinition();
+    for (int i = 0; i < t.fields.size(); i++) {
+      RawField f = (RawField) t.fields.get(i);
+      if (f.extra != null) f.extra.getDefinition();
+    }
+    for (int i = 0; i < t.befores.size(); i++) {
+      ((RawBefore) t.befores.get(i)).sql.getExpr();
+    }
+  }
+
+  private static File tempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static void clear(File dir) {
+    File[] entries = dir.listFiles();
+    for (int i = 0; i < entries.length; i++) {
+      entries[i].delete();
+    }
+  }
+
+  private static void findDfns(File dir, List into) {
+    File[] entries = dir.listFiles();
+    java.util.Arrays.sort(entries);
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].isDirectory()) {
+        findDfns(entries[i], into);
+      } else if (entries[i].getName().endsWith(".dfn")) {
+        into.add(entries[i]);
+      }
+    }
+  }
+
+  private static void generate(File dir, int tables, int fields)
+      throws IOException {
+    for (int t = 0; t < tables; t++) {
+      String name = "table" + t;
+      Writer out = new FileWriter(new File(dir, name + ".dfn"));
+      try {
+        out.write("table bench:" + name + " {\n");
+        out.write("  description [generated table " + t + "];\n");
+        out.write("  fields {\n");
+        out.write("    int id int notnull readonly [the id];\n");
+        for (int f = 0; f < fields; f++) {
+          out.write("    String field" + f + " varchar(" + (f + 10)
+              + ") nullable readwrite [field number " + f + "]");
+          if (f % 4 == 0) out.write(" {set custom [value " + f + "]}");
+          out.write(";\n");
+        }
+        out.write("  };\n");
+        out.write("  pkey sequenced id;\n");
+        for (int f = 0; f < fields; f += 5) {
+          out.write("  get multi { fields {field" + f + "}; orderby {field"
+              + (f + 1) + "; id desc}; };\n");
+        }
+        out.write("  get single { fields {field1; field2}; called by_pair; };\n");
+        out.write("};\n");
+      } finally {
+        out.close();
+      }
+    }
+  }
+}
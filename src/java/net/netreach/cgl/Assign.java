@@ -45,11 +45,15 @@ class Assign extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    BoxValue box = (BoxValue) ctx.vars.get("box$" + name);
+    BoxValue box = box(ctx, name);
     box.value = value.evaluate(ctx);
     return null;
   }
 
+  static BoxValue box(Context ctx, String name) {
+    return (BoxValue) ctx.vars.get("box$" + name);
+  }
+
   Assign(String name, Expr value) {
     this.name = name;
     this.value = value;
@@ -45,7 +45,10 @@ class Bool extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
     return new Boolean(truth(result));
   }
 
@@ -71,6 +74,7 @@ class Bool extends Expr {
         && !(o instanceof Boolean && !((Boolean) o).booleanValue())
         && !(o instanceof Number && ((Number) o).doubleValue() == 0)
         && !(o instanceof String && ((String) o).length() == 0)
+        && !(o instanceof Rope && ((Rope) o).length() == 0)
         && !(o instanceof Collection && ((Collection) o).isEmpty());
   }
 }
@@ -47,25 +47,30 @@ class Box extends Expr {
   Expr body;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    if (ctx.vars.containsKey("box$" + name)) {
-      throw new RuntimeException(name + " already exists as a box");
-    }
-    BoxValue box = new BoxValue();
-    box.value = initValue.evaluate(ctx);
-    Context ictx = new Context(ctx);
-    ictx.vars.put("box$" + name, box);
-    return body.evaluate(ictx);
+    check(ctx, name);
+    return body.evaluate(open(ctx, name, initValue.evaluate(ctx)));
   }
 
   public void write(Context ctx, Writer out) throws FileLocatedException, IOException {
+    check(ctx, name);
+    body.write(open(ctx, name, initValue.evaluate(ctx)), out);
+  }
+
+  static void check(Context ctx, String name) {
     if (ctx.vars.containsKey("box$" + name)) {
       throw new RuntimeException(name + " already exists as a box");
     }
+  }
+
+  /**
+   * The context for the body of a box, holding the box itself.
+   */
+  static Context open(Context ctx, String name, Object init) {
     BoxValue box = new BoxValue();
-    box.value = initValue.evaluate(ctx);
+    box.value = init;
     Context ictx = new Context(ctx);
     ictx.vars.put("box$" + name, box);
-    body.write(ictx, out);
+    return ictx;
   }
 
   Box(String name, Expr initValue, Expr body) {
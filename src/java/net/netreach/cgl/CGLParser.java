@@ -39,6 +39,7 @@ package net.netreach.cgl;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -59,41 +60,107 @@ public class CGLParser {
 
     public Expr get(File file) throws IOException, FileLocatedException {
       if (verbose) Output.println("CGL: Loading " + file + "... ");
-      SmeltReader sr = new SmeltReader(file);
-      sr.readToken();
-      sr.skipToken("template");
-      sr.checkSOB();
-      Expr result = loadExpr(file, sr);
-      sr.skipEOL();
-      sr.checkEOF();
+      TimestampedExpr result = (TimestampedExpr) parse(file,
+          new TemplateCache.Parser() {
+            Object parse(File file) throws IOException, FileLocatedException {
+              return parseTemplate(file);
+            }
+          });
       if (verbose) Output.println("done.");
+      result.file = file;
+      if (compile && !Profiler.isEnabled()) Compiler.compile(result, file);
       return result;
     }
-    
+
   });
 
   static FileCache<Definition> exportCache = new FileCache<Definition>(new FileCache.Populator<Definition>() {
     
     public Definition get(File file) throws IOException, FileLocatedException {
       if (verbose) Output.println("CGL: Importing " + file + "... ");
-      SmeltReader sr = new SmeltReader(file);
-      sr.readToken();
-      sr.skipToken("export");
-      Definition def = loadDefinition(file, sr);
-      sr.skipEOL();
-      sr.checkEOF();
+      Definition def = (Definition) parse(file, new TemplateCache.Parser() {
+        Object parse(File file) throws IOException, FileLocatedException {
+          SmeltReader sr = new SmeltReader(file);
+          sr.readToken();
+          sr.skipToken("export");
+          Definition def = loadDefinition(file, sr);
+          sr.skipEOL();
+          sr.checkEOF();
+          return def;
+        }
+      });
       if (verbose) Output.println("done.");
+      ((TimestampedDefn) def).file = file;
       return def;
     }
   
   });
 
   static boolean verbose = false;
+  static boolean compile = true;
+  private static volatile TemplateCache diskCache = null;
+  private static volatile DependencyGraph graph = null;
 
   public static void setVerbose(boolean verbose) {
     CGLParser.verbose = verbose;
   }
 
+  /**
+   * Whether templates are compiled to bytecode when they are loaded, rather
+   * than interpreted. Defaults to true.
+   */
+  public static void setCompile(boolean compile) {
+    CGLParser.compile = compile;
+  }
+
+  /**
+   * Whether templates and exports loaded from now on are measured by the
+   * Profiler. They are run in the interpreter, and neither read from nor kept
+   * in the parse cache, while it is on; anything loaded already is loaded
+   * again when it changes.
+   */
+  public static synchronized void setProfile(boolean profile) {
+    if (profile == Profiler.isEnabled()) return;
+    Profiler.setEnabled(profile);
+    exportCache.clear();
+    templateCache.clear();
+  }
+
+  /**
+   * Keep the parsed trees of templates and exports in .cglc files in the given
+   * directory, to be used instead of parsing them again as long as they
+   * haven't changed, along with the timestamps worked out for them; or, if it
+   * is null, don't.
+   */
+  public static synchronized void setCacheDir(File dir) {
+    if (dir == null) {
+      diskCache = null;
+      graph = null;
+    } else if (diskCache == null || !dir.equals(diskCache.getDir())) {
+      diskCache = new TemplateCache(dir);
+      graph = new DependencyGraph(dir);
+    }
+  }
+
+  /**
+   * Write out the timestamps worked out this run, if there's a cache
+   * directory.
+   */
+  public static void saveCache() {
+    DependencyGraph g = graph;
+    if (g != null) g.save();
+  }
+
+  static DependencyGraph getDependencyGraph() {
+    return graph;
+  }
+
+  private static Object parse(File file, TemplateCache.Parser parser)
+      throws IOException, FileLocatedException {
+    TemplateCache cache = Profiler.isEnabled() ? null : diskCache;
+    return cache == null ? parser.parse(file) : cache.get(file, parser);
+  }
+
   public static java.util.Set getTouchedFiles() {
     HashSet result = new HashSet();
     result.addAll(exportCache.getFiles());
@@ -101,10 +168,43 @@ public class CGLParser {
     return result;
   }
 
+  /**
+   * How many uses of declares since the last reset were given the variables
+   * of an earlier use with the same givens, how many had to run the declare,
+   * and how many couldn't be remembered at all; see Declosure.
+   */
+  public static String getUseStats() {
+    return Declosure.hits + " remembered, " + Declosure.misses + " run, "
+        + Declosure.unmemoized + " not memoizable";
+  }
+
+  /**
+   * The files a template was loaded from and everything it imports or evals,
+   * as they were resolved in the given context; or null if that can't be
+   * told for all of them, such as when an import whose filename isn't a
+   * constant hasn't been run.
+   */
+  public static Collection getInputFiles(Expr template, Context ctx)
+      throws IOException, FileLocatedException {
+    if (!(template instanceof TimestampedObject)) return null;
+    java.util.Set files = new HashSet();
+    if (!TimestampHelper.addInputs((TimestampedObject) template, ctx, files)) {
+      return null;
+    }
+    return files;
+  }
+
   public static void reset() {
     exportCache.reset();
     templateCache.reset();
     verbose = false;
+    compile = true;
+    setCacheDir(null);
+    setProfile(false);
+    Profiler.reset();
+    Declosure.hits.set(0);
+    Declosure.misses.set(0);
+    Declosure.unmemoized.set(0);
     Outfile.reset();
   }
 
@@ -115,6 +215,7 @@ public class CGLParser {
     pctx.timestamp = base.lastModified();
     sr.checkSOB();
     Definition def = parseDefineBlock(pctx, sr, true, true, true);
+    Resolver.resolve(def);
     sr.skipEOB();
     sr.checkEOL();
     return new TimestampedDefn(def, pctx.innerDeps, pctx.timestamp);
@@ -126,10 +227,26 @@ public class CGLParser {
     pctx.relativeTo = PathUtil.canonicalFile(base).getParentFile();
     pctx.timestamp = base.lastModified();
     Expr result = parseExpr(pctx, sr);
+    Resolver.resolve(result);
     sr.checkEOL();
     return new TimestampedExpr(result, pctx.innerDeps, pctx.timestamp);
   }
 
+  /**
+   * Parse a template file without compiling it or caching it.
+   */
+  static TimestampedExpr parseTemplate(File file) throws IOException,
+      FileLocatedException {
+    SmeltReader sr = new SmeltReader(file);
+    sr.readToken();
+    sr.skipToken("template");
+    sr.checkSOB();
+    Expr result = loadExpr(file, sr);
+    sr.skipEOL();
+    sr.checkEOF();
+    return (TimestampedExpr) result;
+  }
+
   public static Definition loadExport(File file) throws IOException,
       FileLocatedException {
     return exportCache.get(file);
@@ -218,6 +335,8 @@ public class CGLParser {
       // it actually is a keyword, because all the keywords are short and don't
       // contain any dollar signs.
       String keyword = sr.checkString();
+      FileLocation loc = Profiler.isEnabled() ? sr.getLastTokenLocation()
+          : null;
       Expr res = parseLiteral(pctx, sr);
       if (sr.wasEOL()) {
         return res;
@@ -255,7 +374,9 @@ public class CGLParser {
           pctx.innerDeps = ideps;
 
           // Parse the body and restore active-deps afterwards.
-          res = new ForAll(listExpr, parseAction(pctx, sr));
+          Expr body = parseAction(pctx, sr);
+          res = loc != null ? new ProfiledForAll(loc, listExpr, body)
+              : new ForAll(listExpr, body);
           pctx.activeDeps = adeps;
 
         } else if ("define".equals(keyword)) {
@@ -304,7 +425,9 @@ public class CGLParser {
           pctx.innerDeps = ideps;
 
           // Parse when expression and restore active deps afterwards.
-          res = new When(condition, parseAction(pctx, sr));
+          Expr body = parseAction(pctx, sr);
+          res = loc != null ? new ProfiledWhen(loc, condition, body)
+              : new When(condition, body);
           pctx.activeDeps = adeps;
 
         } else if ("else".equals(keyword)) {
@@ -462,6 +585,10 @@ public class CGLParser {
         } else {
           throw new ParseException(sr, "Unknown keyword '" + keyword + "'");
         }
+        if (loc != null && res != null && !(res instanceof ForAll)
+            && !(res instanceof When)) {
+          res = new Profiled(loc, keyword, res);
+        }
         sr.checkEOL();
         return res;
       }
@@ -38,6 +38,7 @@ package net.netreach.cgl;
 // Collections classes used in implementation.
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -57,51 +58,83 @@ class Chain extends Expr {
   }
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = null;
     String sepr = null;
     if (sep != null) {
       Object sepResult = sep.evaluate(ctx);
       if (sepResult != null) sepr = sepResult.toString();
     }
-    StringBuffer sb = null;
+    Joiner result = new Joiner();
     for (Iterator i = exprs.iterator(); i.hasNext();) {
       Expr e = (Expr) i.next();
-      Object exprResult;
       if (sepr != null && e instanceof ForAll) {
-        exprResult = ((ForAll) e).evaluate(ctx, sepr);
+        result.add(((ForAll) e).evaluate(ctx, sepr), sepr);
       } else {
-        exprResult = e.evaluate(ctx);
-      }
-      if (exprResult != null) {
-        if (result == null) {
-          result = exprResult;
-        } else {
-          if (sb == null) {
-            sb = new StringBuffer();
-            sb.append(result);
-          }
-          if (sepr != null) sb.append(sepr);
-          sb.append(exprResult);
-        }
+        result.add(e.evaluate(ctx), sepr);
       }
     }
-    return sb != null ? sb.toString() : result;
+    return result.get();
   }
 
-  void write(Context ctx, Writer out) throws FileLocatedException, IOException {
-    SepWriter sout = null;
-    if (sep != null) {
-      Object sepResult = sep.evaluate(ctx);
-      if (sepResult != null) {
-        if (out instanceof SepWriter) {
-          sout = (SepWriter) out;
-        } else {
-          sout = new SepWriter(out);
+  /**
+   * Collects the values of the parts of a chain or forall. A single non-null
+   * value is the result as it is; only if there are more are they joined.
+   * Short parts are copied together, but long ones are kept as they are and
+   * the result made a Rope, so that the text of nested chains isn't copied
+   * again at every level.
+   */
+  static final class Joiner {
+    private static final int LONG = 256;
+
+    private Object result;
+    private StringBuffer sb;
+    private List parts;
+    private int length;
+
+    void add(Object value, String sepr) {
+      if (value == null) return;
+      if (result == null) {
+        result = value;
+      } else {
+        if (sb == null) {
+          sb = new StringBuffer();
+          part(result);
         }
-        out = sout;
-        sout.startSep(sepResult.toString());
+        if (sepr != null) sb.append(sepr);
+        part(value);
+      }
+    }
+
+    private void part(Object value) {
+      CharSequence s = value instanceof Rope ? (CharSequence) value
+          : value.toString();
+      if (s.length() < LONG) {
+        sb.append(s.toString());
+        return;
       }
+      if (parts == null) parts = new ArrayList();
+      flush();
+      parts.add(s);
+      length += s.length();
     }
+
+    private void flush() {
+      if (sb.length() > 0) {
+        parts.add(sb.toString());
+        length += sb.length();
+        sb.setLength(0);
+      }
+    }
+
+    Object get() {
+      if (parts == null) return sb != null ? sb.toString() : result;
+      flush();
+      return new Rope(parts.toArray(), length);
+    }
+  }
+
+  void write(Context ctx, Writer out) throws FileLocatedException, IOException {
+    SepWriter sout = sep != null ? startSep(out, sep.evaluate(ctx)) : null;
+    if (sout != null) out = sout;
     for (Iterator i = exprs.iterator(); i.hasNext();) {
       Expr e = (Expr) i.next();
       if (sout != null && e instanceof ForAll) {
@@ -113,4 +146,20 @@ class Chain extends Expr {
     }
     if (sout != null) sout.endSep();
   }
+
+  /**
+   * Start a separated section of output, if there's a separator, returning
+   * the writer to write it to.
+   */
+  static SepWriter startSep(Writer out, Object sepResult) throws IOException {
+    if (sepResult == null) return null;
+    SepWriter sout;
+    if (out instanceof SepWriter) {
+      sout = (SepWriter) out;
+    } else {
+      sout = new SepWriter(out);
+    }
+    sout.startSep(sepResult.toString());
+    return sout;
+  }
 }
@@ -0,0 +1,390 @@
+package net.netreach.cgl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for Compiler: a class with no fields and
+ * only static methods, written at version 49 so that the verifier works out
+ * the stack types itself and no frames are needed. Methods that come out too
+ * big for a class file throw IllegalStateException.
+ */
+class ClassBuilder {
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int ICONST_1 = 0x04;
+  static final int ALOAD = 0x19;
+  static final int AALOAD = 0x32;
+  static final int ASTORE = 0x3a;
+  static final int POP = 0x57;
+  static final int POP2 = 0x58;
+  static final int DUP = 0x59;
+  static final int DUP_X1 = 0x5a;
+  static final int SWAP = 0x5f;
+  static final int IXOR = 0x82;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int INVOKEINTERFACE = 0xb9;
+  static final int NEW = 0xbb;
+  static final int CHECKCAST = 0xc0;
+  static final int IFNULL = 0xc6;
+  static final int IFNONNULL = 0xc7;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACEMETHODREF = 11;
+  private static final int CONSTANT_NAMEANDTYPE = 12;
+
+  final String name;
+  private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private DataOutputStream poolOut = new DataOutputStream(pool);
+  private int poolCount = 1;
+  private Map poolIndex = new HashMap();
+  private List methods = new ArrayList();
+
+  ClassBuilder(String name) {
+    this.name = name;
+  }
+
+  private int constant(String key, int tag, int a, int b, boolean wide) {
+    Integer index = (Integer) poolIndex.get(key);
+    if (index != null) return index.intValue();
+    if (poolCount >= 0xffff) {
+      throw new IllegalStateException("Too many constants");
+    }
+    try {
+      poolOut.writeByte(tag);
+      if (wide) {
+        poolOut.writeInt(a);
+      } else {
+        poolOut.writeShort(a);
+        if (b >= 0) poolOut.writeShort(b);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    poolIndex.put(key, new Integer(poolCount));
+    return poolCount++;
+  }
+
+  int utf8(String s) {
+    Integer index = (Integer) poolIndex.get("U" + s);
+    if (index != null) return index.intValue();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new DataOutputStream(bytes).writeUTF(s);
+      if (poolCount >= 0xffff) {
+        throw new IllegalStateException("Too many constants");
+      }
+      poolOut.writeByte(CONSTANT_UTF8);
+      bytes.writeTo(poolOut);
+    } catch (IOException e) {
+      // writeUTF refuses strings too long for the format.
+      throw new IllegalStateException(e.toString());
+    }
+    poolIndex.put("U" + s, new Integer(poolCount));
+    return poolCount++;
+  }
+
+  int classRef(String internalName) {
+    return constant("C" + internalName, CONSTANT_CLASS, utf8(internalName), -1,
+        false);
+  }
+
+  int string(String s) {
+    return constant("S" + s, CONSTANT_STRING, utf8(s), -1, false);
+  }
+
+  int integer(int i) {
+    return constant("I" + i, CONSTANT_INTEGER, i, -1, true);
+  }
+
+  private int nameAndType(String name, String desc) {
+    return constant("N" + name + " " + desc, CONSTANT_NAMEANDTYPE, utf8(name),
+        utf8(desc), false);
+  }
+
+  int fieldRef(String owner, String name, String desc) {
+    return constant("F" + owner + "." + name + " " + desc, CONSTANT_FIELDREF,
+        classRef(owner), nameAndType(name, desc), false);
+  }
+
+  int methodRef(String owner, String name, String desc) {
+    return constant("M" + owner + "." + name + desc, CONSTANT_METHODREF,
+        classRef(owner), nameAndType(name, desc), false);
+  }
+
+  int interfaceMethodRef(String owner, String name, String desc) {
+    return constant("J" + owner + "." + name + desc,
+        CONSTANT_INTERFACEMETHODREF, classRef(owner), nameAndType(name, desc),
+        false);
+  }
+
+  Method method(String name, String desc) {
+    Method m = new Method(name, desc);
+    methods.add(m);
+    return m;
+  }
+
+  byte[] toByteArray() {
+    try {
+      int thisClass = classRef(name);
+      int superClass = classRef("java/lang/Object");
+      for (Iterator i = methods.iterator(); i.hasNext();) {
+        ((Method) i.next()).prepare();
+      }
+      utf8("Code");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+      out.writeShort(0x0030); // final, super
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(methods.size());
+      for (Iterator i = methods.iterator(); i.hasNext();) {
+        ((Method) i.next()).writeTo(out);
+      }
+      out.writeShort(0);
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * A jump target within a method. The stack depth at the target is taken
+   * from the first jump to it.
+   */
+  static class Label {
+    int pos = -1;
+    int depth = -1;
+    List fixups = new ArrayList();
+  }
+
+  /**
+   * A static method. Code is added an instruction at a time; the stack depth
+   * is tracked as it goes so that the maximum can be recorded.
+   */
+  class Method {
+    final String name;
+    final String desc;
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int locals;
+    private int depth = 0;
+    private int maxStack = 0;
+    private List labels = new ArrayList();
+
+    Method(String name, String desc) {
+      this.name = name;
+      this.desc = desc;
+      this.locals = argSize(desc);
+    }
+
+    int newLocal() {
+      return locals++;
+    }
+
+    private void stack(int delta) {
+      if (depth < 0) throw new IllegalStateException("Unreachable code");
+      depth += delta;
+      if (depth > maxStack) maxStack = depth;
+    }
+
+    private void u1(int b) {
+      code.write(b);
+    }
+
+    private void u2(int s) {
+      code.write(s >> 8);
+      code.write(s);
+    }
+
+    /** An instruction without operands, with its effect on the stack. */
+    void op(int opcode, int delta) {
+      stack(delta);
+      u1(opcode);
+      if (opcode == ARETURN || opcode == RETURN) depth = -1;
+    }
+
+    void aload(int local) {
+      stack(1);
+      u1(ALOAD);
+      u1(local);
+      checkLocal(local);
+    }
+
+    void astore(int local) {
+      stack(-1);
+      u1(ASTORE);
+      u1(local);
+      checkLocal(local);
+    }
+
+    private void checkLocal(int local) {
+      if (local > 0xff) throw new IllegalStateException("Too many locals");
+    }
+
+    /** Push an element of the array in a local. */
+    void element(int local, int index) {
+      aload(local);
+      push(index);
+      op(AALOAD, -1);
+    }
+
+    void push(int i) {
+      if (i >= -1 && i <= 5) {
+        op(ICONST_0 + i, 1);
+      } else if (i == (byte) i) {
+        stack(1);
+        u1(0x10); // bipush
+        u1(i);
+      } else if (i == (short) i) {
+        stack(1);
+        u1(0x11); // sipush
+        u2(i);
+      } else {
+        ldc(integer(i));
+      }
+    }
+
+    void ldc(int constant) {
+      stack(1);
+      u1(0x13); // ldc_w
+      u2(constant);
+    }
+
+    void type(int opcode, String internalName) {
+      stack(opcode == NEW ? 1 : 0);
+      u1(opcode);
+      u2(classRef(internalName));
+    }
+
+    void field(int opcode, String owner, String name, String desc) {
+      stack(opcode == GETFIELD ? 0 : -2);
+      u1(opcode);
+      u2(fieldRef(owner, name, desc));
+    }
+
+    void invoke(int opcode, String owner, String name, String desc) {
+      int delta = -argSize(desc) + (desc.endsWith(")V") ? 0 : 1);
+      if (opcode != INVOKESTATIC) delta--;
+      stack(delta);
+      u1(opcode);
+      if (opcode == INVOKEINTERFACE) {
+        u2(interfaceMethodRef(owner, name, desc));
+        u1(argSize(desc) + 1);
+        u1(0);
+      } else {
+        u2(methodRef(owner, name, desc));
+      }
+    }
+
+    Label label() {
+      Label l = new Label();
+      labels.add(l);
+      return l;
+    }
+
+    void jump(int opcode, Label target) {
+      stack(opcode == GOTO ? 0 : (opcode == IFNULL || opcode == IFNONNULL
+          || opcode == IFEQ || opcode == IFNE) ? -1 : -2);
+      if (target.depth < 0) {
+        target.depth = depth;
+      } else if (target.depth != depth) {
+        throw new IllegalStateException("Inconsistent stack at jump");
+      }
+      target.fixups.add(new Integer(code.size()));
+      u1(opcode);
+      u2(0);
+      if (opcode == GOTO) depth = -1;
+    }
+
+    void mark(Label target) {
+      target.pos = code.size();
+      if (depth < 0) {
+        depth = target.depth;
+      } else if (target.depth >= 0 && target.depth != depth) {
+        throw new IllegalStateException("Inconsistent stack at label");
+      }
+      target.depth = depth;
+    }
+
+    void prepare() {
+      utf8(name);
+      utf8(desc);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      byte[] bytes = code.toByteArray();
+      if (bytes.length >= 0xffff) {
+        throw new IllegalStateException("Method too large");
+      }
+      for (Iterator i = labels.iterator(); i.hasNext();) {
+        Label l = (Label) i.next();
+        for (Iterator j = l.fixups.iterator(); j.hasNext();) {
+          int at = ((Integer) j.next()).intValue();
+          int offset = l.pos - at;
+          if (l.pos < 0 || offset != (short) offset) {
+            throw new IllegalStateException("Bad jump");
+          }
+          bytes[at + 1] = (byte) (offset >> 8);
+          bytes[at + 2] = (byte) offset;
+        }
+      }
+      out.writeShort(0x0008); // static
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(desc));
+      out.writeShort(1);
+      out.writeShort(utf8("Code"));
+      out.writeInt(12 + bytes.length);
+      out.writeShort(maxStack);
+      out.writeShort(locals);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+  }
+
+  /**
+   * The number of local slots taken by the arguments of a method descriptor;
+   * only reference and int-sized types are used here.
+   */
+  static int argSize(String desc) {
+    int size = 0;
+    for (int i = 1; desc.charAt(i) != ')'; i++) {
+      char ch = desc.charAt(i);
+      boolean array = ch == '[';
+      while (ch == '[') ch = desc.charAt(++i);
+      if (ch == 'L') i = desc.indexOf(';', i);
+      if (!array && (ch == 'J' || ch == 'D')) size++;
+      size++;
+    }
+    return size;
+  }
+}
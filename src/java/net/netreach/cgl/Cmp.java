@@ -49,6 +49,13 @@ class Cmp extends Expr {
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
     Object lresult = lhs.evaluate(ctx);
     Object rresult = rhs.evaluate(ctx);
+    return new Boolean(compare(lresult, rresult, cmpType, incZero));
+  }
+
+  static boolean compare(Object lresult, Object rresult, int cmpType,
+      boolean incZero) {
+    lresult = Rope.flat(lresult);
+    rresult = Rope.flat(rresult);
     long cmpResult;
     if (lresult instanceof Number && rresult instanceof Number) {
       cmpResult = ((Number) lresult).longValue()
@@ -58,7 +65,7 @@ class Cmp extends Expr {
     }
     cmpResult *= cmpType;
     if (incZero) cmpResult++;
-    return new Boolean(cmpResult > 0);
+    return cmpResult > 0;
   }
 
   Cmp(int cmpType, boolean incZero, Expr lhs, Expr rhs) {
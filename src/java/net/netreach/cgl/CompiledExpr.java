@@ -0,0 +1,65 @@
+package net.netreach.cgl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+
+import net.netreach.util.FileLocatedException;
+
+/**
+ * An expression that has been compiled by Compiler, standing in for it in the
+ * tree. Until the compiled class has been linked, or if it never is, it just
+ * interprets the original; so does writing it, if it was only compiled to be
+ * evaluated.
+ */
+class CompiledExpr extends Expr {
+  final Expr expr;
+  private MethodHandle eval;
+  private MethodHandle write;
+
+  CompiledExpr(Expr expr) {
+    this.expr = expr;
+  }
+
+  void link(MethodHandle eval, MethodHandle write) {
+    this.eval = eval;
+    this.write = write;
+  }
+
+  public Object evaluate(Context ctx) throws IOException, FileLocatedException {
+    if (eval == null) return expr.evaluate(ctx);
+    try {
+      return (Object) eval.invokeExact(ctx);
+    } catch (IOException e) {
+      throw e;
+    } catch (FileLocatedException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void write(Context ctx, Writer out) throws IOException, FileLocatedException {
+    if (write == null) {
+      expr.write(ctx, out);
+      return;
+    }
+    try {
+      write.invokeExact(ctx, out);
+    } catch (IOException e) {
+      throw e;
+    } catch (FileLocatedException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
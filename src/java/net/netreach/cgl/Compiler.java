@@ -0,0 +1,832 @@
+package net.netreach.cgl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.netreach.util.Output;
+
+/**
+ * Compiles a parsed template into a class of static methods, one pair for each
+ * chain and forall and the rest inlined into them, so that evaluating it
+ * doesn't have to walk the tree. Every node is compiled to the same calls the
+ * interpreter makes, mostly through static helpers on the node classes that
+ * their evaluate methods share. Nodes it doesn't know (outfile, eval, list and
+ * so on) are left to the interpreter, but the expressions inside them are
+ * compiled in turn, so the body of an outfile still runs compiled.
+ * <p>
+ * The class is defined as a hidden class where the runtime has them, or an
+ * ordinary one in this package where it only has Lookup.defineClass. Where it
+ * has neither, or anything else goes wrong, the template is simply
+ * interpreted.
+ */
+class Compiler {
+  private static final String OBJECT = "java/lang/Object";
+  private static final String STRING = "java/lang/String";
+  private static final String BOOLEAN = "java/lang/Boolean";
+  private static final String ITERATOR = "java/util/Iterator";
+  private static final String WRITER = "java/io/Writer";
+  private static final String PKG = "net/netreach/cgl/";
+  private static final String CONTEXT = PKG + "Context";
+  private static final String SEPWRITER = PKG + "SepWriter";
+  private static final String VALUEWRITER = PKG + "ValueWriter";
+  private static final String POSITIONED = PKG + "PositionedExpr";
+  private static final String JOINER = PKG + "Chain$Joiner";
+
+  private static final String O = "L" + OBJECT + ";";
+  private static final String S = "L" + STRING + ";";
+  private static final String C = "L" + CONTEXT + ";";
+  private static final String W = "L" + WRITER + ";";
+  private static final String SW = "L" + SEPWRITER + ";";
+  private static final String VW = "L" + VALUEWRITER + ";";
+  private static final String P = "L" + POSITIONED + ";";
+
+  private static final String EVAL = "([" + O + C + ")" + O;
+  private static final String WRITE = "([" + O + C + W + ")V";
+  private static final String FOREVAL = "([" + O + C + S + ")" + O;
+  private static final String FORWRITE = "([" + O + C + W + SW + ")V";
+
+  private static int classCount = 0;
+
+  private final ClassBuilder cb;
+  private final List consts = new ArrayList();
+  private final Map constIndex = new IdentityHashMap();
+
+  /**
+   * Chains and foralls that need methods to evaluate or write them, in the
+   * order they were needed.
+   */
+  private final List evalNodes = new ArrayList();
+  private final Map evalIndex = new IdentityHashMap();
+  private int evalsDone = 0;
+  private final List writeNodes = new ArrayList();
+  private final Map writeIndex = new IdentityHashMap();
+  private int writesDone = 0;
+
+  /**
+   * Expressions called from outside the class, and their wrappers. Only the
+   * ones that are written need methods to write them.
+   */
+  private final List roots = new ArrayList();
+  private final Map rootWrappers = new IdentityHashMap();
+  private int rootsDone = 0;
+  private final List writtenRoots = new ArrayList();
+  private int writtenRootsDone = 0;
+
+  private final Map seenDefns = new IdentityHashMap();
+
+  private Compiler() {
+    cb = new ClassBuilder(PKG + "CompiledTemplate" + nextClassNumber());
+  }
+
+  private static synchronized int nextClassNumber() {
+    return ++classCount;
+  }
+
+  /**
+   * Compile the body of a template in place. If it can't be compiled the
+   * template is left to be interpreted, and the reason is reported when
+   * verbose.
+   */
+  static void compile(TimestampedExpr te, Object source) {
+    try {
+      Compiler c = new Compiler();
+      CompiledExpr body = c.root(te.body, true);
+      c.generate();
+      c.link(define(c.cb.toByteArray()));
+      te.body = body;
+    } catch (Exception e) {
+      report(source, e);
+    } catch (LinkageError e) {
+      report(source, e);
+    }
+  }
+
+  private static void report(Object source, Throwable e) {
+    if (e instanceof InvocationTargetException) {
+      e = ((InvocationTargetException) e).getTargetException();
+    }
+    if (CGLParser.verbose) {
+      Output.println("CGL: Interpreting " + source + ": " + e);
+    }
+  }
+
+  private CompiledExpr root(Expr e, boolean written) {
+    if (e instanceof CompiledExpr) return (CompiledExpr) e;
+    CompiledExpr wrapper = (CompiledExpr) rootWrappers.get(e);
+    if (wrapper == null) {
+      wrapper = new CompiledExpr(e);
+      rootWrappers.put(e, wrapper);
+      roots.add(e);
+    }
+    if (written && !writtenRoots.contains(e)) writtenRoots.add(e);
+    return wrapper;
+  }
+
+  private void generate() {
+    cb.method("init", "()V").op(ClassBuilder.RETURN, 0);
+    while (rootsDone < roots.size() || writtenRootsDone < writtenRoots.size()
+        || evalsDone < evalNodes.size() || writesDone < writeNodes.size()) {
+      if (rootsDone < roots.size()) {
+        ClassBuilder.Method m = cb.method("re" + rootsDone, EVAL);
+        eval(m, 1, (Expr) roots.get(rootsDone));
+        m.op(ClassBuilder.ARETURN, -1);
+        rootsDone++;
+      } else if (writtenRootsDone < writtenRoots.size()) {
+        ClassBuilder.Method m = cb.method("rw" + writtenRootsDone, WRITE);
+        write(m, 1, 2, (Expr) writtenRoots.get(writtenRootsDone));
+        m.op(ClassBuilder.RETURN, 0);
+        writtenRootsDone++;
+      } else if (evalsDone < evalNodes.size()) {
+        Expr e = (Expr) evalNodes.get(evalsDone);
+        if (e instanceof Chain) {
+          chainEval((Chain) e, cb.method("e" + evalsDone, EVAL));
+        } else {
+          forAllEval((ForAll) e, cb.method("e" + evalsDone, FOREVAL));
+        }
+        evalsDone++;
+      } else {
+        Expr e = (Expr) writeNodes.get(writesDone);
+        if (e instanceof Chain) {
+          chainWrite((Chain) e, cb.method("w" + writesDone, WRITE));
+        } else {
+          forAllWrite((ForAll) e, cb.method("w" + writesDone, FORWRITE));
+        }
+        writesDone++;
+      }
+    }
+  }
+
+  private void link(MethodHandles.Lookup lookup) throws Exception {
+    Class cls = lookup.lookupClass();
+
+    // Make sure the class is verified now rather than on first use, so that
+    // a mistake here means interpreting rather than failing.
+    try {
+      lookup.findStatic(cls, "init", MethodType.methodType(void.class))
+          .invokeExact();
+    } catch (Exception e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+
+    Object[] args = consts.toArray();
+    MethodType evalType = MethodType.methodType(Object.class, Object[].class,
+        Context.class);
+    MethodType writeType = MethodType.methodType(void.class, Object[].class,
+        Context.class, java.io.Writer.class);
+    for (int i = 0; i < roots.size(); i++) {
+      Object e = roots.get(i);
+      MethodHandle eval = MethodHandles.insertArguments(lookup.findStatic(cls,
+          "re" + i, evalType), 0, new Object[] {args});
+      MethodHandle write = null;
+      int w = writtenRoots.indexOf(e);
+      if (w >= 0) {
+        write = MethodHandles.insertArguments(lookup.findStatic(cls, "rw" + w,
+            writeType), 0, new Object[] {args});
+      }
+      ((CompiledExpr) rootWrappers.get(e)).link(eval, write);
+    }
+  }
+
+  /**
+   * Define the class in this package, returning a lookup on it.
+   */
+  private static MethodHandles.Lookup define(byte[] bytes) throws Exception {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    Class options;
+    try {
+      options = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+    } catch (ClassNotFoundException e) {
+      Method define = MethodHandles.Lookup.class.getMethod("defineClass",
+          new Class[] {byte[].class});
+      Class cls = (Class) define.invoke(lookup, new Object[] {bytes});
+      return lookup.in(cls);
+    }
+    Object noOptions = Array.newInstance(options, 0);
+    Method define = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+        new Class[] {byte[].class, boolean.class, noOptions.getClass()});
+    return (MethodHandles.Lookup) define.invoke(lookup, new Object[] {bytes,
+        Boolean.TRUE, noOptions});
+  }
+
+  // Constants and calls
+
+  private void constant(ClassBuilder.Method m, Object o) {
+    Integer index = (Integer) constIndex.get(o);
+    if (index == null) {
+      index = new Integer(consts.size());
+      consts.add(o);
+      constIndex.put(o, index);
+    }
+    m.element(0, index.intValue());
+  }
+
+  private void constant(ClassBuilder.Method m, Object o, String type) {
+    constant(m, o);
+    m.type(ClassBuilder.CHECKCAST, type);
+  }
+
+  private void string(ClassBuilder.Method m, String s) {
+    m.ldc(cb.string(s));
+  }
+
+  private void helper(ClassBuilder.Method m, String cls, String name,
+      String desc) {
+    m.invoke(ClassBuilder.INVOKESTATIC, PKG + cls, name, desc);
+  }
+
+  /** Box the boolean on the stack as the interpreter does. */
+  private void newBoolean(ClassBuilder.Method m) {
+    m.type(ClassBuilder.NEW, BOOLEAN);
+    m.op(ClassBuilder.DUP_X1, 1);
+    m.op(ClassBuilder.SWAP, 0);
+    m.invoke(ClassBuilder.INVOKESPECIAL, BOOLEAN, "<init>", "(Z)V");
+  }
+
+  private static int index(Expr e, List nodes, Map indexes) {
+    Integer index = (Integer) indexes.get(e);
+    if (index == null) {
+      index = new Integer(nodes.size());
+      nodes.add(e);
+      indexes.put(e, index);
+    }
+    return index.intValue();
+  }
+
+  private void callEval(ClassBuilder.Method m, int ctx, Expr e, int sepr) {
+    m.aload(0);
+    m.aload(ctx);
+    String name = "e" + index(e, evalNodes, evalIndex);
+    if (e instanceof ForAll) {
+      if (sepr < 0) {
+        m.op(ClassBuilder.ACONST_NULL, 1);
+      } else {
+        m.aload(sepr);
+      }
+      m.invoke(ClassBuilder.INVOKESTATIC, cb.name, name, FOREVAL);
+    } else {
+      m.invoke(ClassBuilder.INVOKESTATIC, cb.name, name, EVAL);
+    }
+  }
+
+  private void callWrite(ClassBuilder.Method m, int ctx, int out, Expr e,
+      int sout) {
+    m.aload(0);
+    m.aload(ctx);
+    m.aload(out);
+    String name = "w" + index(e, writeNodes, writeIndex);
+    if (e instanceof ForAll) {
+      if (sout < 0) {
+        m.op(ClassBuilder.ACONST_NULL, 1);
+      } else {
+        m.aload(sout);
+      }
+      m.invoke(ClassBuilder.INVOKESTATIC, cb.name, name, FORWRITE);
+    } else {
+      m.invoke(ClassBuilder.INVOKESTATIC, cb.name, name, WRITE);
+    }
+  }
+
+  // Evaluating
+
+  /**
+   * Leave the value of an expression on the stack, evaluated in the context
+   * in local ctx.
+   */
+  private void eval(ClassBuilder.Method m, int ctx, Expr e) {
+    if (e instanceof Literal) {
+      Object value = ((Literal) e).value;
+      if (value == null) {
+        m.op(ClassBuilder.ACONST_NULL, 1);
+      } else {
+        constant(m, value);
+      }
+    } else if (e instanceof Var && ((Var) e).slot >= 0) {
+      m.aload(ctx);
+      m.push(((Var) e).depth);
+      m.push(((Var) e).slot);
+      string(m, ((Var) e).name);
+      constant(m, e, POSITIONED);
+      helper(m, "Var", "get", "(" + C + "II" + S + P + ")" + O);
+    } else if (e instanceof Var) {
+      m.aload(ctx);
+      string(m, ((Var) e).name);
+      constant(m, e, POSITIONED);
+      helper(m, "Var", "get", "(" + C + S + P + ")" + O);
+    } else if (e instanceof Str) {
+      eval(m, ctx, ((Str) e).value);
+      constant(m, e, POSITIONED);
+      helper(m, "Str", "str", "(" + O + P + ")" + S);
+    } else if (e instanceof Chain || e instanceof ForAll) {
+      callEval(m, ctx, e, -1);
+    } else if (e instanceof When) {
+      When w = (When) e;
+      ClassBuilder.Label otherwise = m.label();
+      ClassBuilder.Label end = m.label();
+      eval(m, ctx, w.test);
+      m.invoke(ClassBuilder.INVOKESTATIC, PKG + "Bool", "truth", "(" + O + ")Z");
+      m.jump(ClassBuilder.IFEQ, otherwise);
+      eval(m, ctx, w.value);
+      m.jump(ClassBuilder.GOTO, end);
+      m.mark(otherwise);
+      if (w.elseVal != null) {
+        eval(m, ctx, w.elseVal);
+      } else {
+        m.op(ClassBuilder.ACONST_NULL, 1);
+      }
+      m.mark(end);
+    } else if (e instanceof Define) {
+      eval(m, define(m, ctx, (Define) e), ((Define) e).body);
+    } else if (e instanceof Box) {
+      eval(m, openBox(m, ctx, (Box) e), ((Box) e).body);
+    } else if (e instanceof Identity) {
+      eval(m, ctx, ((Identity) e).value);
+    } else if (e instanceof TimestampedExpr) {
+      eval(m, ctx, ((TimestampedExpr) e).body);
+    } else if (e instanceof Bool) {
+      eval(m, ctx, ((Bool) e).value);
+      helper(m, "Bool", "apply", "(" + O + ")" + O);
+    } else if (e instanceof Not) {
+      eval(m, ctx, ((Not) e).value);
+      helper(m, "Not", "apply", "(" + O + ")" + O);
+    } else if (e instanceof AnyAllOf) {
+      anyAllOf(m, ctx, (AnyAllOf) e);
+    } else if (e instanceof Eq) {
+      eval(m, ctx, ((Eq) e).lhs);
+      eval(m, ctx, ((Eq) e).rhs);
+      helper(m, "Eq", "equal", "(" + O + O + ")Z");
+      newBoolean(m);
+    } else if (e instanceof Ne) {
+      eval(m, ctx, ((Ne) e).lhs);
+      eval(m, ctx, ((Ne) e).rhs);
+      helper(m, "Eq", "equal", "(" + O + O + ")Z");
+      m.op(ClassBuilder.ICONST_1, 1);
+      m.op(ClassBuilder.IXOR, -1);
+      newBoolean(m);
+    } else if (e instanceof Cmp) {
+      Cmp cmp = (Cmp) e;
+      eval(m, ctx, cmp.lhs);
+      eval(m, ctx, cmp.rhs);
+      m.ldc(cb.integer(cmp.cmpType));
+      m.op(cmp.incZero ? ClassBuilder.ICONST_1 : ClassBuilder.ICONST_0, 1);
+      helper(m, "Cmp", "compare", "(" + O + O + "IZ)Z");
+      newBoolean(m);
+    } else if (e instanceof Plus) {
+      arithmetic(m, ctx, "Plus", ((Plus) e).lhs, ((Plus) e).rhs);
+    } else if (e instanceof Minus) {
+      arithmetic(m, ctx, "Minus", ((Minus) e).lhs, ((Minus) e).rhs);
+    } else if (e instanceof Times) {
+      arithmetic(m, ctx, "Times", ((Times) e).lhs, ((Times) e).rhs);
+    } else if (e instanceof Divide) {
+      arithmetic(m, ctx, "Divide", ((Divide) e).lhs, ((Divide) e).rhs);
+    } else if (e instanceof Int) {
+      apply(m, ctx, "Int", ((Int) e).value);
+    } else if (e instanceof UCase) {
+      apply(m, ctx, "UCase", ((UCase) e).value);
+    } else if (e instanceof LCase) {
+      apply(m, ctx, "LCase", ((LCase) e).value);
+    } else if (e instanceof InitCap) {
+      apply(m, ctx, "InitCap", ((InitCap) e).value);
+    } else if (e instanceof Length) {
+      apply(m, ctx, "Length", ((Length) e).value);
+    } else if (e instanceof InterCap) {
+      eval(m, ctx, ((InterCap) e).value);
+      string(m, ((InterCap) e).chars);
+      constant(m, e, POSITIONED);
+      helper(m, "InterCap", "apply", "(" + O + S + P + ")" + O);
+    } else if (e instanceof Trans) {
+      eval(m, ctx, ((Trans) e).value);
+      string(m, ((Trans) e).chars);
+      string(m, ((Trans) e).mapTo);
+      helper(m, "Trans", "apply", "(" + O + S + S + ")" + O);
+    } else if (e instanceof Subst) {
+      Subst s = (Subst) e;
+      eval(m, ctx, s.value);
+      helper(m, "Subst", "checkValue", "(" + O + ")" + O);
+      eval(m, ctx, s.mapFrom);
+      helper(m, "Subst", "checkFrom", "(" + O + ")" + S);
+      eval(m, ctx, s.mapTo);
+      helper(m, "Subst", "apply", "(" + O + S + O + ")" + S);
+    } else if (e instanceof Defined) {
+      m.aload(ctx);
+      string(m, ((Defined) e).name);
+      helper(m, "Defined", "apply", "(" + C + S + ")" + O);
+    } else if (e instanceof WhatsIn) {
+      m.aload(ctx);
+      string(m, ((WhatsIn) e).name);
+      helper(m, "WhatsIn", "apply", "(" + C + S + ")" + O);
+    } else if (e instanceof Default) {
+      defaultEval(m, ctx, (Default) e);
+    } else if (e instanceof Assign) {
+      m.aload(ctx);
+      string(m, ((Assign) e).name);
+      helper(m, "Assign", "box", "(" + C + S + ")L" + PKG + "BoxValue;");
+      eval(m, ctx, ((Assign) e).value);
+      m.field(ClassBuilder.PUTFIELD, PKG + "BoxValue", "value", O);
+      m.op(ClassBuilder.ACONST_NULL, 1);
+    } else {
+      interpreted(e);
+      constant(m, e, PKG + "Expr");
+      m.aload(ctx);
+      m.invoke(ClassBuilder.INVOKEVIRTUAL, PKG + "Expr", "evaluate", "(" + C
+          + ")" + O);
+    }
+  }
+
+  private void arithmetic(ClassBuilder.Method m, int ctx, String cls,
+      Expr lhs, Expr rhs) {
+    eval(m, ctx, lhs);
+    eval(m, ctx, rhs);
+    helper(m, cls, "apply", "(" + O + O + ")" + O);
+  }
+
+  private void apply(ClassBuilder.Method m, int ctx, String cls, Expr value) {
+    eval(m, ctx, value);
+    helper(m, cls, "apply", "(" + O + ")" + O);
+  }
+
+  private void anyAllOf(ClassBuilder.Method m, int ctx, AnyAllOf e) {
+    // Stop at the first value that decides the answer, as the interpreter's
+    // loop does.
+    if (e.exprs.isEmpty()) {
+      m.op(e.isAny ? ClassBuilder.ICONST_0 : ClassBuilder.ICONST_1, 1);
+      newBoolean(m);
+      return;
+    }
+    ClassBuilder.Label decided = m.label();
+    ClassBuilder.Label end = m.label();
+    for (Iterator i = e.exprs.iterator(); i.hasNext();) {
+      eval(m, ctx, (Expr) i.next());
+      m.invoke(ClassBuilder.INVOKESTATIC, PKG + "Bool", "truth", "(" + O + ")Z");
+      m.jump(e.isAny ? ClassBuilder.IFNE : ClassBuilder.IFEQ, decided);
+    }
+    m.op(e.isAny ? ClassBuilder.ICONST_0 : ClassBuilder.ICONST_1, 1);
+    m.jump(ClassBuilder.GOTO, end);
+    m.mark(decided);
+    m.op(e.isAny ? ClassBuilder.ICONST_1 : ClassBuilder.ICONST_0, 1);
+    m.mark(end);
+    newBoolean(m);
+  }
+
+  private void defaultEval(ClassBuilder.Method m, int ctx, Default e) {
+    ClassBuilder.Label end = m.label();
+    lookup(m, ctx, e.name, "get", O);
+    m.op(ClassBuilder.DUP, 1);
+    m.jump(ClassBuilder.IFNONNULL, end);
+    lookup(m, ctx, e.name, "containsKey", "Z");
+    m.jump(ClassBuilder.IFNE, end);
+    m.op(ClassBuilder.POP, -1);
+    eval(m, ctx, e.def);
+    m.mark(end);
+  }
+
+  private void lookup(ClassBuilder.Method m, int ctx, String name,
+      String method, String result) {
+    m.aload(ctx);
+    m.field(ClassBuilder.GETFIELD, CONTEXT, "vars", "L" + PKG + "Scope;");
+    string(m, name);
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, PKG + "Scope", method, "(" + O + ")"
+        + result);
+  }
+
+  /** The local holding the context for the body of a define. */
+  private int define(ClassBuilder.Method m, int ctx, Define e) {
+    definition(e.elems);
+    constant(m, e.elems, PKG + "Definition");
+    m.aload(ctx);
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, PKG + "Definition", "createContext",
+        "(" + C + ")" + C);
+    int ictx = m.newLocal();
+    m.astore(ictx);
+    return ictx;
+  }
+
+  /** The local holding the context for the body of a box. */
+  private int openBox(ClassBuilder.Method m, int ctx, Box e) {
+    m.aload(ctx);
+    string(m, e.name);
+    helper(m, "Box", "check", "(" + C + S + ")V");
+    m.aload(ctx);
+    string(m, e.name);
+    eval(m, ctx, e.initValue);
+    helper(m, "Box", "open", "(" + C + S + O + ")" + C);
+    int ictx = m.newLocal();
+    m.astore(ictx);
+    return ictx;
+  }
+
+  // Writing
+
+  /**
+   * Write an expression to the writer in local out, in the context in local
+   * ctx.
+   */
+  private void write(ClassBuilder.Method m, int ctx, int out, Expr e) {
+    if (e instanceof Chain || e instanceof ForAll) {
+      callWrite(m, ctx, out, e, -1);
+    } else if (e instanceof When) {
+      When w = (When) e;
+      ClassBuilder.Label otherwise = m.label();
+      ClassBuilder.Label end = m.label();
+      eval(m, ctx, w.test);
+      m.invoke(ClassBuilder.INVOKESTATIC, PKG + "Bool", "truth", "(" + O + ")Z");
+      m.jump(ClassBuilder.IFEQ, otherwise);
+      write(m, ctx, out, w.value);
+      m.jump(ClassBuilder.GOTO, end);
+      m.mark(otherwise);
+      if (w.elseVal != null) write(m, ctx, out, w.elseVal);
+      m.mark(end);
+    } else if (e instanceof Define) {
+      write(m, define(m, ctx, (Define) e), out, ((Define) e).body);
+    } else if (e instanceof Box) {
+      write(m, openBox(m, ctx, (Box) e), out, ((Box) e).body);
+    } else if (e instanceof Identity) {
+      write(m, ctx, out, ((Identity) e).value);
+    } else if (e instanceof TimestampedExpr) {
+      write(m, ctx, out, ((TimestampedExpr) e).body);
+    } else if (e instanceof Default) {
+      ClassBuilder.Label defined = m.label();
+      ClassBuilder.Label end = m.label();
+      lookup(m, ctx, ((Default) e).name, "containsKey", "Z");
+      m.jump(ClassBuilder.IFNE, defined);
+      write(m, ctx, out, ((Default) e).def);
+      m.jump(ClassBuilder.GOTO, end);
+      m.mark(defined);
+      writeValue(m, ctx, out, e);
+      m.mark(end);
+    } else if (e instanceof Literal && ((Literal) e).value == null) {
+      // Nothing to write.
+    } else if (e.filtered() != null) {
+      int filter = m.newLocal();
+      constant(m, e, PKG + "Expr");
+      m.aload(out);
+      m.invoke(ClassBuilder.INVOKEVIRTUAL, PKG + "Expr", "filter", "(" + W
+          + ")" + VW);
+      m.astore(filter);
+      write(m, ctx, filter, e.filtered());
+      m.aload(filter);
+      m.invoke(ClassBuilder.INVOKEVIRTUAL, VALUEWRITER, "finish", "()V");
+    } else if (isCompiled(e)) {
+      writeValue(m, ctx, out, e);
+    } else {
+      interpreted(e);
+      constant(m, e, PKG + "Expr");
+      m.aload(ctx);
+      m.aload(out);
+      m.invoke(ClassBuilder.INVOKEVIRTUAL, PKG + "Expr", "write", "(" + C + W
+          + ")V");
+    }
+  }
+
+  /** Write the value of an expression, if it isn't null. */
+  private void writeValue(ClassBuilder.Method m, int ctx, int out, Expr e) {
+    ClassBuilder.Label notNull = m.label();
+    ClassBuilder.Label end = m.label();
+    m.aload(out);
+    eval(m, ctx, e);
+    m.op(ClassBuilder.DUP, 1);
+    m.jump(ClassBuilder.IFNONNULL, notNull);
+    m.op(ClassBuilder.POP2, -2);
+    m.jump(ClassBuilder.GOTO, end);
+    m.mark(notNull);
+    helper(m, "Rope", "write", "(" + W + O + ")V");
+    m.mark(end);
+  }
+
+  private static boolean isCompiled(Expr e) {
+    return e instanceof Literal || e instanceof Var || e instanceof Str
+        || e instanceof Bool || e instanceof Not || e instanceof AnyAllOf
+        || e instanceof Eq || e instanceof Ne || e instanceof Cmp
+        || e instanceof Plus || e instanceof Minus || e instanceof Times
+        || e instanceof Divide || e instanceof Int || e instanceof UCase
+        || e instanceof LCase || e instanceof InitCap || e instanceof Length
+        || e instanceof InterCap || e instanceof Trans || e instanceof Subst
+        || e instanceof Defined || e instanceof WhatsIn || e instanceof Assign;
+  }
+
+  // Chains and foralls
+
+  private void chainEval(Chain chain, ClassBuilder.Method m) {
+    int result = m.newLocal();
+    int sepr = -1;
+    joiner(m, result);
+    if (chain.sep != null) {
+      sepr = m.newLocal();
+      ClassBuilder.Label none = m.label();
+      ClassBuilder.Label end = m.label();
+      eval(m, 1, chain.sep);
+      m.op(ClassBuilder.DUP, 1);
+      m.jump(ClassBuilder.IFNULL, none);
+      m.invoke(ClassBuilder.INVOKEVIRTUAL, OBJECT, "toString", "()" + S);
+      m.jump(ClassBuilder.GOTO, end);
+      m.mark(none);
+      m.op(ClassBuilder.POP, -1);
+      m.op(ClassBuilder.ACONST_NULL, 1);
+      m.mark(end);
+      m.astore(sepr);
+    }
+    for (Iterator i = chain.exprs.iterator(); i.hasNext();) {
+      Expr e = (Expr) i.next();
+      m.aload(result);
+      if (e instanceof ForAll) {
+        callEval(m, 1, e, sepr);
+      } else {
+        eval(m, 1, e);
+      }
+      add(m, sepr);
+    }
+    m.aload(result);
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, JOINER, "get", "()" + O);
+    m.op(ClassBuilder.ARETURN, -1);
+  }
+
+  private void chainWrite(Chain chain, ClassBuilder.Method m) {
+    int sout = -1;
+    if (chain.sep != null) {
+      sout = m.newLocal();
+      ClassBuilder.Label none = m.label();
+      m.aload(2);
+      eval(m, 1, chain.sep);
+      helper(m, "Chain", "startSep", "(" + W + O + ")" + SW);
+      m.astore(sout);
+      m.aload(sout);
+      m.jump(ClassBuilder.IFNULL, none);
+      m.aload(sout);
+      m.astore(2);
+      m.mark(none);
+    }
+    for (Iterator i = chain.exprs.iterator(); i.hasNext();) {
+      Expr e = (Expr) i.next();
+      if (sout >= 0 && e instanceof ForAll) {
+        callWrite(m, 1, 2, e, sout);
+      } else {
+        write(m, 1, 2, e);
+      }
+      if (sout >= 0) sepWriter(m, sout, "nextSep");
+    }
+    if (sout >= 0) sepWriter(m, sout, "endSep");
+    m.op(ClassBuilder.RETURN, 0);
+  }
+
+  private void forAllEval(ForAll forAll, ClassBuilder.Method m) {
+    int result = m.newLocal();
+    int it = m.newLocal();
+    int ictx = m.newLocal();
+    joiner(m, result);
+    ClassBuilder.Label loop = m.label();
+    ClassBuilder.Label end = m.label();
+    items(m, forAll, it);
+    m.mark(loop);
+    next(m, it, ictx, "evalContext", end);
+    m.aload(result);
+    eval(m, ictx, forAll.value);
+    add(m, 2);
+    m.jump(ClassBuilder.GOTO, loop);
+    m.mark(end);
+    m.aload(result);
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, JOINER, "get", "()" + O);
+    m.op(ClassBuilder.ARETURN, -1);
+  }
+
+  private void forAllWrite(ForAll forAll, ClassBuilder.Method m) {
+    int it = m.newLocal();
+    int ictx = m.newLocal();
+    ClassBuilder.Label loop = m.label();
+    ClassBuilder.Label end = m.label();
+    items(m, forAll, it);
+    m.mark(loop);
+    next(m, it, ictx, "writeContext", end);
+    write(m, ictx, 2, forAll.value);
+    m.aload(3);
+    m.jump(ClassBuilder.IFNULL, loop);
+    m.aload(3);
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, SEPWRITER, "nextSep", "()V");
+    m.jump(ClassBuilder.GOTO, loop);
+    m.mark(end);
+    m.op(ClassBuilder.RETURN, 0);
+  }
+
+  private void items(ClassBuilder.Method m, ForAll forAll, int it) {
+    eval(m, 1, forAll.list);
+    helper(m, "ForAll", "items", "(" + O + ")L" + ITERATOR + ";");
+    m.astore(it);
+  }
+
+  /**
+   * Move on to the next item, or to end if there are none, setting up the
+   * context for it.
+   */
+  private void next(ClassBuilder.Method m, int it, int ictx, String context,
+      ClassBuilder.Label end) {
+    m.aload(it);
+    m.invoke(ClassBuilder.INVOKEINTERFACE, ITERATOR, "hasNext", "()Z");
+    m.jump(ClassBuilder.IFEQ, end);
+    m.aload(1);
+    m.aload(it);
+    m.invoke(ClassBuilder.INVOKEINTERFACE, ITERATOR, "next", "()" + O);
+    helper(m, "ForAll", context, "(" + C + O + ")" + C);
+    m.astore(ictx);
+  }
+
+  private void sepWriter(ClassBuilder.Method m, int sout, String method) {
+    ClassBuilder.Label none = m.label();
+    m.aload(sout);
+    m.jump(ClassBuilder.IFNULL, none);
+    m.aload(sout);
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, SEPWRITER, method, "()V");
+    m.mark(none);
+  }
+
+  private void joiner(ClassBuilder.Method m, int result) {
+    m.type(ClassBuilder.NEW, JOINER);
+    m.op(ClassBuilder.DUP, 1);
+    m.invoke(ClassBuilder.INVOKESPECIAL, JOINER, "<init>", "()V");
+    m.astore(result);
+  }
+
+  /** Add the value on the stack to the joiner under it. */
+  private void add(ClassBuilder.Method m, int sepr) {
+    if (sepr < 0) {
+      m.op(ClassBuilder.ACONST_NULL, 1);
+    } else {
+      m.aload(sepr);
+    }
+    m.invoke(ClassBuilder.INVOKEVIRTUAL, JOINER, "add", "(" + O + S + ")V");
+  }
+
+  // Interpreted nodes
+
+  /**
+   * Compile the expressions inside a node that is left to the interpreter,
+   * replacing them with calls into the compiled class.
+   */
+  private void interpreted(Expr e) {
+    if (e instanceof Outfile) {
+      Outfile o = (Outfile) e;
+      o.filename = root(o.filename, false);
+      o.body = root(o.body, true);
+    } else if (e instanceof Eval) {
+      ((Eval) e).filename = root(((Eval) e).filename, false);
+    } else if (e instanceof ReadFile) {
+      ((ReadFile) e).filename = root(((ReadFile) e).filename, false);
+    } else if (e instanceof ListExpr) {
+      listDefinitions(((ListExpr) e).parts);
+    }
+  }
+
+  private void listDefinitions(List elems) {
+    for (Iterator i = elems.iterator(); i.hasNext();) {
+      listDefinition((LDefnElem) i.next());
+    }
+  }
+
+  private void listDefinition(LDefnElem elem) {
+    if (elem instanceof ForAllLDefn) {
+      ForAllLDefn f = (ForAllLDefn) elem;
+      f.list = root(f.list, false);
+      listDefinition(f.body);
+    } else if (elem instanceof WhenLDefn) {
+      WhenLDefn w = (WhenLDefn) elem;
+      w.condition = root(w.condition, false);
+      listDefinition(w.body);
+    } else if (elem instanceof SepLDefn) {
+      listDefinition(((SepLDefn) elem).sep);
+      listDefinitions(((SepLDefn) elem).body);
+    } else if (elem instanceof ListLDefn) {
+      listDefinitions(((ListLDefn) elem).body);
+    } else if (elem instanceof BasicLDefn) {
+      definition(((BasicLDefn) elem).defn);
+    }
+  }
+
+  private void definition(Definition defn) {
+    if (seenDefns.put(defn, defn) != null) return;
+    if (defn instanceof TimestampedDefn) {
+      definition(((TimestampedDefn) defn).body);
+    }
+    for (Iterator i = defn.elems.iterator(); i.hasNext();) {
+      DefnElem elem = (DefnElem) i.next();
+      if (elem instanceof Set) {
+        ((Set) elem).value = root(((Set) elem).value, false);
+      } else if (elem instanceof Import) {
+        ((Import) elem).filename = root(((Import) elem).filename, false);
+      } else if (elem instanceof Declare) {
+        definition(((Declare) elem).decl);
+      } else if (elem instanceof Inside) {
+        definition(((Inside) elem).defns);
+      }
+    }
+  }
+}
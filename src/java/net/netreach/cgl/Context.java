@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.File;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -46,6 +47,10 @@ public class Context {
   public long age = 0;
   long callerModified = Long.MIN_VALUE;
   Map deps = new HashMap();
+  Frame frame;
+
+  /** If not null, where the files that outfiles are run for are added. */
+  public Collection outputs;
 
   public Context() {
     vars = new Scope();
@@ -64,5 +69,18 @@ public class Context {
     age = ctx.age;
     deps = ctx.deps;
     callerModified = ctx.callerModified;
+    frame = ctx.frame;
+    outputs = ctx.outputs;
+  }
+
+  /**
+   * A context for running a template on a thread of its own: as new
+   * Context(ctx), but with a copy of the dependency timestamps found so far
+   * instead of sharing them with ctx.
+   */
+  public static Context forThread(Context ctx) {
+    Context result = new Context(ctx);
+    result.deps = new HashMap(ctx.deps);
+    return result;
   }
 }
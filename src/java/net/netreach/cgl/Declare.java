@@ -43,6 +43,9 @@ class Declare extends DefnElem {
   List given;
   Definition decl;
 
+  /** Whether it is pure, by Purity, once that has been worked out. */
+  private volatile Boolean pure;
+
   Declare(String name, List given, Definition decl) {
     this.name = name;
     this.given = given;
@@ -53,4 +56,13 @@ class Declare extends DefnElem {
     ctx.vars.put("declare$" + name, new Declosure(this, ctx));
     return new Context(ctx);
   }
+
+  boolean isPure() {
+    Boolean result = pure;
+    if (result == null) {
+      result = Boolean.valueOf(Purity.isPure(this));
+      pure = result;
+    }
+    return result.booleanValue();
+  }
 }
@@ -36,13 +36,94 @@
 package net.netreach.cgl;
 
 // Collections classes used in implementation.
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A declare and the context it was declared in. If the declare is pure, by
+ * Purity, and so are the declares it uses, the variables each use sets are
+ * remembered by the values of the givens, so that later uses with the same
+ * ones are given the same variables without running it again. Only givens
+ * that are strings, booleans, integers or null can be told apart safely this
+ * way; uses with any others run the declare as before.
+ */
 class Declosure {
   Declare decl;
   Context ctx;
 
+  static final AtomicLong hits = new AtomicLong();
+  static final AtomicLong misses = new AtomicLong();
+  static final AtomicLong unmemoized = new AtomicLong();
+
+  private static final int UNKNOWN = 0, CHECKING = 1, PURE = 2, IMPURE = 3;
+  private int purity = UNKNOWN;
+  private Map memo;
+
   Declosure(Declare decl, Context ctx) {
     this.decl = decl;
     this.ctx = ctx;
   }
+
+  /**
+   * The key to remember a use with the given values of the givens by, or null
+   * if it can't be remembered.
+   */
+  synchronized List key(Object[] values) {
+    if (!isPure()) {
+      unmemoized.incrementAndGet();
+      return null;
+    }
+    for (int i = 0; i < values.length; i++) {
+      Object value = values[i];
+      if (value != null && !(value instanceof String)
+          && !(value instanceof Boolean) && !(value instanceof Integer)
+          && !(value instanceof Long)) {
+        unmemoized.incrementAndGet();
+        return null;
+      }
+    }
+    return Arrays.asList(values);
+  }
+
+  /**
+   * The variables set by an earlier use with the same key, or null.
+   */
+  synchronized Map recall(List key) {
+    Map result = memo == null ? null : (Map) memo.get(key);
+    (result != null ? hits : misses).incrementAndGet();
+    return result;
+  }
+
+  synchronized void remember(List key, Map vars) {
+    if (memo == null) memo = new HashMap();
+    memo.put(key, vars);
+  }
+
+  private synchronized boolean isPure() {
+    if (purity == UNKNOWN) {
+      purity = CHECKING;
+      purity = decl.isPure() && usesArePure() ? PURE : IMPURE;
+    }
+    return purity == PURE;
+  }
+
+  /**
+   * Whether the declares this one uses, which are found where it was
+   * declared, are all pure; a declare that uses itself is not.
+   */
+  private boolean usesArePure() {
+    for (Iterator i = decl.decl.elems.iterator(); i.hasNext();) {
+      Object elem = i.next();
+      if (!(elem instanceof Use)) continue;
+      Object used = ctx.vars.get("declare$" + ((Use) elem).name);
+      if (!(used instanceof Declosure) || !((Declosure) used).isPure()) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
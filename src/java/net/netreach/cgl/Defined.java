@@ -44,6 +44,10 @@ class Defined extends Expr {
   String name;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
+    return apply(ctx, name);
+  }
+
+  static Object apply(Context ctx, String name) {
     return new Boolean(ctx.vars.containsKey(name));
   }
 
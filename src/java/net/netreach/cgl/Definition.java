@@ -48,6 +48,9 @@ public class Definition {
 
   List elems = new LinkedList();
 
+  /** The number of slots in the frame of a define; see Resolver. */
+  int frameSize = 0;
+
   public Context setOnContext(Context ctx) throws FileLocatedException, IOException {
     for (Iterator i = elems.iterator(); i.hasNext();) {
       DefnElem elem = (DefnElem) i.next();
@@ -76,7 +79,9 @@ public class Definition {
   }
 
   public Context createContext(Context ctx) throws FileLocatedException, IOException {
-    Context ictx = setOnContext(new Context(ctx));
+    Context ictx = new Context(ctx);
+    if (frameSize > 0) ictx.frame = new Frame(ctx.frame, frameSize);
+    ictx = setOnContext(ictx);
     ictx.vars.freeze();
     return ictx;
   }
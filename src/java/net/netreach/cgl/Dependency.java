@@ -36,6 +36,7 @@
 package net.netreach.cgl;
 
 // Collections classes used in implementation.
+import java.io.File;
 import java.io.IOException;
 
 import net.netreach.util.FileLocatedException;
@@ -44,4 +45,10 @@ public interface Dependency {
 
   public TimestampedObject resolve(Context ctx) throws IOException,
       FileLocatedException;
+
+  /**
+   * The file it refers to, if it is named by a constant, or null; unlike
+   * resolve(), never loads it.
+   */
+  public File getFile();
 }
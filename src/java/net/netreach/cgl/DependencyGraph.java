@@ -0,0 +1,167 @@
+package net.netreach.cgl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timestamps of templates and exports, with the imports and evals they
+ * depend on already taken into account, as worked out by TimestampHelper on
+ * earlier runs and kept in a file in the parse cache directory. Each entry
+ * records the size and modification time of its file and the files its
+ * imports and evals named; it is used, without loading any of them, as long
+ * as its file and every entry it depends on are unchanged, so that changing
+ * a file only invalidates the entries that depend on it. Only files whose
+ * imports and evals all name constant files are entered, since the others
+ * can't be checked without being loaded.
+ */
+final class DependencyGraph {
+
+  private static final int MAGIC = 0x4e524447; // "NRDG"
+  private static final int VERSION = 1;
+
+  /** Marks an entry found to be out of date, or being checked, this run. */
+  private static final Long INVALID = new Long(-1);
+
+  private static final class Entry {
+    final long length;
+    final long modified;
+    final String[] deps;
+    final long stamp;
+
+    Entry(long length, long modified, String[] deps, long stamp) {
+      this.length = length;
+      this.modified = modified;
+      this.deps = deps;
+      this.stamp = stamp;
+    }
+  }
+
+  private final File file;
+  private final Map entries = new HashMap();
+  private final Map checked = new HashMap();
+  private boolean changed = false;
+
+  DependencyGraph(File dir) {
+    file = new File(dir, "dependencies.cgld");
+    if (file.isFile()) load();
+  }
+
+  /**
+   * The timestamp of a file and everything it depends on, if there's an entry
+   * for it that's still current, or -1.
+   */
+  synchronized long stamp(File f) {
+    return check(f.getPath());
+  }
+
+  private long check(String path) {
+    Long result = (Long) checked.get(path);
+    if (result != null) return result.longValue();
+    checked.put(path, INVALID);
+    Entry entry = (Entry) entries.get(path);
+    if (entry == null) return -1;
+    File f = new File(path);
+    if (f.lastModified() != entry.modified || f.length() != entry.length) {
+      return -1;
+    }
+    for (int i = 0; i < entry.deps.length; i++) {
+      if (check(entry.deps[i]) < 0) return -1;
+    }
+    checked.put(path, new Long(entry.stamp));
+    return entry.stamp;
+  }
+
+  /**
+   * Enter the timestamp worked out for a file, which was last modified at the
+   * given time, and the files it depends on.
+   */
+  synchronized void record(File f, long modified, List deps, long stamp) {
+    String[] paths = new String[deps.size()];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = ((File) deps.get(i)).getPath();
+    }
+    entries.put(f.getPath(), new Entry(f.length(), modified, paths, stamp));
+    checked.put(f.getPath(), new Long(stamp));
+    changed = true;
+  }
+
+  private void load() {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+        for (int n = in.readInt(); n > 0; n--) {
+          String path = in.readUTF();
+          long length = in.readLong();
+          long modified = in.readLong();
+          long stamp = in.readLong();
+          String[] deps = new String[in.readInt()];
+          for (int i = 0; i < deps.length; i++) {
+            deps[i] = in.readUTF();
+          }
+          entries.put(path, new Entry(length, modified, deps, stamp));
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // An unreadable file just means everything is worked out again.
+      entries.clear();
+    }
+  }
+
+  /**
+   * Write the entries out, if any were added since they were read.
+   */
+  synchronized void save() {
+    if (!changed) return;
+    File dir = file.getParentFile();
+    File tmp = null;
+    try {
+      dir.mkdirs();
+      tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Iterator i = entries.entrySet().iterator(); i.hasNext();) {
+          Map.Entry e = (Map.Entry) i.next();
+          Entry entry = (Entry) e.getValue();
+          out.writeUTF((String) e.getKey());
+          out.writeLong(entry.length);
+          out.writeLong(entry.modified);
+          out.writeLong(entry.stamp);
+          out.writeInt(entry.deps.length);
+          for (int j = 0; j < entry.deps.length; j++) {
+            out.writeUTF(entry.deps[j]);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      file.delete();
+      if (tmp.renameTo(file)) {
+        tmp = null;
+        changed = false;
+      }
+    } catch (IOException e) {
+      // Failing to write it only means the timestamps are worked out again
+      // next time.
+    } finally {
+      if (tmp != null) tmp.delete();
+    }
+  }
+}
@@ -47,11 +47,16 @@ class Eq extends Expr {
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
     Object lresult = lhs.evaluate(ctx);
     Object rresult = rhs.evaluate(ctx);
-    return new Boolean(
-        lresult == null ? rresult == null
-            : (lresult.equals(rresult) || (lresult instanceof Number
-                && rresult instanceof Number && ((Number) lresult).longValue() == ((Number) rresult)
-                .longValue())));
+    return new Boolean(equal(lresult, rresult));
+  }
+
+  static boolean equal(Object lresult, Object rresult) {
+    lresult = Rope.flat(lresult);
+    rresult = Rope.flat(rresult);
+    return lresult == null ? rresult == null
+        : (lresult.equals(rresult) || (lresult instanceof Number
+            && rresult instanceof Number && ((Number) lresult).longValue() == ((Number) rresult)
+            .longValue()));
   }
 
   Eq(Expr lhs, Expr rhs) {
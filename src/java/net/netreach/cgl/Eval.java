@@ -56,6 +56,10 @@ class Eval extends Expr implements Dependency {
   // other.
   private Object key = new Object();
 
+  public File getFile() {
+    return TimestampHelper.constantFile(relativeTo, filename);
+  }
+
   public TimestampedObject resolve(Context ctx) throws IOException,
       FileLocatedException {
     TimestampedObject tso = (TimestampedObject) ctx.deps.get(this);
@@ -68,7 +72,7 @@ class Eval extends Expr implements Dependency {
     long modTime = modified;
     for (Iterator i = activeDeps.iterator(); i.hasNext();) {
       Dependency dep = (Dependency) i.next();
-      long depMod = dep.resolve(ctx).resolve(ctx);
+      long depMod = TimestampHelper.stamp(dep, ctx);
       if (depMod > modTime) modTime = depMod;
     }
     ctx.deps.put(key, new Long(modTime));
@@ -47,8 +47,27 @@ public abstract class Expr {
       FileLocatedException;
 
   void write(Context ctx, Writer out) throws IOException, FileLocatedException {
+    Expr value = filtered();
+    if (value != null) {
+      ValueWriter vout = filter(out);
+      value.write(ctx, vout);
+      vout.finish();
+      return;
+    }
     Object result = evaluate(ctx);
-    if (result != null) out.write(result.toString());
+    if (result != null) Rope.write(out, result);
+  }
+
+  /**
+   * For a string transform, the expression whose value can be transformed as
+   * it is written, through filter(); null if it has to be evaluated first.
+   */
+  Expr filtered() {
+    return null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return null;
   }
 
   public Object evaluate(Map vars) throws IOException, FileLocatedException {
@@ -59,30 +59,11 @@ class ForAll extends Expr {
 
   public Object evaluate(Context ctx, String sepr) throws FileLocatedException,
       IOException {
-    Object result = null;
-    StringBuffer sb = null;
-    Collection exprs = (Collection) list.evaluate(ctx);
-    for (Iterator i = exprs.iterator(); i.hasNext();) {
-      Context ictx = new Context(ctx);
-      ictx.vars.setFront((Map) i.next());
-      ictx.vars.freeze();
-      ictx.vars.setNoCache(true);
-      ictx = new Context(ictx);
-      Object exprResult = value.evaluate(ictx);
-      if (exprResult != null) {
-        if (result == null) {
-          result = exprResult;
-        } else {
-          if (sb == null) {
-            sb = new StringBuffer();
-            sb.append(result);
-          }
-          if (sepr != null) sb.append(sepr);
-          sb.append(exprResult);
-        }
-      }
+    Chain.Joiner result = new Chain.Joiner();
+    for (Iterator i = items(list.evaluate(ctx)); i.hasNext();) {
+      result.add(value.evaluate(evalContext(ctx, i.next())), sepr);
     }
-    return sb != null ? sb.toString() : result;
+    return result.get();
   }
 
   void write(Context ctx, Writer out) throws FileLocatedException, IOException {
@@ -92,13 +73,36 @@ class ForAll extends Expr {
   void write(Context ctx, Writer out, boolean sep) throws FileLocatedException,
       IOException {
     SepWriter sout = sep ? (SepWriter) out : null;
-    Collection exprs = (Collection) list.evaluate(ctx);
-    for (Iterator i = exprs.iterator(); i.hasNext();) {
-      Context ictx = new Context(ctx);
-      ictx.vars.setFront((Map) i.next());
-      ictx.vars.freeze();
-      value.write(ictx, out);
+    for (Iterator i = items(list.evaluate(ctx)); i.hasNext();) {
+      value.write(writeContext(ctx, i.next()), out);
       if (sep) sout.nextSep();
     }
   }
+
+  static Iterator items(Object list) {
+    return ((Collection) list).iterator();
+  }
+
+  /**
+   * The context to evaluate the body in for one item of the list.
+   */
+  static Context evalContext(Context ctx, Object item) {
+    Context ictx = new Context(ctx);
+    ictx.vars.setFront((Map) item);
+    ictx.vars.freeze();
+    ictx.vars.setNoCache(true);
+    ictx.frame = new Frame(ctx.frame, (Map) item);
+    return new Context(ictx);
+  }
+
+  /**
+   * The context to write the body in for one item of the list.
+   */
+  static Context writeContext(Context ctx, Object item) {
+    Context ictx = new Context(ctx);
+    ictx.vars.setFront((Map) item);
+    ictx.vars.freeze();
+    ictx.frame = new Frame(ctx.frame, (Map) item);
+    return ictx;
+  }
 }
@@ -0,0 +1,27 @@
+package net.netreach.cgl;
+
+import java.util.Map;
+
+/**
+ * The values set by one define, by the slots Resolver gave their names, or
+ * the item of one pass of a forall, which may hide any of the values set
+ * outside it. Variables that Resolver could tie to a set are read from here
+ * rather than looked up through the scopes.
+ */
+final class Frame {
+  final Frame parent;
+  final Object[] slots;
+  final Map item;
+
+  Frame(Frame parent, int size) {
+    this.parent = parent;
+    this.slots = new Object[size];
+    this.item = null;
+  }
+
+  Frame(Frame parent, Map item) {
+    this.parent = parent;
+    this.slots = null;
+    this.item = item;
+  }
+}
@@ -69,6 +69,10 @@ class Import extends DefnElem implements Dependency {
     return res;
   }
 
+  public File getFile() {
+    return TimestampHelper.constantFile(relativeTo, filename);
+  }
+
   public TimestampedObject resolve(Context ctx) throws FileLocatedException,
       IOException {
     TimestampedObject tso = (TimestampedObject) ctx.deps.get(this);
@@ -81,7 +85,7 @@ class Import extends DefnElem implements Dependency {
     long modTime = modified;
     for (Iterator i = activeDeps.iterator(); i.hasNext();) {
       Dependency dep = (Dependency) i.next();
-      long depMod = dep.resolve(ctx).resolve(ctx);
+      long depMod = TimestampHelper.stamp(dep, ctx);
       if (depMod > modTime) modTime = depMod;
     }
     ctx.deps.put(key, new Long(modTime));
@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 
@@ -44,15 +45,43 @@ class InitCap extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
     if (result == null) throw new NullPointerException("Illegal use of null");
-    if ("".equals(result)) return result;
-    StringBuffer sb = new StringBuffer(result.toString());
+    String s = result.toString();
+    if (s.length() == 0) return s;
+    StringBuffer sb = new StringBuffer(s);
     sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
     return sb.toString();
   }
 
+  Expr filtered() {
+    return ValueWriter.streams(value) ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return new Filter(out);
+  }
+
   InitCap(Expr value) {
     this.value = value;
   }
+
+  private static class Filter extends ValueWriter {
+    private boolean first = true;
+
+    Filter(Writer out) {
+      super(out, null);
+    }
+
+    void filter(String s) throws IOException {
+      if (first && s.length() > 0) {
+        first = false;
+        s = Character.toUpperCase(s.charAt(0)) + s.substring(1);
+      }
+      pass(s);
+    }
+  }
 }
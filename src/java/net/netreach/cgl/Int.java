@@ -44,7 +44,10 @@ class Int extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
     if (result == null) throw new NullPointerException("Illegal use of null");
     return result instanceof Number ? result : Long.valueOf(result.toString());
   }
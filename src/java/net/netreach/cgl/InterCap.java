@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 import net.netreach.util.FileLocation;
@@ -46,8 +47,12 @@ class InterCap extends PositionedExpr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
-    if (result == null) throw new CGLException(this, "Illegal use of null");
+    return apply(value.evaluate(ctx), chars, this);
+  }
+
+  static Object apply(Object result, String chars, PositionedExpr at)
+      throws CGLException {
+    if (result == null) throw new CGLException(at, "Illegal use of null");
     String s = result.toString();
     StringBuffer sb = new StringBuffer(s.length());
     for (int i = 0; i < s.length(); i++) {
@@ -61,9 +66,53 @@ class InterCap extends PositionedExpr {
     return sb.toString();
   }
 
+  Expr filtered() {
+    return ValueWriter.streams(value) ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return new Filter(out, chars, this);
+  }
+
   InterCap(FileLocation loc, String chars, Expr value) {
     super(loc);
     this.chars = chars;
     this.value = value;
   }
+
+  /**
+   * Applies intercaps as a value is written; a separator at the end of one
+   * piece is held back until it is known whether anything follows it.
+   */
+  private static class Filter extends ValueWriter {
+    private final String chars;
+    private boolean pending = false;
+    private char sep;
+
+    Filter(Writer out, String chars, PositionedExpr at) {
+      super(out, at);
+      this.chars = chars;
+    }
+
+    void filter(String s) throws IOException {
+      StringBuffer sb = new StringBuffer(s.length());
+      for (int i = 0; i < s.length(); i++) {
+        char ch = s.charAt(i);
+        if (pending) {
+          sb.append(Character.toUpperCase(ch));
+          pending = false;
+        } else if (chars.indexOf(ch) >= 0) {
+          pending = true;
+          sep = ch;
+        } else {
+          sb.append(ch);
+        }
+      }
+      if (sb.length() > 0) pass(sb.toString());
+    }
+
+    void rest() throws IOException {
+      if (pending) pass(String.valueOf(sep));
+    }
+  }
 }
@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 
@@ -44,11 +45,22 @@ class LCase extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
     if (result == null) throw new NullPointerException("Illegal use of null");
     return result.toString().toLowerCase();
   }
 
+  Expr filtered() {
+    return ValueWriter.streams(value) ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return new UCase.Filter(out, false);
+  }
+
   LCase(Expr value) {
     this.value = value;
   }
@@ -45,11 +45,16 @@ class Length extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
     if (result == null) {
       return new Long(0);
     } else if (result instanceof Collection) {
       return new Long(((Collection) result).size());
+    } else if (result instanceof Rope) {
+      return new Long(((Rope) result).length());
     } else {
       return new Long(result.toString().length());
     }
@@ -45,8 +45,10 @@ class Minus extends Expr {
   Expr rhs;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object lresult = lhs.evaluate(ctx);
-    Object rresult = rhs.evaluate(ctx);
+    return apply(lhs.evaluate(ctx), rhs.evaluate(ctx));
+  }
+
+  static Object apply(Object lresult, Object rresult) {
     return new Long(((Number) lresult).longValue()
         - ((Number) rresult).longValue());
   }
@@ -47,11 +47,7 @@ class Ne extends Expr {
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
     Object lresult = lhs.evaluate(ctx);
     Object rresult = rhs.evaluate(ctx);
-    return new Boolean(
-        lresult == null ? rresult != null
-            : !(lresult.equals(rresult) || (lresult instanceof Number
-                && rresult instanceof Number && ((Number) lresult).longValue() == ((Number) rresult)
-                .longValue())));
+    return new Boolean(!Eq.equal(lresult, rresult));
   }
 
   Ne(Expr lhs, Expr rhs) {
@@ -44,7 +44,11 @@ class Not extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    return new Boolean(!Bool.truth(value.evaluate(ctx)));
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
+    return new Boolean(!Bool.truth(result));
   }
 
   Not(Expr value) {
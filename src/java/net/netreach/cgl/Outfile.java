@@ -42,9 +42,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.netreach.util.CVSFile;
 import net.netreach.util.FileLocatedException;
@@ -72,20 +74,38 @@ class Outfile extends Expr {
     if (val != null) return val.longValue();
     long stamp = timestamp;
     for (Iterator i = innerDeps.iterator(); i.hasNext();) {
-      long iStamp = ((Dependency) i.next()).resolve(ctx).resolve(ctx);
+      long iStamp = TimestampHelper.stamp((Dependency) i.next(), ctx);
       if (iStamp > stamp) stamp = iStamp;
     }
     for (Iterator i = outerDeps.iterator(); i.hasNext();) {
-      long iStamp = ((Dependency) i.next()).resolve(ctx).resolve(ctx);
+      long iStamp = TimestampHelper.stamp((Dependency) i.next(), ctx);
       if (iStamp > stamp) stamp = iStamp;
     }
     ctx.deps.put(this, new Long(stamp));
     return stamp;
   }
 
-  private static HashSet paranoidWritten = new HashSet();
+  private static Set paranoidWritten = Collections
+      .newSetFromMap(new ConcurrentHashMap());
+  private static ConcurrentHashMap locks = new ConcurrentHashMap();
   public static void reset() {
     paranoidWritten.clear();
+    locks.clear();
+  }
+
+  /**
+   * The lock held while generating a file, so that threads that get to the
+   * same file take turns and the later ones find it up to date, as they
+   * would if they had run one after another.
+   */
+  private static Object lock(File f) {
+    Object lock = locks.get(f);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = locks.putIfAbsent(f, newLock);
+      if (lock == null) lock = newLock;
+    }
+    return lock;
   }
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
@@ -94,41 +114,48 @@ class Outfile extends Expr {
     }
     String file = filename.evaluate(ctx).toString();
     File f = new File(ctx.srcbase, file);
-    if (ctx.age == 0 || !f.exists() || lastModified(ctx) > f.lastModified()
-        || ctx.age > f.lastModified() || ctx.callerModified > f.lastModified()) {
-      if (paranoid && paranoidWritten.contains(f)) return null;
-      Output.println((paranoid ? "Constructing " : "Writing ") + file + ".");
-      f.getParentFile().mkdirs();
-      try {
-        Writer out = paranoid ? (Writer) new StringWriter()
-            : new BufferedWriter(new FileWriter(f));
+    if (ctx.outputs != null) ctx.outputs.add(f);
+    synchronized (lock(f)) {
+      // A file that doesn't exist has a modification time of 0.
+      long modified = f.lastModified();
+      if (ctx.age == 0 || modified == 0 || lastModified(ctx) > modified
+          || ctx.age > modified || ctx.callerModified > modified) {
+        if (paranoid && paranoidWritten.contains(f)) return null;
+        Output.println((paranoid ? "Constructing " : "Writing ") + file + ".");
+        f.getParentFile().mkdirs();
         try {
-          body.write(ctx, out);
-        } finally {
-          out.close();
-        }
-        if (paranoid) {
-          CVSFile cf = new CVSFile(f);
-          String contents = out.toString();
-          if (!cf.exists() || !cf.getContents().equals(contents)) {
-            Output.println("Writing " + file + ".");
-            cf.setContents(contents);
-          } else {
-            paranoidWritten.add(f);
+          Writer sink = paranoid ? (Writer) new StringWriter()
+              : new BufferedWriter(new FileWriter(f));
+          // One SepWriter for the whole file, for every chain in it to share.
+          Writer out = new SepWriter(sink);
+          try {
+            body.write(ctx, out);
+          } finally {
+            out.close();
+          }
+          if (paranoid) {
+            CVSFile cf = new CVSFile(f);
+            String contents = sink.toString();
+            if (!cf.exists() || !cf.getContents().equals(contents)) {
+              Output.println("Writing " + file + ".");
+              cf.setContents(contents);
+            } else {
+              paranoidWritten.add(f);
+            }
           }
+        } catch (IOException e) {
+          f.delete();
+          throw e;
+        } catch (FileLocatedException e) {
+          f.delete();
+          throw e;
+        } catch (InterruptedException e) {
+          f.delete();
+          throw new IOException(e.toString());
+        } catch (RuntimeException e) {
+          f.delete();
+          throw e;
         }
-      } catch (IOException e) {
-        f.delete();
-        throw e;
-      } catch (FileLocatedException e) {
-        f.delete();
-        throw e;
-      } catch (InterruptedException e) {
-        f.delete();
-        throw new IOException(e.toString());
-      } catch (RuntimeException e) {
-        f.delete();
-        throw e;
       }
     }
     return null;
@@ -0,0 +1,45 @@
+package net.netreach.cgl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.netreach.util.FileLocatedException;
+import net.netreach.util.FileLocation;
+
+/**
+ * A keyword action measured by the Profiler. Forall and when actions are
+ * measured by ProfiledForAll and ProfiledWhen instead, since the parser and
+ * Chain treat those specially.
+ */
+class Profiled extends PositionedExpr {
+  final Profiler.Site site;
+  Expr expr;
+
+  Profiled(FileLocation loc, String keyword, Expr expr) {
+    super(loc);
+    this.site = new Profiler.Site(loc, keyword);
+    this.expr = expr;
+  }
+
+  public Object evaluate(Context ctx) throws FileLocatedException,
+      IOException {
+    Profiler.Node node = Profiler.enter(site);
+    long start = System.nanoTime();
+    try {
+      return expr.evaluate(ctx);
+    } finally {
+      Profiler.exit(node, start);
+    }
+  }
+
+  void write(Context ctx, Writer out) throws FileLocatedException,
+      IOException {
+    Profiler.Node node = Profiler.enter(site);
+    long start = System.nanoTime();
+    try {
+      expr.write(ctx, out);
+    } finally {
+      Profiler.exit(node, start);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package net.netreach.cgl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.netreach.util.FileLocatedException;
+import net.netreach.util.FileLocation;
+
+/**
+ * A forall action measured by the Profiler.
+ */
+class ProfiledForAll extends ForAll {
+  final Profiler.Site site;
+
+  ProfiledForAll(FileLocation loc, Expr list, Expr value) {
+    super(list, value);
+    this.site = new Profiler.Site(loc, "forall");
+  }
+
+  public Object evaluate(Context ctx, String sepr) throws FileLocatedException,
+      IOException {
+    Profiler.Node node = Profiler.enter(site);
+    long start = System.nanoTime();
+    try {
+      return super.evaluate(ctx, sepr);
+    } finally {
+      Profiler.exit(node, start);
+    }
+  }
+
+  void write(Context ctx, Writer out, boolean sep) throws FileLocatedException,
+      IOException {
+    Profiler.Node node = Profiler.enter(site);
+    long start = System.nanoTime();
+    try {
+      super.write(ctx, out, sep);
+    } finally {
+      Profiler.exit(node, start);
+    }
+  }
+}
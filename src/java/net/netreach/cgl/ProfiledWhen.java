@@ -0,0 +1,41 @@
+package net.netreach.cgl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.netreach.util.FileLocatedException;
+import net.netreach.util.FileLocation;
+
+/**
+ * A when action, with its else if it has one, measured by the Profiler.
+ */
+class ProfiledWhen extends When {
+  final Profiler.Site site;
+
+  ProfiledWhen(FileLocation loc, Expr test, Expr value) {
+    super(test, value);
+    this.site = new Profiler.Site(loc, "when");
+  }
+
+  public Object evaluate(Context ctx) throws FileLocatedException,
+      IOException {
+    Profiler.Node node = Profiler.enter(site);
+    long start = System.nanoTime();
+    try {
+      return super.evaluate(ctx);
+    } finally {
+      Profiler.exit(node, start);
+    }
+  }
+
+  public void write(Context ctx, Writer out) throws FileLocatedException,
+      IOException {
+    Profiler.Node node = Profiler.enter(site);
+    long start = System.nanoTime();
+    try {
+      super.write(ctx, out);
+    } finally {
+      Profiler.exit(node, start);
+    }
+  }
+}
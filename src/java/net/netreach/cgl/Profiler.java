@@ -0,0 +1,237 @@
+package net.netreach.cgl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.netreach.util.FileLocation;
+import net.netreach.util.Output;
+
+/**
+ * Counts and times the keyword actions of templates run in the interpreter,
+ * by where they appear in the source. Only templates loaded while profiling
+ * is on (see CGLParser.setProfile) are measured, so that it costs nothing
+ * when it is off: their actions are wrapped in Profiled, ProfiledForAll and
+ * ProfiledWhen nodes, and others are left alone.
+ * <p>
+ * Times are kept for each path of nested actions, one tree per thread, and
+ * only added up when reported: as a table of calls with inclusive time
+ * (counted once however deeply a site recurses) and exclusive time for each
+ * site, and as collapsed stacks, one line per path with its exclusive time in
+ * microseconds, which flame graph tools read.
+ */
+public final class Profiler {
+
+  private static volatile boolean enabled = false;
+  private static final List roots = new ArrayList();
+  private static volatile ThreadLocal current = newCurrent();
+
+  /** The number of sites the table in the log is cut off at. */
+  private static final int TABLE_ROWS = 40;
+
+  private Profiler() {
+  }
+
+  /**
+   * Where an action appears in a template, and its keyword.
+   */
+  static final class Site {
+    final FileLocation loc;
+    final String keyword;
+
+    Site(FileLocation loc, String keyword) {
+      this.loc = loc;
+      this.keyword = keyword;
+    }
+
+    public String toString() {
+      return loc.getFile().getName() + ":" + loc.getLine() + " " + keyword;
+    }
+  }
+
+  /**
+   * A site as reached by one path of nested actions on one thread.
+   */
+  static final class Node {
+    final Node parent;
+    final Site site;
+    final Map children = new IdentityHashMap();
+    long calls;
+    long nanos;
+
+    Node(Node parent, Site site) {
+      this.parent = parent;
+      this.site = site;
+    }
+  }
+
+  private static ThreadLocal newCurrent() {
+    return new ThreadLocal() {
+      protected Object initialValue() {
+        Node root = new Node(null, null);
+        synchronized (roots) {
+          roots.add(root);
+        }
+        return root;
+      }
+    };
+  }
+
+  static void setEnabled(boolean enabled) {
+    Profiler.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Throw away everything measured so far.
+   */
+  public static void reset() {
+    synchronized (roots) {
+      roots.clear();
+      current = newCurrent();
+    }
+  }
+
+  /**
+   * Start an action at a site; the node returned is passed to exit() when it
+   * is finished.
+   */
+  static Node enter(Site site) {
+    ThreadLocal local = current;
+    Node parent = (Node) local.get();
+    Node node = (Node) parent.children.get(site);
+    if (node == null) {
+      node = new Node(parent, site);
+      parent.children.put(site, node);
+    }
+    local.set(node);
+    return node;
+  }
+
+  static void exit(Node node, long start) {
+    node.nanos += System.nanoTime() - start;
+    node.calls++;
+    current.set(node.parent);
+  }
+
+  /**
+   * Totals for one site over all paths and threads.
+   */
+  private static final class Total {
+    final Site site;
+    long calls;
+    long inclusive;
+    long exclusive;
+
+    Total(Site site) {
+      this.site = site;
+    }
+  }
+
+  /**
+   * Print the table of sites, most exclusive time first, and write the
+   * collapsed stacks to the given file if it isn't null.
+   */
+  public static void report(File stacks) throws IOException {
+    Map totals = new HashMap();
+    Map collapsed = new TreeMap();
+    synchronized (roots) {
+      for (Iterator i = roots.iterator(); i.hasNext();) {
+        Node root = (Node) i.next();
+        for (Iterator j = root.children.values().iterator(); j.hasNext();) {
+          add((Node) j.next(), "", totals, collapsed);
+        }
+      }
+    }
+
+    List sorted = new ArrayList(totals.values());
+    Collections.sort(sorted, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        long t1 = ((Total) o1).exclusive;
+        long t2 = ((Total) o2).exclusive;
+        return t1 > t2 ? -1 : t1 < t2 ? 1 : 0;
+      }
+    });
+    Output.println("CGL profile:");
+    Output.println(pad("calls", 10) + pad("incl ms", 11) + pad("excl ms", 11)
+        + "  site");
+    int rows = 0;
+    for (Iterator i = sorted.iterator(); i.hasNext() && rows < TABLE_ROWS;
+        rows++) {
+      Total t = (Total) i.next();
+      Output.println(pad("" + t.calls, 10) + pad(millis(t.inclusive), 11)
+          + pad(millis(t.exclusive), 11) + "  " + t.site.loc + " "
+          + t.site.keyword);
+    }
+    if (sorted.size() > rows) {
+      Output.println("(" + (sorted.size() - rows) + " more sites)");
+    }
+
+    if (stacks != null) {
+      PrintWriter pw = new PrintWriter(new FileWriter(stacks));
+      for (Iterator i = collapsed.entrySet().iterator(); i.hasNext();) {
+        Map.Entry e = (Map.Entry) i.next();
+        long micros = ((Long) e.getValue()).longValue() / 1000;
+        if (micros > 0) pw.println(e.getKey() + " " + micros);
+      }
+      pw.close();
+      Output.println("CGL profile stacks written to " + stacks + ".");
+    }
+  }
+
+  private static void add(Node node, String path, Map totals, Map collapsed) {
+    Total t = (Total) totals.get(node.site);
+    if (t == null) {
+      t = new Total(node.site);
+      totals.put(node.site, t);
+    }
+    long self = node.nanos;
+    for (Iterator i = node.children.values().iterator(); i.hasNext();) {
+      self -= ((Node) i.next()).nanos;
+    }
+    t.calls += node.calls;
+    t.exclusive += self;
+    if (!recursive(node)) t.inclusive += node.nanos;
+
+    path = path.length() == 0 ? node.site.toString() : path + ";" + node.site;
+    Long sum = (Long) collapsed.get(path);
+    collapsed.put(path, new Long(self + (sum == null ? 0 : sum.longValue())));
+    for (Iterator i = node.children.values().iterator(); i.hasNext();) {
+      add((Node) i.next(), path, totals, collapsed);
+    }
+  }
+
+  /**
+   * Whether the node's site is also one of its parents', so that its time is
+   * already counted in theirs.
+   */
+  private static boolean recursive(Node node) {
+    for (Node n = node.parent; n != null; n = n.parent) {
+      if (n.site == node.site) return true;
+    }
+    return false;
+  }
+
+  private static String millis(long nanos) {
+    return "" + (nanos / 100000) / 10.0;
+  }
+
+  private static String pad(String s, int width) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = s.length(); i < width; i++) sb.append(' ');
+    return sb.append(s).toString();
+  }
+}
@@ -0,0 +1,114 @@
+package net.netreach.cgl;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Which declares can have the results of their uses remembered by Declosure:
+ * those whose sets depend only on their givens and on what was in scope where
+ * they were declared, and do nothing else. Their values may not contain an
+ * outfile, eval, readfile, box, assign, whatsin, define or list, nor anything
+ * this doesn't know about; a declare may not contain an inside, nor set or be
+ * given a name that would hide a declare. Whether the declares it uses are
+ * pure too is left to Declosure, since that depends on where it's declared.
+ */
+final class Purity {
+
+  private Purity() {
+  }
+
+  static boolean isPure(Declare decl) {
+    if (hidesDeclare(decl.given)) return false;
+    for (Iterator i = decl.decl.elems.iterator(); i.hasNext();) {
+      Object elem = i.next();
+      if (elem instanceof Set) {
+        Set set = (Set) elem;
+        if (set.name.startsWith("declare$") || !isPure(set.value)) {
+          return false;
+        }
+      } else if (!(elem instanceof Use)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean hidesDeclare(List names) {
+    for (Iterator i = names.iterator(); i.hasNext();) {
+      if (((String) i.next()).startsWith("declare$")) return true;
+    }
+    return false;
+  }
+
+  static boolean isPure(Expr e) {
+    if (e == null || e instanceof Literal || e instanceof Var
+        || e instanceof Defined) {
+      return true;
+    } else if (e instanceof CompiledExpr) {
+      return isPure(((CompiledExpr) e).expr);
+    } else if (e instanceof Profiled) {
+      return isPure(((Profiled) e).expr);
+    } else if (e instanceof TimestampedExpr) {
+      return isPure(((TimestampedExpr) e).body);
+    } else if (e instanceof Default) {
+      return isPure(((Default) e).def);
+    } else if (e instanceof Chain) {
+      return isPure(((Chain) e).sep) && isPure(((Chain) e).exprs);
+    } else if (e instanceof AnyAllOf) {
+      return isPure(((AnyAllOf) e).exprs);
+    } else if (e instanceof When) {
+      When w = (When) e;
+      return isPure(w.test) && isPure(w.value) && isPure(w.elseVal);
+    } else if (e instanceof ForAll) {
+      return isPure(((ForAll) e).list) && isPure(((ForAll) e).value);
+    } else if (e instanceof Subst) {
+      Subst s = (Subst) e;
+      return isPure(s.mapFrom) && isPure(s.mapTo) && isPure(s.value);
+    } else if (e instanceof Eq) {
+      return isPure(((Eq) e).lhs) && isPure(((Eq) e).rhs);
+    } else if (e instanceof Ne) {
+      return isPure(((Ne) e).lhs) && isPure(((Ne) e).rhs);
+    } else if (e instanceof Cmp) {
+      return isPure(((Cmp) e).lhs) && isPure(((Cmp) e).rhs);
+    } else if (e instanceof Plus) {
+      return isPure(((Plus) e).lhs) && isPure(((Plus) e).rhs);
+    } else if (e instanceof Minus) {
+      return isPure(((Minus) e).lhs) && isPure(((Minus) e).rhs);
+    } else if (e instanceof Times) {
+      return isPure(((Times) e).lhs) && isPure(((Times) e).rhs);
+    } else if (e instanceof Divide) {
+      return isPure(((Divide) e).lhs) && isPure(((Divide) e).rhs);
+    } else if (e instanceof Str) {
+      return isPure(((Str) e).value);
+    } else if (e instanceof Identity) {
+      return isPure(((Identity) e).value);
+    } else if (e instanceof Not) {
+      return isPure(((Not) e).value);
+    } else if (e instanceof Bool) {
+      return isPure(((Bool) e).value);
+    } else if (e instanceof Int) {
+      return isPure(((Int) e).value);
+    } else if (e instanceof Length) {
+      return isPure(((Length) e).value);
+    } else if (e instanceof UCase) {
+      return isPure(((UCase) e).value);
+    } else if (e instanceof LCase) {
+      return isPure(((LCase) e).value);
+    } else if (e instanceof InitCap) {
+      return isPure(((InitCap) e).value);
+    } else if (e instanceof InterCap) {
+      return isPure(((InterCap) e).value);
+    } else if (e instanceof Trans) {
+      return isPure(((Trans) e).value);
+    } else {
+      return false;
+    }
+  }
+
+  private static boolean isPure(List exprs) {
+    for (Iterator i = exprs.iterator(); i.hasNext();) {
+      if (!isPure((Expr) i.next())) return false;
+    }
+    return true;
+  }
+}
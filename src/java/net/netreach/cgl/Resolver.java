@@ -0,0 +1,287 @@
+package net.netreach.cgl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ties variables to the sets that give them their values, where that can be
+ * known from the template alone, so that they can be read from the define's
+ * frame instead of being looked up through every scope in between.
+ * <p>
+ * A variable is tied to a set in a define around it only if nothing else
+ * between the two could put a value of that name in scope, except the items
+ * of foralls: those are checked as the variable is read, and if one has the
+ * name it is looked up by name after all. After an import or use, which can
+ * set anything, and inside list and declare definitions, which are run in
+ * contexts of their own, variables are left to be looked up by name as
+ * before, which is also how everything from TableDef.toMap and the like is
+ * found.
+ */
+class Resolver {
+
+  /** Marks a name that is set in a define, but not in a slot. */
+  private static final Integer DYNAMIC = new Integer(-1);
+
+  /**
+   * A define, a forall, an inside definition, or a barrier that names can't
+   * be resolved past.
+   */
+  private static class Block {
+    final Block parent;
+    final boolean barrier;
+    final boolean framed;
+    final Map visible = new HashMap();
+    boolean opaque = false;
+
+    Block(Block parent, boolean barrier, boolean framed) {
+      this.parent = parent;
+      this.barrier = barrier;
+      this.framed = framed;
+    }
+  }
+
+  private Resolver() {
+  }
+
+  static void resolve(Expr e) {
+    walk(e, null);
+  }
+
+  static void resolve(Definition defn) {
+    definition(defn, null);
+  }
+
+  private static Block barrier(Block env) {
+    return env == null ? null : new Block(env, true, false);
+  }
+
+  private static void walk(Expr e, Block env) {
+    if (e == null || e instanceof Literal) {
+      return;
+    } else if (e instanceof Var) {
+      var((Var) e, env);
+    } else if (e instanceof Define) {
+      define((Define) e, env);
+    } else if (e instanceof ForAll) {
+      walk(((ForAll) e).list, env);
+      walk(((ForAll) e).value, new Block(env, false, true));
+    } else if (e instanceof Chain) {
+      walk(((Chain) e).sep, env);
+      walkAll(((Chain) e).exprs, env);
+    } else if (e instanceof AnyAllOf) {
+      walkAll(((AnyAllOf) e).exprs, env);
+    } else if (e instanceof When) {
+      walk(((When) e).test, env);
+      walk(((When) e).value, env);
+      walk(((When) e).elseVal, env);
+    } else if (e instanceof Box) {
+      walk(((Box) e).initValue, env);
+      walk(((Box) e).body, env);
+    } else if (e instanceof Outfile) {
+      walk(((Outfile) e).filename, env);
+      walk(((Outfile) e).body, env);
+    } else if (e instanceof Subst) {
+      walk(((Subst) e).mapFrom, env);
+      walk(((Subst) e).mapTo, env);
+      walk(((Subst) e).value, env);
+    } else if (e instanceof ListExpr) {
+      for (Iterator i = ((ListExpr) e).parts.iterator(); i.hasNext();) {
+        listDefinition((LDefnElem) i.next(), barrier(env));
+      }
+    } else if (e instanceof Eq) {
+      walk(((Eq) e).lhs, env);
+      walk(((Eq) e).rhs, env);
+    } else if (e instanceof Ne) {
+      walk(((Ne) e).lhs, env);
+      walk(((Ne) e).rhs, env);
+    } else if (e instanceof Cmp) {
+      walk(((Cmp) e).lhs, env);
+      walk(((Cmp) e).rhs, env);
+    } else if (e instanceof Plus) {
+      walk(((Plus) e).lhs, env);
+      walk(((Plus) e).rhs, env);
+    } else if (e instanceof Minus) {
+      walk(((Minus) e).lhs, env);
+      walk(((Minus) e).rhs, env);
+    } else if (e instanceof Times) {
+      walk(((Times) e).lhs, env);
+      walk(((Times) e).rhs, env);
+    } else if (e instanceof Divide) {
+      walk(((Divide) e).lhs, env);
+      walk(((Divide) e).rhs, env);
+    } else if (e instanceof Str) {
+      walk(((Str) e).value, env);
+    } else if (e instanceof Identity) {
+      walk(((Identity) e).value, env);
+    } else if (e instanceof Profiled) {
+      walk(((Profiled) e).expr, env);
+    } else if (e instanceof Else) {
+      walk(((Else) e).value, env);
+    } else if (e instanceof Not) {
+      walk(((Not) e).value, env);
+    } else if (e instanceof Bool) {
+      walk(((Bool) e).value, env);
+    } else if (e instanceof Int) {
+      walk(((Int) e).value, env);
+    } else if (e instanceof Length) {
+      walk(((Length) e).value, env);
+    } else if (e instanceof UCase) {
+      walk(((UCase) e).value, env);
+    } else if (e instanceof LCase) {
+      walk(((LCase) e).value, env);
+    } else if (e instanceof InitCap) {
+      walk(((InitCap) e).value, env);
+    } else if (e instanceof InterCap) {
+      walk(((InterCap) e).value, env);
+    } else if (e instanceof Trans) {
+      walk(((Trans) e).value, env);
+    } else if (e instanceof Assign) {
+      walk(((Assign) e).value, env);
+    } else if (e instanceof Default) {
+      walk(((Default) e).def, env);
+    } else if (e instanceof Eval) {
+      walk(((Eval) e).filename, env);
+    } else if (e instanceof ReadFile) {
+      walk(((ReadFile) e).filename, env);
+    } else if (e instanceof TimestampedExpr) {
+      walk(((TimestampedExpr) e).body, env);
+    }
+  }
+
+  private static void walkAll(List exprs, Block env) {
+    for (Iterator i = exprs.iterator(); i.hasNext();) {
+      walk((Expr) i.next(), env);
+    }
+  }
+
+  private static void var(Var v, Block env) {
+    int depth = 0;
+    for (Block b = env; b != null && !b.barrier; b = b.parent) {
+      Integer slot = (Integer) b.visible.get(v.name);
+      if (slot != null) {
+        if (slot != DYNAMIC) {
+          v.depth = depth;
+          v.slot = slot.intValue();
+        }
+        return;
+      }
+      if (b.opaque) return;
+      if (b.framed) depth++;
+    }
+  }
+
+  private static void define(Define d, Block env) {
+    Map slots = new HashMap();
+    for (Iterator i = d.elems.elems.iterator(); i.hasNext();) {
+      Object elem = i.next();
+      if (elem instanceof Set) {
+        Set set = (Set) elem;
+        Integer slot = (Integer) slots.get(set.name);
+        if (slot == null) {
+          slot = new Integer(slots.size());
+          slots.put(set.name, slot);
+        }
+        set.slot = slot.intValue();
+      }
+    }
+    d.elems.frameSize = slots.size();
+
+    Block b = new Block(env, false, !slots.isEmpty());
+    for (Iterator i = d.elems.elems.iterator(); i.hasNext();) {
+      DefnElem elem = (DefnElem) i.next();
+      if (elem instanceof Set) {
+        Set set = (Set) elem;
+        walk(set.value, b);
+        b.visible.put(set.name, new Integer(set.slot));
+      } else {
+        element(elem, b);
+      }
+    }
+    walk(d.body, b);
+  }
+
+  /**
+   * Walk an element of a define or inside definition other than a set, and
+   * note what it hides.
+   */
+  private static void element(DefnElem elem, Block b) {
+    if (elem instanceof Inside) {
+      inside((Inside) elem, b);
+      b.visible.put(((Inside) elem).name, DYNAMIC);
+    } else if (elem instanceof Declare) {
+      definition(((Declare) elem).decl, new Block(b, true, false));
+    } else {
+      if (elem instanceof Import) walk(((Import) elem).filename, b);
+      b.visible.clear();
+      b.opaque = true;
+    }
+  }
+
+  /**
+   * Walk the definition of an inside, which is run in the context of the
+   * define it is part of, but with the given names and everything it sets
+   * hiding what is outside.
+   */
+  private static void inside(Inside in, Block env) {
+    Block b = new Block(env, false, false);
+    for (Iterator i = in.given.iterator(); i.hasNext();) {
+      b.visible.put(i.next(), DYNAMIC);
+    }
+    for (Iterator i = in.defns.elems.iterator(); i.hasNext();) {
+      DefnElem elem = (DefnElem) i.next();
+      if (elem instanceof Set) {
+        walk(((Set) elem).value, b);
+        b.visible.put(((Set) elem).name, DYNAMIC);
+      } else {
+        element(elem, b);
+      }
+    }
+  }
+
+  /**
+   * Walk a definition that isn't run as part of a define, where there's
+   * nothing to resolve but there may be defines inside its values.
+   */
+  private static void definition(Definition defn, Block env) {
+    if (defn instanceof TimestampedDefn) {
+      definition(((TimestampedDefn) defn).body, env);
+    }
+    for (Iterator i = defn.elems.iterator(); i.hasNext();) {
+      DefnElem elem = (DefnElem) i.next();
+      if (elem instanceof Set) {
+        walk(((Set) elem).value, env);
+      } else if (elem instanceof Import) {
+        walk(((Import) elem).filename, env);
+      } else if (elem instanceof Declare) {
+        definition(((Declare) elem).decl, env);
+      } else if (elem instanceof Inside) {
+        definition(((Inside) elem).defns, env);
+      }
+    }
+  }
+
+  private static void listDefinition(LDefnElem elem, Block env) {
+    if (elem instanceof ForAllLDefn) {
+      walk(((ForAllLDefn) elem).list, env);
+      listDefinition(((ForAllLDefn) elem).body, env);
+    } else if (elem instanceof WhenLDefn) {
+      walk(((WhenLDefn) elem).condition, env);
+      listDefinition(((WhenLDefn) elem).body, env);
+    } else if (elem instanceof SepLDefn) {
+      listDefinition(((SepLDefn) elem).sep, env);
+      listDefinitions(((SepLDefn) elem).body, env);
+    } else if (elem instanceof ListLDefn) {
+      listDefinitions(((ListLDefn) elem).body, env);
+    } else if (elem instanceof BasicLDefn) {
+      definition(((BasicLDefn) elem).defn, env);
+    }
+  }
+
+  private static void listDefinitions(List elems, Block env) {
+    for (Iterator i = elems.iterator(); i.hasNext();) {
+      listDefinition((LDefnElem) i.next(), env);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package net.netreach.cgl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The value of a chain or forall that joined more than one part: the parts
+ * are kept as they are, so that joining the values of nested chains doesn't
+ * copy each level's text into the next, and are only copied into a single
+ * string the first time something needs one. Writing a rope writes the parts
+ * without copying them at all.
+ */
+final class Rope implements CharSequence {
+  /** Strings and ropes. */
+  private final Object[] parts;
+  private final int length;
+  private String flat;
+
+  Rope(Object[] parts, int length) {
+    this.parts = parts;
+    this.length = length;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    return toString().substring(start, end);
+  }
+
+  public String toString() {
+    if (flat == null) {
+      StringBuffer sb = new StringBuffer(length);
+      appendTo(sb);
+      flat = sb.toString();
+    }
+    return flat;
+  }
+
+  private void appendTo(StringBuffer sb) {
+    if (flat != null) {
+      sb.append(flat);
+      return;
+    }
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i] instanceof Rope) {
+        ((Rope) parts[i]).appendTo(sb);
+      } else {
+        sb.append((String) parts[i]);
+      }
+    }
+  }
+
+  private void writeTo(Writer out) throws IOException {
+    if (flat != null) {
+      out.write(flat);
+      return;
+    }
+    for (int i = 0; i < parts.length; i++) {
+      if (parts[i] instanceof Rope) {
+        ((Rope) parts[i]).writeTo(out);
+      } else {
+        out.write((String) parts[i]);
+      }
+    }
+  }
+
+  public boolean equals(Object o) {
+    return o instanceof Rope && toString().equals(o.toString());
+  }
+
+  public int hashCode() {
+    return toString().hashCode();
+  }
+
+  /** Write a value that isn't null. */
+  static void write(Writer out, Object value) throws IOException {
+    if (value instanceof Rope) {
+      ((Rope) value).writeTo(out);
+    } else {
+      out.write(value.toString());
+    }
+  }
+
+  /**
+   * A value as something that can be compared with other values: a rope as a
+   * string, anything else as it is.
+   */
+  static Object flat(Object value) {
+    return value instanceof Rope ? value.toString() : value;
+  }
+}
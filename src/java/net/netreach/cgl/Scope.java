@@ -65,6 +65,14 @@ public class Scope extends AbstractMap {
   private boolean frozen = false;
   private boolean nocache = false;
 
+  /**
+   * Whether the front map came from outside, such as the item of a forall,
+   * and so may be shared with scopes on other threads when code is generated
+   * in parallel. Values read through the scope are cached in it all the
+   * same, so it is locked while it is used.
+   */
+  private boolean shared = false;
+
   public Scope() {
     this(Collections.EMPTY_MAP);
   }
@@ -100,6 +108,7 @@ public class Scope extends AbstractMap {
       debugDone();
     }
     this.front = front;
+    shared = true;
   }
 
   Map getBacking() {
@@ -187,6 +196,7 @@ public class Scope extends AbstractMap {
     if (DEBUG)
       debug(debugToString(this) + ".get(" + debugToString(key) + ");");
     try {
+      if (shared) return getShared(key);
       Object o = front.get(key);
       if (o != null || front.containsKey(key)) return o;
       Object o2 = backing.get(key);
@@ -199,7 +209,34 @@ public class Scope extends AbstractMap {
     }
   }
 
+  /**
+   * As get, for a shared front map. The lock isn't held while the backing is
+   * read, since that may lock the fronts of other scopes; if another thread
+   * cached the value meanwhile, the first one cached is kept, as it would
+   * have been had they run one after the other.
+   */
+  private Object getShared(Object key) {
+    synchronized (front) {
+      Object o = front.get(key);
+      if (o != null || front.containsKey(key)) return o;
+    }
+    Object o2 = backing.get(key);
+    if (!nocache && (o2 != null || backing.containsKey(key))) {
+      synchronized (front) {
+        if (front.containsKey(key)) return front.get(key);
+        front.put(key, o2);
+      }
+    }
+    return o2;
+  }
+
   public boolean containsKey(Object key) {
+    if (shared) {
+      synchronized (front) {
+        if (front.containsKey(key)) return true;
+      }
+      return backing.containsKey(key);
+    }
     return front.containsKey(key) || backing.containsKey(key);
   }
 
@@ -39,50 +39,58 @@ package net.netreach.cgl;
 import java.io.IOException;
 import java.io.Writer;
 
+/**
+ * Writes the separators of the chains being written through it. Each chain
+ * with a separator starts a level; the separator of a level is written before
+ * a write only if something has been written at that level before and the
+ * chain has moved on to its next part since. The levels are kept in arrays
+ * that grow as chains nest, so that starting one doesn't allocate anything.
+ */
 class SepWriter extends Writer {
-  Entry seps;
   Writer out;
-
-  private class Entry {
-    Entry next;
-    String sep;
-    boolean doit = false;
-    boolean maybe = false;
-
-    Entry(Entry next, String sep) {
-      this.next = next;
-      this.sep = sep;
-    }
-  }
+  private String[] seps = new String[8];
+  private boolean[] doit = new boolean[8];
+  private boolean[] maybe = new boolean[8];
+  private int depth = 0;
 
   SepWriter(Writer out) {
     this.out = out;
-    this.seps = new Entry(null, null);
   }
 
   void startSep(String sep) {
-    seps = new Entry(seps, sep);
+    if (++depth == seps.length) {
+      String[] newSeps = new String[depth * 2];
+      System.arraycopy(seps, 0, newSeps, 0, depth);
+      seps = newSeps;
+      boolean[] newDoit = new boolean[depth * 2];
+      System.arraycopy(doit, 0, newDoit, 0, depth);
+      doit = newDoit;
+      boolean[] newMaybe = new boolean[depth * 2];
+      System.arraycopy(maybe, 0, newMaybe, 0, depth);
+      maybe = newMaybe;
+    }
+    seps[depth] = sep;
+    doit[depth] = false;
+    maybe[depth] = false;
   }
 
   void nextSep() {
-    seps.doit = true;
+    doit[depth] = true;
   }
 
   void endSep() {
-    seps = seps.next;
+    seps[depth--] = null;
   }
 
   private void sep() throws IOException {
-    Entry s = seps;
-    while (s.sep != null) {
-      if (s.doit && s.maybe) {
-        out.write(s.sep);
-        s.doit = false;
+    for (int i = depth; i > 0; i--) {
+      if (doit[i] && maybe[i]) {
+        out.write(seps[i]);
+        doit[i] = false;
         break;
       }
-      s.doit = false;
-      s.maybe = true;
-      s = s.next;
+      doit[i] = false;
+      maybe[i] = true;
     }
   }
 
@@ -44,13 +44,18 @@ class Set extends DefnElem {
   String name;
   Expr value;
 
+  /** The slot in the define's frame, if this is set directly by a define. */
+  int slot = -1;
+
   Set(String name, Expr value) {
     this.name = name;
     this.value = value;
   }
 
   public Context setOnContext(Context ctx) throws FileLocatedException, IOException {
-    ctx.vars.put(name, value.evaluate(ctx));
+    Object o = value.evaluate(ctx);
+    ctx.vars.put(name, o);
+    if (slot >= 0) ctx.frame.slots[slot] = o;
     return ctx;
   }
 }
@@ -0,0 +1,507 @@
+package net.netreach.cgl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.netreach.util.FileLocatedException;
+
+/**
+ * Specializes a template for variables that have the same value for the whole
+ * of a run, such as the dbadapter and schema from the config. Wherever one of
+ * them is certain to be what a variable reads, the variable is replaced by its
+ * value, and so is a variable that reads a set whose value turns out to be a
+ * constant. Expressions with nothing but constants in them are worked out
+ * once, a when with a constant test is replaced by the branch it takes, and
+ * the file names of imports and evals become constants.
+ * <p>
+ * The template itself is left alone: the result shares whatever didn't change
+ * with it, and is compiled again if templates are being compiled. As in
+ * Resolver, a variable is only known where nothing in between could set it.
+ * Imports of exports that are already loaded, and uses of declares that can be
+ * seen from the use, are looked into to find out what they set; other imports
+ * and uses, the items of foralls, and list definitions could set anything.
+ */
+public final class Specializer {
+
+  /** Bound to a name that has a value, but not one known here. */
+  private static final Object UNKNOWN = new Object();
+
+  /** How deep imports and uses are looked into, in case they recurse. */
+  private static final int MAX_DEPTH = 32;
+
+  /**
+   * What is in scope at some point in a template, innermost first: each link
+   * binds a name to a Literal, a Declared or UNKNOWN, or, with no name, could
+   * bind anything at all.
+   */
+  private static final class Env {
+    final Env parent;
+    final String name;
+    final Object value;
+
+    Env(Env parent, String name, Object value) {
+      this.parent = parent;
+      this.name = name;
+      this.value = value;
+    }
+
+    Object lookup(String name) {
+      for (Env e = this; e != null; e = e.parent) {
+        if (e.name == null) return UNKNOWN;
+        if (e.name.equals(name)) return e.value;
+      }
+      return UNKNOWN;
+    }
+  }
+
+  /** A declare, and what was in scope where it was declared. */
+  private static final class Declared {
+    final Declare decl;
+    final Env env;
+
+    Declared(Declare decl, Env env) {
+      this.decl = decl;
+      this.env = env;
+    }
+  }
+
+  private int depth = 0;
+
+  private Specializer() {
+  }
+
+  /**
+   * The template specialized for the given values, which must be what the
+   * variables of those names are set to before anything else, for every
+   * evaluation of the template it's used for; or the template itself, if
+   * nothing in it could be. Values other than strings, booleans and numbers
+   * are ignored. Should be called once the template has been evaluated once,
+   * so that the exports it imports are loaded. Templates aren't specialized
+   * while they are being profiled, so that the profile is of their source.
+   */
+  public static Expr specialize(Expr template, Map fixed, Object source) {
+    if (Profiler.isEnabled()) return template;
+    Env env = new Env(null, null, null);
+    for (Iterator i = fixed.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      if (isConstant(e.getValue())) {
+        env = new Env(env, (String) e.getKey(), new Literal(e.getValue()));
+      }
+    }
+    Expr result = new Specializer().walk(template, env);
+    if (result != template && CGLParser.compile
+        && result instanceof TimestampedExpr) {
+      Compiler.compile((TimestampedExpr) result, source);
+    }
+    return result;
+  }
+
+  private static boolean isConstant(Object value) {
+    return value instanceof String || value instanceof Boolean
+        || value instanceof Number;
+  }
+
+  /**
+   * The expression as a Literal, looking through a compiled wrapper, or null
+   * if it isn't one.
+   */
+  private static Literal literal(Expr e) {
+    if (e instanceof CompiledExpr) e = ((CompiledExpr) e).expr;
+    return e instanceof Literal ? (Literal) e : null;
+  }
+
+  /**
+   * The value of an expression whose parts are all constant, if it can be
+   * worked out without a context and is itself a constant; otherwise the
+   * expression.
+   */
+  private static Expr fold(Expr e, boolean constant) {
+    if (!constant) return e;
+    try {
+      Object value = e.evaluate(new Context());
+      if (value == null || isConstant(value)) return new Literal(value);
+    } catch (IOException ex) {
+      // Left to fail as it did when it is run.
+    } catch (FileLocatedException ex) {
+      // Likewise.
+    } catch (RuntimeException ex) {
+      // Likewise.
+    }
+    return e;
+  }
+
+  private static Env hide(Env env) {
+    return new Env(env, null, null);
+  }
+
+  private static Env given(Env env, List given) {
+    for (Iterator i = given.iterator(); i.hasNext();) {
+      env = new Env(env, (String) i.next(), UNKNOWN);
+    }
+    return env;
+  }
+
+  private Expr walk(Expr e, Env env) {
+    if (e == null || e instanceof Literal) {
+      return e;
+    } else if (e instanceof CompiledExpr) {
+      Expr expr = ((CompiledExpr) e).expr;
+      Expr result = walk(expr, env);
+      return result == expr ? e : result;
+    } else if (e instanceof Var) {
+      Object value = env.lookup(((Var) e).name);
+      return value instanceof Literal ? (Literal) value : e;
+    } else if (e instanceof Define) {
+      return define((Define) e, env);
+    } else if (e instanceof When) {
+      return when((When) e, env);
+    } else if (e instanceof Chain) {
+      return chain((Chain) e, env);
+    } else if (e instanceof ForAll) {
+      ForAll f = (ForAll) e;
+      Expr list = walk(f.list, env);
+      Expr value = walk(f.value, hide(env));
+      if (list == f.list && value == f.value) return e;
+      return new ForAll(list, value);
+    } else if (e instanceof AnyAllOf) {
+      AnyAllOf a = (AnyAllOf) e;
+      List exprs = new ArrayList();
+      boolean changed = false;
+      boolean constant = true;
+      for (Iterator i = a.exprs.iterator(); i.hasNext();) {
+        Expr part = (Expr) i.next();
+        Expr result = walk(part, env);
+        if (result != part) changed = true;
+        if (literal(result) == null) constant = false;
+        exprs.add(result);
+      }
+      if (changed) e = new AnyAllOf(exprs, a.isAny);
+      return fold(e, constant);
+    } else if (e instanceof Box) {
+      Box b = (Box) e;
+      Expr init = walk(b.initValue, env);
+      Expr body = walk(b.body, new Env(env, "box$" + b.name, UNKNOWN));
+      if (init == b.initValue && body == b.body) return e;
+      return new Box(b.name, init, body);
+    } else if (e instanceof Outfile) {
+      Outfile o = (Outfile) e;
+      Expr filename = walk(o.filename, env);
+      Expr body = walk(o.body, env);
+      if (filename == o.filename && body == o.body) return e;
+      Outfile result = new Outfile(o.timestamp, o.innerDeps, o.outerDeps,
+          filename, body);
+      result.paranoid = o.paranoid;
+      return result;
+    } else if (e instanceof Subst) {
+      Subst s = (Subst) e;
+      Expr from = walk(s.mapFrom, env);
+      Expr to = walk(s.mapTo, env);
+      Expr value = walk(s.value, env);
+      if (from != s.mapFrom || to != s.mapTo || value != s.value) {
+        e = new Subst(from, to, value);
+      }
+      return fold(e, literal(from) != null && literal(to) != null
+          && literal(value) != null);
+    } else if (e instanceof Eq) {
+      Expr lhs = walk(((Eq) e).lhs, env);
+      Expr rhs = walk(((Eq) e).rhs, env);
+      if (lhs != ((Eq) e).lhs || rhs != ((Eq) e).rhs) e = new Eq(lhs, rhs);
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Ne) {
+      Expr lhs = walk(((Ne) e).lhs, env);
+      Expr rhs = walk(((Ne) e).rhs, env);
+      if (lhs != ((Ne) e).lhs || rhs != ((Ne) e).rhs) e = new Ne(lhs, rhs);
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Cmp) {
+      Cmp c = (Cmp) e;
+      Expr lhs = walk(c.lhs, env);
+      Expr rhs = walk(c.rhs, env);
+      if (lhs != c.lhs || rhs != c.rhs) {
+        e = new Cmp(c.cmpType, c.incZero, lhs, rhs);
+      }
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Plus) {
+      Expr lhs = walk(((Plus) e).lhs, env);
+      Expr rhs = walk(((Plus) e).rhs, env);
+      if (lhs != ((Plus) e).lhs || rhs != ((Plus) e).rhs) {
+        e = new Plus(lhs, rhs);
+      }
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Minus) {
+      Expr lhs = walk(((Minus) e).lhs, env);
+      Expr rhs = walk(((Minus) e).rhs, env);
+      if (lhs != ((Minus) e).lhs || rhs != ((Minus) e).rhs) {
+        e = new Minus(lhs, rhs);
+      }
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Times) {
+      Expr lhs = walk(((Times) e).lhs, env);
+      Expr rhs = walk(((Times) e).rhs, env);
+      if (lhs != ((Times) e).lhs || rhs != ((Times) e).rhs) {
+        e = new Times(lhs, rhs);
+      }
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Divide) {
+      Expr lhs = walk(((Divide) e).lhs, env);
+      Expr rhs = walk(((Divide) e).rhs, env);
+      if (lhs != ((Divide) e).lhs || rhs != ((Divide) e).rhs) {
+        e = new Divide(lhs, rhs);
+      }
+      return fold(e, literal(lhs) != null && literal(rhs) != null);
+    } else if (e instanceof Str) {
+      Expr value = walk(((Str) e).value, env);
+      if (value != ((Str) e).value) e = new Str(((Str) e).getLoc(), value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Identity) {
+      Expr value = walk(((Identity) e).value, env);
+      if (value != ((Identity) e).value) e = new Identity(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Not) {
+      Expr value = walk(((Not) e).value, env);
+      if (value != ((Not) e).value) e = new Not(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Bool) {
+      Expr value = walk(((Bool) e).value, env);
+      if (value != ((Bool) e).value) e = new Bool(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Int) {
+      Expr value = walk(((Int) e).value, env);
+      if (value != ((Int) e).value) e = new Int(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Length) {
+      Expr value = walk(((Length) e).value, env);
+      if (value != ((Length) e).value) e = new Length(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof UCase) {
+      Expr value = walk(((UCase) e).value, env);
+      if (value != ((UCase) e).value) e = new UCase(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof LCase) {
+      Expr value = walk(((LCase) e).value, env);
+      if (value != ((LCase) e).value) e = new LCase(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof InitCap) {
+      Expr value = walk(((InitCap) e).value, env);
+      if (value != ((InitCap) e).value) e = new InitCap(value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof InterCap) {
+      InterCap ic = (InterCap) e;
+      Expr value = walk(ic.value, env);
+      if (value != ic.value) e = new InterCap(ic.getLoc(), ic.chars, value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Trans) {
+      Trans t = (Trans) e;
+      Expr value = walk(t.value, env);
+      if (value != t.value) e = new Trans(t.chars, t.mapTo, value);
+      return fold(e, literal(value) != null);
+    } else if (e instanceof Assign) {
+      Expr value = walk(((Assign) e).value, env);
+      if (value == ((Assign) e).value) return e;
+      return new Assign(((Assign) e).name, value);
+    } else if (e instanceof Default) {
+      Default d = (Default) e;
+      Object value = env.lookup(d.name);
+      if (value instanceof Literal) return (Literal) value;
+      Expr def = walk(d.def, env);
+      return def == d.def ? e : new Default(d.name, def);
+    } else if (e instanceof Defined) {
+      Object value = env.lookup(((Defined) e).name);
+      return value instanceof Literal ? new Literal(Boolean.TRUE) : e;
+    } else if (e instanceof Eval) {
+      Eval ev = (Eval) e;
+      Expr filename = walk(ev.filename, env);
+      if (filename == ev.filename) return e;
+      return new Eval(ev.relativeTo, ev.activeDeps, ev.modified, filename);
+    } else if (e instanceof ReadFile) {
+      Expr filename = walk(((ReadFile) e).filename, env);
+      return filename == ((ReadFile) e).filename ? e : new ReadFile(filename);
+    } else if (e instanceof TimestampedExpr) {
+      TimestampedExpr te = (TimestampedExpr) e;
+      Expr body = walk(te.body, env);
+      if (body == te.body) return e;
+      return new TimestampedExpr(body, te.dependencies, te.timestamp);
+    }
+    return e;
+  }
+
+  private Expr when(When w, Env env) {
+    Expr test = walk(w.test, env);
+    Literal known = literal(test);
+    if (known != null) {
+      Expr taken = Bool.truth(known.value) ? w.value : w.elseVal;
+      return taken == null ? new Literal(null) : walk(taken, env);
+    }
+    Expr value = walk(w.value, env);
+    Expr elseVal = walk(w.elseVal, env);
+    if (test == w.test && value == w.value && elseVal == w.elseVal) return w;
+    When result = new When(test, value);
+    result.elseVal = elseVal;
+    return result;
+  }
+
+  private Expr chain(Chain c, Env env) {
+    Expr sep = walk(c.sep, env);
+    List exprs = new ArrayList();
+    boolean changed = sep != c.sep;
+    boolean constant = c.sep == null;
+    for (Iterator i = c.exprs.iterator(); i.hasNext();) {
+      Expr part = (Expr) i.next();
+      Expr result = walk(part, env);
+      if (result != part) {
+        changed = true;
+
+        // A forall directly in a chain is joined with the chain's separator,
+        // so one that was inside a when mustn't become one.
+        if (result instanceof ForAll && !(part instanceof ForAll)) {
+          result = new Identity(result);
+        }
+
+        // Without a separator, a null part adds nothing.
+        Literal known = literal(result);
+        if (c.sep == null && known != null && known.value == null) continue;
+      }
+      if (literal(result) == null) constant = false;
+      exprs.add(result);
+    }
+    if (!changed && !constant) return c;
+    Expr result = changed ? new Chain(exprs, sep) : c;
+    return fold(result, constant);
+  }
+
+  private Expr define(Define d, Env env) {
+    List elems = new LinkedList();
+    Env inner = definition(d.elems, env, elems);
+    Expr body = walk(d.body, inner);
+    if (body == d.body && same(elems, d.elems.elems)) return d;
+    Define result = new Define();
+    result.elems.elems = elems;
+    result.elems.frameSize = d.elems.frameSize;
+    result.body = body;
+    return result;
+  }
+
+  private static boolean same(List a, List b) {
+    if (a.size() != b.size()) return false;
+    for (Iterator i = a.iterator(), j = b.iterator(); i.hasNext();) {
+      if (i.next() != j.next()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Walk the elements of a definition set on a context where env is in
+   * scope, returning what is in scope after them. The elements, specialized,
+   * are added to out, unless it is null because the definition is only being
+   * looked into.
+   */
+  private Env definition(Definition defn, Env env, List out) {
+    if (defn instanceof TimestampedDefn) defn = ((TimestampedDefn) defn).body;
+    for (Iterator i = defn.elems.iterator(); i.hasNext();) {
+      DefnElem elem = (DefnElem) i.next();
+      if (elem instanceof Set) {
+        Set s = (Set) elem;
+        Expr value = walk(s.value, env);
+        if (value != s.value) {
+          Set result = new Set(s.name, value);
+          result.slot = s.slot;
+          elem = result;
+        }
+        Literal known = literal(value);
+        env = new Env(env, s.name, known != null ? (Object) known : UNKNOWN);
+      } else if (elem instanceof Import) {
+        Import imp = (Import) elem;
+        Expr filename = walk(imp.filename, env);
+        if (filename != imp.filename) {
+          elem = new Import(imp.relativeTo, imp.activeDeps, imp.modified,
+              filename);
+        }
+        env = imported(imp.relativeTo, filename, env);
+      } else if (elem instanceof Use) {
+        env = used(((Use) elem).name, env);
+      } else if (elem instanceof Declare) {
+        Declare dc = (Declare) elem;
+        if (out != null) {
+          Definition decl = specialized(dc.decl, given(env, dc.given));
+          if (decl != dc.decl) elem = new Declare(dc.name, dc.given, decl);
+        }
+        env = new Env(env, "declare$" + dc.name, new Declared(dc, env));
+      } else if (elem instanceof Inside) {
+        Inside in = (Inside) elem;
+        if (out != null) {
+          Definition defns = specialized(in.defns, given(env, in.given));
+          if (defns != in.defns) elem = new Inside(in.name, in.given, defns);
+        }
+        env = new Env(env, in.name, UNKNOWN);
+      } else {
+        env = hide(env);
+      }
+      if (out != null) out.add(elem);
+    }
+    return env;
+  }
+
+  /**
+   * A definition that is run in a context of its own, such as a declare,
+   * specialized for what is in scope there.
+   */
+  private Definition specialized(Definition defn, Env env) {
+    List elems = new LinkedList();
+    definition(defn, env, elems);
+    if (same(elems, defn.elems)) return defn;
+    Definition result = new Definition();
+    result.elems = elems;
+    result.frameSize = defn.frameSize;
+    return result;
+  }
+
+  /**
+   * What is in scope after an import, if it is of a file that is already
+   * loaded; it isn't loaded here, so that nothing is loaded earlier than it
+   * would have been.
+   */
+  private Env imported(File relativeTo, Expr filename, Env env) {
+    Literal known = literal(filename);
+    if (known == null || known.value == null || depth >= MAX_DEPTH) {
+      return hide(env);
+    }
+    Definition export = CGLParser.exportCache.peek(new File(relativeTo,
+        known.value.toString()));
+    if (export == null) return hide(env);
+    depth++;
+    try {
+      return definition(export, env, null);
+    } finally {
+      depth--;
+    }
+  }
+
+  /**
+   * What is in scope after a use, if the declare it uses can be seen: what
+   * was in scope before, and everything the declare sets.
+   */
+  private Env used(String name, Env env) {
+    Object found = env.lookup("declare$" + name);
+    if (!(found instanceof Declared) || depth >= MAX_DEPTH) return hide(env);
+    Declared d = (Declared) found;
+    Env start = given(d.env, d.decl.given);
+    Env end;
+    depth++;
+    try {
+      end = definition(d.decl.decl, start, null);
+    } finally {
+      depth--;
+    }
+    List set = new ArrayList();
+    for (Env e = end; e != start; e = e.parent) set.add(0, e);
+    for (Iterator i = set.iterator(); i.hasNext();) {
+      Env e = (Env) i.next();
+      env = new Env(env, e.name, e.value);
+    }
+    return env;
+  }
+}
@@ -36,6 +36,7 @@
 package net.netreach.cgl;
 
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 import net.netreach.util.FileLocation;
@@ -44,11 +45,22 @@ class Str extends PositionedExpr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
-    if (result == null) throw new CGLException(this, "Illegal use of null");
+    return str(value.evaluate(ctx), this);
+  }
+
+  static String str(Object result, PositionedExpr at) throws CGLException {
+    if (result == null) throw new CGLException(at, "Illegal use of null");
     return result.toString();
   }
 
+  Expr filtered() {
+    return ValueWriter.streams(value) ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return new ValueWriter.Plain(out, this);
+  }
+
   Str(FileLocation loc, Expr value) {
     super(loc);
     this.value = value;
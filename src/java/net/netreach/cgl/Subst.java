@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 
@@ -46,15 +47,26 @@ class Subst extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    Object result = checkValue(value.evaluate(ctx));
+    String from = checkFrom(mapFrom.evaluate(ctx));
+    return apply(result, from, mapTo.evaluate(ctx));
+  }
+
+  static Object checkValue(Object result) {
     if (result == null) throw new NullPointerException("Illegal use of null");
-    Object fromResult = mapFrom.evaluate(ctx);
+    return result;
+  }
+
+  static String checkFrom(Object fromResult) {
     if (fromResult == null)
       throw new NullPointerException("Illegal use of null");
     String from = fromResult.toString();
     if (from.length() == 0)
       throw new IllegalArgumentException("From cannot be empty in subst");
-    Object toResult = mapTo.evaluate(ctx);
+    return from;
+  }
+
+  static String apply(Object result, String from, Object toResult) {
     String to = (toResult == null ? "" : toResult.toString());
     String s = result.toString();
     StringBuffer sb = new StringBuffer(s.length());
@@ -73,9 +85,64 @@ class Subst extends Expr {
     return sb.toString();
   }
 
+  /**
+   * A value is only substituted as it is written if from and to are
+   * literals, since otherwise they would have to be evaluated after it.
+   */
+  Expr filtered() {
+    if (!ValueWriter.streams(value) || !(mapFrom instanceof Literal)
+        || !(mapTo instanceof Literal)) {
+      return null;
+    }
+    Object from = ((Literal) mapFrom).value;
+    return from != null && from.toString().length() > 0 ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    Object to = ((Literal) mapTo).value;
+    return new Filter(out, ((Literal) mapFrom).value.toString(),
+        to == null ? "" : to.toString());
+  }
+
   Subst(Expr mapFrom, Expr mapTo, Expr value) {
     this.mapFrom = mapFrom;
     this.mapTo = mapTo;
     this.value = value;
   }
+
+  /**
+   * Substitutes in a value as it is written, holding back just enough of the
+   * end of what has been written to catch an occurrence of from that runs on
+   * into the next piece.
+   */
+  private static class Filter extends ValueWriter {
+    private final String from;
+    private final String to;
+    private final StringBuffer held = new StringBuffer();
+
+    Filter(Writer out, String from, String to) {
+      super(out, null);
+      this.from = from;
+      this.to = to;
+    }
+
+    void filter(String s) throws IOException {
+      held.append(s);
+      String h = held.toString();
+      StringBuffer sb = new StringBuffer(h.length());
+      int pos = 0;
+      for (int at; (at = h.indexOf(from, pos)) >= 0; pos = at + from.length()) {
+        sb.append(h, pos, at).append(to);
+      }
+      int keep = Math.max(pos, h.length() - from.length() + 1);
+      sb.append(h, pos, keep);
+      held.setLength(0);
+      held.append(h, keep, h.length());
+      if (sb.length() > 0) pass(sb.toString());
+    }
+
+    void rest() throws IOException {
+      if (held.length() > 0) pass(held.toString());
+    }
+  }
 }
@@ -0,0 +1,653 @@
+package net.netreach.cgl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.netreach.util.FileLocatedException;
+import net.netreach.util.FileLocation;
+
+/**
+ * A directory of .cglc files holding the parsed and resolved trees of
+ * templates and exports, so that unchanged ones need not be parsed again on
+ * the next run. Each entry records the path, size, modification time and
+ * SHA-1 hash of the file it came from. An entry is used without reading the
+ * file at all if the size and time match, and after checking the hash if only
+ * the time differs; the timestamps in the tree are all the file's
+ * modification time, so they are not stored but filled in from the file as
+ * it is now. Anything else, including an entry that cannot be read, just
+ * means the file is parsed and the entry written again.
+ * <p>
+ * The tree is written node by node, with the slots and frame sizes the
+ * Resolver gave it. Anything that appears in it more than once, such as the
+ * imports and evals that later parts of a template depend on, is written the
+ * first time and referred to after that, so that it is still the same object
+ * when read back.
+ */
+final class TemplateCache {
+
+  private static final int MAGIC = 0x4e524443; // "NRDC"
+  private static final int VERSION = 1;
+
+  /**
+   * Parses a file when there's no entry for it that can be used.
+   */
+  static abstract class Parser {
+    abstract Object parse(File file) throws IOException, FileLocatedException;
+  }
+
+  private final File dir;
+
+  TemplateCache(File dir) {
+    this.dir = dir;
+  }
+
+  File getDir() {
+    return dir;
+  }
+
+  /**
+   * The tree for a file, from its entry if it has one that's current, or
+   * else from the parser. Must be called before the tree is compiled, since
+   * compiling changes it.
+   */
+  Object get(File file, Parser parser) throws IOException,
+      FileLocatedException {
+    String path = file.getCanonicalPath();
+    long length = file.length();
+    long modified = file.lastModified();
+    File entry = new File(dir, file.getName() + "-"
+        + Integer.toHexString(path.hashCode()) + ".cglc");
+
+    byte[] hash = null;
+    if (entry.isFile()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(entry)));
+      try {
+        if (in.readInt() == MAGIC && in.readInt() == VERSION
+            && path.equals(in.readUTF()) && in.readLong() == length) {
+          boolean sameTime = in.readLong() == modified;
+          byte[] oldHash = new byte[in.readInt()];
+          in.readFully(oldHash);
+          if (!sameTime) hash = sha1(file, length);
+          if (sameTime || Arrays.equals(hash, oldHash)) {
+            Object result = new TreeReader(in, modified).read();
+            if (!sameTime) write(entry, path, length, modified, hash, result);
+            return result;
+          }
+        }
+      } catch (IOException e) {
+        // An unreadable entry is treated the same as a missing one.
+      } catch (RuntimeException e) {
+        // So is one that doesn't hold the kind of tree it should.
+      } finally {
+        in.close();
+      }
+    }
+
+    if (hash == null) hash = sha1(file, length);
+    Object result = parser.parse(file);
+    write(entry, path, length, modified, hash, result);
+    return result;
+  }
+
+  private void write(File entry, String path, long length, long modified,
+      byte[] hash, Object tree) {
+    File tmp = null;
+    try {
+      dir.mkdirs();
+      tmp = File.createTempFile(entry.getName(), ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(path);
+        out.writeLong(length);
+        out.writeLong(modified);
+        out.writeInt(hash.length);
+        out.write(hash);
+        new TreeWriter(out).write(tree);
+      } finally {
+        out.close();
+      }
+      entry.delete();
+      if (tmp.renameTo(entry)) tmp = null;
+    } catch (IOException e) {
+      // Failing to write the cache only means the file will be parsed again
+      // next time.
+    } finally {
+      if (tmp != null) tmp.delete();
+    }
+  }
+
+  private static byte[] sha1(File file, long length) throws IOException {
+    byte[] contents = new byte[(int) length];
+    InputStream in = new FileInputStream(file);
+    try {
+      int len = 0;
+      while (len < contents.length) {
+        int n = in.read(contents, len, contents.length - len);
+        if (n < 0) break;
+        len += n;
+      }
+    } finally {
+      in.close();
+    }
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(contents);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // The tags that start each object in a tree. Every kind of node is written
+  // by TreeWriter and read by TreeReader, which must be kept in step with
+  // each other and with the fields of the nodes; change VERSION if any of
+  // them change.
+
+  private static final int NULL = 0, REF = 1, STRING = 2, ARRAY_LIST = 3,
+      LINKED_LIST = 4, FILE = 5, LOCATION = 6;
+
+  private static final int ANY_ALL_OF = 16, ASSIGN = 17, BASIC_LDEFN = 18,
+      BOOL = 19, BOX = 20, CHAIN = 21, CMP = 22, DECLARE = 23, DEFAULT = 24,
+      DEFINE = 25, DEFINED = 26, DEFINITION = 27, DIVIDE = 28, ELSE = 29,
+      EQ = 30, EVAL = 31, FOR_ALL = 32, FOR_ALL_LDEFN = 33, IDENTITY = 34,
+      IMPORT = 35, INIT_CAP = 36, INSIDE = 37, INT = 38, INTER_CAP = 39,
+      LCASE = 40, LENGTH = 41, LIST_EXPR = 42, LIST_LDEFN = 43, LITERAL = 44,
+      MINUS = 45, NE = 46, NOT = 47, OUTFILE = 48, PLUS = 49, READ_FILE = 50,
+      SEP_LDEFN = 51, SET = 52, STR = 53, SUBST = 54, TIMES = 55,
+      TIMESTAMPED_DEFN = 56, TIMESTAMPED_EXPR = 57, TRANS = 58, UCASE = 59,
+      USE = 60, VAR = 61, VAR_LDEFN = 62, WHATS_IN = 63, WHEN = 64,
+      WHEN_LDEFN = 65;
+
+  /**
+   * Writes a tree. Each object is numbered once all of it has been written,
+   * and any later appearance of it is written as a reference to that number.
+   */
+  private static class TreeWriter {
+    private final DataOutputStream out;
+    private final Map ids = new IdentityHashMap();
+    private final Map strings = new HashMap();
+    private int count = 0;
+
+    TreeWriter(DataOutputStream out) {
+      this.out = out;
+    }
+
+    void write(Object o) throws IOException {
+      if (o == null) {
+        out.writeByte(NULL);
+        return;
+      }
+      Map seen = o instanceof String ? strings : ids;
+      Integer id = (Integer) seen.get(o);
+      if (id != null) {
+        out.writeByte(REF);
+        out.writeInt(id.intValue());
+        return;
+      }
+      writeNew(o);
+      seen.put(o, new Integer(count++));
+    }
+
+    private void tag(int tag) throws IOException {
+      out.writeByte(tag);
+    }
+
+    private void writeNew(Object o) throws IOException {
+      Class c = o.getClass();
+      if (c == String.class) {
+        tag(STRING);
+        byte[] bytes = ((String) o).getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      } else if (o instanceof List) {
+        List l = (List) o;
+        tag(o instanceof LinkedList ? LINKED_LIST : ARRAY_LIST);
+        out.writeInt(l.size());
+        for (Iterator i = l.iterator(); i.hasNext();) {
+          write(i.next());
+        }
+      } else if (c == File.class) {
+        tag(FILE);
+        write(((File) o).getPath());
+      } else if (c == FileLocation.class) {
+        FileLocation loc = (FileLocation) o;
+        tag(LOCATION);
+        write(loc.getFile());
+        out.writeInt(loc.getLine());
+        out.writeInt(loc.getCol());
+        out.writeInt(loc.getEndLine());
+        out.writeInt(loc.getEndCol());
+      } else if (c == AnyAllOf.class) {
+        tag(ANY_ALL_OF);
+        write(((AnyAllOf) o).exprs);
+        out.writeBoolean(((AnyAllOf) o).isAny);
+      } else if (c == Assign.class) {
+        tag(ASSIGN);
+        write(((Assign) o).name);
+        write(((Assign) o).value);
+      } else if (c == BasicLDefn.class) {
+        tag(BASIC_LDEFN);
+        write(((BasicLDefn) o).defn);
+      } else if (c == Bool.class) {
+        tag(BOOL);
+        write(((Bool) o).value);
+      } else if (c == Box.class) {
+        tag(BOX);
+        write(((Box) o).name);
+        write(((Box) o).initValue);
+        write(((Box) o).body);
+      } else if (c == Chain.class) {
+        tag(CHAIN);
+        write(((Chain) o).exprs);
+        write(((Chain) o).sep);
+      } else if (c == Cmp.class) {
+        Cmp cmp = (Cmp) o;
+        tag(CMP);
+        out.writeInt(cmp.cmpType);
+        out.writeBoolean(cmp.incZero);
+        write(cmp.lhs);
+        write(cmp.rhs);
+      } else if (c == Declare.class) {
+        tag(DECLARE);
+        write(((Declare) o).name);
+        write(((Declare) o).given);
+        write(((Declare) o).decl);
+      } else if (c == Default.class) {
+        tag(DEFAULT);
+        write(((Default) o).name);
+        write(((Default) o).def);
+      } else if (c == Define.class) {
+        tag(DEFINE);
+        write(((Define) o).elems);
+        write(((Define) o).body);
+      } else if (c == Defined.class) {
+        tag(DEFINED);
+        write(((Defined) o).name);
+      } else if (c == Definition.class) {
+        tag(DEFINITION);
+        write(((Definition) o).elems);
+        out.writeInt(((Definition) o).frameSize);
+      } else if (c == Divide.class) {
+        tag(DIVIDE);
+        write(((Divide) o).lhs);
+        write(((Divide) o).rhs);
+      } else if (c == Else.class) {
+        tag(ELSE);
+        write(((Else) o).value);
+      } else if (c == Eq.class) {
+        tag(EQ);
+        write(((Eq) o).lhs);
+        write(((Eq) o).rhs);
+      } else if (c == Eval.class) {
+        Eval e = (Eval) o;
+        tag(EVAL);
+        write(e.relativeTo);
+        write(e.activeDeps);
+        write(e.filename);
+      } else if (c == ForAll.class) {
+        tag(FOR_ALL);
+        write(((ForAll) o).list);
+        write(((ForAll) o).value);
+      } else if (c == ForAllLDefn.class) {
+        tag(FOR_ALL_LDEFN);
+        write(((ForAllLDefn) o).list);
+        write(((ForAllLDefn) o).body);
+      } else if (c == Identity.class) {
+        tag(IDENTITY);
+        write(((Identity) o).value);
+      } else if (c == Import.class) {
+        Import imp = (Import) o;
+        tag(IMPORT);
+        write(imp.relativeTo);
+        write(imp.activeDeps);
+        write(imp.filename);
+      } else if (c == InitCap.class) {
+        tag(INIT_CAP);
+        write(((InitCap) o).value);
+      } else if (c == Inside.class) {
+        tag(INSIDE);
+        write(((Inside) o).name);
+        write(((Inside) o).given);
+        write(((Inside) o).defns);
+      } else if (c == Int.class) {
+        tag(INT);
+        write(((Int) o).value);
+      } else if (c == InterCap.class) {
+        tag(INTER_CAP);
+        write(((InterCap) o).getLoc());
+        write(((InterCap) o).chars);
+        write(((InterCap) o).value);
+      } else if (c == LCase.class) {
+        tag(LCASE);
+        write(((LCase) o).value);
+      } else if (c == Length.class) {
+        tag(LENGTH);
+        write(((Length) o).value);
+      } else if (c == ListExpr.class) {
+        tag(LIST_EXPR);
+        write(((ListExpr) o).parts);
+      } else if (c == ListLDefn.class) {
+        tag(LIST_LDEFN);
+        write(((ListLDefn) o).body);
+      } else if (c == Literal.class) {
+        Object value = ((Literal) o).value;
+        if (value != null && !(value instanceof String)) {
+          throw new IOException("Cannot cache a literal " + value.getClass());
+        }
+        tag(LITERAL);
+        write(value);
+      } else if (c == Minus.class) {
+        tag(MINUS);
+        write(((Minus) o).lhs);
+        write(((Minus) o).rhs);
+      } else if (c == Ne.class) {
+        tag(NE);
+        write(((Ne) o).lhs);
+        write(((Ne) o).rhs);
+      } else if (c == Not.class) {
+        tag(NOT);
+        write(((Not) o).value);
+      } else if (c == Outfile.class) {
+        Outfile f = (Outfile) o;
+        tag(OUTFILE);
+        write(f.innerDeps);
+        write(f.outerDeps);
+        write(f.filename);
+        write(f.body);
+        out.writeBoolean(f.paranoid);
+      } else if (c == Plus.class) {
+        tag(PLUS);
+        write(((Plus) o).lhs);
+        write(((Plus) o).rhs);
+      } else if (c == ReadFile.class) {
+        tag(READ_FILE);
+        write(((ReadFile) o).filename);
+      } else if (c == SepLDefn.class) {
+        tag(SEP_LDEFN);
+        write(((SepLDefn) o).sep);
+        write(((SepLDefn) o).body);
+      } else if (c == Set.class) {
+        tag(SET);
+        write(((Set) o).name);
+        write(((Set) o).value);
+        out.writeInt(((Set) o).slot);
+      } else if (c == Str.class) {
+        tag(STR);
+        write(((Str) o).getLoc());
+        write(((Str) o).value);
+      } else if (c == Subst.class) {
+        tag(SUBST);
+        write(((Subst) o).mapFrom);
+        write(((Subst) o).mapTo);
+        write(((Subst) o).value);
+      } else if (c == Times.class) {
+        tag(TIMES);
+        write(((Times) o).lhs);
+        write(((Times) o).rhs);
+      } else if (c == TimestampedDefn.class) {
+        TimestampedDefn td = (TimestampedDefn) o;
+        tag(TIMESTAMPED_DEFN);
+        write(td.body);
+        write(td.dependencies);
+      } else if (c == TimestampedExpr.class) {
+        TimestampedExpr te = (TimestampedExpr) o;
+        tag(TIMESTAMPED_EXPR);
+        write(te.body);
+        write(te.dependencies);
+      } else if (c == Trans.class) {
+        tag(TRANS);
+        write(((Trans) o).chars);
+        write(((Trans) o).mapTo);
+        write(((Trans) o).value);
+      } else if (c == UCase.class) {
+        tag(UCASE);
+        write(((UCase) o).value);
+      } else if (c == Use.class) {
+        tag(USE);
+        write(((Use) o).name);
+      } else if (c == Var.class) {
+        Var v = (Var) o;
+        tag(VAR);
+        write(v.getLoc());
+        write(v.name);
+        out.writeInt(v.depth);
+        out.writeInt(v.slot);
+      } else if (c == VarLDefn.class) {
+        tag(VAR_LDEFN);
+        write(((VarLDefn) o).name);
+      } else if (c == WhatsIn.class) {
+        tag(WHATS_IN);
+        write(((WhatsIn) o).name);
+      } else if (c == When.class) {
+        tag(WHEN);
+        write(((When) o).test);
+        write(((When) o).value);
+        write(((When) o).elseVal);
+      } else if (c == WhenLDefn.class) {
+        tag(WHEN_LDEFN);
+        write(((WhenLDefn) o).condition);
+        write(((WhenLDefn) o).body);
+      } else {
+        // Including compiled expressions, which can't be cached.
+        throw new IOException("Cannot cache a " + c.getName());
+      }
+    }
+  }
+
+  /**
+   * Reads a tree written by TreeWriter, numbering each object as it is
+   * finished in the same order as the writer did, and giving it the
+   * modification time of the file it is for as its timestamps.
+   */
+  private static class TreeReader {
+    private final DataInputStream in;
+    private final long modified;
+    private final List objects = new ArrayList();
+
+    TreeReader(DataInputStream in, long modified) {
+      this.in = in;
+      this.modified = modified;
+    }
+
+    Object read() throws IOException {
+      int tag = in.readUnsignedByte();
+      if (tag == NULL) return null;
+      if (tag == REF) return objects.get(in.readInt());
+      Object o = readNew(tag);
+      objects.add(o);
+      return o;
+    }
+
+    private String readString() throws IOException {
+      return (String) read();
+    }
+
+    private Expr readExpr() throws IOException {
+      return (Expr) read();
+    }
+
+    private List readList() throws IOException {
+      return (List) read();
+    }
+
+    private Definition readDefinition() throws IOException {
+      return (Definition) read();
+    }
+
+    private LDefnElem readLDefn() throws IOException {
+      return (LDefnElem) read();
+    }
+
+    private FileLocation readLoc() throws IOException {
+      return (FileLocation) read();
+    }
+
+    private Object readNew(int tag) throws IOException {
+      switch (tag) {
+      case STRING: {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+      }
+      case ARRAY_LIST:
+      case LINKED_LIST: {
+        int size = in.readInt();
+        List l = tag == ARRAY_LIST ? (List) new ArrayList(size)
+            : new LinkedList();
+        for (int i = 0; i < size; i++) {
+          l.add(read());
+        }
+        return l;
+      }
+      case FILE:
+        return new File(readString());
+      case LOCATION:
+        return new FileLocation((File) read(), in.readInt(), in.readInt(),
+            in.readInt(), in.readInt());
+      case ANY_ALL_OF:
+        return new AnyAllOf(readList(), in.readBoolean());
+      case ASSIGN:
+        return new Assign(readString(), readExpr());
+      case BASIC_LDEFN:
+        return new BasicLDefn(readDefinition());
+      case BOOL:
+        return new Bool(readExpr());
+      case BOX:
+        return new Box(readString(), readExpr(), readExpr());
+      case CHAIN:
+        return new Chain(readList(), readExpr());
+      case CMP:
+        return new Cmp(in.readInt(), in.readBoolean(), readExpr(), readExpr());
+      case DECLARE:
+        return new Declare(readString(), readList(), readDefinition());
+      case DEFAULT:
+        return new Default(readString(), readExpr());
+      case DEFINE: {
+        Define d = new Define();
+        d.elems = readDefinition();
+        d.body = readExpr();
+        return d;
+      }
+      case DEFINED:
+        return new Defined(readString());
+      case DEFINITION: {
+        Definition d = new Definition();
+        d.elems = readList();
+        d.frameSize = in.readInt();
+        return d;
+      }
+      case DIVIDE:
+        return new Divide(readExpr(), readExpr());
+      case ELSE:
+        return new Else(readExpr());
+      case EQ:
+        return new Eq(readExpr(), readExpr());
+      case EVAL:
+        return new Eval((File) read(), readList(), modified, readExpr());
+      case FOR_ALL:
+        return new ForAll(readExpr(), readExpr());
+      case FOR_ALL_LDEFN:
+        return new ForAllLDefn(readExpr(), readLDefn());
+      case IDENTITY:
+        return new Identity(readExpr());
+      case IMPORT:
+        return new Import((File) read(), readList(), modified, readExpr());
+      case INIT_CAP:
+        return new InitCap(readExpr());
+      case INSIDE:
+        return new Inside(readString(), readList(), readDefinition());
+      case INT:
+        return new Int(readExpr());
+      case INTER_CAP:
+        return new InterCap(readLoc(), readString(), readExpr());
+      case LCASE:
+        return new LCase(readExpr());
+      case LENGTH:
+        return new Length(readExpr());
+      case LIST_EXPR:
+        return new ListExpr(readList());
+      case LIST_LDEFN:
+        return new ListLDefn(readList());
+      case LITERAL:
+        return new Literal(read());
+      case MINUS:
+        return new Minus(readExpr(), readExpr());
+      case NE:
+        return new Ne(readExpr(), readExpr());
+      case NOT:
+        return new Not(readExpr());
+      case OUTFILE: {
+        Outfile f = new Outfile(modified, readList(), readList(), readExpr(),
+            readExpr());
+        f.paranoid = in.readBoolean();
+        return f;
+      }
+      case PLUS:
+        return new Plus(readExpr(), readExpr());
+      case READ_FILE:
+        return new ReadFile(readExpr());
+      case SEP_LDEFN:
+        return new SepLDefn(readLDefn(), readList());
+      case SET: {
+        Set s = new Set(readString(), readExpr());
+        s.slot = in.readInt();
+        return s;
+      }
+      case STR:
+        return new Str(readLoc(), readExpr());
+      case SUBST:
+        return new Subst(readExpr(), readExpr(), readExpr());
+      case TIMES:
+        return new Times(readExpr(), readExpr());
+      case TIMESTAMPED_DEFN:
+        return new TimestampedDefn(readDefinition(), readList(), modified);
+      case TIMESTAMPED_EXPR:
+        return new TimestampedExpr(readExpr(), readList(), modified);
+      case TRANS:
+        return new Trans(readString(), readString(), readExpr());
+      case UCASE:
+        return new UCase(readExpr());
+      case USE:
+        return new Use(readString());
+      case VAR: {
+        Var v = new Var(readLoc(), readString());
+        v.depth = in.readInt();
+        v.slot = in.readInt();
+        return v;
+      }
+      case VAR_LDEFN:
+        return new VarLDefn(readString());
+      case WHATS_IN:
+        return new WhatsIn(readString());
+      case WHEN: {
+        When w = new When(readExpr(), readExpr());
+        w.elseVal = readExpr();
+        return w;
+      }
+      case WHEN_LDEFN:
+        return new WhenLDefn(readExpr(), readLDefn());
+      default:
+        throw new IOException("Unknown tag " + tag);
+      }
+    }
+  }
+}
@@ -60,6 +60,8 @@ public class Test {
     java.util.Arrays.sort(testFiles);
     int evalPassCount = 0;
     int writePassCount = 0;
+    int compiledEvalPassCount = 0;
+    int compiledWritePassCount = 0;
     int testCount = 0;
     int namelen = 0;
     for (int i = 0; i < testFiles.length; i++) {
@@ -77,7 +79,7 @@ public class Test {
         Output.reportError(new FileLocation(testFiles[i]), "No .out file found");
       } else {
         testCount++;
-        Expr exp = CGLParser.loadTemplate(testFiles[i]);
+        Expr exp = CGLParser.parseTemplate(testFiles[i]);
         System.out.print(testFiles[i].getName() + ": ");
         for (int j = testFiles[i].getName().length(); j < namelen; j++) {
           System.out.print(" ");
@@ -97,20 +99,47 @@ public class Test {
         exp.write(makeContext(), out);
         String writeResult = sb.toString();
         if (expected.equals(writeResult)) {
-          Output.println("PASS(write).");
+          System.out.print("PASS(write), ");
           writePassCount++;
         } else {
-          Output.println("FAIL(write).");
+          System.out.print("FAIL(write), ");
           if (!writeResult.equals(result)) {
             writeFile(new File(failDir, testFiles[i].getName() + ".out"
                 + (expected.equals(result) ? "" : ".wr")), writeResult);
           }
         }
         System.out.flush();
+
+        // The same again with the template compiled, which should make no
+        // difference at all.
+        Expr compiled = CGLParser.loadTemplate(testFiles[i]);
+        String compiledResult = compiled.evaluate(makeContext()).toString();
+        if (expected.equals(compiledResult)) {
+          System.out.print("PASS(compiled eval), ");
+          compiledEvalPassCount++;
+        } else {
+          System.out.print("FAIL(compiled eval), ");
+          writeFile(new File(failDir, testFiles[i].getName() + ".out.c"),
+              compiledResult);
+        }
+        sb = new StringBuffer();
+        compiled.write(makeContext(), new StringBufferWriter(sb));
+        String compiledWriteResult = sb.toString();
+        if (expected.equals(compiledWriteResult)) {
+          Output.println("PASS(compiled write).");
+          compiledWritePassCount++;
+        } else {
+          Output.println("FAIL(compiled write).");
+          writeFile(new File(failDir, testFiles[i].getName() + ".out.c.wr"),
+              compiledWriteResult);
+        }
+        System.out.flush();
       }
     }
     Output.println("Passed " + evalPassCount + "/" + testCount + "(eval), "
-        + writePassCount + "/" + testCount + "(write)");
+        + writePassCount + "/" + testCount + "(write), "
+        + compiledEvalPassCount + "/" + testCount + "(compiled eval), "
+        + compiledWritePassCount + "/" + testCount + "(compiled write)");
   }
 
   static String readFile(File file) throws IOException {
@@ -36,8 +36,11 @@
 package net.netreach.cgl;
 
 // Collections classes used in implementation.
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import net.netreach.util.FileLocatedException;
 
@@ -52,14 +55,93 @@ public class TimestampHelper {
       }
       return time.longValue();
     }
+
+    // Use what an earlier run worked out, if nothing it depends on has
+    // changed since.
+    DependencyGraph graph = CGLParser.getDependencyGraph();
+    File file = tso.getFile();
+    if (graph != null && file != null) {
+      long known = graph.stamp(file);
+      if (known >= 0) {
+        ctx.deps.put(tso, new Long(known));
+        return known;
+      }
+    }
+
     ctx.deps.put(tso, null);
     long time = tso.getTimestamp();
+    List files = new ArrayList();
     for (Iterator i = tso.getDependencies().iterator(); i.hasNext();) {
       Dependency dep = (Dependency) i.next();
-      long depTime = dep.resolve(ctx).resolve(ctx);
+      long depTime = stamp(dep, ctx);
       if (depTime > time) time = depTime;
+      files.add(dep.getFile());
     }
     ctx.deps.put(tso, new Long(time));
+    if (graph != null && file != null && !files.contains(null)) {
+      graph.record(file, tso.getTimestamp(), files, time);
+    }
     return time;
   }
+
+  /**
+   * The timestamp of what a dependency refers to and everything that depends
+   * on in turn, from the dependency graph if it is known there, so that it
+   * doesn't have to be loaded just for that.
+   */
+  static long stamp(Dependency dep, Context ctx) throws IOException,
+      FileLocatedException {
+    DependencyGraph graph = CGLParser.getDependencyGraph();
+    if (graph != null) {
+      File file = dep.getFile();
+      if (file != null) {
+        long known = graph.stamp(file);
+        if (known >= 0) return known;
+      }
+    }
+    return dep.resolve(ctx).resolve(ctx);
+  }
+
+  /**
+   * Add the file a template or export was loaded from to the given set, along
+   * with those of everything it imports or evals, as resolved in the context
+   * or else named by a constant, loading them if need be. Returns false if
+   * one of them can't be found that way.
+   */
+  static boolean addInputs(TimestampedObject tso, Context ctx,
+      java.util.Set into) throws IOException, FileLocatedException {
+    File file = tso.getFile();
+    if (file == null) return false;
+    if (!into.add(file)) return true;
+    for (Iterator i = tso.getDependencies().iterator(); i.hasNext();) {
+      Dependency dep = (Dependency) i.next();
+      TimestampedObject resolved = (TimestampedObject) ctx.deps.get(dep);
+      if (resolved == null) {
+        File depFile = dep.getFile();
+        if (depFile == null) return false;
+        resolved = (TimestampedObject) (dep instanceof Import ? CGLParser
+            .loadExport(depFile) : CGLParser.loadTemplate(depFile));
+        if (resolved == null) return false;
+      }
+      if (!addInputs(resolved, ctx, into)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * The file an import or eval refers to, if its filename is a constant.
+   */
+  static File constantFile(File relativeTo, Expr filename) {
+    if (filename instanceof CompiledExpr) {
+      filename = ((CompiledExpr) filename).expr;
+    }
+    if (!(filename instanceof Literal)) return null;
+    Object name = ((Literal) filename).value;
+    if (name == null) return null;
+    try {
+      return new File(relativeTo, name.toString()).getCanonicalFile();
+    } catch (IOException e) {
+      return null;
+    }
+  }
 }
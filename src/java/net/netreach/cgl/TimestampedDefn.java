@@ -36,6 +36,7 @@
 package net.netreach.cgl;
 
 // Collections classes used in implementation.
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -46,6 +47,9 @@ public class TimestampedDefn extends Definition implements TimestampedObject {
   List dependencies;
   long timestamp;
 
+  /** The file it was loaded from, set by CGLParser. */
+  File file;
+
   TimestampedDefn(Definition body, List dependencies, long timestamp) {
     this.body = body;
     this.dependencies = dependencies;
@@ -67,4 +71,8 @@ public class TimestampedDefn extends Definition implements TimestampedObject {
   public long getTimestamp() {
     return timestamp;
   }
+
+  public File getFile() {
+    return file;
+  }
 }
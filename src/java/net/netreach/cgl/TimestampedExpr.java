@@ -36,6 +36,7 @@
 package net.netreach.cgl;
 
 // Collections classes used in implementation.
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
@@ -47,6 +48,9 @@ public class TimestampedExpr extends Expr implements TimestampedObject {
   List dependencies;
   long timestamp;
 
+  /** The file it was loaded from, set by CGLParser. */
+  File file;
+
   TimestampedExpr(Expr body, List dependencies, long timestamp) {
     this.body = body;
     this.dependencies = dependencies;
@@ -72,4 +76,8 @@ public class TimestampedExpr extends Expr implements TimestampedObject {
   public long getTimestamp() {
     return timestamp;
   }
+
+  public File getFile() {
+    return file;
+  }
 }
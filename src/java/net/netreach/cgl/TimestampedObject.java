@@ -36,6 +36,7 @@
 package net.netreach.cgl;
 
 // Collections classes used in implementation.
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -48,4 +49,9 @@ public interface TimestampedObject {
   public List getDependencies();
 
   public long getTimestamp();
+
+  /**
+   * The file it was loaded from, or null if it wasn't loaded from one.
+   */
+  public File getFile();
 }
@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 
@@ -46,7 +47,10 @@ class Trans extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx), chars, mapTo);
+  }
+
+  static Object apply(Object result, String chars, String mapTo) {
     if (result == null) throw new NullPointerException("Illegal use of null");
     String s = result.toString();
     StringBuffer sb = new StringBuffer(s.length());
@@ -62,6 +66,18 @@ class Trans extends Expr {
     return sb.toString();
   }
 
+  Expr filtered() {
+    return ValueWriter.streams(value) ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return new ValueWriter(out, null) {
+      void filter(String s) throws IOException {
+        pass((String) apply(s, chars, mapTo));
+      }
+    };
+  }
+
   Trans(String chars, String mapTo, Expr value) {
     this.chars = chars;
     this.mapTo = mapTo;
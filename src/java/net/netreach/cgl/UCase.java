@@ -37,6 +37,7 @@ package net.netreach.cgl;
 
 // Collections classes used in implementation.
 import java.io.IOException;
+import java.io.Writer;
 
 import net.netreach.util.FileLocatedException;
 
@@ -44,12 +45,59 @@ class UCase extends Expr {
   Expr value;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
-    Object result = value.evaluate(ctx);
+    return apply(value.evaluate(ctx));
+  }
+
+  static Object apply(Object result) {
     if (result == null) throw new NullPointerException("Illegal use of null");
     return result.toString().toUpperCase();
   }
 
+  Expr filtered() {
+    return ValueWriter.streams(value) ? value : null;
+  }
+
+  ValueWriter filter(Writer out) {
+    return new Filter(out, true);
+  }
+
   UCase(Expr value) {
     this.value = value;
   }
+
+  /**
+   * Changes the case of a value as it is written. The text since the last
+   * whitespace is held back, because how a letter changes case can depend
+   * on the letters around it, but never on anything past whitespace.
+   */
+  static class Filter extends ValueWriter {
+    private final boolean upper;
+    private final StringBuffer held = new StringBuffer();
+
+    Filter(Writer out, boolean upper) {
+      super(out, null);
+      this.upper = upper;
+    }
+
+    void filter(String s) throws IOException {
+      int end = s.length();
+      while (end > 0 && " \t\n\r\f".indexOf(s.charAt(end - 1)) < 0) end--;
+      if (end == 0) {
+        held.append(s);
+        return;
+      }
+      held.append(s, 0, end);
+      pass(convert(held.toString()));
+      held.setLength(0);
+      held.append(s, end, s.length());
+    }
+
+    void rest() throws IOException {
+      if (held.length() > 0) pass(convert(held.toString()));
+    }
+
+    private String convert(String s) {
+      return upper ? s.toUpperCase() : s.toLowerCase();
+    }
+  }
 }
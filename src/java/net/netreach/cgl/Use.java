@@ -38,6 +38,8 @@ package net.netreach.cgl;
 // Collections classes used in implementation.
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import net.netreach.util.FileLocatedException;
 
@@ -59,18 +61,32 @@ class Use extends DefnElem {
                                                              */);
     }
     Declare decl = closure.decl;
-    Context ictx = new Context(closure.ctx);
+    Object[] values = new Object[decl.given.size()];
+    int n = 0;
     for (Iterator i = decl.given.iterator(); i.hasNext();) {
-      Object o = i.next();
-      ictx.vars.put(o, ctx.vars.get(o));
+      values[n++] = ctx.vars.get(i.next());
     }
-    ictx = new Context(ictx);
-    ictx.vars.setNoCache(true);
-    Context res = decl.decl.setOnContext(ictx);
-    if (res != ictx) {
-      throw new RuntimeException("Illegal operation in 'use'");
+
+    // A pure declare sets the same variables as it did the last time it was
+    // given the same values.
+    List key = closure.key(values);
+    Map result = key == null ? null : closure.recall(key);
+    if (result == null) {
+      Context ictx = new Context(closure.ctx);
+      n = 0;
+      for (Iterator i = decl.given.iterator(); i.hasNext();) {
+        ictx.vars.put(i.next(), values[n++]);
+      }
+      ictx = new Context(ictx);
+      ictx.vars.setNoCache(true);
+      Context res = decl.decl.setOnContext(ictx);
+      if (res != ictx) {
+        throw new RuntimeException("Illegal operation in 'use'");
+      }
+      result = ictx.vars.getFront();
+      if (key != null) closure.remember(key, result);
     }
-    ctx.vars.putAll(ictx.vars.getFront());
+    ctx.vars.putAll(result);
     return ctx;
   }
 }
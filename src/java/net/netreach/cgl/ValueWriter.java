@@ -0,0 +1,95 @@
+package net.netreach.cgl;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer that the value of a string transform is written through on its way
+ * out, so that the value is transformed as it is written instead of being
+ * evaluated to a string first. A transform that has to see more of the value
+ * before it can pass a piece on holds it back until finish().
+ * <p>
+ * Expr.write only writes values that aren't null, so a value is null exactly
+ * when nothing at all was written through it.
+ */
+abstract class ValueWriter extends Writer {
+  private final Writer out;
+  private final PositionedExpr at;
+  private boolean written = false;
+  private boolean passed = false;
+
+  /**
+   * A null value is reported as a CGLException at the given expression, or
+   * as a NullPointerException if it is null, as the transform would when
+   * evaluated.
+   */
+  ValueWriter(Writer out, PositionedExpr at) {
+    this.out = out;
+    this.at = at;
+  }
+
+  /** Transform a piece of the value, passing on what can be passed on. */
+  abstract void filter(String s) throws IOException;
+
+  /** Pass on anything held back, now that the whole value has been seen. */
+  void rest() throws IOException {
+  }
+
+  final void pass(String s) throws IOException {
+    passed = true;
+    out.write(s);
+  }
+
+  void finish() throws IOException, CGLException {
+    if (!written) {
+      if (at == null) throw new NullPointerException("Illegal use of null");
+      throw new CGLException(at, "Illegal use of null");
+    }
+    rest();
+    // An empty value is still written, for the sake of any separator.
+    if (!passed) out.write("");
+  }
+
+  public void write(String s) throws IOException {
+    written = true;
+    filter(s);
+  }
+
+  public void write(String s, int off, int len) throws IOException {
+    write(s.substring(off, off + len));
+  }
+
+  public void write(char[] c, int off, int len) throws IOException {
+    write(new String(c, off, len));
+  }
+
+  public void write(int c) throws IOException {
+    write(String.valueOf((char) c));
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  public void close() {
+  }
+
+  /** A transform that passes the value on as it is. */
+  static class Plain extends ValueWriter {
+    Plain(Writer out, PositionedExpr at) {
+      super(out, at);
+    }
+
+    void filter(String s) throws IOException {
+      pass(s);
+    }
+  }
+
+  /**
+   * Whether a value is worth streaming through a transform: a variable or
+   * literal is a string already.
+   */
+  static boolean streams(Expr value) {
+    return !(value instanceof Var || value instanceof Literal);
+  }
+}
@@ -41,11 +41,49 @@ import net.netreach.util.FileLocation;
 class Var extends PositionedExpr {
   String name;
 
+  /**
+   * Where Resolver found the set for this variable: the slot, and how many
+   * frames out. The slot is -1 if it has to be looked up by name.
+   */
+  int depth = 0;
+  int slot = -1;
+
   public Object evaluate(Context ctx) throws FileLocatedException {
+    if (slot >= 0) return get(ctx, depth, slot, name, this);
+    return get(ctx, name, this);
+  }
+
+  /**
+   * Read a variable from a frame, unless the item of a forall on the way
+   * there hides it. Shared with compiled templates.
+   */
+  static Object get(Context ctx, int depth, int slot, String name,
+      PositionedExpr at) throws FileLocatedException {
+    Frame frame = ctx.frame;
+    for (; depth > 0; depth--) {
+      if (frame.item != null) {
+        // Other threads' scopes may be caching into the same item.
+        boolean hidden;
+        synchronized (frame.item) {
+          hidden = frame.item.containsKey(name);
+        }
+        if (hidden) return get(ctx, name, at);
+      }
+      frame = frame.parent;
+    }
+    return frame.slots[slot];
+  }
+
+  /**
+   * Look up a variable, failing at the given expression if there is no such
+   * variable. Shared with compiled templates.
+   */
+  static Object get(Context ctx, String name, PositionedExpr at)
+      throws FileLocatedException {
     try {
       Object o = ctx.vars.get(name);
       if (o == null && !ctx.vars.containsKey(name)) {
-        throw new CGLException(this, "No such variable " + name /*
+        throw new CGLException(at, "No such variable " + name /*
                                                                  * +
                                                                  * "\nExisting vars: "
                                                                  * +
@@ -59,7 +97,7 @@ class Var extends PositionedExpr {
         throw (FileLocatedException) e.inner;
       } else {
         e.inner.printStackTrace();
-        throw new CGLException(this, "Exception loading variable " + name);
+        throw new CGLException(at, "Exception loading variable " + name);
       }
     }
   }
@@ -44,6 +44,10 @@ class WhatsIn extends Expr {
   String name;
 
   public Object evaluate(Context ctx) throws FileLocatedException, IOException {
+    return apply(ctx, name);
+  }
+
+  static Object apply(Context ctx, String name) {
     BoxValue box = (BoxValue) ctx.vars.get("box$" + name);
     if (box == null) throw new RuntimeException("No box found called " + name);
     return box.value;
@@ -36,6 +36,7 @@
 package net.netreach.nrdo.tools;
 
 // Collections classes used to implement the appropriate behavior.
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -49,7 +50,8 @@ import net.netreach.util.Mappable;
  * 
  * @author Stuart Ballard &lt;sballard@netreach.net&gt;
  */
-public class BeforeStmt implements Mappable {
+public class BeforeStmt implements Mappable, Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
 
   public String step;
   public String name;
@@ -57,9 +59,9 @@ public class BeforeStmt implements Mappable {
   public boolean initially = true;
   public boolean upgrade = true;
 
-  private Map asMap;
+  private transient Map asMap;
 
-  public Map toMap() {
+  public synchronized Map toMap() {
     if (asMap == null) {
       asMap = new HashMap();
       asMap.put("step", step);
@@ -80,6 +80,7 @@ public class Config {
   public final DfnBase dfnbase;
   public final File srcbase;
   public final File cachebase;
+  public final File parsecache;
   public final Definition global;
   public final Definition local;
   public final String module;
@@ -104,6 +105,11 @@ public class Config {
   public final Map globalVars = new HashMap();
   public final File stampfile;
   public final File logsql;
+  public final File profile;
+  public final File manifest;
+  public final File outputcache;
+  /** The size in bytes the output cache is kept to, or 0 for no limit. */
+  public final long outputcachesize;
   public final boolean hacknobefore;
   private final HashSet strict = new HashSet();
 
@@ -163,6 +169,7 @@ public class Config {
     File cgltemplate = null;
     File querytemplate = null;
     File cachebase = null;
+    File parsecache = null;
     Definition global = null;
     Definition local = null;
     String module = null;
@@ -182,6 +189,10 @@ public class Config {
     String dbadapter = null;
     File stampfile = null;
     File logsql = null;
+    File profile = null;
+    File manifest = null;
+    File outputcache = null;
+    long outputcachesize = 0;
     boolean hacknobefore = false;
 
     SmeltReader sr = new SmeltReader(cfgfile);
@@ -226,6 +237,8 @@ public class Config {
         srcbase = constructFile(sr, false, true);
       } else if ("cachebase".equals(fword)) {
         cachebase = constructFile(sr, true, true);
+      } else if ("parsecache".equals(fword)) {
+        parsecache = constructFile(sr, false, true);
       } else if ("pkgbase".equals(fword)) {
         Output.reportError(sr.getLastTokenLocation(), "Deprecated keyword 'pkgbase'");
         sr.skipString();
@@ -303,6 +316,21 @@ public class Config {
         stampfile = constructFile(sr, false, false);
       } else if ("logsql".equals(fword)) {
         logsql = constructFile(sr, false, false);
+      } else if ("profile".equals(fword)) {
+        profile = constructFile(sr, false, false);
+      } else if ("manifest".equals(fword)) {
+        manifest = constructFile(sr, false, false);
+      } else if ("outputcache".equals(fword)) {
+        outputcache = constructFile(sr, false, true);
+        if (!sr.wasEOL()) {
+          String size = sr.skipString();
+          try {
+            outputcachesize = Long.parseLong(size) * 1024 * 1024;
+          } catch (NumberFormatException e) {
+            throw new ParseException(sr, "Bad 'outputcache' size " + size
+                + " (expected a number of megabytes)");
+          }
+        }
       } else if ("hacknobefore".equals(fword)) {
         hacknobefore = true;
       } else if ("strict".equals(fword)) {
@@ -336,6 +364,7 @@ public class Config {
       // you can't inherit dfnbase :)
       if (srcbase == null) srcbase = baseConfig.srcbase;
       if (cachebase == null) cachebase = baseConfig.cachebase;
+      if (parsecache == null) parsecache = baseConfig.parsecache;
       if (cgltemplate == null) cgltemplate = baseConfig.cgltemplate;
       if (querytemplate == null) querytemplate = baseConfig.querytemplate;
       if (module == null) module = baseConfig.module;
@@ -350,8 +379,13 @@ public class Config {
       if (dbuser == null) dbuser = baseConfig.dbuser;
       if (dbpasswd == null) dbpasswd = baseConfig.dbpasswd;
       if (dbadapter == null) dbadapter = baseConfig.dbadaptername;
-      // you can't inherit stampfile either
+      // you can't inherit stampfile or manifest either
       if (logsql == null) logsql = baseConfig.logsql;
+      if (profile == null) profile = baseConfig.profile;
+      if (outputcache == null) {
+        outputcache = baseConfig.outputcache;
+        outputcachesize = baseConfig.outputcachesize;
+      }
       if (!hacknobefore) hacknobefore = baseConfig.hacknobefore;
       strict.addAll(baseConfig.strict);
     }
@@ -367,6 +401,7 @@ public class Config {
     this.dfnbase = (DfnBase) notNull(dfnbase, "dfnbase", sr);
     this.srcbase = (File) notNull(srcbase, "srcbase", sr);
     this.cachebase = (File) notNull(cachebase, "cachebase", sr);
+    this.parsecache = parsecache;
     this.cgltemplate = (File) notNull(cgltemplate, "cgltemplate", sr);
     this.querytemplate = (File) notNull(querytemplate, "querytemplate", sr);
     this.module = module;
@@ -389,6 +424,10 @@ public class Config {
     this.dbadapter = DBAdapter.getInstance(this);
     this.stampfile = stampfile;
     this.logsql = logsql;
+    this.profile = profile;
+    this.manifest = manifest;
+    this.outputcache = outputcache;
+    this.outputcachesize = outputcachesize;
     this.hacknobefore = hacknobefore;
 
     if (baseConfig == null) {
@@ -0,0 +1,121 @@
+package net.netreach.nrdo.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-1 hashes of the contents of files, as used by Manifest and OutputCache
+ * to tell whether what goes into a table or query has changed. A file is
+ * only read again if its size or time is different from when it was last
+ * hashed by the same instance.
+ */
+final class ContentHash {
+
+  /** The size, time and hash of a file's contents, as found this run. */
+  private static final class Fingerprint {
+    final long length;
+    final long modified;
+    final byte[] hash;
+
+    Fingerprint(long length, long modified, byte[] hash) {
+      this.length = length;
+      this.modified = modified;
+      this.hash = hash;
+    }
+  }
+
+  private final Map fingerprints = new HashMap();
+
+  /**
+   * The hash of a file's contents.
+   */
+  synchronized byte[] of(File f) throws IOException {
+    String path = f.getPath();
+    long length = f.length();
+    long modified = f.lastModified();
+    Fingerprint fp = (Fingerprint) fingerprints.get(path);
+    if (fp == null || fp.length != length || fp.modified != modified) {
+      fp = new Fingerprint(length, modified, sha1().digest(contents(f)));
+      fingerprints.put(path, fp);
+    }
+    return fp.hash;
+  }
+
+  /**
+   * The hash of a config and the configs it takes defaults from, and of the
+   * string, boolean and number variables templates are run with for it. The
+   * date is left out, as it is for timestamps, so that code isn't generated
+   * again just because it's a new day.
+   */
+  byte[] ofConfig(Config cfg, Map cfgvars) throws IOException {
+    MessageDigest md = sha1();
+    for (Config c = cfg; c != null; c = c.baseConfig) {
+      md.update(of(c.cfgfile));
+    }
+    Map vars = new TreeMap();
+    for (Iterator i = cfgvars.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      Object value = e.getValue();
+      if (e.getKey() instanceof String && !"date".equals(e.getKey())
+          && (value instanceof String || value instanceof Boolean
+              || value instanceof Number)) {
+        vars.put(e.getKey(), value);
+      }
+    }
+    update(md, vars.toString());
+    return md.digest();
+  }
+
+  static byte[] contents(File f) throws IOException {
+    byte[] contents = new byte[(int) f.length()];
+    InputStream in = new FileInputStream(f);
+    try {
+      int len = 0;
+      while (len < contents.length) {
+        int n = in.read(contents, len, contents.length - len);
+        if (n < 0) break;
+        len += n;
+      }
+    } finally {
+      in.close();
+    }
+    return contents;
+  }
+
+  /**
+   * Add a string to a hash, terminated so that it can't run into the next.
+   */
+  static void update(MessageDigest md, String s) {
+    try {
+      md.update(s.getBytes("UTF-8"));
+      md.update((byte) 0);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String hex(byte[] hash) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < hash.length; i++) {
+      sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(hash[i] & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
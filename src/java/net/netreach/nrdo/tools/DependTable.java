@@ -59,7 +59,7 @@ public class DependTable implements Mappable {
 
   private Map asMap;
 
-  public Map toMap() {
+  public synchronized Map toMap() {
     if (asMap == null) {
       asMap = new HashMap();
       asMap.put("depmodule", table.getModule());
@@ -40,7 +40,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -48,7 +51,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.netreach.nrdo.tools.dfn.ParseCache;
+import net.netreach.nrdo.tools.dfn.Parser;
+import net.netreach.nrdo.tools.dfn.RawQuery;
+import net.netreach.nrdo.tools.dfn.RawTable;
+import net.netreach.smelt.ParseException;
+import net.netreach.util.FileIndex;
 import net.netreach.util.FileLocatedException;
 import net.netreach.util.Output;
 
@@ -57,7 +70,8 @@ import net.netreach.util.Output;
  * 
  * @author Stuart Ballard &lt;sballard@netreach.net&gt;
  */
-public class DfnBase {
+public class DfnBase implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
 
   private Map defs = new TreeMap();
   private Map queries = new TreeMap();
@@ -65,7 +79,13 @@ public class DfnBase {
   Set exclude = new HashSet();
   boolean verbose = false;
   public Config cfg;
-  Set touchedFiles = new HashSet();
+  Set touchedFiles = Collections.synchronizedSet(new HashSet());
+  private ParseCache parseCache;
+
+  // Tables and queries from a Snapshot, handed out by loadMinimum and
+  // loadQueryMinimum in place of new ones if they come from the same file.
+  private Map restoredDefs = new HashMap();
+  private Map restoredQueries = new HashMap();
 
   public DfnBase(String dfnPath) throws IOException {
     this();
@@ -114,14 +134,95 @@ public class DfnBase {
     return td;
   }
 
-  TableDef loadMinimum(String tableName) throws IOException {
+  private synchronized ParseCache getParseCache() {
+    if (parseCache == null && cfg.parsecache != null) {
+      parseCache = new ParseCache(cfg.parsecache);
+    }
+    return parseCache;
+  }
+
+  RawTable parseTable(File file) throws IOException, ParseException {
+    Object raw = getRetained(file);
+    if (raw instanceof RawTable) return (RawTable) raw;
+    long length = file.length();
+    long modified = file.lastModified();
+    ParseCache pc = getParseCache();
+    RawTable result = pc == null ? Parser.parseTable(file) : pc.getTable(file);
+    retain(file, length, modified, result);
+    return result;
+  }
+
+  RawQuery parseQuery(File file) throws IOException, ParseException {
+    Object raw = getRetained(file);
+    if (raw instanceof RawQuery) return (RawQuery) raw;
+    long length = file.length();
+    long modified = file.lastModified();
+    ParseCache pc = getParseCache();
+    RawQuery result = pc == null ? Parser.parseQuery(file) : pc.getQuery(file);
+    retain(file, length, modified, result);
+    return result;
+  }
+
+  /**
+   * A parsed dfn or qu file kept for later runs in the same process, with the
+   * size and modification time of the file it was parsed from.
+   */
+  private static class Retained {
+    final long length;
+    final long modified;
+    final Object raw;
+
+    Retained(long length, long modified, Object raw) {
+      this.length = length;
+      this.modified = modified;
+      this.raw = raw;
+    }
+  }
+
+  /**
+   * Parsed files by path, if setRetainParses has asked for them to be kept
+   * from one run to the next, as a server does; otherwise null.
+   */
+  private static Map retained = null;
+
+  static synchronized void setRetainParses(boolean retain) {
+    retained = retain ? new HashMap() : null;
+  }
+
+  private static synchronized Object getRetained(File file) {
+    if (retained == null) return null;
+    Retained r = (Retained) retained.get(file.getPath());
+    if (r == null || r.length != file.length()
+        || r.modified != file.lastModified()) {
+      return null;
+    }
+    return r.raw;
+  }
+
+  private static synchronized void retain(File file, long length,
+      long modified, Object raw) {
+    if (retained != null) {
+      retained.put(file.getPath(), new Retained(length, modified, raw));
+    }
+  }
+
+  synchronized TableDef loadMinimum(String tableName) throws IOException {
     TableDef td = (TableDef) defs.get(tableName);
     if (td != null || defs.containsKey(tableName)) return td;
 
-    File file = findFile(tableName, "dfn", "table");
+    File file = findFile(tableName, "dfn", "table", true);
     if (file != null) {
-      td = new TableDef(this, file, tableName);
-      defs.put(tableName, td);
+      Snapshot.Entry entry = (Snapshot.Entry) restoredDefs.remove(tableName);
+      if (entry != null && file.equals(entry.getFile())) {
+        td = (TableDef) entry.def;
+        defs.put(tableName, td);
+
+        // Loading the table's links is what resolving it would have done.
+        entry.loadLinks();
+      } else {
+        td = new TableDef(this, file, tableName);
+        defs.put(tableName, td);
+      }
     }
     if (td == null) {
       for (Iterator i = cfg.depends.iterator(); i.hasNext();) {
@@ -139,17 +240,30 @@ public class DfnBase {
     return qd;
   }
 
-  QueryDef loadQueryMinimum(String queryName) throws IOException {
+  synchronized QueryDef loadQueryMinimum(String queryName)
+      throws IOException {
     QueryDef qd = (QueryDef) queries.get(queryName);
     if (qd != null || queries.containsKey(queryName)) return qd;
 
-    File file = findFile(queryName, "qu", "query");
-    if (file != null) qd = new QueryDef(this, file, queryName);
+    File file = findFile(queryName, "qu", "query", true);
+    if (file != null) {
+      Snapshot.Entry entry = (Snapshot.Entry) restoredQueries.remove(queryName);
+      if (entry != null && file.equals(entry.getFile())) {
+        qd = (QueryDef) entry.def;
+      } else {
+        qd = new QueryDef(this, file, queryName);
+      }
+    }
     queries.put(queryName, qd);
     return qd;
   }
 
-  private File findFile(String name, String extension, String type) {
+  /**
+   * Find the file defining a table or query of this module. Unless record is
+   * false, the file is added to touchedFiles and failure is reported.
+   */
+  File findFile(String name, String extension, String type, boolean record)
+      throws IOException {
     if (cfg.module != null) {
       // If it's not in the current module, we return null to allow it to be
       // looked for in dependent modules.
@@ -165,29 +279,118 @@ public class DfnBase {
     }
     if (!skip) {
       for (Iterator i = dfnPath.listIterator(); file == null && i.hasNext();) {
-        String pth = (String) i.next();
-        File dir = new File(pth);
-        if (dir.isFile()) pth = dir.getParent();
+        FileIndex index = getIndex((String) i.next());
         String fname = name.replace(':', '/') + "." + extension;
-        file = new File(pth, fname);
-        if (!file.exists()) {
-          file = new File(pth, fname.substring(0, 1).toUpperCase()
-              + fname.substring(1));
+        String capName = fname.substring(0, 1).toUpperCase()
+            + fname.substring(1);
+        long size = index.getSize(fname);
+        if (size < 0) {
+          size = index.getSize(capName);
+          if (size >= 0) fname = capName;
         }
-        if (!file.exists()) {
+        file = new File(index.getRoot(), fname);
+        if (size < 0) {
+          // Not in the index, but the file system may still find it under a
+          // different case, or it may have appeared since the index was built.
+          if (!file.exists()) file = new File(index.getRoot(), capName);
+          if (file.exists()) size = file.length();
+        }
+        if (size < 0) {
           file = null;
         } else {
-          touchedFiles.add(file);
-          if (file.length() == 0) file = null;
+          if (record) touchedFiles.add(file);
+          if (size == 0) file = null;
         }
       }
     }
-    if (file == null) {
+    if (file == null && record) {
       Output.reportError(null, "Cannot load " + type + " " + name);
     }
     return file;
   }
 
+  private static int resolveThreads = 0;
+
+  /**
+   * Set the number of threads resolveAll uses. Zero or one means tables are
+   * only resolved lazily, one at a time, as they are needed.
+   */
+  public static void setResolveThreads(int threads) {
+    resolveThreads = threads;
+  }
+
+  /**
+   * Fully resolve all the given tables up front, spreading the work over
+   * several threads. Resolution happens in stages - fields, gets, tweaking
+   * gets, references - each of which only needs earlier stages of other tables,
+   * so every table can go through a stage in parallel once the previous stage
+   * is complete for all of them. Tables that are reached on the way but aren't
+   * in the list, such as ones from dependent modules, are resolved on demand
+   * by whichever thread gets there first, and any other thread that needs them
+   * waits for it. Does nothing unless setResolveThreads has been given more
+   * than one thread.
+   */
+  public void resolveAll(List tables) throws FileLocatedException,
+      IOException {
+    if (resolveThreads <= 1 || tables.size() < 2) return;
+    ForkJoinPool pool = new ForkJoinPool(resolveThreads);
+    try {
+      for (int stage = 0; stage < 4; stage++) {
+        resolveStage(pool, tables, stage);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void resolveStage(ForkJoinPool pool, List tables, final int stage)
+      throws FileLocatedException, IOException {
+    List futures = new ArrayList();
+    for (Iterator i = tables.iterator(); i.hasNext();) {
+      final TableDef td = (TableDef) i.next();
+      futures.add(pool.submit(new Callable() {
+        public Object call() throws Exception {
+          switch (stage) {
+          case 0:
+            td.resolveFields();
+            break;
+          case 1:
+            td.resolveGets();
+            break;
+          case 2:
+            td.resolveGetsFully();
+            break;
+          default:
+            td.resolveRefs();
+          }
+          return null;
+        }
+      }));
+    }
+
+    // Errors are reported for the first failing table in list order, not
+    // whichever happened to fail first.
+    for (Iterator i = futures.iterator(); i.hasNext();) {
+      try {
+        ((Future) i.next()).get();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof FileLocatedException) {
+          throw (FileLocatedException) cause;
+        } else if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
   public List filter(List list) {
     for (Iterator i = list.iterator(); i.hasNext();) {
       if (i.next() == null) i.remove();
@@ -195,11 +398,61 @@ public class DfnBase {
     return list;
   }
 
-  public List getAll() {
+  /**
+   * Whether a table or query of the given name has been loaded yet.
+   */
+  synchronized boolean isLoaded(String name, boolean query) {
+    return (query ? queries : defs).containsKey(name);
+  }
+
+  /**
+   * Offer a table or query from a Snapshot for loadMinimum or
+   * loadQueryMinimum to use.
+   */
+  synchronized void restore(Snapshot.Entry entry) {
+    (entry.def instanceof QueryDef ? restoredQueries : restoredDefs).put(
+        entry.key, entry);
+  }
+
+  /**
+   * All the tables and queries that belong in a Snapshot, keyed by the names
+   * they were loaded as: those that have been loaded and any restored ones
+   * that weren't asked for this time.
+   */
+  synchronized Map getSnapshotTables() {
+    return snapshotDefs(defs, restoredDefs);
+  }
+
+  synchronized Map getSnapshotQueries() {
+    return snapshotDefs(queries, restoredQueries);
+  }
+
+  private static Map snapshotDefs(Map loaded, Map restored) {
+    Map result = new TreeMap();
+    for (Iterator i = restored.values().iterator(); i.hasNext();) {
+      Snapshot.Entry entry = (Snapshot.Entry) i.next();
+      result.put(entry.key, entry.def);
+    }
+    for (Iterator i = loaded.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      if (e.getValue() != null) result.put(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * A DfnBase belongs to its Config, so a Snapshot only records which one it
+   * was and reading it back finds the current one.
+   */
+  private Object writeReplace() throws ObjectStreamException {
+    return new Snapshot.DfnBaseRef(cfg.cfgfile);
+  }
+
+  public synchronized List getAll() {
     return filter(new ArrayList(defs.values()));
   }
 
-  public List getAllQueries() {
+  public synchronized List getAllQueries() {
     return filter(new ArrayList(queries.values()));
   }
 
@@ -258,12 +511,29 @@ public class DfnBase {
     }
   }
 
+  private Map indexes = new HashMap();
+
+  /**
+   * Get the index of the tree under a dfnpath entry. For a .csproj or .sln file
+   * that is the directory it is in.
+   */
+  private synchronized FileIndex getIndex(String pth) throws IOException {
+    FileIndex index = (FileIndex) indexes.get(pth);
+    if (index == null) {
+      File dir = new File(pth);
+      if (dir.isFile()) dir = new File(dir.getParent());
+      index = new FileIndex(dir);
+      indexes.put(pth, index);
+    }
+    return index;
+  }
+
   private boolean searched = false;
 
   private void search() throws IOException {
     if (searched) return;
     for (Iterator i = dfnPath.iterator(); i.hasNext();) {
-      search(new File((String) i.next()), cfg.module);
+      search((String) i.next(), cfg.module);
     }
     searched = true;
   }
@@ -272,32 +542,13 @@ public class DfnBase {
   private static final String MSBUILD_PREFIX = "<None Include=\"";
   private static final String MSBUILD_SUFFIX = "\" />";
 
-  private void search(File f, String module) throws IOException {
+  private void search(String pth, String module) throws IOException {
     String base = module == null ? "" : module + ":";
+    File f = new File(pth);
 
     // If the path is a directory (the original use case) we just scan it recursively.
     if (f.isDirectory()) {
-      File[] files = f.listFiles();
-      if (!exclude.contains(base)) {
-        for (int i = 0; i < files.length; i++) {
-          if (files[i].isDirectory()) {
-            search(files[i], base + files[i].getName().toLowerCase());
-          } else if (files[i].isFile()) {
-            String name = files[i].getName().toLowerCase();
-            int pos = name.lastIndexOf('.');
-            if (pos > 0) {
-              String obname = base + name.substring(0, pos);
-              if (!exclude.contains(obname)) {
-                if (name.endsWith(".dfn")) {
-                  loadMinimum(obname);
-                } else if (name.endsWith(".qu")) {
-                  loadQueryMinimum(obname);
-                }
-              }
-            }
-          }
-        }
-      }
+      search(getIndex(pth), "", base);
     } else {
       // If the path is a file, rather than a directory, parse it as a .csproj or
       // .sln file, whichever applies
@@ -309,6 +560,32 @@ public class DfnBase {
     }
   }
   
+  private void search(FileIndex index, String dir, String base)
+      throws IOException {
+    if (exclude.contains(base)) return;
+    String prefix = dir.length() == 0 ? "" : dir + "/";
+    for (Iterator i = index.list(dir).iterator(); i.hasNext();) {
+      FileIndex.Entry entry = (FileIndex.Entry) i.next();
+      if (entry.isDirectory) {
+        search(index, prefix + entry.name, base + entry.name.toLowerCase()
+            + ":");
+      } else if (entry.isFile) {
+        String name = entry.name.toLowerCase();
+        int pos = name.lastIndexOf('.');
+        if (pos > 0) {
+          String obname = base + name.substring(0, pos);
+          if (!exclude.contains(obname)) {
+            if (name.endsWith(".dfn")) {
+              loadMinimum(obname);
+            } else if (name.endsWith(".qu")) {
+              loadQueryMinimum(obname);
+            }
+          }
+        }
+      }
+    }
+  }
+
   private void scanSlnFile(File f, String base) throws IOException {
     Output.println("Scanning sln " + f + "...");
     touchedFiles.add(f);
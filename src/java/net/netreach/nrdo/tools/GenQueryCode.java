@@ -36,8 +36,11 @@
 package net.netreach.nrdo.tools;
 
 // CGL classes for output generation.
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -47,6 +50,7 @@ import net.netreach.cgl.CGLParser;
 import net.netreach.cgl.Context;
 import net.netreach.cgl.Expr;
 import net.netreach.cgl.Scope;
+import net.netreach.cgl.Specializer;
 import net.netreach.util.FileLocatedException;
 import net.netreach.util.MappedList;
 import net.netreach.util.Output;
@@ -85,7 +89,7 @@ public class GenQueryCode {
   public static void doMain(Config cfg, String[] args) throws FileLocatedException,
       IOException {
 
-    Map cfgvars = new HashMap();
+    final Map cfgvars = new HashMap();
     cfgvars.put("nrdover", Version.NRDO_VERSION);
     Calendar cal = Calendar.getInstance();
     int mth = cal.get(Calendar.MONTH) + 1;
@@ -105,9 +109,12 @@ public class GenQueryCode {
 
     DfnBase dfnbase = cfg.dfnbase;
 
-    // Load and parse the CGL template file.
+    // Load and parse the CGL template file, keeping the parsed templates in
+    // the parsecache if there is one.
     CGLParser.setVerbose(true);
-    Expr template = CGLParser.loadTemplate(cfg.querytemplate);
+    CGLParser.setCacheDir(cfg.parsecache);
+    final File templateFile = cfg.querytemplate;
+    final Expr loaded = CGLParser.loadTemplate(templateFile);
 
     // Determine the queries to process.
     List tables = dfnbase.getFromArgs(args);
@@ -116,27 +123,90 @@ public class GenQueryCode {
     cfgvars.put("allqueries", new MappedList(queries));
     cfgvars.put("dependtables", new MappedList(dfnbase.getDependTables()));
 
-    for (Iterator i = queries.iterator(); i.hasNext();) {
-
-      // Load the query definition.
-      QueryDef qd = (QueryDef) i.next();
-
-      // Put the query values and the configuration's local definitions into ctx
-      Context ctx = new Context(basectx);
-      if (qd.age > ctx.age) ctx.age = qd.age;
-
-      // Construct a HashMap of the values from basectx.vars.
-      // This is theoretically equivalent to new HashMap(basectx.vars) but
-      // Classpath's HashMap constructor doesn't like Scopes much.
-      HashMap baseVars = new HashMap();
-      for (Iterator j = basectx.vars.entrySet().iterator(); j.hasNext();) {
-        Map.Entry e = (Map.Entry) j.next();
-        baseVars.put(e.getKey(), e.getValue());
+    // Queries look up the tables they use as they go, so have them all ready
+    // before the queries are split between threads.
+    if (ParallelGen.isParallel()) dfnbase.resolveAll(tables);
+
+    // If there's a manifest, queries whose inputs are all as they were last
+    // time are skipped, and if there's an output cache, those it has the
+    // outputs for are put back from it instead of being generated.
+    ContentHash hashes = new ContentHash();
+    byte[] cfghash = cfg.manifest == null && cfg.outputcache == null ? null
+        : hashes.ofConfig(cfg, cfgvars);
+    final Manifest manifest = cfg.manifest == null ? null
+        : new Manifest(cfg, cfghash, hashes);
+    final OutputCache cache = cfg.outputcache == null ? null
+        : new OutputCache(cfg, templateFile, cfghash, hashes, tables);
+
+    // Queries are done in parallel if -j asked for more than one thread.
+    ParallelGen.run(queries, basectx, new ParallelGen.Step() {
+      Expr template = loaded;
+
+      void firstDone() {
+        // Nothing a query sets comes before the config's variables, so once
+        // the template has loaded what it imports it can be specialized for
+        // them.
+        template = Specializer.specialize(template, cfgvars, templateFile);
       }
-      ctx.vars = new Scope(qd.toMap(), baseVars);
 
-      // Use the CGL expression created earlier to process the query.
-      template.evaluate(ctx);
+      boolean generate(Context base, Object item) throws FileLocatedException,
+          IOException {
+        // Load the query definition.
+        QueryDef qd = (QueryDef) item;
+        if (ParallelGen.isLeftOut(qd.dfnFile)) return false;
+        long forced = ParallelGen.getForcedAge(qd.dfnFile);
+        String key = "query " + qd.fullName;
+        if (forced == 0 && manifest != null
+            && manifest.isCurrent(key, qd.dfnFile)) {
+          return false;
+        }
+        if (forced == 0 && cache != null) {
+          Collection restored = cache.restore(key, qd.dfnFile, null);
+          if (restored != null) {
+            if (manifest != null) {
+              manifest.restored(key, qd.dfnFile, cache.getInputFiles(),
+                  restored);
+            }
+            return false;
+          }
+        }
+
+        // Put the query values and the configuration's local definitions into ctx
+        Context ctx = new Context(base);
+        if (qd.age > ctx.age) ctx.age = qd.age;
+        if (forced > ctx.age) ctx.age = forced;
+
+        // Construct a HashMap of the values from base.vars.
+        // This is theoretically equivalent to new HashMap(base.vars) but
+        // Classpath's HashMap constructor doesn't like Scopes much.
+        HashMap baseVars = new HashMap();
+        for (Iterator j = base.vars.entrySet().iterator(); j.hasNext();) {
+          Map.Entry e = (Map.Entry) j.next();
+          baseVars.put(e.getKey(), e.getValue());
+        }
+        ctx.vars = new Scope(qd.toMap(), baseVars);
+
+        // Use the CGL expression created earlier to process the query.
+        if (manifest != null || cache != null) ctx.outputs = new ArrayList();
+        template.evaluate(ctx);
+        if (manifest != null) manifest.record(key, qd.dfnFile, loaded, ctx);
+        if (cache != null) {
+          cache.publish(key, qd.dfnFile, null, loaded, ctx);
+        }
+        return true;
+      }
+    });
+
+    // Keep the template timestamps worked out for next time.
+    CGLParser.saveCache();
+    if (manifest != null) {
+      manifest.save();
+      Output.println("CGL: " + manifest.getSkipped() + " of " + queries.size()
+          + " queries unchanged since the manifest was written.");
+    }
+    if (cache != null) {
+      cache.evict();
+      Output.println("CGL: Output cache: " + cache.getStats() + ".");
     }
   }
 }
@@ -36,8 +36,11 @@
 package net.netreach.nrdo.tools;
 
 // CGL classes for output generation.
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -47,6 +50,7 @@ import net.netreach.cgl.CGLParser;
 import net.netreach.cgl.Context;
 import net.netreach.cgl.Expr;
 import net.netreach.cgl.Scope;
+import net.netreach.cgl.Specializer;
 import net.netreach.util.FileLocatedException;
 import net.netreach.util.MappedList;
 import net.netreach.util.Output;
@@ -85,7 +89,7 @@ public class GenTableCode {
   public static void doMain(Config cfg, String[] args) throws FileLocatedException,
       IOException {
 
-    Map cfgvars = new HashMap();
+    final Map cfgvars = new HashMap();
     cfgvars.put("nrdover", Version.NRDO_VERSION);
     Calendar cal = Calendar.getInstance();
     int mth = cal.get(Calendar.MONTH) + 1;
@@ -105,37 +109,100 @@ public class GenTableCode {
 
     DfnBase dfnbase = cfg.dfnbase;
 
-    // Load and parse the CGL template file.
+    // Load and parse the CGL template file, keeping the parsed templates in
+    // the parsecache if there is one.
     CGLParser.setVerbose(true);
-    Expr template = CGLParser.loadTemplate(cfg.cgltemplate);
+    CGLParser.setCacheDir(cfg.parsecache);
+    final File templateFile = cfg.cgltemplate;
+    final Expr loaded = CGLParser.loadTemplate(templateFile);
 
     // Determine the tables to process.
     List tables = dfnbase.getFromArgs(args);
     cfgvars.put("alltables", new MappedList(tables));
     cfgvars.put("allqueries", new MappedList(dfnbase.getQueriesFromArgs(args)));
     cfgvars.put("dependtables", new MappedList(dfnbase.getDependTables()));
-
-    for (Iterator i = tables.iterator(); i.hasNext();) {
-
-      // Load the table definition.
-      TableDef td = (TableDef) i.next();
-
-      // Create a blank CGL context.
-      Context ctx = new Context(basectx);
-      if (td.age > ctx.age) ctx.age = td.age;
-
-      // Construct a HashMap of the values from basectx.vars.
-      // This is theoretically equivalent to new HashMap(basectx.vars) but
-      // Classpath's HashMap constructor doesn't like Scopes much.
-      HashMap baseVars = new HashMap();
-      for (Iterator j = basectx.vars.entrySet().iterator(); j.hasNext();) {
-        Map.Entry e = (Map.Entry) j.next();
-        baseVars.put(e.getKey(), e.getValue());
+    dfnbase.resolveAll(tables);
+
+    // If there's a manifest, tables whose inputs are all as they were last
+    // time are skipped, and if there's an output cache, those it has the
+    // outputs for are put back from it instead of being generated.
+    ContentHash hashes = new ContentHash();
+    byte[] cfghash = cfg.manifest == null && cfg.outputcache == null ? null
+        : hashes.ofConfig(cfg, cfgvars);
+    final Manifest manifest = cfg.manifest == null ? null
+        : new Manifest(cfg, cfghash, hashes);
+    final OutputCache cache = cfg.outputcache == null ? null
+        : new OutputCache(cfg, templateFile, cfghash, hashes, tables);
+
+    // Tables are done in parallel if -j asked for more than one thread.
+    ParallelGen.run(tables, basectx, new ParallelGen.Step() {
+      Expr template = loaded;
+
+      void firstDone() {
+        // Nothing a table sets comes before the config's variables, so once
+        // the template has loaded what it imports it can be specialized for
+        // them.
+        template = Specializer.specialize(template, cfgvars, templateFile);
       }
-      ctx.vars = new Scope(td.toMap(), baseVars);
 
-      // Use the CGL expression created earlier to process the table.
-      template.evaluate(ctx);
+      boolean generate(Context base, Object item) throws FileLocatedException,
+          IOException {
+        // Load the table definition.
+        TableDef td = (TableDef) item;
+        if (ParallelGen.isLeftOut(td.dfnFile)) return false;
+        long forced = ParallelGen.getForcedAge(td.dfnFile);
+        String key = "table " + td.fullName;
+        if (forced == 0 && manifest != null
+            && manifest.isCurrent(key, td.dfnFile)) {
+          return false;
+        }
+        if (forced == 0 && cache != null) {
+          Collection restored = cache.restore(key, td.dfnFile, td);
+          if (restored != null) {
+            if (manifest != null) {
+              manifest.restored(key, td.dfnFile, cache.getInputFiles(),
+                  restored);
+            }
+            return false;
+          }
+        }
+
+        // Create a blank CGL context.
+        Context ctx = new Context(base);
+        if (td.age > ctx.age) ctx.age = td.age;
+        if (forced > ctx.age) ctx.age = forced;
+
+        // Construct a HashMap of the values from base.vars.
+        // This is theoretically equivalent to new HashMap(base.vars) but
+        // Classpath's HashMap constructor doesn't like Scopes much.
+        HashMap baseVars = new HashMap();
+        for (Iterator j = base.vars.entrySet().iterator(); j.hasNext();) {
+          Map.Entry e = (Map.Entry) j.next();
+          baseVars.put(e.getKey(), e.getValue());
+        }
+        ctx.vars = new Scope(td.toMap(), baseVars);
+
+        // Use the CGL expression created earlier to process the table.
+        if (manifest != null || cache != null) ctx.outputs = new ArrayList();
+        template.evaluate(ctx);
+        if (manifest != null) manifest.record(key, td.dfnFile, loaded, ctx);
+        if (cache != null) {
+          cache.publish(key, td.dfnFile, td, loaded, ctx);
+        }
+        return true;
+      }
+    });
+
+    // Keep the template timestamps worked out for next time.
+    CGLParser.saveCache();
+    if (manifest != null) {
+      manifest.save();
+      Output.println("CGL: " + manifest.getSkipped() + " of " + tables.size()
+          + " tables unchanged since the manifest was written.");
+    }
+    if (cache != null) {
+      cache.evict();
+      Output.println("CGL: Output cache: " + cache.getStats() + ".");
     }
   }
 }
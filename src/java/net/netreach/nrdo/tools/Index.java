@@ -36,6 +36,7 @@
 package net.netreach.nrdo.tools;
 
 // Collections classes used to implement the appropriate behavior.
+import java.io.Serializable;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -55,7 +56,8 @@ import net.netreach.util.Output;
  * 
  * @author Stuart Ballard &lt;sballard@netreach.net&gt;
  */
-public class Index extends AbstractList implements Mappable {
+public class Index extends AbstractList implements Mappable, Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
 
   List parts;
   int size = 0;
@@ -103,9 +105,9 @@ public class Index extends AbstractList implements Mappable {
     throw new IndexOutOfBoundsException();
   }
 
-  private Map asMap;
+  private transient Map asMap;
 
-  public Map toMap() {
+  public synchronized Map toMap() {
     if (asMap == null) {
       asMap = new HashMap();
       asMap.put("name", name);
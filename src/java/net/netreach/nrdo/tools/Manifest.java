@@ -0,0 +1,352 @@
+package net.netreach.nrdo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.netreach.cgl.CGLParser;
+import net.netreach.cgl.Context;
+import net.netreach.cgl.Expr;
+import net.netreach.util.FileLocatedException;
+
+/**
+ * A hash of what went into the code generated for each table or query, kept
+ * in the file the config names with 'manifest', so that the template needn't
+ * be run at all for one whose inputs are the same as last time, however their
+ * timestamps have changed. The inputs are the contents of its dfn file, of
+ * the config and the configs it takes defaults from, and of the template and
+ * everything it imports and evals, and the config's string, boolean and
+ * number variables but the date. The files the template output for it are
+ * recorded too, and it is only skipped if they are all still as they were
+ * left.
+ * <p>
+ * A file that more than one item outputs, such as a global file every table
+ * writes, is kept out of their entries, since regenerating any one of them
+ * would otherwise make all the others look out of date. Such files are
+ * recorded separately, as they were at the end of the run, and only when one
+ * has been changed or removed since are the items that write it generated
+ * again.
+ * <p>
+ * Like the timestamps it stands in for, this only covers the files that can
+ * be told apart before the template is run: changes to other tables that a
+ * table refers to are not noticed.
+ */
+final class Manifest {
+
+  private static final int MAGIC = 0x4e52444d; // "NRDM"
+  private static final int VERSION = 2;
+
+  private static final class Entry {
+    final byte[] hash;
+    final String[] inputs;
+    final String[] outputs;
+    final long[] lengths;
+    final long[] modified;
+    final String[] shared;
+
+    Entry(byte[] hash, String[] inputs, String[] outputs, long[] lengths,
+        long[] modified, String[] shared) {
+      this.hash = hash;
+      this.inputs = inputs;
+      this.outputs = outputs;
+      this.lengths = lengths;
+      this.modified = modified;
+      this.shared = shared;
+    }
+  }
+
+  private final File file;
+  private final Map entries = new HashMap();
+
+  /** The key of the item that output each file no other item has. */
+  private final Map owners = new HashMap();
+
+  /** The files output by more than one item. */
+  private final Set shared = new HashSet();
+
+  /** The shared files that were not as they had been left when loaded. */
+  private final Set stale = new HashSet();
+
+  private final ContentHash hashes;
+  private final byte[] base;
+  private String[] inputs = null;
+  private boolean changed = false;
+  private int skipped = 0;
+
+  /**
+   * Read the manifest for a config, whose hash and the hash of the variables
+   * its templates are run with is given.
+   */
+  Manifest(Config cfg, byte[] base, ContentHash hashes) {
+    file = cfg.manifest;
+    this.base = base;
+    this.hashes = hashes;
+    if (file.isFile()) load();
+  }
+
+  /**
+   * Whether the item can be skipped: its inputs hash the same as when it was
+   * recorded, and its outputs are all still there as they were.
+   */
+  synchronized boolean isCurrent(String key, File dfn) throws IOException {
+    Entry entry = (Entry) entries.get(key);
+    if (entry == null || dfn == null) return false;
+    for (int i = 0; i < entry.outputs.length; i++) {
+      File f = new File(entry.outputs[i]);
+      if (f.length() != entry.lengths[i]
+          || f.lastModified() != entry.modified[i]) {
+        return false;
+      }
+    }
+    for (int i = 0; i < entry.shared.length; i++) {
+      if (stale.contains(entry.shared[i])) return false;
+    }
+    for (int i = 0; i < entry.inputs.length; i++) {
+      if (!new File(entry.inputs[i]).isFile()) return false;
+    }
+    if (!Arrays.equals(hash(dfn, entry.inputs), entry.hash)) return false;
+    skipped++;
+    return true;
+  }
+
+  /**
+   * Record what went into an item just generated by running the template in
+   * the given context, and what came out, if it can all be told.
+   */
+  synchronized void record(String key, File dfn, Expr template, Context ctx)
+      throws IOException, FileLocatedException {
+    if (inputs == null) {
+      Collection files = CGLParser.getInputFiles(template, ctx);
+      if (files == null) return;
+      inputs = paths(files);
+    }
+    record(key, dfn, inputs, ctx.outputs);
+  }
+
+  /**
+   * Record an item whose outputs were put back from the output cache, given
+   * the files that went into them.
+   */
+  synchronized void restored(String key, File dfn, Collection inputFiles,
+      Collection outputs) throws IOException {
+    record(key, dfn, inputs != null ? inputs : paths(inputFiles), outputs);
+  }
+
+  private void record(String key, File dfn, String[] inputs,
+      Collection outputs) throws IOException {
+    if (dfn == null) return;
+    List paths = new ArrayList();
+    List sharedPaths = new ArrayList();
+    for (Iterator i = outputs.iterator(); i.hasNext();) {
+      String path = ((File) i.next()).getCanonicalPath();
+      if (paths.contains(path) || sharedPaths.contains(path)) continue;
+      Object owner = owners.get(path);
+      if (owner != null && !owner.equals(key)) share(path);
+      (shared.contains(path) ? sharedPaths : paths).add(path);
+    }
+    String[] names = (String[]) paths.toArray(new String[paths.size()]);
+    long[] lengths = new long[names.length];
+    long[] modified = new long[names.length];
+    for (int i = 0; i < names.length; i++) {
+      File f = new File(names[i]);
+      if (!f.isFile()) return;
+      lengths[i] = f.length();
+      modified[i] = f.lastModified();
+    }
+    Entry old = (Entry) entries.get(key);
+    if (old != null) {
+      for (int i = 0; i < old.outputs.length; i++) {
+        if (key.equals(owners.get(old.outputs[i]))) {
+          owners.remove(old.outputs[i]);
+        }
+      }
+    }
+    for (int i = 0; i < names.length; i++) {
+      owners.put(names[i], key);
+    }
+    entries.put(key, new Entry(hash(dfn, inputs), inputs, names, lengths,
+        modified, (String[]) sharedPaths.toArray(new String[sharedPaths
+            .size()])));
+    changed = true;
+  }
+
+  /**
+   * Move a file one item was recorded as the only one to output into the
+   * shared files, now that another item has output it too.
+   */
+  private void share(String path) {
+    String key = (String) owners.remove(path);
+    shared.add(path);
+    Entry entry = (Entry) entries.get(key);
+    List names = new ArrayList();
+    for (int i = 0; i < entry.outputs.length; i++) {
+      if (!entry.outputs[i].equals(path)) names.add(entry.outputs[i]);
+    }
+    long[] lengths = new long[names.size()];
+    long[] modified = new long[names.size()];
+    for (int i = 0, j = 0; i < entry.outputs.length; i++) {
+      if (entry.outputs[i].equals(path)) continue;
+      lengths[j] = entry.lengths[i];
+      modified[j++] = entry.modified[i];
+    }
+    String[] sharedPaths = new String[entry.shared.length + 1];
+    System.arraycopy(entry.shared, 0, sharedPaths, 0, entry.shared.length);
+    sharedPaths[entry.shared.length] = path;
+    entries.put(key, new Entry(entry.hash, entry.inputs, (String[]) names
+        .toArray(new String[names.size()]), lengths, modified, sharedPaths));
+  }
+
+  private static String[] paths(Collection files) {
+    String[] paths = new String[files.size()];
+    int n = 0;
+    for (Iterator i = files.iterator(); i.hasNext();) {
+      paths[n++] = ((File) i.next()).getPath();
+    }
+    Arrays.sort(paths);
+    return paths;
+  }
+
+  int getSkipped() {
+    return skipped;
+  }
+
+  private byte[] hash(File dfn, String[] inputs) throws IOException {
+    MessageDigest md = ContentHash.sha1();
+    md.update(base);
+    md.update(hashes.of(dfn));
+    for (int i = 0; i < inputs.length; i++) {
+      ContentHash.update(md, inputs[i]);
+      md.update(hashes.of(new File(inputs[i])));
+    }
+    return md.digest();
+  }
+
+  private void load() {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+        for (int n = in.readInt(); n > 0; n--) {
+          String key = in.readUTF();
+          byte[] hash = new byte[in.readInt()];
+          in.readFully(hash);
+          String[] inputs = new String[in.readInt()];
+          for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = in.readUTF();
+          }
+          String[] outputs = new String[in.readInt()];
+          long[] lengths = new long[outputs.length];
+          long[] modified = new long[outputs.length];
+          for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = in.readUTF();
+            lengths[i] = in.readLong();
+            modified[i] = in.readLong();
+            owners.put(outputs[i], key);
+          }
+          String[] sharedPaths = new String[in.readInt()];
+          for (int i = 0; i < sharedPaths.length; i++) {
+            sharedPaths[i] = in.readUTF();
+          }
+          entries.put(key, new Entry(hash, inputs, outputs, lengths,
+              modified, sharedPaths));
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+          String path = in.readUTF();
+          long length = in.readLong();
+          long modified = in.readLong();
+          shared.add(path);
+          File f = new File(path);
+          if (!f.isFile() || f.length() != length
+              || f.lastModified() != modified) {
+            stale.add(path);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // An unreadable manifest just means everything is generated again.
+      entries.clear();
+      owners.clear();
+      shared.clear();
+      stale.clear();
+    }
+  }
+
+  /**
+   * Write the manifest out, if anything was recorded since it was read.
+   */
+  synchronized void save() {
+    if (!changed) return;
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmp = null;
+    try {
+      dir.mkdirs();
+      tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        for (Iterator i = entries.entrySet().iterator(); i.hasNext();) {
+          Map.Entry e = (Map.Entry) i.next();
+          Entry entry = (Entry) e.getValue();
+          out.writeUTF((String) e.getKey());
+          out.writeInt(entry.hash.length);
+          out.write(entry.hash);
+          out.writeInt(entry.inputs.length);
+          for (int j = 0; j < entry.inputs.length; j++) {
+            out.writeUTF(entry.inputs[j]);
+          }
+          out.writeInt(entry.outputs.length);
+          for (int j = 0; j < entry.outputs.length; j++) {
+            out.writeUTF(entry.outputs[j]);
+            out.writeLong(entry.lengths[j]);
+            out.writeLong(entry.modified[j]);
+          }
+          out.writeInt(entry.shared.length);
+          for (int j = 0; j < entry.shared.length; j++) {
+            out.writeUTF(entry.shared[j]);
+          }
+        }
+        out.writeInt(shared.size());
+        for (Iterator i = shared.iterator(); i.hasNext();) {
+          String path = (String) i.next();
+          File f = new File(path);
+          out.writeUTF(path);
+          out.writeLong(f.length());
+          out.writeLong(f.lastModified());
+        }
+      } finally {
+        out.close();
+      }
+      file.delete();
+      if (tmp.renameTo(file)) {
+        tmp = null;
+        changed = false;
+      }
+    } catch (IOException e) {
+      // Failing to write it only means everything is generated again next
+      // time.
+    } finally {
+      if (tmp != null) tmp.delete();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package net.netreach.nrdo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.netreach.util.DefaultOutput;
+
+/**
+ * Run nrdo by way of a server started with "NRDOTool -server", with the same
+ * arguments as NRDOTool, printing what it sends back as NRDOTool would and
+ * exiting with its status. If no server can be reached the tool is run here
+ * instead. "-server=&lt;file&gt;" names the file the server wrote its port to,
+ * if it was given one, and "-stop" on its own stops the server.
+ */
+public class NRDOClient {
+
+  public static void main(String[] args) throws Throwable {
+    File portFile = NRDOServer.getPortFile("-server");
+
+    // The server runs elsewhere, so files are sent as absolute paths.
+    List request = new ArrayList();
+    boolean sawConfig = false;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith("-server=")) {
+        portFile = NRDOServer.getPortFile(arg);
+        continue;
+      } else if (arg.startsWith("-profile=")) {
+        arg = "-profile=" + new File(arg.substring(9)).getAbsolutePath();
+      } else if (!sawConfig && !arg.startsWith("-")) {
+        arg = new File(arg).getAbsolutePath();
+        sawConfig = true;
+      }
+      request.add(arg);
+    }
+    String[] requestArgs = (String[]) request.toArray(new String[request
+        .size()]);
+    boolean stop = requestArgs.length == 1
+        && NRDOServer.STOP.equals(requestArgs[0]);
+
+    Socket socket;
+    String token;
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(portFile));
+      String line;
+      try {
+        line = reader.readLine();
+      } finally {
+        reader.close();
+      }
+      int space = line.indexOf(' ');
+      token = line.substring(space + 1);
+      socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer
+          .parseInt(line.substring(0, space)));
+    } catch (Exception e) {
+      if (stop) {
+        System.err.println("nrdo: No server is running.");
+        System.exit(1);
+      }
+      NRDOTool.main(requestArgs);
+      return;
+    }
+
+    int status;
+    try {
+      status = send(socket, token, requestArgs);
+    } finally {
+      socket.close();
+    }
+    if (status != 0) System.exit(status);
+  }
+
+  /**
+   * Send a request and print what comes back, returning its exit status.
+   */
+  private static int send(Socket socket, String token, String[] args)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket
+        .getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        socket.getOutputStream()));
+    NRDOServer.writeString(out, token);
+    out.writeInt(args.length);
+    for (int i = 0; i < args.length; i++) {
+      NRDOServer.writeString(out, args[i]);
+    }
+    out.flush();
+
+    DefaultOutput console = new DefaultOutput();
+    try {
+      while (true) {
+        byte type = in.readByte();
+        if (type == NRDOServer.OUTPUT) {
+          console.println(NRDOServer.readString(in));
+        } else if (type == NRDOServer.ERROR) {
+          String loc = NRDOServer.readString(in);
+          if (loc != null) System.err.print(loc + ": ");
+          System.err.println(NRDOServer.readString(in));
+          System.err.flush();
+        } else if (type == NRDOServer.PROMPT) {
+          String prompt = NRDOServer.readString(in);
+          out.writeBoolean(console.prompt(prompt, NRDOServer.readString(in)));
+          out.flush();
+        } else if (type == NRDOServer.PROGRESS || type == NRDOServer.TOTAL) {
+          // The console doesn't show progress.
+          in.readInt();
+        } else if (type == NRDOServer.EXIT) {
+          return in.readInt();
+        } else {
+          throw new IOException("Unexpected message from nrdo server");
+        }
+      }
+    } catch (EOFException e) {
+      System.err.println("nrdo: The server went away before finishing.");
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package net.netreach.nrdo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import net.netreach.util.CVSDir;
+import net.netreach.util.DefaultOutput;
+import net.netreach.util.FileLocation;
+import net.netreach.util.Output;
+import net.netreach.util.OutputProvider;
+
+/**
+ * Keeps nrdo running between builds, so that each one doesn't start a new VM
+ * and load everything again: NRDOClient sends it the command line NRDOTool
+ * would have been given, and gets back everything printed, reported and
+ * prompted for, the progress, and whether it succeeded. Requests are done one
+ * at a time, each after an NRDOTool.reset() as the build task does, so
+ * configs are read afresh; what is kept is what can be checked against the
+ * files it came from: templates and exports (by FileCache), parsed dfn and qu
+ * files (by DfnBase.setRetainParses), and scanned CVS directories (by
+ * CVSDir.retain()), each used again only if its files' sizes and
+ * modification times are what they were.
+ * <p>
+ * The server listens on the loopback interface only, on a port of its own
+ * choosing, which it writes with a random token to a file readable only by
+ * its owner: by default .nrdo-server in the user's home directory, or the one
+ * given with -server=&lt;file&gt;. A client must send the token first.
+ */
+final class NRDOServer {
+
+  // What the server sends the client: each is followed by its strings or
+  // numbers, and PROMPT is answered with a boolean.
+  static final byte OUTPUT = 'O';
+  static final byte ERROR = 'E';
+  static final byte PROGRESS = 'P';
+  static final byte TOTAL = 'T';
+  static final byte PROMPT = 'Q';
+  static final byte EXIT = 'X';
+
+  /** The only argument of a request that stops the server. */
+  static final String STOP = "-stop";
+
+  private NRDOServer() {
+  }
+
+  /**
+   * The file the port and token are written to, given "-server" or
+   * "-server=&lt;file&gt;".
+   */
+  static File getPortFile(String arg) {
+    int eq = arg.indexOf('=');
+    return eq < 0 ? new File(System.getProperty("user.home"), ".nrdo-server")
+        : new File(arg.substring(eq + 1));
+  }
+
+  static void serve(File portFile) throws IOException {
+    ServerSocket server = new ServerSocket(0, 50, InetAddress
+        .getByName("127.0.0.1"));
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    String token = ContentHash.hex(random);
+    DfnBase.setRetainParses(true);
+    try {
+      writePortFile(portFile, server.getLocalPort(), token);
+      Output.println("nrdo: Server listening on port " + server.getLocalPort()
+          + ".");
+      boolean running = true;
+      while (running) {
+        Socket socket = server.accept();
+        try {
+          running = handle(socket, token);
+        } catch (IOException e) {
+          // The client went away; the next one is unaffected.
+        } finally {
+          socket.close();
+        }
+      }
+    } finally {
+      server.close();
+      portFile.delete();
+    }
+  }
+
+  private static void writePortFile(File portFile, int port, String token)
+      throws IOException {
+    portFile.delete();
+    portFile.createNewFile();
+    portFile.setReadable(false, false);
+    portFile.setReadable(true, true);
+    portFile.setWritable(false, false);
+    portFile.setWritable(true, true);
+    PrintWriter pw = new PrintWriter(new FileWriter(portFile));
+    pw.println(port + " " + token);
+    pw.close();
+  }
+
+  /**
+   * Do one client's request. Returns false if it asked the server to stop.
+   */
+  private static boolean handle(Socket socket, String token)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket
+        .getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        socket.getOutputStream()));
+    String sent = readString(in);
+    if (sent == null
+        || !MessageDigest.isEqual(token.getBytes("UTF-8"), sent
+            .getBytes("UTF-8"))) {
+      return true;
+    }
+    String[] args = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = readString(in);
+    }
+    if (args.length == 1 && STOP.equals(args[0])) {
+      out.writeByte(EXIT);
+      out.writeInt(0);
+      out.flush();
+      return false;
+    }
+
+    NRDOTool.reset();
+    ClientOutput client = new ClientOutput(in, out);
+    Output.addOutputProvider(client, true);
+    Output.setPromptProvider(client);
+    boolean ok;
+    try {
+      ok = NRDOTool.run(args);
+    } catch (Throwable t) {
+      Output.reportException(t);
+      ok = false;
+    }
+    CVSDir.retain();
+    client.exit(ok ? 0 : 1);
+    return true;
+  }
+
+  /**
+   * Sends what a request prints, reports and prompts for to its client. It is
+   * a DefaultOutput so that a config's promptcmd replaces it, as it would the
+   * console.
+   */
+  private static class ClientOutput extends DefaultOutput implements
+      OutputProvider {
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /** Set once the client has gone, after which nothing more is sent. */
+    private boolean gone = false;
+
+    ClientOutput(DataInputStream in, DataOutputStream out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    public synchronized void println(String str) {
+      if (gone) return;
+      try {
+        out.writeByte(OUTPUT);
+        writeString(out, str);
+        out.flush();
+      } catch (IOException e) {
+        gone = true;
+      }
+    }
+
+    public synchronized void reportError(FileLocation loc, String message) {
+      if (gone) return;
+      try {
+        out.writeByte(ERROR);
+        writeString(out, loc == null ? null : loc.toString());
+        writeString(out, message);
+        out.flush();
+      } catch (IOException e) {
+        gone = true;
+      }
+    }
+
+    public synchronized boolean prompt(String prompt, String question) {
+      if (gone) return false;
+      try {
+        out.writeByte(PROMPT);
+        writeString(out, prompt);
+        writeString(out, question);
+        out.flush();
+        return in.readBoolean();
+      } catch (IOException e) {
+        gone = true;
+        return false;
+      }
+    }
+
+    public void setCurrentProgress(int currentProgress) {
+      send(PROGRESS, currentProgress);
+    }
+
+    public void setTotalProgress(int totalProgress) {
+      send(TOTAL, totalProgress);
+    }
+
+    void exit(int status) {
+      send(EXIT, status);
+    }
+
+    private synchronized void send(byte type, int value) {
+      if (gone) return;
+      try {
+        out.writeByte(type);
+        out.writeInt(value);
+        out.flush();
+      } catch (IOException e) {
+        gone = true;
+      }
+    }
+  }
+
+  /**
+   * Write a string that may be null, and may be longer than writeUTF allows.
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -36,14 +36,17 @@
 package net.netreach.nrdo.tools;
 
 // Various miscellaneous classes used...
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.TreeSet;
 
 import net.netreach.cgl.CGLParser;
+import net.netreach.cgl.Profiler;
 import net.netreach.util.CVSDir;
 import net.netreach.util.Output;
 import net.netreach.util.PathUtil;
@@ -62,15 +65,35 @@ public class NRDOTool {
    */
   public static void main(String[] args) throws Throwable {
 
+    // "-server" stays running, doing what NRDOClient sends it.
+    if (args.length > 0 && args[0].startsWith("-server")) {
+      NRDOServer.serve(NRDOServer.getPortFile(args[0]));
+      return;
+    }
+
+    // "-watch" runs again each time something it read changes.
+    ArrayList argList = new ArrayList(Arrays.asList(args));
+    if (argList.remove("-watch")) {
+      Watcher.watch((String[]) argList.toArray(new String[argList.size()]));
+      return;
+    }
+
     // Test for bad arguments and throw out a usage message.
     if (args.length < 1) {
       Output.reportError(null, "Usage: NRDOTool <config> [<table> ...]");
       System.exit(1);
     }
 
-    // Trap the special args "-gen" and "-create" but pass all other args
-    // through
-    // to the underlying programs.
+    if (!run(args)) System.exit(1);
+  }
+
+  /**
+   * Do what the command line asks, apart from -server.
+   */
+  static boolean run(String[] args) throws Throwable {
+
+    // Trap the special args "-gen", "-create", "-j", "-interpret" and
+    // "-profile" but pass all other args through to the underlying programs.
     boolean gencode = true;
     boolean createtables = true;
     ArrayList processedArgs = new ArrayList();
@@ -79,17 +102,39 @@ public class NRDOTool {
         createtables = false;
       } else if ("-create".equals(args[i])) {
         gencode = false;
+      } else if (args[i].startsWith("-j")) {
+        // -j<n> resolves all tables up front and generates code on n
+        // threads; plain -j uses one per processor.
+        int threads = args[i].length() > 2 ? Integer.parseInt(args[i]
+            .substring(2)) : Runtime.getRuntime().availableProcessors();
+        DfnBase.setResolveThreads(threads);
+        ParallelGen.setThreads(threads);
+      } else if ("-interpret".equals(args[i])) {
+        // Run templates in the CGL interpreter rather than compiling them.
+        CGLParser.setCompile(false);
+      } else if (args[i].startsWith("-profile")) {
+        // Profile the templates, reporting the time spent in them at the end;
+        // -profile=<file> also writes collapsed stacks for a flame graph.
+        CGLParser.setProfile(true);
+        if (args[i].startsWith("-profile=")) {
+          profileStacks = new File(args[i].substring(9));
+        }
       } else {
         processedArgs.add(args[i]);
       }
     }
+    if (processedArgs.isEmpty()) {
+      Output.reportError(null, "Usage: NRDOTool <config> [<table> ...]");
+      return false;
+    }
     args = (String[]) processedArgs.subList(1, processedArgs.size()).toArray(new String[processedArgs.size() - 1]);
     
-    if (!doMain((String) processedArgs.get(0), gencode, createtables, false, args)) {
-      System.exit(1);
-    }
+    return doMain((String) processedArgs.get(0), gencode, createtables, false, args);
   }
 
+  /** Where -profile=<file> asked for the profile stacks to be written. */
+  private static File profileStacks = null;
+
   public static boolean doMain(String configPath, boolean gencode,
       boolean createtables, boolean dropTables, String[] tables) throws Throwable {
 
@@ -105,6 +150,13 @@ public class NRDOTool {
         Output.println("nrdo: Processing" + configPath + "...");
       }
 
+      // Profile the templates if the config asks for it.
+      if (cfg.profile != null) CGLParser.setProfile(true);
+
+      // Pick up what can still be used from the last run's tables, if the
+      // config asks for it by having a parsecache.
+      Snapshot.load(cfg);
+
       // Do the main processing of both tools.
       if (gencode) {
         if (cfg.nocode) {
@@ -125,6 +177,10 @@ public class NRDOTool {
           GenQueryCode.doMain(cfg, tables);
           Output.println("Generating table code using CGL...");
           GenTableCode.doMain(cfg, tables);
+          if (Profiler.isEnabled()) {
+            Output.println("CGL: Uses of declares: "
+                + CGLParser.getUseStats() + ".");
+          }
         }
       }
       if (createtables) {
@@ -149,6 +205,11 @@ public class NRDOTool {
         pw.close();
         Output.println("Stamp file written.");
       }
+      Snapshot.save(cfg);
+
+      if (Profiler.isEnabled()) {
+        Profiler.report(profileStacks != null ? profileStacks : cfg.profile);
+      }
     } catch (Exception e) {
       Output.reportException(e);
       return false;
@@ -162,6 +223,10 @@ public class NRDOTool {
     CGLParser.reset();
     Config.reset();
     CVSDir.reset();
+    DfnBase.setResolveThreads(0);
+    ParallelGen.setThreads(0);
+    ParallelGen.setOnly(null);
+    profileStacks = null;
   }
 
   private static void addTouchedFiles(TreeSet touchedFiles, Config cfg)
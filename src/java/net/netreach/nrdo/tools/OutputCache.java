@@ -0,0 +1,432 @@
+package net.netreach.nrdo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.netreach.cgl.CGLParser;
+import net.netreach.cgl.Context;
+import net.netreach.cgl.Expr;
+import net.netreach.util.FileLocatedException;
+import net.netreach.util.Output;
+
+/**
+ * The code generated for tables and queries, kept in the directory the config
+ * names with 'outputcache' by a hash of what went into it, so that any
+ * checkout of the same sources can put it back instead of running the
+ * template. What goes into it is what Manifest hashes, except that files are
+ * named relative to the template's directory, and outputs relative to the
+ * srcbase, so that it's the same wherever the checkout is.
+ * <p>
+ * Unlike the manifest, which only has to be as good as the timestamps it
+ * stands in for, an entry can be put back into a checkout where other tables
+ * are different, so what an item's code depends on outside its own dfn goes
+ * into the hash too: the dfn files of every table a table links to, directly
+ * or through the tables those link to, and the names of all the tables the
+ * template is given. Each table the links reach is resolved first, so that
+ * they are the same whether or not the template has run yet.
+ * <p>
+ * Which files a template imports and evals can only be told once it has run,
+ * so the list of them found for a template is kept in the cache too, under
+ * the hash of the config and the template, for the next run to start with.
+ * Entries are written to a temporary file and renamed into place, so that
+ * runs sharing the directory never see half of one. Entries are touched when
+ * they are used, and if a size is given with 'outputcache' the ones used
+ * least recently are removed at the end of a run until the rest fit.
+ */
+final class OutputCache {
+
+  private static final int MAGIC = 0x4e52444f; // "NRDO"
+  private static final int RECIPE_MAGIC = 0x4e524452; // "NRDR"
+  private static final int VERSION = 1;
+
+  private final File dir;
+  private final long maxSize;
+  private final File srcbase;
+  private final File templateDir;
+  private final File recipe;
+  private final ContentHash hashes;
+  private final byte[] base;
+
+  /** The files the template depends on, relative to its directory. */
+  private String[] inputs = null;
+  private boolean inputsFound = false;
+
+  private int hits = 0;
+  private int misses = 0;
+  private int stored = 0;
+  private int evicted = 0;
+
+  /**
+   * An output cache for a config and template, whose hash and the hash of the
+   * variables it is run with is given, and the tables the template is given
+   * as 'alltables'.
+   */
+  OutputCache(Config cfg, File template, byte[] base, ContentHash hashes,
+      List tables) throws IOException {
+    dir = cfg.outputcache;
+    maxSize = cfg.outputcachesize;
+    srcbase = cfg.srcbase.getCanonicalFile();
+    templateDir = template.getCanonicalFile().getParentFile();
+    this.hashes = hashes;
+
+    MessageDigest md = ContentHash.sha1();
+    md.update(base);
+    md.update(hashes.of(template));
+    Set names = new TreeSet();
+    for (Iterator i = tables.iterator(); i.hasNext();) {
+      names.add(((TableDef) i.next()).fullName);
+    }
+    for (Iterator i = cfg.dfnbase.getDependTables().iterator(); i.hasNext();) {
+      names.add(((DependTable) i.next()).getFullName());
+    }
+    ContentHash.update(md, names.toString());
+    this.base = md.digest();
+    recipe = new File(new File(dir, "recipes"), ContentHash.hex(this.base));
+    if (recipe.isFile()) loadRecipe();
+  }
+
+  /**
+   * Put back the outputs cached for an item with the inputs it has now, if
+   * there are any, and return them; or return null if it must be generated.
+   * The table is given if the item is one.
+   */
+  synchronized Collection restore(String key, File dfn, TableDef td) {
+    if (inputs == null || dfn == null) {
+      misses++;
+      return null;
+    }
+    File entry;
+    List files = new ArrayList();
+    try {
+      entry = entry(key, dfn, hashLinks(td));
+      if (!entry.isFile()) {
+        misses++;
+        return null;
+      }
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(entry)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          misses++;
+          return null;
+        }
+        List contents = new ArrayList();
+        for (int n = in.readInt(); n > 0; n--) {
+          files.add(in.readUTF());
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          contents.add(bytes);
+        }
+        for (int i = 0; i < files.size(); i++) {
+          String name = (String) files.get(i);
+          File f = new File(srcbase, name.replace('/', File.separatorChar));
+          byte[] bytes = (byte[]) contents.get(i);
+          if (!f.isFile() || f.length() != bytes.length
+              || !Arrays.equals(ContentHash.contents(f), bytes)) {
+            Output.println("Restoring " + name + " from the output cache.");
+            f.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(f);
+            try {
+              out.write(bytes);
+            } finally {
+              out.close();
+            }
+          }
+          files.set(i, f);
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // An input that's gone, or an entry that's unreadable or removed while
+      // it was read, just means the item is generated.
+      misses++;
+      return null;
+    } catch (FileLocatedException e) {
+      // So does a linked table that can't be resolved; generating the item
+      // will report it if it matters.
+      misses++;
+      return null;
+    }
+    entry.setLastModified(System.currentTimeMillis());
+    hits++;
+    return files;
+  }
+
+  /**
+   * The files the template depends on, as used for the last restore().
+   */
+  synchronized Collection getInputFiles() {
+    List files = new ArrayList();
+    for (int i = 0; i < inputs.length; i++) files.add(input(inputs[i]));
+    return files;
+  }
+
+  /**
+   * Store the outputs of an item just generated by running the template in
+   * the given context, if what went into them can all be told. The table is
+   * given if the item is one.
+   */
+  synchronized void publish(String key, File dfn, TableDef td, Expr template,
+      Context ctx) throws IOException, FileLocatedException {
+    if (!inputsFound) {
+      Collection files = CGLParser.getInputFiles(template, ctx);
+      if (files == null) return;
+      String[] found = new String[files.size()];
+      int n = 0;
+      for (Iterator i = files.iterator(); i.hasNext();) {
+        File f = (File) i.next();
+        found[n++] = relative(templateDir, f, f.getCanonicalPath());
+      }
+      Arrays.sort(found);
+      inputsFound = true;
+      if (inputs == null || !Arrays.equals(inputs, found)) {
+        inputs = found;
+        saveRecipe();
+      }
+    }
+    if (dfn == null) return;
+
+    List names = new ArrayList();
+    List files = new ArrayList();
+    for (Iterator i = ctx.outputs.iterator(); i.hasNext();) {
+      File f = ((File) i.next()).getCanonicalFile();
+      String name = relative(srcbase, f, null);
+      if (name == null || !f.isFile()) return;
+      if (!names.contains(name)) {
+        names.add(name);
+        files.add(f);
+      }
+    }
+
+    byte[] links;
+    try {
+      links = hashLinks(td);
+    } catch (FileLocatedException e) {
+      return;
+    }
+    File entry = entry(key, dfn, links);
+    if (entry.isFile()) {
+      entry.setLastModified(System.currentTimeMillis());
+      return;
+    }
+    File tmp = null;
+    try {
+      entry.getParentFile().mkdirs();
+      tmp = File.createTempFile(entry.getName(), ".tmp",
+          entry.getParentFile());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+          byte[] bytes = ContentHash.contents((File) files.get(i));
+          out.writeUTF((String) names.get(i));
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      } finally {
+        out.close();
+      }
+      // If another run published the same entry first, keep that one.
+      if (tmp.renameTo(entry)) {
+        tmp = null;
+        stored++;
+      }
+    } finally {
+      if (tmp != null) tmp.delete();
+    }
+  }
+
+  /**
+   * The file the entry for an item with the inputs it has now is kept in,
+   * given the hash of the tables it links to if it is a table.
+   */
+  private File entry(String key, File dfn, byte[] links) throws IOException {
+    MessageDigest md = ContentHash.sha1();
+    md.update(base);
+    ContentHash.update(md, key);
+    md.update(hashes.of(dfn));
+    if (links != null) md.update(links);
+    for (int i = 0; i < inputs.length; i++) {
+      ContentHash.update(md, inputs[i]);
+      md.update(hashes.of(input(inputs[i])));
+    }
+    String hex = ContentHash.hex(md.digest());
+    return new File(new File(dir, hex.substring(0, 2)), hex.substring(2));
+  }
+
+  /**
+   * The hash of the names and dfn files of every table a table links to,
+   * directly or through others, resolving each one; or null if there is no
+   * table.
+   */
+  private byte[] hashLinks(TableDef td) throws IOException,
+      FileLocatedException {
+    if (td == null) return null;
+    Set seen = new HashSet();
+    List todo = new ArrayList();
+    Map files = new TreeMap();
+    seen.add(td);
+    todo.add(td);
+    for (int i = 0; i < todo.size(); i++) {
+      TableDef linker = (TableDef) todo.get(i);
+      linker.resolveRefs();
+      Set links = new HashSet();
+      linker.addLinkedTables(links);
+      for (Iterator j = links.iterator(); j.hasNext();) {
+        TableDef link = (TableDef) j.next();
+        if (link != null && seen.add(link)) {
+          todo.add(link);
+          files.put(link.fullName, link.dfnFile);
+        }
+      }
+    }
+    MessageDigest md = ContentHash.sha1();
+    for (Iterator i = files.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      ContentHash.update(md, (String) e.getKey());
+      md.update(hashes.of((File) e.getValue()));
+    }
+    return md.digest();
+  }
+
+  private File input(String name) {
+    File f = new File(name.replace('/', File.separatorChar));
+    return f.isAbsolute() ? f : new File(templateDir, f.getPath());
+  }
+
+  /**
+   * The path of a file relative to a directory, with / between the names, or
+   * the given default if it isn't inside it.
+   */
+  private static String relative(File dir, File f, String dflt)
+      throws IOException {
+    String prefix = dir.getPath() + File.separator;
+    String path = f.getCanonicalPath();
+    if (!path.startsWith(prefix)) return dflt;
+    return path.substring(prefix.length()).replace(File.separatorChar, '/');
+  }
+
+  private void loadRecipe() {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(recipe)));
+      try {
+        if (in.readInt() != RECIPE_MAGIC || in.readInt() != VERSION) return;
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+          names[i] = in.readUTF();
+        }
+        inputs = names;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // Without it, nothing can be restored until the template has run.
+    }
+  }
+
+  private void saveRecipe() {
+    File tmp = null;
+    try {
+      recipe.getParentFile().mkdirs();
+      tmp = File.createTempFile(recipe.getName(), ".tmp",
+          recipe.getParentFile());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(RECIPE_MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(inputs.length);
+        for (int i = 0; i < inputs.length; i++) {
+          out.writeUTF(inputs[i]);
+        }
+      } finally {
+        out.close();
+      }
+      recipe.delete();
+      if (tmp.renameTo(recipe)) tmp = null;
+    } catch (IOException e) {
+      // Failing to write it only means the next run can't restore anything
+      // until its template has run.
+    } finally {
+      if (tmp != null) tmp.delete();
+    }
+  }
+
+  /**
+   * Remove the entries used least recently until the rest fit in the size
+   * given for the cache, if one was.
+   */
+  synchronized void evict() {
+    if (maxSize <= 0) return;
+    List entries = new ArrayList();
+    long total = 0;
+    File[] subdirs = dir.listFiles();
+    for (int i = 0; subdirs != null && i < subdirs.length; i++) {
+      if (subdirs[i].getName().length() != 2) continue;
+      File[] files = subdirs[i].listFiles();
+      for (int j = 0; files != null && j < files.length; j++) {
+        if (files[j].getName().endsWith(".tmp")) continue;
+        entries.add(files[j]);
+        total += files[j].length();
+      }
+    }
+    if (total <= maxSize) return;
+
+    // The times are read once, since other runs may touch entries meanwhile.
+    final long[] times = new long[entries.size()];
+    Integer[] order = new Integer[entries.size()];
+    for (int i = 0; i < times.length; i++) {
+      times[i] = ((File) entries.get(i)).lastModified();
+      order[i] = new Integer(i);
+    }
+    List sorted = Arrays.asList(order);
+    Collections.sort(sorted, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        long t1 = times[((Integer) o1).intValue()];
+        long t2 = times[((Integer) o2).intValue()];
+        return t1 < t2 ? -1 : t1 > t2 ? 1 : 0;
+      }
+    });
+    for (Iterator i = sorted.iterator(); i.hasNext() && total > maxSize;) {
+      File f = (File) entries.get(((Integer) i.next()).intValue());
+      long length = f.length();
+      if (f.delete()) {
+        total -= length;
+        evicted++;
+      }
+    }
+  }
+
+  /**
+   * A line for the log saying how the cache was used this run.
+   */
+  synchronized String getStats() {
+    return hits + " restored, " + misses + " not found, " + stored
+        + " stored, " + evicted + " evicted";
+  }
+}
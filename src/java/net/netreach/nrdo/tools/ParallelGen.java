@@ -0,0 +1,171 @@
+package net.netreach.nrdo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import net.netreach.cgl.Context;
+import net.netreach.util.FileLocatedException;
+import net.netreach.util.Output;
+import net.netreach.util.OutputBuffer;
+import net.netreach.util.PathUtil;
+
+/**
+ * Runs a codegen step for each of a list of tables or queries, one after
+ * another, or on a pool of threads if setThreads has been given more than
+ * one. In parallel, the first item is still done first and on its own, since
+ * it is the one that loads the templates and writes whatever files all the
+ * items share; items before it that are skipped don't count. The rest each
+ * get a context of their own, and what they log is held back and printed in
+ * list order, so that the log and the generated files come out the same as
+ * they would in sequence.
+ */
+class ParallelGen {
+  private static int threads = 0;
+
+  /**
+   * Set the number of threads codegen uses. Zero or one means tables and
+   * queries are done one at a time.
+   */
+  public static void setThreads(int threads) {
+    ParallelGen.threads = threads;
+  }
+
+  static boolean isParallel() {
+    return threads > 1;
+  }
+
+  /**
+   * The canonical paths of the dfn and qu files of the only tables and
+   * queries to generate, if setOnly has limited them, each mapped to a Long
+   * time to treat the item as being at least as new as, because a table it
+   * links to changed then, or to zero; null if all are generated.
+   */
+  private static Map only = null;
+
+  /**
+   * Generate only the tables and queries whose files are in the map, as
+   * described for 'only', or all of them if it is null.
+   */
+  static void setOnly(Map only) {
+    ParallelGen.only = only;
+  }
+
+  /**
+   * Whether the item from the given file is left out by setOnly.
+   */
+  static boolean isLeftOut(File dfn) throws IOException {
+    return only != null && !only.containsKey(PathUtil.canonicalPath(dfn));
+  }
+
+  /**
+   * The time setOnly gave for the item from the given file to be treated as
+   * being at least as new as, or zero. An item given one must be run through
+   * its template, since what changed isn't one of its own inputs.
+   */
+  static long getForcedAge(File dfn) throws IOException {
+    Long age = only == null ? null : (Long) only.get(PathUtil
+        .canonicalPath(dfn));
+    return age == null ? 0 : age.longValue();
+  }
+
+  static abstract class Step {
+    /**
+     * Generate the code for one item, in a context made from base. Returns
+     * false if the item was skipped without running the template.
+     */
+    abstract boolean generate(Context base, Object item)
+        throws FileLocatedException, IOException;
+
+    /**
+     * Called once the first item that isn't skipped is done, before any of
+     * the others are started; by then whatever it loaded is loaded for the
+     * rest.
+     */
+    void firstDone() {
+    }
+  }
+
+  /**
+   * What a step logged for one item, and how it failed, if it did.
+   */
+  private static class Result {
+    final OutputBuffer output = new OutputBuffer();
+    Throwable failure;
+  }
+
+  static void run(List items, final Context basectx, final Step step)
+      throws FileLocatedException, IOException {
+    int first = 0;
+    while (first < items.size() && !step.generate(basectx, items.get(first))) {
+      first++;
+    }
+    if (first == items.size()) return;
+    step.firstDone();
+
+    if (threads <= 1 || items.size() - first < 2) {
+      for (int i = first + 1; i < items.size(); i++) {
+        step.generate(basectx, items.get(i));
+      }
+      return;
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List futures = new ArrayList();
+      for (int i = first + 1; i < items.size(); i++) {
+        final Object item = items.get(i);
+        final Context base = Context.forThread(basectx);
+        futures.add(pool.submit(new Callable() {
+          public Object call() {
+            Result result = new Result();
+            Output.setThreadOutput(result.output);
+            try {
+              step.generate(base, item);
+            } catch (Throwable t) {
+              result.failure = t;
+            } finally {
+              Output.setThreadOutput(null);
+            }
+            return result;
+          }
+        }));
+      }
+
+      // Stop at the first failing item in list order, as a sequential run
+      // would, without printing anything from the items after it.
+      for (Iterator i = futures.iterator(); i.hasNext();) {
+        Result result;
+        try {
+          result = (Result) ((Future) i.next()).get();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+        result.output.replay();
+        Throwable failure = result.failure;
+        if (failure instanceof FileLocatedException) {
+          throw (FileLocatedException) failure;
+        } else if (failure instanceof IOException) {
+          throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+          throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+          throw (Error) failure;
+        } else if (failure != null) {
+          throw new RuntimeException(failure);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -38,6 +38,8 @@ package net.netreach.nrdo.tools;
 // Collections classes used to implement the appropriate behavior.
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -48,11 +50,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import net.netreach.cgl.CGLParser;
 import net.netreach.cgl.CGLRuntimeException;
 import net.netreach.cgl.Context;
 import net.netreach.cgl.Definition;
-import net.netreach.cgl.Expr;
+import net.netreach.nrdo.tools.dfn.RawBefore;
+import net.netreach.nrdo.tools.dfn.RawCgl;
+import net.netreach.nrdo.tools.dfn.RawParam;
+import net.netreach.nrdo.tools.dfn.RawQuery;
 import net.netreach.smelt.ParseException;
 import net.netreach.smelt.SmeltReader;
 import net.netreach.util.FileLocatedException;
@@ -66,7 +70,8 @@ import net.netreach.util.Output;
  * 
  * @author Stuart Ballard &lt;sballard@netreach.net&gt;
  */
-public class QueryDef implements Mappable, Comparable {
+public class QueryDef implements Mappable, Comparable, Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
 
   String fullName;
   String name;
@@ -86,13 +91,16 @@ public class QueryDef implements Mappable, Comparable {
   DfnBase dfnbase;
   long age;
   Map beforeStmts = new HashMap();
-  Definition extra;
+  transient Definition extra;
+  RawCgl extraSource;
 
   public int compareTo(Object o) {
     return fullName.compareTo(((TableDef) o).fullName);
   }
 
-  public static class Field implements Mappable {
+  public static class Field implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public String name;
     public String javaType;
     public String description;
@@ -108,9 +116,9 @@ public class QueryDef implements Mappable, Comparable {
       this.nullable = nullable;
     }
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.put("type", javaType);
@@ -129,6 +137,8 @@ public class QueryDef implements Mappable, Comparable {
   }
 
   static class SQLParam extends Util.SQLParam {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     Field field;
 
     SQLParam(Field field, String sqlbefore) {
@@ -136,7 +146,7 @@ public class QueryDef implements Mappable, Comparable {
       this.field = field;
     }
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         super.toMap();
         if (field == null) {
@@ -166,6 +176,12 @@ public class QueryDef implements Mappable, Comparable {
   private boolean resolved = false;
   public final File dfnFile;
 
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    extra = Snapshot.getDefinition(extraSource);
+  }
+
   public void resolve() throws FileLocatedException, IOException {
     resolve(null);
   }
@@ -178,180 +194,79 @@ public class QueryDef implements Mappable, Comparable {
     Output.println("Loading query " + fullName + whystr);
 
     // Load the definition file.
-    SmeltReader sr = new SmeltReader(dfnFile);
-    sr.readToken();
-
-    sr.skipToken("query");
-
-    String resultType = sr.checkString();
-    if ("multi".equals(resultType)) {
-      multi = true;
-    } else if ("void".equals(resultType)) {
-      isVoid = true;
-    } else if (!"single".equals(resultType)) {
-      throw new ParseException(sr, "Expected 'single', 'multi' or 'void', "
-          + "found " + sr.lastToString());
+    RawQuery raw = dfnbase.parseQuery(dfnFile);
+    if (!fullName.equals(raw.fullName)) {
+      throw new ParseException(raw.fullNameLoc, "Expected "
+          + SmeltReader.toString(fullName) + ", found "
+          + SmeltReader.toString(raw.fullName));
+    }
+    multi = raw.multi;
+    isVoid = raw.isVoid;
+    description = raw.description;
+    longDesc = raw.longDesc;
+    rawSQL = raw.sql;
+    params = new ArrayList();
+    for (Iterator i = raw.params.iterator(); i.hasNext();) {
+      Field f = newField((RawParam) i.next());
+      params.add(f);
+      paramsByName.put(f.name, f);
+    }
+    results = new ArrayList();
+    for (Iterator i = raw.results.iterator(); i.hasNext();) {
+      results.add(newField((RawParam) i.next()));
     }
-    sr.skipToken(resultType);
-    sr.skipToken(fullName);
-
-    sr.skipSOB();
-    while (!sr.wasEOB()) {
-      sr.checkString();
-      if (sr.wasToken("description")) {
-        if (description != null) {
-          throw new ParseException(sr, "'description' set twice");
-        }
-        sr.skipString();
-        description = sr.skipString();
-      } else if (sr.wasToken("longdesc")) {
-        if (longDesc != null) {
-          throw new ParseException(sr, "'longdesc' set twice");
-        }
-        sr.skipString();
-        longDesc = sr.skipString();
-      } else if (sr.wasToken("sql")) {
-        if (rawSQL != null) {
-          throw new ParseException(sr, "'sql' set twice");
-        }
-        sr.skipString();
-        rawSQL = sr.skipString();
-      } else if (sr.wasToken("params")) {
-        if (params != null) {
-          throw new ParseException(sr, "'params' set twice");
-        }
-        params = new ArrayList();
-        sr.skipString();
-        sr.skipSOB();
-        while (!sr.wasEOB()) {
-          Field f = parseParam(sr);
-          params.add(f);
-          paramsByName.put(f.name, f);
-        }
-        sr.skipEOB();
-
-      } else if (sr.wasToken("results")) {
-        if (results != null) {
-          throw new ParseException(sr, "'results' set twice");
-        }
-        if (isVoid) {
-          throw new ParseException(sr, "Void query cannot specify results");
-        }
-        results = new ArrayList();
-        sr.skipString();
-        sr.skipSOB();
-        while (!sr.wasEOB()) {
-          Field f = parseParam(sr);
-          results.add(f);
-        }
-        sr.skipEOB();
-
-      } else if (sr.wasToken("storedproc")) {
-        if (storedproc) {
-          throw new ParseException(sr, "'storedproc' set twice");
-        }
-        sr.skipToken("storedproc");
-        if (!dfnbase.cfg.hacknobefore) storedproc = true; // Unclear whether the !hacknobefore check here is deliberate or a bug
-
-      } else if (sr.wasToken("storedfunction")) {
-        if (storedfunction) {
-          throw new ParseException(sr, "'storedfunction' set twice");
-        }
-        if (multi || isVoid) {
-          throw new ParseException(sr, "Stored function must be a query single");
-        }
-        
-        sr.skipToken("storedfunction");
-        if (!dfnbase.cfg.hacknobefore) storedfunction = true; // Unclear whether the !hacknobefore check here is deliberate or a bug
-
-      } else if (sr.wasToken("pre-upgrade-hook")) {
-        if (preUpgradeHook) {
-          throw new ParseException(sr, "'pre-upgrade-hook' set twice");
-        }
-        
-        if (!isVoid) {
-          throw new ParseException(sr, "Pre upgrade hook must be a void storedproc");
-        }
 
-        sr.skipToken("pre-upgrade-hook");
-        preUpgradeHook = true;
+    // Unclear whether the !hacknobefore check here is deliberate or a bug
+    storedproc = raw.storedproc && !dfnbase.cfg.hacknobefore;
+    storedfunction = raw.storedfunction && !dfnbase.cfg.hacknobefore;
+    preUpgradeHook = raw.preUpgradeHook;
+    if (raw.extra != null) {
+      extraSource = raw.extra;
+      extra = extraSource.getDefinition();
+    }
 
-      } else if (sr.wasToken("before")) {
-        sr.skipToken("before");
-        String step = sr.skipString();
+    if (!dfnbase.cfg.hacknobefore) {
+      for (Iterator i = raw.befores.iterator(); i.hasNext();) {
+        RawBefore rb = (RawBefore) i.next();
         BeforeStmt before = new BeforeStmt();
-        if ("initially".equals(step)) {
-          before.upgrade = false;
-          step = sr.skipString();
-        } else if ("upgrade".equals(step)) {
-          before.initially = false;
-          step = sr.skipString();
-        }
-        before.step = step;
-        if (!BeforeStmt.legalBefores.contains(step)) {
-          throw new RuntimeException("unknown before step " + step + " in "
-              + fullName);
-        }
-        before.name = sr.skipString();
-        sr.skipToken("by");
-
-        Expr expr = CGLParser.loadExpr(dfnFile, sr);
-        before.sql = expr.evaluate(new Context(dfnbase.cfg.globalVars))
+        before.step = rb.step;
+        before.name = rb.name;
+        before.initially = rb.initially;
+        before.upgrade = rb.upgrade;
+        before.sql = rb.sql.getExpr().evaluate(new Context(dfnbase.cfg.globalVars))
             .toString();
-        if (!dfnbase.cfg.hacknobefore) {
-          List blist;
-          if (beforeStmts.containsKey(step)) {
-            blist = (List) beforeStmts.get(step);
-          } else {
-            blist = new LinkedList();
-            beforeStmts.put(step, blist);
-          }
-          blist.add(before);
-        }
-
-      } else if (sr.wasToken("extra")) {
-        if (extra != null) {
-          throw new ParseException(sr, "'extra' set twice");
+        List blist;
+        if (beforeStmts.containsKey(rb.step)) {
+          blist = (List) beforeStmts.get(rb.step);
+        } else {
+          blist = new LinkedList();
+          beforeStmts.put(rb.step, blist);
         }
-        sr.skipToken("extra");
-        extra = CGLParser.loadDefinition(dfnFile, sr);
-       
-      } else {
-        throw new ParseException(sr, "Unknown keyword '" + sr.lastToString()
-            + "'");
+        blist.add(before);
       }
-      sr.skipEOL();
     }
-    sr.skipEOB();
-    sr.skipEOL();
-    sr.checkEOF();
-    
+
     if (storedproc && storedfunction) {
-      throw new ParseException(sr, "Cannot be both storedproc and storedfunction");
+      throw new ParseException(raw.fullNameLoc,
+          "Cannot be both storedproc and storedfunction");
     }
     
     if (storedfunction && results.size() != 1) {
-      throw new ParseException(sr, "Stored function must only have one result");
+      throw new ParseException(raw.fullNameLoc,
+          "Stored function must only have one result");
     }
 
     if (preUpgradeHook && !storedproc) {
-      throw new ParseException(sr, "Pre upgrade hook must be a void storedproc");
+      throw new ParseException(raw.fullNameLoc,
+          "Pre upgrade hook must be a void storedproc");
     }
 
-    if (rawSQL == null) {
-      throw new ParseException(sr, "No SQL statement specified");
-    }
-    // if (description == null) {
-    // throw new ParseException(sr, "No description specified");
-    // }
-    if (results == null) results = new ArrayList();
-    if (params == null) params = new ArrayList();
     if (storedproc) {
-      for (Iterator i = params.iterator(); i.hasNext();) {
-        Field f = (Field) i.next();
-        if (f.sqlType == null)
-          throw new ParseException(sr, "SQL type is required for storedprocs ("
-              + fullName + "." + f.name + ")");
+      for (Iterator i = raw.params.iterator(); i.hasNext();) {
+        RawParam p = (RawParam) i.next();
+        if (p.sqlType == null)
+          throw new ParseException(p.loc, "SQL type is required for storedprocs ("
+              + fullName + "." + p.name + ")");
       }
     }
 
@@ -359,29 +274,8 @@ public class QueryDef implements Mappable, Comparable {
     resolved = true;
   }
 
-  Field parseParam(SmeltReader sr) throws ParseException {
-    String type = sr.skipString();
-    String name = sr.skipString();
-
-    // Parse the optional SQL type.
-    String sqlType = null;
-    if (!sr.wasToken("nullable") && !sr.wasToken("notnull")) {
-      sqlType = sr.skipString();
-    }
-
-    boolean nullable;
-    if (sr.wasToken("nullable")) {
-      nullable = true;
-    } else if (sr.wasToken("notnull")) {
-      nullable = false;
-    } else {
-      throw new ParseException(sr, "Expected nullable or notnull, found "
-          + sr.lastToString());
-    }
-    sr.skipString();
-    String fieldDesc = sr.skipString();
-    sr.skipEOL();
-    return new Field(name, type, sqlType, fieldDesc, nullable);
+  Field newField(RawParam p) {
+    return new Field(p.name, p.type, p.sqlType, p.description, p.nullable);
   }
 
   private static final Set availSet = new HashSet(Arrays.asList(new String[] {
@@ -390,9 +284,9 @@ public class QueryDef implements Mappable, Comparable {
       // Fields that require initial load and field-resolution:
       "description", "longdesc", "multi", "void", "sql", "rawsql", "params",
       "results", "storedproc", "storedfunction", "pre-upgrade-hook" }));
-  private Map asMap;
+  private transient Map asMap;
 
-  public Map toMap() {
+  public synchronized Map toMap() {
     if (asMap == null) {
       asMap = new LazyMap() {
         private int state = 0;
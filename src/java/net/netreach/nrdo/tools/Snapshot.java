@@ -0,0 +1,350 @@
+package net.netreach.nrdo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.netreach.cgl.Definition;
+import net.netreach.nrdo.tools.dfn.RawCgl;
+import net.netreach.smelt.ParseException;
+import net.netreach.util.Output;
+import net.netreach.util.PathUtil;
+
+/**
+ * The tables and queries of a previous run, as far as they had been resolved,
+ * kept in the parsecache directory so that they don't all have to be loaded
+ * and resolved again when only a few files have changed. Each one is stored
+ * with the size and modification time of its file and the modification time
+ * of its module's config. When the snapshot is read back anything whose file
+ * or config has changed is dropped, along with every table that links to
+ * something that has been dropped, and the rest are offered to their DfnBases
+ * to be used in place of loading them again.
+ */
+public class Snapshot {
+  private static final int MAGIC = 0x4e524453; // "NRDS"
+
+  /**
+   * The version of the snapshot format, which is also the serialVersionUID of
+   * the nrdo classes a snapshot contains. Bump it whenever any of them, or
+   * FileLocation, changes.
+   */
+  public static final int VERSION = 2;
+
+  // Serialization recurses through the links between tables, so a schema
+  // of any size needs more stack than a thread gets by default.
+  private static final long STACK_SIZE = 256L << 20;
+
+  /**
+   * A table or query and the fingerprint of what it was loaded from.
+   */
+  static class Entry implements Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
+    final DfnBase owner;
+    final String key;
+    final Object def;
+    final long size;
+    final long modified;
+    final long cfgModified;
+
+    /** The entries of the tables a table links to, once read back. */
+    transient List links;
+
+    Entry(DfnBase owner, String key, Object def) {
+      this.owner = owner;
+      this.key = key;
+      this.def = def;
+      File file = getFile();
+      this.size = file.length();
+      this.modified = def instanceof TableDef ? ((TableDef) def).age
+          : ((QueryDef) def).age;
+      this.cfgModified = owner.cfg.modified;
+    }
+
+    File getFile() {
+      return def instanceof TableDef ? ((TableDef) def).dfnFile
+          : ((QueryDef) def).dfnFile;
+    }
+
+    boolean isTable() {
+      return def instanceof TableDef;
+    }
+
+    /**
+     * Whether this entry is still what would be loaded now.
+     */
+    boolean isCurrent() throws IOException {
+      File file = getFile();
+      return owner.cfg.modified == cfgModified && file.length() == size
+          && file.lastModified() == modified
+          && !owner.isLoaded(key, !isTable())
+          && file.equals(owner.findFile(key, isTable() ? "dfn" : "qu", null,
+              false));
+    }
+
+    /**
+     * Load the tables this one links to into their DfnBases, as resolving it
+     * would have.
+     */
+    void loadLinks() throws IOException {
+      if (links == null) return;
+      for (Iterator i = links.iterator(); i.hasNext();) {
+        Entry link = (Entry) i.next();
+        link.owner.loadMinimum(link.key);
+      }
+    }
+  }
+
+  /**
+   * Stands in for a DfnBase in a snapshot; see DfnBase.writeReplace.
+   */
+  static class DfnBaseRef implements Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
+    private final File cfgfile;
+
+    DfnBaseRef(File cfgfile) {
+      this.cfgfile = cfgfile;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+      try {
+        return Config.get(cfgfile).dfnbase;
+      } catch (Exception e) {
+        throw new InvalidObjectException("Cannot load " + cfgfile + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * The CGL definition for a piece of source, for the readObject methods of
+   * classes that keep both.
+   */
+  static Definition getDefinition(RawCgl source) throws IOException {
+    if (source == null) return null;
+    try {
+      return source.getDefinition();
+    } catch (ParseException e) {
+      throw new InvalidObjectException(e.toString());
+    }
+  }
+
+  /**
+   * Snapshots kept in memory by the path of their config, if setKeepInMemory
+   * has asked for them to be, for a process that runs more than once;
+   * otherwise null. They are used whether or not there is a parsecache.
+   */
+  private static Map kept = null;
+
+  static synchronized void setKeepInMemory(boolean keep) {
+    kept = keep ? new HashMap() : null;
+  }
+
+  private static synchronized byte[] getKept(Config cfg) throws IOException {
+    return kept == null ? null : (byte[]) kept.get(PathUtil
+        .canonicalPath(cfg.cfgfile));
+  }
+
+  private static synchronized void putKept(Config cfg, byte[] snapshot)
+      throws IOException {
+    if (kept != null) kept.put(PathUtil.canonicalPath(cfg.cfgfile), snapshot);
+  }
+
+  private static File getFile(Config cfg) throws IOException {
+    String path = PathUtil.canonicalPath(cfg.cfgfile);
+    return new File(cfg.parsecache, cfg.cfgfile.getName() + "-"
+        + Integer.toHexString(path.hashCode()) + ".model");
+  }
+
+  /**
+   * Read the snapshot for a config, if it has a parsecache or one is kept in
+   * memory, and offer the tables and queries that are still current to their
+   * DfnBases. Must happen before anything is loaded. A snapshot that can't be
+   * read is ignored.
+   */
+  static void load(Config cfg) throws IOException {
+    final byte[] inMemory = getKept(cfg);
+    if (inMemory == null && cfg.parsecache == null) return;
+    final File file = inMemory == null ? getFile(cfg) : null;
+    if (file != null && !file.isFile()) return;
+
+    final Object[] result = new Object[1];
+    runDeep(new Runnable() {
+      public void run() {
+        try {
+          InputStream source = inMemory != null
+              ? (InputStream) new ByteArrayInputStream(inMemory)
+              : new FileInputStream(file);
+          ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+              source));
+          try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                || !Version.NRDO_VERSION.equals(in.readUTF())) return;
+            result[0] = in.readObject();
+          } finally {
+            in.close();
+          }
+        } catch (Exception e) {
+          result[0] = e;
+        }
+      }
+    });
+    if (result[0] == null) return;
+    if (result[0] instanceof Exception) {
+      Output.println("Ignoring model snapshot "
+          + (file != null ? "" + file : "kept in memory") + ": " + result[0]);
+      return;
+    }
+
+    List entries = (List) result[0];
+    Map byTable = new HashMap();
+    Set current = new HashSet();
+    for (Iterator i = entries.iterator(); i.hasNext();) {
+      Entry entry = (Entry) i.next();
+      if (entry.isTable()) byTable.put(entry.def, entry);
+      if (entry.isCurrent()) current.add(entry.def);
+    }
+
+    // Drop tables that link to anything that has been dropped, until there
+    // are none left to drop.
+    Map linked = new HashMap();
+    for (Iterator i = byTable.keySet().iterator(); i.hasNext();) {
+      TableDef td = (TableDef) i.next();
+      Set links = new HashSet();
+      td.addLinkedTables(links);
+      linked.put(td, links);
+    }
+    boolean dropped = true;
+    while (dropped) {
+      dropped = false;
+      for (Iterator i = linked.entrySet().iterator(); i.hasNext();) {
+        Map.Entry e = (Map.Entry) i.next();
+        if (current.contains(e.getKey())
+            && !current.containsAll((Set) e.getValue())) {
+          current.remove(e.getKey());
+          dropped = true;
+        }
+      }
+    }
+
+    int restored = 0;
+    for (Iterator i = entries.iterator(); i.hasNext();) {
+      Entry entry = (Entry) i.next();
+      if (!current.contains(entry.def)) continue;
+      if (entry.isTable()) {
+        entry.links = new ArrayList();
+        for (Iterator j = ((Set) linked.get(entry.def)).iterator(); j.hasNext();) {
+          entry.links.add(byTable.get(j.next()));
+        }
+      }
+      entry.owner.restore(entry);
+      restored++;
+    }
+    Output.println("Restored " + restored + " of " + entries.size()
+        + " tables and queries from model snapshot.");
+  }
+
+  /**
+   * Write the snapshot for a config, if it has a parsecache or snapshots are
+   * kept in memory, covering it and all the modules it depends on. Failure to
+   * write it is not an error.
+   */
+  static void save(Config cfg) throws IOException {
+    if (cfg.parsecache == null && kept == null) return;
+    final List entries = new ArrayList();
+    addEntries(entries, cfg, new HashSet());
+
+    final File file = cfg.parsecache == null ? null : getFile(cfg);
+    final File temp = file == null ? null : new File(file.getPath() + ".tmp");
+    final ByteArrayOutputStream inMemory = kept == null ? null
+        : new ByteArrayOutputStream();
+    final Object[] result = new Object[1];
+    runDeep(new Runnable() {
+      public void run() {
+        try {
+          if (file != null) file.getParentFile().mkdirs();
+          OutputStream sink = inMemory != null ? (OutputStream) inMemory
+              : new FileOutputStream(temp);
+          ObjectOutputStream out = new ObjectOutputStream(
+              new BufferedOutputStream(sink));
+          try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Version.NRDO_VERSION);
+            out.writeObject(entries);
+          } finally {
+            out.close();
+          }
+          if (file == null) return;
+          if (inMemory != null) {
+            OutputStream copy = new FileOutputStream(temp);
+            try {
+              inMemory.writeTo(copy);
+            } finally {
+              copy.close();
+            }
+          }
+          if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) throw new IOException("Cannot rename "
+                + temp + " to " + file);
+          }
+        } catch (Exception e) {
+          result[0] = e;
+        }
+      }
+    });
+    if (result[0] != null) {
+      if (temp != null) temp.delete();
+      Output.println("Could not write model snapshot "
+          + (file != null ? "" + file : "to memory") + ": " + result[0]);
+    } else if (inMemory != null) {
+      putKept(cfg, inMemory.toByteArray());
+    }
+  }
+
+  private static void addEntries(List entries, Config cfg, Set seen) {
+    if (!seen.add(cfg.dfnbase)) return;
+    addEntries(entries, cfg.dfnbase, cfg.dfnbase.getSnapshotTables());
+    addEntries(entries, cfg.dfnbase, cfg.dfnbase.getSnapshotQueries());
+    for (Iterator i = cfg.depends.iterator(); i.hasNext();) {
+      addEntries(entries, (Config) i.next(), seen);
+    }
+  }
+
+  private static void addEntries(List entries, DfnBase owner, Map defs) {
+    for (Iterator i = defs.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      entries.add(new Entry(owner, (String) e.getKey(), e.getValue()));
+    }
+  }
+
+  private static void runDeep(Runnable r) {
+    Thread t = new Thread(null, r, "snapshot", STACK_SIZE);
+    t.start();
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
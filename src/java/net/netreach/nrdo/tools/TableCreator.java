@@ -41,6 +41,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.net.InetAddress;
 import java.sql.Connection;
 import java.sql.Driver;
@@ -58,9 +59,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import net.netreach.smelt.LineList;
-import net.netreach.smelt.OMParser;
+import net.netreach.smelt.EventParser;
 import net.netreach.smelt.ParseException;
+import net.netreach.smelt.SmeltHandler;
+import net.netreach.smelt.SmeltReader;
 import net.netreach.util.CVSDir;
 import net.netreach.util.CVSFile;
 import net.netreach.util.FileLocatedException;
@@ -191,16 +193,12 @@ public class TableCreator {
       return sb.toString();
     }
 
-    public Key(Tbl tbl, List line) {
+    public Key(Tbl tbl, String type, String name) {
       this.tbl = tbl;
-      name = (String) line.get(1);
-      type = "pk".equals(line.get(0)) ? TYPE_PK
-          : "uk".equals(line.get(0)) ? TYPE_UK : TYPE_IX;
-      LineList f = (LineList) line.get(2);
+      this.name = name;
+      this.type = "pk".equals(type) ? TYPE_PK : "uk".equals(type) ? TYPE_UK
+          : TYPE_IX;
       fields = new ArrayList();
-      for (Iterator li = f.iterator(); li.hasNext();) {
-        fields.add(tbl.fieldMap.get(((List) li.next()).get(0)));
-      }
     }
 
     public Key(Tbl tbl, Index ix) {
@@ -285,16 +283,11 @@ public class TableCreator {
       return sb.toString();
     }
 
-    public FKey(Tbl tbl, List line) {
+    public FKey(Tbl tbl, String name, String otherTable) {
       this.tbl = tbl;
-      name = (String) line.get(0);
-      otherTable = (String) line.get(1);
-      LineList f = (LineList) line.get(2);
-      cascading = line.size() > 3 && "cascade".equals(line.get(3));
+      this.name = name;
+      this.otherTable = otherTable;
       flds = new ArrayList();
-      for (Iterator li = f.iterator(); li.hasNext();) {
-        flds.add(new FFld(this, (List) li.next()));
-      }
     }
 
     public FKey(Tbl tbl, TableDef.Reference r) throws IOException,
@@ -451,67 +444,17 @@ public class TableCreator {
       }
     }
 
-    public Tbl(List tcache) throws IOException {
-      int offset = 1;
-      if ("tcache".equals(tcache.get(0))) {
-        offset = 0;
-        version = "";
-      } else {
-        version = (String) tcache.get(0);
-      }
-      if (!"tcache".equals(tcache.get(offset))) {
-        throw new RuntimeException("Incorrect table cache file");
-      }
-      name = (String) tcache.get(offset + 1);
-      if ("existing".equals(tcache.get(offset + 2))) {
-        existing = true;
-        if (tcache.size() > offset + 3) {
-          befores.addAll((List) ((LineList) tcache.get(offset + 3)).get(0));
-        }
-        return;
-      }
-      indexes = new ArrayList();
-      fields = new ArrayList();
-      fkeys = new ArrayList();
-      fieldMap = new HashMap();
-      indexMap = new HashMap();
-      fkeyMap = new HashMap();
-      LineList tcfields = (LineList) tcache.get(offset + 2);
-      LineList tcindexes = (LineList) tcache.get(offset + 3);
-      LineList tcfkeys = (LineList) tcache.get(offset + 4);
-      if (tcache.size() > offset + 5) {
-        LineList tcseq = (LineList) tcache.get(offset + 5);
-        if (tcseq.size() > 0) {
-          List sq = (List) tcseq.get(0);
-          if (sq.size() > 0) {
-            seqpkfld = (String) sq.get(0);
-            if (sq.size() > 1) {
-              seqpkseq = (String) sq.get(1);
-              if (sq.size() > 2) seqpktrg = (String) sq.get(2);
-            }
-          }
-        }
-        // Second line is the 'before's.
-        if (tcseq.size() > 1) {
-          befores.addAll((List) tcseq.get(1));
-        }
-      }
-      for (Iterator li = tcfields.iterator(); li.hasNext();) {
-        Field f = new Field(this, (List) li.next());
-        fields.add(f);
-        fieldMap.put(f.name, f);
-      }
-      for (Iterator li = tcindexes.iterator(); li.hasNext();) {
-        Key k = new Key(this, (List) li.next());
-        indexes.add(k);
-        indexMap.put(k.name, k);
-      }
-      for (Iterator li = tcfkeys.iterator(); li.hasNext();) {
-        FKey f = new FKey(this, (List) li.next());
-        if (!fkeyMap.containsKey(f.name)) {
-          fkeys.add(f);
-          fkeyMap.put(f.name, f);
-        }
+    public Tbl(String version, String name, boolean existing) {
+      this.version = version;
+      this.name = name;
+      this.existing = existing;
+      if (!existing) {
+        fields = new ArrayList();
+        indexes = new ArrayList();
+        fkeys = new ArrayList();
+        fieldMap = new HashMap();
+        indexMap = new HashMap();
+        fkeyMap = new HashMap();
       }
     }
 
@@ -864,9 +807,9 @@ public class TableCreator {
       this.version = "";
     }
 
-    public Qry(List qryCache) {
-      this.version = (String) qryCache.get(0);
-      String fword = (String) qryCache.get(1);
+    public Qry(String version, String fword, String name, String body) {
+      this.version = version;
+      this.name = name;
       if ("spcache".equals(fword)) {
         isfunction = false;
       } else if ("sfcache".equals(fword)) {
@@ -877,11 +820,8 @@ public class TableCreator {
       } else {
         throw new RuntimeException("Incorrect storedproc cache file");
       }
-      this.name = (String) qryCache.get(2);
-      this.body = (String) qryCache.get(3);
+      this.body = body;
       if ("".equals(this.body)) this.body = null;
-      LineList beforeList = (LineList) qryCache.get(4);
-      this.befores.addAll((List) beforeList.get(0));
     }
 
     public String toCreateString() {
@@ -926,6 +866,163 @@ public class TableCreator {
     }
   }
 
+  /**
+   * Builds a Tbl or a Qry directly from the events of a table or stored
+   * procedure cache file, without building a LineList of the file first. The
+   * result is null if the file is neither.
+   */
+  class CacheLoader implements SmeltHandler {
+    Thing result;
+    private Tbl tbl;
+    private Qry qry;
+    private boolean unknown = false;
+    private List header = new ArrayList();
+    private List words = new ArrayList();
+    private int depth = 0;
+    private int blocks = 0;
+    private int lines = 0;
+    private Key key;
+    private FKey fkey;
+
+    public void startLine(SmeltReader sr) throws ParseException {
+      if (depth == 0) {
+        if (!header.isEmpty()) {
+          throw new ParseException(sr, "More than one line found in file");
+        }
+      } else {
+        if (depth == 1) lines++;
+        words.clear();
+      }
+    }
+
+    public void word(SmeltReader sr, String word) {
+      if (depth == 0) {
+        header.add(word);
+      } else {
+        words.add(word);
+      }
+    }
+
+    public void startBlock(SmeltReader sr) throws ParseException {
+      if (depth == 0) {
+        begin();
+        blocks++;
+        lines = 0;
+      } else if (depth == 1 && tbl != null && blocks == 2) {
+        key = new Key(tbl, (String) words.get(0), (String) words.get(1));
+      } else if (depth == 1 && tbl != null && blocks == 3) {
+        fkey = new FKey(tbl, (String) words.get(0), (String) words.get(1));
+      } else if (!unknown) {
+        throw new ParseException(sr, "Unexpected block in cache file");
+      }
+      depth++;
+    }
+
+    public void endBlock(SmeltReader sr) {
+      depth--;
+      if (depth == 1) words.clear();
+    }
+
+    public void endLine(SmeltReader sr) {
+      if (depth == 0) {
+        begin();
+      } else if (depth == 2) {
+        if (key != null) {
+          key.fields.add(tbl.fieldMap.get(words.get(0)));
+        } else if (fkey != null) {
+          fkey.flds.add(new FFld(fkey, words));
+        }
+      } else if (depth == 1) {
+        if (qry != null || (tbl != null && tbl.existing)) {
+          if (lines == 1) result.befores.addAll(words);
+        } else if (tbl != null) {
+          switch (blocks) {
+          case 1:
+            Field f = new Field(tbl, words);
+            tbl.fields.add(f);
+            tbl.fieldMap.put(f.name, f);
+            break;
+          case 2:
+            tbl.indexes.add(key);
+            tbl.indexMap.put(key.name, key);
+            key = null;
+            break;
+          case 3:
+            fkey.cascading = !words.isEmpty() && "cascade".equals(words.get(0));
+            if (!tbl.fkeyMap.containsKey(fkey.name)) {
+              tbl.fkeys.add(fkey);
+              tbl.fkeyMap.put(fkey.name, fkey);
+            }
+            fkey = null;
+            break;
+          case 4:
+            if (lines == 1) {
+              if (words.size() > 0) tbl.seqpkfld = (String) words.get(0);
+              if (words.size() > 1) tbl.seqpkseq = (String) words.get(1);
+              if (words.size() > 2) tbl.seqpktrg = (String) words.get(2);
+            } else if (lines == 2) {
+              tbl.befores.addAll(words);
+            }
+            break;
+          }
+        }
+      }
+    }
+
+    /**
+     * Interpret the words before the first block, once they have all been
+     * seen.
+     */
+    private void begin() {
+      if (result != null || unknown) return;
+      String fword = header.size() > 1 ? (String) header.get(1) : null;
+      if (header.isEmpty()) {
+        unknown = true;
+      } else if ("tcache".equals(header.get(0))) {
+        result = tbl = new Tbl("", (String) header.get(1), header.size() > 2
+            && "existing".equals(header.get(2)));
+      } else if ("tcache".equals(fword)) {
+        result = tbl = new Tbl((String) header.get(0), (String) header.get(2),
+            header.size() > 3 && "existing".equals(header.get(3)));
+      } else if (header.size() > 3
+          && ("spcache".equals(fword) || "sfcache".equals(fword) || "spcache-preupgrade"
+              .equals(fword))) {
+        result = qry = new Qry((String) header.get(0), fword,
+            (String) header.get(2), (String) header.get(3));
+      } else {
+        unknown = true;
+      }
+    }
+  }
+
+  Thing loadCache(Reader in, String filename) throws ParseException {
+    CacheLoader loader = new CacheLoader();
+    EventParser.parse(in, filename, loader);
+    return loader.result;
+  }
+
+  Thing loadCache(File f) throws IOException, ParseException {
+    CacheLoader loader = new CacheLoader();
+    EventParser.parse(f, loader);
+    return loader.result;
+  }
+
+  Tbl loadTblCache(Reader in, String filename) throws ParseException {
+    Thing result = loadCache(in, filename);
+    if (!(result instanceof Tbl)) {
+      throw new RuntimeException("Incorrect table cache file");
+    }
+    return (Tbl) result;
+  }
+
+  Qry loadQryCache(Reader in, String filename) throws ParseException {
+    Thing result = loadCache(in, filename);
+    if (!(result instanceof Qry)) {
+      throw new RuntimeException("Incorrect storedproc cache file");
+    }
+    return (Qry) result;
+  }
+
   List allChanges = new LinkedList();
   List tblChanges = new LinkedList();
   List procChanges = new LinkedList();
@@ -1162,6 +1259,7 @@ public class TableCreator {
     cachedir.update();
     // cfg.dfnbase.verbose = true;
     List tables = cfg.dfnbase.getFromArgs(args);
+    cfg.dfnbase.resolveAll(tables);
     int i = 0;
     HashSet known = new HashSet();
 
@@ -1184,8 +1282,7 @@ public class TableCreator {
         tc.beforeStmts = td.beforeStmts;
         // }
         if (decision.cr != null) {
-          tc.current = new Tbl(OMParser.parseLine(decision.cr,
-              decision.f.toString()));
+          tc.current = loadTblCache(decision.cr, decision.f.toString());
         } else if (!td.renamedFrom.isEmpty()) {
           for (Iterator j = td.renamedFrom.iterator(); j.hasNext();) {
             String oldName = (String) j.next();
@@ -1193,8 +1290,8 @@ public class TableCreator {
             known.add(oldDbName);
             CVSFile oldCacheFile = new CVSFile(cachedir, oldDbName);
             if (oldCacheFile.exists()) {
-              tc.current = new Tbl(OMParser.parseLine(oldCacheFile.getReader(),
-                  oldCacheFile.toString()));
+              tc.current = loadTblCache(oldCacheFile.getReader(),
+                  oldCacheFile.toString());
             }
           }
         }
@@ -1218,14 +1315,13 @@ public class TableCreator {
         if (files[i].isFile()
             && files[i].getName().startsWith(cfg.schema + ".")
             && !known.contains(files[i].getName())) {
-          List contents = OMParser.parseLine(files[i]);
-          if (contents.get(1).equals("tcache") &&
-              (contents.size() <= 3 || !contents.get(3).equals("existing"))) {
+          Thing contents = loadCache(files[i]);
+          if (contents instanceof Tbl && !((Tbl) contents).existing) {
             Output.println("Processing table for deletion: "
                 + files[i].getName());
             known.add(files[i].getName());
             TblChanges tc = new TblChanges();
-            tc.current = new Tbl(contents);
+            tc.current = (Tbl) contents;
             tc.desired = new Tbl(files[i].getName());
             tblChanges.add(tc);
             allChanges.add(tc);
@@ -1257,8 +1353,7 @@ public class TableCreator {
         pc.beforeStmts = qd.beforeStmts;
         // }
         if (decision.cr != null) {
-          pc.current = new Qry(OMParser.parseLine(decision.cr,
-              decision.f.toString()));
+          pc.current = loadQryCache(decision.cr, decision.f.toString());
         }
         procChanges.add(pc);
         allChanges.add(pc);
@@ -38,8 +38,11 @@ package net.netreach.nrdo.tools;
 // Collections classes used to implement the appropriate behavior.
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -48,16 +51,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import net.netreach.cgl.CGLParser;
 import net.netreach.cgl.CGLRuntimeException;
 import net.netreach.cgl.Context;
 import net.netreach.cgl.Definition;
-import net.netreach.cgl.Expr;
-import net.netreach.smelt.LineList;
-import net.netreach.smelt.LineListReader;
-import net.netreach.smelt.OMParser;
-import net.netreach.smelt.SmeltReader;
+import net.netreach.nrdo.tools.dfn.RawBefore;
+import net.netreach.nrdo.tools.dfn.RawCgl;
+import net.netreach.nrdo.tools.dfn.RawField;
+import net.netreach.nrdo.tools.dfn.RawFieldRef;
+import net.netreach.nrdo.tools.dfn.RawGet;
+import net.netreach.nrdo.tools.dfn.RawJoin;
+import net.netreach.nrdo.tools.dfn.RawOrderBy;
+import net.netreach.nrdo.tools.dfn.RawOrderByField;
+import net.netreach.nrdo.tools.dfn.RawOrderBySql;
+import net.netreach.nrdo.tools.dfn.RawParam;
+import net.netreach.nrdo.tools.dfn.RawParamTable;
+import net.netreach.nrdo.tools.dfn.RawReference;
+import net.netreach.nrdo.tools.dfn.RawTable;
+import net.netreach.nrdo.tools.dfn.RawTableRef;
+import net.netreach.nrdo.tools.dfn.RawWarning;
+import net.netreach.smelt.ParseException;
 import net.netreach.util.FileLocatedException;
+import net.netreach.util.FileLocation;
 import net.netreach.util.LazyMap;
 import net.netreach.util.Mappable;
 import net.netreach.util.MappedList;
@@ -68,7 +82,8 @@ import net.netreach.util.Output;
  * 
  * @author Stuart Ballard &lt;sballard@netreach.net&gt;
  */
-public class TableDef implements Mappable, Comparable {
+public class TableDef implements Mappable, Comparable, Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
 
   String fullName;
   String name;
@@ -82,7 +97,8 @@ public class TableDef implements Mappable, Comparable {
   List gets = new ArrayList();
   List references = new ArrayList();
   List renamedFrom = new ArrayList();
-  Definition extra;
+  transient Definition extra;
+  RawCgl extraSource;
   boolean isPkeySequenced;
   TableRef self;
   DfnBase dfnbase;
@@ -103,7 +119,9 @@ public class TableDef implements Mappable, Comparable {
     return new Field(name, javaType, dbType, description, nullable, writable);
   }
 
-  public class Field implements Mappable {
+  public class Field implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public String name;
     public String javaType;
     public String dbType;
@@ -114,7 +132,8 @@ public class TableDef implements Mappable, Comparable {
     public TableRef table;
     public boolean isproperty;
     public String origName;
-    public Definition fieldExtra;
+    public transient Definition fieldExtra;
+    RawCgl fieldExtraSource;
 
     public boolean equals(Object o) {
       if (!(o instanceof Field)) return false;
@@ -138,9 +157,9 @@ public class TableDef implements Mappable, Comparable {
       this.table = self;
     }
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.putAll(table.toMap());
@@ -176,9 +195,22 @@ public class TableDef implements Mappable, Comparable {
     public Field(Field f) {
       this(f.name, f.javaType, f.dbType, f.description, f.nullable, f.writable);
     }
+
+    void setExtra(RawCgl source) throws IOException, ParseException {
+      fieldExtraSource = source;
+      fieldExtra = source.getDefinition();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException {
+      in.defaultReadObject();
+      fieldExtra = Snapshot.getDefinition(fieldExtraSource);
+    }
   }
 
   static class SQLParam extends Util.SQLParam {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     TableDef.Field field;
 
     SQLParam(TableDef.Field field, String sqlbefore) {
@@ -186,7 +218,7 @@ public class TableDef implements Mappable, Comparable {
       this.field = field;
     }
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         super.toMap();
         if (field == null) {
@@ -199,7 +231,9 @@ public class TableDef implements Mappable, Comparable {
     }
   }
 
-  public class Get implements Mappable {
+  public class Get implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public boolean pkey;
     public boolean multi;
     public List fields = new ArrayList();
@@ -217,11 +251,12 @@ public class TableDef implements Mappable, Comparable {
     public boolean noindex;
     public List orderby;
     public String description;
-    public Definition getExtra;
+    public transient Definition getExtra;
+    RawCgl getExtraSource;
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.put("gname", name);
@@ -251,6 +286,17 @@ public class TableDef implements Mappable, Comparable {
 
     public boolean indexIsUnique;
 
+    void setExtra(RawCgl source) throws IOException, ParseException {
+      getExtraSource = source;
+      getExtra = source.getDefinition();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException {
+      in.defaultReadObject();
+      getExtra = Snapshot.getDefinition(getExtraSource);
+    }
+
     List scanParams(String rawSQL) throws FileLocatedException, IOException {
       return Util.scanParams(rawSQL, dfnbase.cfg, paramsByName);
     }
@@ -290,7 +336,9 @@ public class TableDef implements Mappable, Comparable {
     }
   }
 
-  public static class OrderByClause implements Mappable {
+  public static class OrderByClause implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     private TableDef.Field field;
     private String rawSql;
     private List sql;
@@ -330,9 +378,9 @@ public class TableDef implements Mappable, Comparable {
             + field.table.alias + " record associated with each result.");
     }
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.put("descending", new Boolean(descending));
@@ -353,7 +401,9 @@ public class TableDef implements Mappable, Comparable {
     }
   }
 
-  public class TableRef implements Mappable {
+  public class TableRef implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public TableDef table;
     public String name;
     public String alias;
@@ -361,9 +411,9 @@ public class TableDef implements Mappable, Comparable {
     public boolean isonlyone;
     public String description;
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.put("tblmodule", table.module);
@@ -396,15 +446,17 @@ public class TableDef implements Mappable, Comparable {
     }
   }
 
-  public class JoinAtom implements Mappable {
+  public class JoinAtom implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public TableRef t1;
     public TableRef t2;
     public String f1;
     public String f2;
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.put("tblalias1", t1.alias);
@@ -425,7 +477,9 @@ public class TableDef implements Mappable, Comparable {
     }
   }
 
-  public class Reference implements Mappable {
+  public class Reference implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public String name;
     public TableDef otherTable;
     public Get get;
@@ -446,9 +500,9 @@ public class TableDef implements Mappable, Comparable {
     public List rtables = new ArrayList();
     public List rjoins = new ArrayList();
 
-    private Map asMap;
+    private transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.putAll(get.toMap());
@@ -523,268 +577,197 @@ public class TableDef implements Mappable, Comparable {
     }
   }
 
-  public ArrayList parseOrderBy(Map tablesByAlias, List ln) {
+  public ArrayList resolveOrderBy(Map tablesByAlias, List clauses)
+      throws ParseException {
     ArrayList orderby = new ArrayList();
-    if (ln.get(1) instanceof String) {
-      if (dfnbase.cfg.strict("orderby"))
-        throw new RuntimeException(
-            "Strict orderby parsing is active but an orderby on "
-                + TableDef.this.name + " (" + ln.get(1)
-                + ") is using the old syntax.");
-      // Legacy parsing actually ignored any words after the first; for
-      // backcompat we need to continue to do that.
-      orderby.add(new OrderByClause((String) ln.get(1), false));
-    } else {
-      if (ln.size() != 2)
-        throw new RuntimeException("Syntax error on 'orderby' line: " + ln);
-      List clauses = (List) ln.get(1);
-      if (clauses.isEmpty())
-        throw new RuntimeException("orderby given without any clauses!");
-      for (Iterator i = clauses.iterator(); i.hasNext();) {
-        List clauseLine = (List) i.next();
-        if (clauseLine.isEmpty() || clauseLine.size() > 3)
-          throw new RuntimeException("Syntax error in orderby clause: "
-              + clauseLine);
-        // Legal combinations are "fieldname", "fieldname desc", "something sql"
-        // or "something sql desc"
-
-        if (clauseLine.size() >= 2 && "sql".equals(clauseLine.get(1))) {
-          boolean descending = false;
-          if (clauseLine.size() == 3) {
-            if (!"desc".equals(clauseLine.get(2)))
-              throw new RuntimeException("Expected 'desc', found "
-                  + clauseLine.get(2));
-            descending = true;
-          }
-          orderby
-              .add(new OrderByClause((String) clauseLine.get(0), descending));
-        } else if (clauseLine.size() == 3) {
-          throw new RuntimeException("Syntax error in orderby clause: "
-              + clauseLine);
+    for (Iterator i = clauses.iterator(); i.hasNext();) {
+      RawOrderBy clause = (RawOrderBy) i.next();
+      if (clause instanceof RawOrderBySql) {
+        RawOrderBySql sqlClause = (RawOrderBySql) clause;
+        if (sqlClause.legacy && dfnbase.cfg.strict("orderby"))
+          throw new ParseException(clause.loc,
+              "Strict orderby parsing is active but an orderby on "
+                  + TableDef.this.name + " (" + sqlClause.sql
+                  + ") is using the old syntax.");
+        orderby.add(new OrderByClause(sqlClause.sql, clause.descending));
+      } else {
+        RawFieldRef fref = ((RawOrderByField) clause).field;
+        Field f;
+        if (fref.alias != null) {
+          TableRef tr = findTable(tablesByAlias, fref.alias, fref.loc);
+          Field of = (Field) tr.table.fieldsByName.get(fref.name);
+          if (of == null)
+            throw new ParseException(fref.loc, "No such field as " + fref.name
+                + " in " + fref.alias + " from orderby clause");
+          f = new Field(of);
+          f.table = tr;
+          f.fullName = fref.fullName;
         } else {
-          boolean descending = false;
-          if (clauseLine.size() == 2) {
-            if (!"desc".equals(clauseLine.get(1)))
-              throw new RuntimeException("Expected 'desc' or 'sql', found "
-                  + clauseLine.get(1));
-            descending = true;
-          }
-          String fName = (String) clauseLine.get(0);
-          Field f;
-          if (fName.indexOf('.') > 0) {
-            String tblAlias = fName.substring(0, fName.indexOf('.'));
-            String fn = fName.substring(fName.indexOf('.') + 1);
-            TableRef tr = (TableRef) tablesByAlias.get(tblAlias);
-            Field of = (Field) tr.table.fieldsByName.get(fn);
-            if (of == null)
-              throw new RuntimeException("No such field as " + fn + " in "
-                  + tblAlias + " from orderby clause");
-            f = new Field(of);
-            f.table = tr;
-            f.fullName = fName;
-          } else {
-            f = (Field) fieldsByName.get(fName);
-            if (f == null)
-              throw new RuntimeException("No such field as " + fName
-                  + " in orderby clause (did you mean to specify 'sql'?)");
-          }
-          orderby.add(new OrderByClause(f, descending));
+          f = (Field) fieldsByName.get(fref.name);
+          if (f == null)
+            throw new ParseException(fref.loc, "No such field as " + fref.name
+                + " in orderby clause (did you mean to specify 'sql'?)");
         }
+        orderby.add(new OrderByClause(f, clause.descending));
       }
     }
     return orderby;
   }
 
-  public void createGets(List lines, List into) throws FileLocatedException,
-      IOException {
-    GET: for (Iterator li = lines.iterator(); li.hasNext();) {
-      List line = (List) li.next();
+  /**
+   * Look up a field by name, failing at the location it was referred to from
+   * if there is no such field.
+   */
+  static Field findField(TableDef td, String name, FileLocation loc)
+      throws ParseException {
+    Field f = (Field) td.fieldsByName.get(name);
+    if (f == null) {
+      throw new ParseException(loc, "No such field as " + name + " in "
+          + td.fullName);
+    }
+    return f;
+  }
+
+  /**
+   * Look up a table by alias, failing at the location it was referred to from
+   * if there is no such alias.
+   */
+  static TableRef findTable(Map tablesByAlias, String alias, FileLocation loc)
+      throws ParseException {
+    TableRef tr = (TableRef) tablesByAlias.get(alias);
+    if (tr == null) {
+      throw new ParseException(loc, "No table with alias " + alias);
+    }
+    return tr;
+  }
+
+  public void createGets(List rawGets, List into)
+      throws FileLocatedException, IOException {
+    GET: for (Iterator li = rawGets.iterator(); li.hasNext();) {
+      RawGet rg = (RawGet) li.next();
       Get get = new Get();
-      get.multi = "multi".equals(line.get(1));
+      get.multi = rg.multi;
       get.name = "";
       String splitter = "";
       String uName = "";
-      LineList glines = (LineList) line.get(2);
-      List ln;
       List paramTables = new ArrayList();
       List paramJoins = new ArrayList();
       List fieldsAndParams = new ArrayList();
       Map pTablesByAlias = new HashMap();
 
       // Find the tables associated with the get.
-      ln = glines.getOneByFirstWord("tables");
-      if (ln != null) {
-        LineList tbls = (LineList) ln.get(1);
-        for (Iterator tli = tbls.iterator(); tli.hasNext();) {
-          List tline = (List) tli.next();
-          TableRef tr = new TableRef();
-          tr.name = (String) tline.get(0);
-          tr.alias = (String) tline.get(1);
-          if (tr.resolve() == null) {
-            // In the past nrdo permitted gets and references that could not
-            // be resolved. This is generally a bad idea and can now be
-            // disabled by "strict deps".
-            if (dfnbase.cfg.strict("deps"))
-              throw new RuntimeException("Get on " + TableDef.this.name
-                  + " refers to table " + tr.name + " that cannot be found.");
-            Output.println("Skipped get due to missing table " + tr.name);
-            continue GET;
-          }
-          if (tline.size() == 3) {
-            tr.description = (String) tline.get(2);
-            tr.isparam = true;
-            tr.isonlyone = true;
-            paramTables.add(tr);
-            pTablesByAlias.put(tr.alias, tr);
-            get.name += splitter + tr.alias;
-            splitter = "_";
-          } else if (tline.size() > 2) {
-            throw new RuntimeException("tables line too long");
-          } else {
-            get.tables.add(tr);
-            get.tablesByAlias.put(tr.alias, tr);
-          }
+      for (Iterator tli = rg.tables.iterator(); tli.hasNext();) {
+        RawTableRef rtr = (RawTableRef) tli.next();
+        TableRef tr = new TableRef();
+        tr.name = rtr.name;
+        tr.alias = rtr.alias;
+        if (tr.resolve() == null) {
+          // In the past nrdo permitted gets and references that could not
+          // be resolved. This is generally a bad idea and can now be
+          // disabled by "strict deps".
+          if (dfnbase.cfg.strict("deps"))
+            throw new ParseException(rtr.loc, "Get on " + TableDef.this.name
+                + " refers to table " + tr.name + " that cannot be found.");
+          Output.println("Skipped get due to missing table " + tr.name);
+          continue GET;
+        }
+        if (rtr instanceof RawParamTable) {
+          tr.description = ((RawParamTable) rtr).description;
+          tr.isparam = true;
+          tr.isonlyone = true;
+          paramTables.add(tr);
+          pTablesByAlias.put(tr.alias, tr);
+          get.name += splitter + tr.alias;
+          splitter = "_";
+        } else {
+          get.tables.add(tr);
+          get.tablesByAlias.put(tr.alias, tr);
         }
       }
 
       // Find the fields associated with the get.
-      ln = glines.getOneByFirstWord("fields");
-      if (ln != null) {
-        LineList flds = (LineList) ln.get(1);
-        for (Iterator fli = flds.iterator(); fli.hasNext();) {
-          String fName = (String) ((List) fli.next()).get(0);
-          Field f;
-          if (fName.indexOf('.') > 0) {
-            String tblAlias = fName.substring(0, fName.indexOf('.'));
-            String fn = fName.substring(fName.indexOf('.') + 1);
-            TableRef tr = (TableRef) get.tablesByAlias.get(tblAlias);
-            f = new Field((Field) tr.table.fieldsByName.get(fn));
-            f.table = tr;
-            f.fullName = fName;
-          } else {
-            f = (Field) fieldsByName.get(fName);
-            get.selfFields.add(f);
-          }
-          get.fields.add(f);
-          fieldsAndParams.add(f);
-          get.name += splitter + f.fullName.replace('.', '_');
-          splitter = "_";
-          uName += "_" + f.fullName.replace('.', '_');
+      for (Iterator fli = rg.fields.iterator(); fli.hasNext();) {
+        RawFieldRef fref = (RawFieldRef) fli.next();
+        Field f;
+        if (fref.alias != null) {
+          TableRef tr = findTable(get.tablesByAlias, fref.alias, fref.loc);
+          f = new Field(findField(tr.table, fref.name, fref.loc));
+          f.table = tr;
+          f.fullName = fref.fullName;
+        } else {
+          f = findField(this, fref.name, fref.loc);
+          get.selfFields.add(f);
         }
+        get.fields.add(f);
+        fieldsAndParams.add(f);
+        get.name += splitter + f.fullName.replace('.', '_');
+        splitter = "_";
+        uName += "_" + f.fullName.replace('.', '_');
       }
 
       // Find the extra parameters associated with the get.
-      ln = glines.getOneByFirstWord("params");
-      if (ln != null) {
-        LineList prms = (LineList) ln.get(1);
-        for (Iterator pli = prms.iterator(); pli.hasNext();) {
-          List pline = (List) pli.next();
-          String nullability = (String) pline.get(2);
-          boolean nullable;
-          if ("nullable".equals(nullability)) {
-            nullable = true;
-          } else if ("notnull".equals(nullability)) {
-            nullable = false;
-          } else {
-            throw new RuntimeException("Must specify 'nullable' or 'notnull'");
-          }
-          Field f = new Field((String) pline.get(1), (String) pline.get(0),
-              null, (String) pline.get(3), nullable, true);
-          if (pline.size() == 5) {
-            SmeltReader sr = new LineListReader((LineList) pline.get(4));
-            sr.readToken();
-            f.fieldExtra = CGLParser.loadDefinition(dfnFile, sr);
-            sr.skipEOL();
-            sr.checkEOF();
-          } else if (pline.size() > 5) {
-            throw new RuntimeException("Too many words on 'params' line");
-          }
-          get.params.add(f);
-          fieldsAndParams.add(f);
-          get.paramsByName.put(f.name, f);
-          get.name += splitter + f.name;
-          splitter = "_";
-          uName += "_" + f.name;
-        }
+      for (Iterator pli = rg.params.iterator(); pli.hasNext();) {
+        RawParam rp = (RawParam) pli.next();
+        Field f = new Field(rp.name, rp.type, null, rp.description,
+            rp.nullable, true);
+        if (rp.extra != null) f.setExtra(rp.extra);
+        get.params.add(f);
+        fieldsAndParams.add(f);
+        get.paramsByName.put(f.name, f);
+        get.name += splitter + f.name;
+        splitter = "_";
+        uName += "_" + f.name;
       }
 
       // Find the joins associated with the get (relies on tables already having
       // been defined)
-      ln = glines.getOneByFirstWord("joins");
-      if (ln != null) {
-        LineList joins = (LineList) ln.get(1);
-        for (Iterator jli = joins.iterator(); jli.hasNext();) {
-          List jline = (List) jli.next();
-          if (!"to".equals(jline.get(1))) {
-            throw new RuntimeException("Expected 'to'");
-          }
-          String tbl1 = (String) jline.get(0);
-          String tbl2 = (String) jline.get(2);
-          LineList jfields = (LineList) jline.get(3);
-          TableRef tr1 = "*".equals(tbl1) ? self : (TableRef) get.tablesByAlias
-              .get(tbl1);
-          TableRef tr2 = (TableRef) get.tablesByAlias.get(tbl2);
-          if (tr1 == null) tr1 = (TableRef) pTablesByAlias.get(tbl1);
-          if (tr2 == null) tr2 = (TableRef) pTablesByAlias.get(tbl2);
-          if (tr1.isparam && tr2.isparam) {
-            throw new RuntimeException("Cannot join two param tables");
-          }
-          for (Iterator fli = jfields.iterator(); fli.hasNext();) {
-            List fline = (List) fli.next();
-            JoinAtom ja = new JoinAtom();
-            ja.t1 = tr1;
-            ja.t2 = tr2;
-            ja.f1 = (String) fline.get(0);
-            ja.f2 = (String) fline.get(1);
-            if (tr1.isparam) {
-              Field f = new Field((Field) tr2.table.fieldsByName.get(ja.f2));
-              f.table = tr2;
-              if (tr2 != self) f.fullName = tbl2 + "." + ja.f2;
-              get.fields.add(f);
-              uName += "_" + f.fullName.replace('.', '_');
-              paramJoins.add(ja);
-            } else if (tr2.isparam) {
-              Field f = new Field((Field) tr1.table.fieldsByName.get(ja.f1));
-              f.table = tr1;
-              if (tr1 != self) f.fullName = tbl1 + "." + ja.f1;
-              get.fields.add(f);
-              uName += "_" + f.fullName.replace('.', '_');
-              paramJoins.add(ja);
-            } else {
-              get.joins.add(ja);
-            }
-            if (tr1 == self) {
-              get.selfFields.add(fieldsByName.get(ja.f1));
-            }
-          }
+      for (Iterator jli = rg.joins.iterator(); jli.hasNext();) {
+        RawJoin rj = (RawJoin) jli.next();
+        TableRef tr1 = "*".equals(rj.table1) ? self
+            : (TableRef) get.tablesByAlias.get(rj.table1);
+        TableRef tr2 = (TableRef) get.tablesByAlias.get(rj.table2);
+        if (tr1 == null) tr1 = findTable(pTablesByAlias, rj.table1, rj.loc);
+        if (tr2 == null) tr2 = findTable(pTablesByAlias, rj.table2, rj.loc);
+        if (tr1.isparam && tr2.isparam) {
+          throw new ParseException(rj.loc, "Cannot join two param tables");
+        }
+        JoinAtom ja = new JoinAtom();
+        ja.t1 = tr1;
+        ja.t2 = tr2;
+        ja.f1 = rj.field1;
+        ja.f2 = rj.field2;
+        if (tr1.isparam) {
+          Field f = new Field(findField(tr2.table, ja.f2, rj.loc));
+          f.table = tr2;
+          if (tr2 != self) f.fullName = rj.table2 + "." + ja.f2;
+          get.fields.add(f);
+          uName += "_" + f.fullName.replace('.', '_');
+          paramJoins.add(ja);
+        } else if (tr2.isparam) {
+          Field f = new Field(findField(tr1.table, ja.f1, rj.loc));
+          f.table = tr1;
+          if (tr1 != self) f.fullName = rj.table1 + "." + ja.f1;
+          get.fields.add(f);
+          uName += "_" + f.fullName.replace('.', '_');
+          paramJoins.add(ja);
+        } else {
+          get.joins.add(ja);
+        }
+        if (tr1 == self) {
+          get.selfFields.add(fieldsByName.get(ja.f1));
         }
       }
 
       // Get all the other available parameters on a get.
-      ln = glines.getOneByFirstWord("where");
-      if (ln != null) get.rawWhere = (String) ln.get(1);
-
-      ln = glines.getOneByFirstWord("called");
-      if (ln != null) get.name = (String) ln.get(1);
-
-      ln = glines.getOneByFirstWord("orderby");
-      if (ln != null) get.orderby = parseOrderBy(get.tablesByAlias, ln);
-
-      ln = glines.getOneByFirstWord("description");
-      if (ln != null) get.description = (String) ln.get(1);
-
-      get.noindex = (existingName != null || glines
-          .getOneByFirstWord("noindex") != null);
-      get.nocode = (glines.getOneByFirstWord("nocode") != null);
-
-      ln = glines.getOneByFirstWord("extra");
-      if (ln != null) {
-        SmeltReader sr = new LineListReader((LineList) ln.get(1));
-        sr.readToken();
-        get.getExtra = CGLParser.loadDefinition(dfnFile, sr);
-        sr.skipEOL();
-        sr.checkEOF();
+      get.rawWhere = rg.where;
+      if (rg.called != null) get.name = rg.called;
+      if (rg.orderby != null) {
+        get.orderby = resolveOrderBy(get.tablesByAlias, rg.orderby);
       }
+      get.description = rg.description;
+      get.noindex = (existingName != null || rg.noindex);
+      get.nocode = rg.nocode;
+      if (rg.extra != null) get.setExtra(rg.extra);
 
       get.makeConsistent();
       if (!paramTables.isEmpty()) {
@@ -851,7 +834,32 @@ public class TableDef implements Mappable, Comparable {
     self.isonlyone = true;
   }
 
-  LineList ll = null;
+  /**
+   * The parsed definition file. Gets and references are only turned into
+   * their resolved forms when asked for, after which this is dropped.
+   */
+  RawTable raw = null;
+
+  // Each stage of resolution has its own lock so that tables can be resolved
+  // from several threads at once (see DfnBase.resolveAll). A stage only ever
+  // waits on earlier stages of other tables, so these cannot deadlock.
+  private transient Object fieldsLock = new Object();
+  private transient Object getsLock = new Object();
+  private transient Object getsFullyLock = new Object();
+  private transient Object indexesLock = new Object();
+  private transient Object refsLock = new Object();
+
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    fieldsLock = new Object();
+    getsLock = new Object();
+    getsFullyLock = new Object();
+    indexesLock = new Object();
+    refsLock = new Object();
+    extra = Snapshot.getDefinition(extraSource);
+  }
+
   private boolean fieldsResolved = false;
   public final File dfnFile;
 
@@ -860,452 +868,335 @@ public class TableDef implements Mappable, Comparable {
   }
 
   public void resolveFields(String reason) throws FileLocatedException, IOException {
+    synchronized (fieldsLock) {
+      if (fieldsResolved) return;
+      String whystr = reason == null ? "" : " (due to " + reason + ")";
 
-    if (fieldsResolved) return;
-    String whystr = reason == null ? "" : " (due to " + reason + ")";
-
-    Output.println("Loading table " + fullName + whystr);
+      Output.println("Loading table " + fullName + whystr);
 
-    // Load the definition file.
-    List dfnLine = OMParser.parseLine(dfnFile);
+      // Load the definition file.
+      raw = dfnbase.parseTable(dfnFile);
+      for (Iterator wi = raw.warnings.iterator(); wi.hasNext();) {
+        RawWarning w = (RawWarning) wi.next();
+        Output.reportError(w.loc, "Warning: " + w.message);
+      }
 
-    // Check the basic structure of the file.
-    if (!(dfnLine.size() == 3 && "table".equals(dfnLine.get(0))
-        && dfnLine.get(1) instanceof String && dfnLine.get(2) instanceof LineList)) {
-      throw new RuntimeException("File not of form 'table <nm> { ... };");
-    }
+      // Get the single-stringed attributes...
+      if (!fullName.equalsIgnoreCase(raw.fullName)) {
+        throw new ParseException(raw.fullNameLoc, "Wrong table name found in "
+            + fullName + " (" + raw.fullName + ")");
+      }
+      fullName = raw.fullName;
+      description = (raw.description == null) ? "" : raw.description;
+      longDesc = (raw.longDesc == null) ? "" : raw.longDesc;
+      if (raw.extra != null) {
+        extraSource = raw.extra;
+        extra = extraSource.getDefinition();
+      }
 
-    // Get the single-stringed attributes...
-    if (!fullName.equalsIgnoreCase((String) dfnLine.get(1))) {
-      throw new RuntimeException("Wrong table name found in " + fullName + " ("
-          + dfnLine.get(1) + ")");
-    }
-    fullName = (String) dfnLine.get(1);
-    ll = (LineList) dfnLine.get(2);
-    List dline = ll.getOneByFirstWord("description");
-    description = (dline == null) ? "" : (String) dline.get(1);
-    dline = ll.getOneByFirstWord("longdesc");
-    longDesc = (dline == null) ? "" : (String) dline.get(1);
-    List x = ll.getOneByFirstWord("extra");
-    if (x != null) {
-      SmeltReader sr = new LineListReader((LineList) x.get(1));
-      sr.readToken();
-      extra = CGLParser.loadDefinition(dfnFile, sr);
-      sr.skipEOL();
-      sr.checkEOF();
-    }
-    ;
-
-    // Get the 'existing' line, if any.
-    List existLine = ll.getOneByFirstWord("existing");
-    if (existLine != null) {
-      if (existLine.size() == 1) {
-        existingName = fullName.replace(':', '_');
-      } else if ("as".equals(existLine.get(1)) && existLine.size() == 3) {
-        existingName = (String) existLine.get(2);
-      } else {
-        throw new RuntimeException(
-            "Expected 'existing;' or 'existing as <name>;', found " + existLine);
+      // Get the 'existing' line, if any.
+      if (raw.existing) {
+        existingName = (raw.existingAs == null) ? fullName.replace(':', '_')
+            : raw.existingAs;
       }
-    }
 
-    // Parse any 'renamed from' lines that indicate table renaming.
-    List renameds = ll.getAllByFirstWord("renamed");
-    for (Iterator ri = renameds.iterator(); ri.hasNext();) {
-      List ren = (List) ri.next();
-      if (ren.size() != 3 || !"from".equals(ren.get(1))) {
-        throw new RuntimeException("Expected 'renamed from <name>;', found "
-            + ren);
+      // Add any 'renamed from' lines that indicate table renaming.
+      for (Iterator ri = raw.renamedFrom.iterator(); ri.hasNext();) {
+        renamedFrom.add(0, ri.next());
       }
-      renamedFrom.add(0, ren.get(2));
-    }
 
-    // Parse any 'before' lines that provide code to run during table creation.
-    if (!dfnbase.cfg.hacknobefore) {
-      List befores = ll.getAllByFirstWord("before");
-      for (Iterator bi = befores.iterator(); bi.hasNext();) {
-        List bef = (List) bi.next();
-        String step = (String) bef.get(1);
-        int offset = 2;
-        BeforeStmt before = new BeforeStmt();
-        if ("initially".equals(step)) {
-          before.upgrade = false;
-          step = (String) bef.get(2);
-          offset++;
-        } else if ("upgrade".equals(step)) {
-          before.initially = false;
-          step = (String) bef.get(2);
-          offset++;
-        }
-        before.step = step;
-        if (!BeforeStmt.legalBefores.contains(step)) {
-          throw new RuntimeException("unknown before step " + step + " in "
-              + fullName);
-        }
-        before.name = (String) bef.get(offset);
-        if (!"by".equals(bef.get(offset + 1))) {
-          throw new RuntimeException("expected 'by', found '" + bef.get(3)
-              + "' in before " + before.name + " in " + fullName);
-        }
-        LineList ll = new LineList();
-        ll.add(bef.subList(offset + 2, bef.size()));
-        SmeltReader sr = new LineListReader(ll);
-        sr.readToken();
-        Expr expr = CGLParser.loadExpr(dfnFile, sr);
-        before.sql = expr.evaluate(new Context(dfnbase.cfg.globalVars))
-            .toString();
-        List blist;
-        if (beforeStmts.containsKey(step)) {
-          blist = (List) beforeStmts.get(step);
-        } else {
-          blist = new LinkedList();
-          beforeStmts.put(step, blist);
+      // Evaluate any 'before' lines that provide code to run during table
+      // creation.
+      if (!dfnbase.cfg.hacknobefore) {
+        for (Iterator bi = raw.befores.iterator(); bi.hasNext();) {
+          RawBefore rb = (RawBefore) bi.next();
+          BeforeStmt before = new BeforeStmt();
+          before.step = rb.step;
+          before.name = rb.name;
+          before.initially = rb.initially;
+          before.upgrade = rb.upgrade;
+          before.sql = rb.sql.getExpr().evaluate(new Context(dfnbase.cfg.globalVars))
+              .toString();
+          List blist;
+          if (beforeStmts.containsKey(rb.step)) {
+            blist = (List) beforeStmts.get(rb.step);
+          } else {
+            blist = new LinkedList();
+            beforeStmts.put(rb.step, blist);
+          }
+          blist.add(before);
         }
-        blist.add(before);
       }
-    }
 
-    // Parse the 'fields' entry in the file.
-    List rawFields = (List) (ll.getOneByFirstWord("fields").get(1));
-    for (Iterator li = rawFields.iterator(); li.hasNext();) {
-      List fld = (List) li.next();
-      if (fld.size() < 6 || fld.size() > 7) {
-        throw new RuntimeException("fields must have 6 or 7 terms: " + fullName
-            + "/" + fld);
-      }
-      String nullability = (String) fld.get(3);
-      String readability = (String) fld.get(4);
-      boolean nullable;
-      boolean readonly;
-      if ("nullable".equals(nullability)) {
-        nullable = true;
-      } else if ("notnull".equals(nullability)) {
-        nullable = false;
-      } else {
-        throw new RuntimeException("Must specify 'nullable' or 'notnull'");
-      }
-      if ("readonly".equals(readability)) {
-        readonly = true;
-      } else if ("readwrite".equals(readability)) {
-        readonly = false;
-      } else {
-        throw new RuntimeException("Must specify 'readonly' or 'readwrite'");
-      }
-      Field f = new Field((String) fld.get(1), (String) fld.get(0),
-          dfnbase.cfg.dbtypemap.map((String) fld.get(2)), (String) fld.get(5),
-          nullable, !readonly);
-      if (fieldsByName.containsKey(f.name)) {
-        throw new RuntimeException("Duplicate field " + f.name);
-      }
-      if (fld.size() == 7) {
-        SmeltReader sr = new LineListReader((LineList) fld.get(6));
-        sr.readToken();
-        f.fieldExtra = CGLParser.loadDefinition(dfnFile, sr);
-        sr.skipEOL();
-        sr.checkEOF();
+      // Create the fields.
+      for (Iterator fi = raw.fields.iterator(); fi.hasNext();) {
+        RawField rf = (RawField) fi.next();
+        Field f = new Field(rf.name, rf.type, dfnbase.cfg.dbtypemap.map(rf.dbType),
+            rf.description, rf.nullable, !rf.readonly);
+        if (fieldsByName.containsKey(f.name)) {
+          throw new ParseException(rf.loc, "Duplicate field " + f.name);
+        }
+        if (rf.extra != null) f.setExtra(rf.extra);
+        fields.add(f);
+        fieldsByName.put(f.name, f);
       }
-      fields.add(f);
-      fieldsByName.put(f.name, f);
-    }
 
-    // Identify the primary key and whether it is sequenced or not.
-    List pkeyLine = ll.getOneByFirstWord("pkey");
-    Get pkeyGet = new Get();
-    pkeyGet.pkey = true;
-    LineList info = null;
-    if ("sequenced".equals(pkeyLine.get(1))) {
-      Field f = (Field) fieldsByName.get(pkeyLine.get(2));
-      if (f.nullable || f.writable) {
-        throw new RuntimeException("Pk fields must be readonly notnull");
-      }
-      pkey.add(f);
-      pkeyGet.name = f.name;
-      isPkeySequenced = true;
-      if (pkeyLine.size() > 3) info = (LineList) pkeyLine.get(3);
-      if (pkeyLine.size() > 4) {
-        throw new RuntimeException("Expected EOL on pkey");
-      }
-    } else {
-      LineList pkeyFields = (LineList) pkeyLine.get(1);
+      // Identify the primary key and whether it is sequenced or not.
+      RawGet rawPkey = raw.pkey;
+      Get pkeyGet = new Get();
+      pkeyGet.pkey = true;
       String splitter = "";
       pkeyGet.name = "";
-      for (Iterator li = pkeyFields.iterator(); li.hasNext();) {
-        Field f = (Field) fieldsByName.get(((List) li.next()).get(0));
+      for (Iterator li = rawPkey.fields.iterator(); li.hasNext();) {
+        RawFieldRef fref = (RawFieldRef) li.next();
+        Field f = findField(this, fref.fullName, fref.loc);
         if (f.nullable || f.writable) {
-          throw new RuntimeException("Pk fields must be readonly notnull");
+          throw new ParseException(fref.loc, "Pk fields must be readonly notnull");
         }
         pkey.add(f);
         pkeyGet.name += splitter + f.name;
         splitter = "_";
       }
-      isPkeySequenced = false;
-      if (pkeyLine.size() > 2) info = (LineList) pkeyLine.get(2);
-      if (pkeyLine.size() > 3) {
-        throw new RuntimeException("Expected EOL on pkey");
-      }
-    }
-    pkeyGet.fields = pkeyGet.selfFields = pkey;
-    if (info != null) {
-      if (existingName != null || info.getOneByFirstWord("noindex") != null)
-        pkeyGet.noindex = true;
-      if (info.getOneByFirstWord("nocode") != null) pkeyGet.nocode = true;
-      List called = info.getOneByFirstWord("called");
-      if (called != null) pkeyGet.name = (String) called.get(1);
-
-      List ln = info.getOneByFirstWord("extra");
-      if (ln != null) {
-        SmeltReader sr = new LineListReader((LineList) ln.get(1));
-        sr.readToken();
-        pkeyGet.getExtra = CGLParser.loadDefinition(dfnFile, sr);
-        sr.skipEOL();
-        sr.checkEOF();
-      }
+      isPkeySequenced = raw.isPkeySequenced;
+      pkeyGet.fields = pkeyGet.selfFields = pkey;
+
+      // Unlike other gets, the pkey is only forced to noindex on an existing
+      // table if it has a block of its own.
+      pkeyGet.noindex = rawPkey.noindex
+          || (raw.pkeyHasInfo && existingName != null);
+      pkeyGet.nocode = rawPkey.nocode;
+      if (rawPkey.called != null) pkeyGet.name = rawPkey.called;
+      if (rawPkey.extra != null) pkeyGet.setExtra(rawPkey.extra);
+      pkeyGet.makeConsistent();
+
+      // Construct the lists of single and multiple gets in the table.
+      if (!(pkeyGet.noindex && pkeyGet.nocode)) gets.add(pkeyGet);
+
+      fieldsResolved = true;
     }
-    pkeyGet.makeConsistent();
-
-    // Construct the lists of single and multiple gets in the table.
-    if (!(pkeyGet.noindex && pkeyGet.nocode)) gets.add(pkeyGet);
-
-    fieldsResolved = true;
   }
 
   private boolean getsResolved;
 
   public void resolveGets() throws FileLocatedException, IOException {
-    if (getsResolved) return;
-    resolveFields();
-    if (dfnbase.verbose) Output.println("Resolving gets " + fullName);
-    createGets(ll.getAllByFirstWord("get"), gets);
-    getsResolved = true;
+    synchronized (getsLock) {
+      if (getsResolved) return;
+      resolveFields();
+      if (dfnbase.verbose) Output.println("Resolving gets " + fullName);
+      createGets(raw.gets, gets);
+      getsResolved = true;
+    }
   }
 
   private boolean getsFullyResolved;
 
   public void resolveGetsFully() throws FileLocatedException, IOException {
-    if (getsFullyResolved) return;
-    resolveGets();
-    if (dfnbase.verbose) Output.println("Tweaking gets " + fullName);
-
-    // Resolve all other known tables.
-    for (Iterator gli = gets.iterator(); gli.hasNext();) {
-      Get g = (Get) gli.next();
-      for (Iterator tli = g.tables.iterator(); tli.hasNext();) {
-        ((TableRef) tli.next()).resolveGets();
+    synchronized (getsFullyLock) {
+      if (getsFullyResolved) return;
+      resolveGets();
+      if (dfnbase.verbose) Output.println("Tweaking gets " + fullName);
+
+      // Resolve all other known tables.
+      for (Iterator gli = gets.iterator(); gli.hasNext();) {
+        Get g = (Get) gli.next();
+        for (Iterator tli = g.tables.iterator(); tli.hasNext();) {
+          ((TableRef) tli.next()).resolveGets();
+        }
       }
-    }
-
-    // Scan the gets and calculate which tables are "only-one" tables - tables
-    // for which, in this get, there will only ever be one row per row in this
-    // table.
-    for (Iterator i = gets.iterator(); i.hasNext();) {
-      Get g = (Get) i.next();
 
-      // Construct a set of fields that we know we only have one value of.
-      Set uFields = new HashSet();
-      for (Iterator fi = g.fields.iterator(); fi.hasNext();) {
-        Field f = (Field) fi.next();
-        if (f.table != self) uFields.add(f);
-      }
+      // Scan the gets and calculate which tables are "only-one" tables - tables
+      // for which, in this get, there will only ever be one row per row in this
+      // table.
+      for (Iterator i = gets.iterator(); i.hasNext();) {
+        Get g = (Get) i.next();
+
+        // Construct a set of fields that we know we only have one value of.
+        Set uFields = new HashSet();
+        for (Iterator fi = g.fields.iterator(); fi.hasNext();) {
+          Field f = (Field) fi.next();
+          if (f.table != self) uFields.add(f);
+        }
 
-      // Repeatedly try to grow the set of only-one tables until it cannot grow
-      // further. This set starts out as the current table (self.isonlyone is
-      // always true) plus any param tables which have already had isonlyone set
-      boolean grew = true;
-      while (grew) {
-        grew = false;
-        for (Iterator ji = g.joins.iterator(); ji.hasNext();) {
-          JoinAtom ja = (JoinAtom) ji.next();
-
-          // Add all fields joined to only-one tables to the list of known
-          // single-valued fields.
-          TableRef tr = null;
-          String fName = null;
-          if (ja.t1.isonlyone && !ja.t2.isonlyone) {
-            tr = ja.t2;
-            fName = ja.f2;
-          } else if (ja.t2.isonlyone && !ja.t1.isonlyone) {
-            tr = ja.t1;
-            fName = ja.f1;
-          }
-          if (tr != null) {
-            Field f = new Field((Field) tr.table.fieldsByName.get(fName));
-            f.table = tr;
-            uFields.add(f);
+        // Repeatedly try to grow the set of only-one tables until it cannot grow
+        // further. This set starts out as the current table (self.isonlyone is
+        // always true) plus any param tables which have already had isonlyone set
+        boolean grew = true;
+        while (grew) {
+          grew = false;
+          for (Iterator ji = g.joins.iterator(); ji.hasNext();) {
+            JoinAtom ja = (JoinAtom) ji.next();
+
+            // Add all fields joined to only-one tables to the list of known
+            // single-valued fields.
+            TableRef tr = null;
+            String fName = null;
+            if (ja.t1.isonlyone && !ja.t2.isonlyone) {
+              tr = ja.t2;
+              fName = ja.f2;
+            } else if (ja.t2.isonlyone && !ja.t1.isonlyone) {
+              tr = ja.t1;
+              fName = ja.f1;
+            }
+            if (tr != null) {
+              Field f = new Field((Field) tr.table.fieldsByName.get(fName));
+              f.table = tr;
+              uFields.add(f);
+            }
           }
-        }
 
-        // Attempt to find any new tables that are unique by the set of known
-        // single-valued fields. If any such table is found, this table must be
-        // an only-one table.
-        for (Iterator ti = g.tables.iterator(); ti.hasNext();) {
-          TableRef tr = (TableRef) ti.next();
-          if (!tr.isonlyone && tr.table.isUniqueBy(uFields)) {
-            grew = true;
-            tr.isonlyone = true;
+          // Attempt to find any new tables that are unique by the set of known
+          // single-valued fields. If any such table is found, this table must be
+          // an only-one table.
+          for (Iterator ti = g.tables.iterator(); ti.hasNext();) {
+            TableRef tr = (TableRef) ti.next();
+            if (!tr.isonlyone && tr.table.isUniqueBy(uFields)) {
+              grew = true;
+              tr.isonlyone = true;
+            }
           }
         }
-      }
 
-      if (g.orderby != null) {
-        for (Iterator obi = g.orderby.iterator(); obi.hasNext();) {
-          OrderByClause clause = (OrderByClause) obi.next();
-          clause.checkOnlyOne();
+        if (g.orderby != null) {
+          for (Iterator obi = g.orderby.iterator(); obi.hasNext();) {
+            OrderByClause clause = (OrderByClause) obi.next();
+            clause.checkOnlyOne();
+          }
         }
       }
+      getsFullyResolved = true;
     }
-    getsFullyResolved = true;
   }
 
   public List indexes;
   public Map indexMap;
 
   public void resolveIndexes() throws FileLocatedException, IOException {
-    if (indexes != null) return;
-    resolveGets();
-    if (dfnbase.verbose) Output.println("Resolving indexes " + fullName);
-
-    List uniques = new ArrayList();
-    List multis = new ArrayList();
-    for (Iterator li = gets.iterator(); li.hasNext();) {
-      Get get = (Get) li.next();
-      if (!get.noindex && !get.selfFields.isEmpty()) {
-        Index ix = new Index();
-        for (Iterator gli = get.selfFields.iterator(); gli.hasNext();) {
-          Field f = (Field) gli.next();
-          ix.add(f);
-        }
-        if (get.multi || get.where != null) {
-          if (get.where == null && get.orderby != null) {
-            for (Iterator obi = get.orderby.iterator(); obi.hasNext();) {
-              OrderByClause clause = (OrderByClause) obi.next();
-              if (clause.field != null && clause.field.table == self) {
-                ix.cut();
-                ix.add(clause.field);
-              } else {
-                break;
+    synchronized (indexesLock) {
+      if (indexes != null) return;
+      resolveGets();
+      if (dfnbase.verbose) Output.println("Resolving indexes " + fullName);
+
+      List uniques = new ArrayList();
+      List multis = new ArrayList();
+      for (Iterator li = gets.iterator(); li.hasNext();) {
+        Get get = (Get) li.next();
+        if (!get.noindex && !get.selfFields.isEmpty()) {
+          Index ix = new Index();
+          for (Iterator gli = get.selfFields.iterator(); gli.hasNext();) {
+            Field f = (Field) gli.next();
+            ix.add(f);
+          }
+          if (get.multi || get.where != null) {
+            if (get.where == null && get.orderby != null) {
+              for (Iterator obi = get.orderby.iterator(); obi.hasNext();) {
+                OrderByClause clause = (OrderByClause) obi.next();
+                if (clause.field != null && clause.field.table == self) {
+                  ix.cut();
+                  ix.add(clause.field);
+                } else {
+                  break;
+                }
               }
             }
+            multis.add(ix);
+          } else {
+            ix.isUnique = true;
+            uniques.add(ix);
           }
-          multis.add(ix);
-        } else {
-          ix.isUnique = true;
-          uniques.add(ix);
+          ix.name = (get.pkey ? "pk_" : ix.isUnique ? "uk_" : "ix_") + hash + "_"
+              + calcHash(get.name);
         }
-        ix.name = (get.pkey ? "pk_" : ix.isUnique ? "uk_" : "ix_") + hash + "_"
-            + calcHash(get.name);
       }
-    }
-    uniques = Index.trimUniques(uniques);
-    uniques.addAll(Index.trimMultis(uniques, multis));
-
-    indexes = new ArrayList(uniques);
-    indexMap = new HashMap();
-    for (Iterator i = uniques.iterator(); i.hasNext();) {
-      Index ind = (Index) i.next();
-      if (indexMap.containsKey(ind.name)) {
-        Output.println("EEK, added dup of " + ind.name);
+      uniques = Index.trimUniques(uniques);
+      uniques.addAll(Index.trimMultis(uniques, multis));
+
+      indexes = new ArrayList(uniques);
+      indexMap = new HashMap();
+      for (Iterator i = uniques.iterator(); i.hasNext();) {
+        Index ind = (Index) i.next();
+        if (indexMap.containsKey(ind.name)) {
+          Output.println("EEK, added dup of " + ind.name);
+        }
+        indexMap.put(ind.name, ind);
       }
-      indexMap.put(ind.name, ind);
     }
   }
 
   public void resolveRefs() throws FileLocatedException, IOException {
-    if (getsFullyResolved && ll == null) return;
-    resolveGetsFully();
-    if (dfnbase.verbose) Output.println("Resolving refs " + fullName);
-
-    // Parse the references and match them up to the relevant gets on the other
-    // table.
-    REF: for (Iterator rli = ll.getAllByFirstWord("references").iterator(); rli
-        .hasNext();) {
-      List line = (List) rli.next();
-      boolean multi = "multi".equals(line.get(1));
-
-      TableDef otherTd = dfnbase.loadGetsFully((String) line.get(2));
-      if (otherTd == null) {
-        // In the past nrdo permitted gets and references that could not
-        // be resolved. This is generally a bad idea and can now be
-        // disabled by "strict deps".
-        if (dfnbase.cfg.strict("deps"))
-          throw new RuntimeException("Get on " + TableDef.this.name
-              + " refers to table " + line.get(2) + " that cannot be found.");
-        Output
-            .println("Skipped reference due to missing table " + line.get(2));
-        continue;
-      }
-      TableRef otherTable = otherTd.self;
-      TableRef thisTable = new TableRef();
-      thisTable.name = fullName;
-      thisTable.alias = "this";
-      thisTable.isparam = true;
-      thisTable.table = this;
-      thisTable.isonlyone = true;
-
-      Reference ref = new Reference();
-      ref.otherTable = otherTd;
-      ref.thisTable = thisTable;
-      String where = null;
-      ArrayList orderby = null;
-      List params = new ArrayList();
-      List fields = new ArrayList();
-      List tables = new ArrayList();
-      Map tablesByAlias = new HashMap();
-      List joins = new ArrayList();
-
-      LineList lines = (LineList) line.get(3);
-      List ln;
-
-      // Identify the extra parameters associated with this reference.
-      ln = lines.getOneByFirstWord("params");
-      if (ln != null) {
-        LineList prms = (LineList) ln.get(1);
-        for (Iterator pli = prms.iterator(); pli.hasNext();) {
-          List pline = (List) pli.next();
-          String nullability = (String) pline.get(2);
-          boolean nullable;
-          if ("nullable".equals(nullability)) {
-            nullable = true;
-          } else if ("notnull".equals(nullability)) {
-            nullable = false;
-          } else {
-            throw new RuntimeException("Must specify 'nullable' or 'notnull'");
-          }
-          Field f = new Field((String) pline.get(1), (String) pline.get(0),
-              null, (String) pline.get(3), nullable, true);
+    synchronized (refsLock) {
+      if (getsFullyResolved && raw == null) return;
+      resolveGetsFully();
+      if (dfnbase.verbose) Output.println("Resolving refs " + fullName);
+
+      // Resolve the references and match them up to the relevant gets on the
+      // other table.
+      REF: for (Iterator rli = raw.refs.iterator(); rli.hasNext();) {
+        RawReference rr = (RawReference) rli.next();
+        boolean multi = rr.multi;
+
+        TableDef otherTd = dfnbase.loadGetsFully(rr.table);
+        if (otherTd == null) {
+          // In the past nrdo permitted gets and references that could not
+          // be resolved. This is generally a bad idea and can now be
+          // disabled by "strict deps".
+          if (dfnbase.cfg.strict("deps"))
+            throw new ParseException(rr.tableLoc, "Get on " + TableDef.this.name
+                + " refers to table " + rr.table + " that cannot be found.");
+          Output.println("Skipped reference due to missing table " + rr.table);
+          continue;
+        }
+        TableRef otherTable = otherTd.self;
+        TableRef thisTable = new TableRef();
+        thisTable.name = fullName;
+        thisTable.alias = "this";
+        thisTable.isparam = true;
+        thisTable.table = this;
+        thisTable.isonlyone = true;
+
+        Reference ref = new Reference();
+        ref.otherTable = otherTd;
+        ref.thisTable = thisTable;
+        String where = null;
+        ArrayList orderby = null;
+        List params = new ArrayList();
+        List fields = new ArrayList();
+        List tables = new ArrayList();
+        Map tablesByAlias = new HashMap();
+        List joins = new ArrayList();
+
+        // Identify the extra parameters associated with this reference.
+        for (Iterator pli = rr.params.iterator(); pli.hasNext();) {
+          RawParam rp = (RawParam) pli.next();
+          Field f = new Field(rp.name, rp.type, null, rp.description,
+              rp.nullable, true);
           f.table = otherTable;
           params.add(f);
           ref.fieldsAndParams.add(f);
           ref.rparams.add(f);
         }
-      }
 
-      // Identify the tables associated with this reference, excluding this
-      // table.
-      ln = lines.getOneByFirstWord("tables");
-      if (ln != null) {
-        LineList tbls = (LineList) ln.get(1);
-        for (Iterator tli = tbls.iterator(); tli.hasNext();) {
-          List tline = (List) tli.next();
+        // Identify the tables associated with this reference, excluding this
+        // table.
+        for (Iterator tli = rr.tables.iterator(); tli.hasNext();) {
+          RawTableRef rtr = (RawTableRef) tli.next();
           TableRef tr = new TableRef();
-          tr.name = (String) tline.get(0);
-          tr.alias = (String) tline.get(1);
+          tr.name = rtr.name;
+          tr.alias = rtr.alias;
           if (tr.resolve() == null) {
             // In the past nrdo permitted gets and references that could not
             // be resolved. This is generally a bad idea and can now be
             // disabled by "strict deps".
             if (dfnbase.cfg.strict("deps"))
-              throw new RuntimeException("Get on " + TableDef.this.name
+              throw new ParseException(rtr.loc, "Get on " + TableDef.this.name
                   + " refers to table " + tr.name + " that cannot be found.");
             Output.println("Skipped ref due to missing table " + tr.name);
             continue REF;
           }
-          if (tline.size() == 3) {
-            tr.description = (String) tline.get(2);
+          if (rtr instanceof RawParamTable) {
+            tr.description = ((RawParamTable) rtr).description;
             tr.isparam = true;
             tr.isonlyone = true;
             ref.paramTables.add(tr);
-          } else if (tline.size() > 2) {
-            throw new RuntimeException("tables line too long");
           } else {
             tables.add(tr);
           }
@@ -1313,215 +1204,276 @@ public class TableDef implements Mappable, Comparable {
           ref.rtables.add(tr);
           tr.resolve();
         }
-      }
 
-      // Identify the fields associated with this reference.
-      ln = lines.getOneByFirstWord("fields");
-      if (ln != null) {
-        LineList flds = (LineList) ln.get(1);
-        for (Iterator fli = flds.iterator(); fli.hasNext();) {
-          String fName = (String) ((List) fli.next()).get(0);
+        // Identify the fields associated with this reference.
+        for (Iterator fli = rr.fields.iterator(); fli.hasNext();) {
+          RawFieldRef fref = (RawFieldRef) fli.next();
           Field f;
-          if (fName.indexOf('.') > 0) {
-            String tblAlias = fName.substring(0, fName.indexOf('.'));
-            String fn = fName.substring(fName.indexOf('.') + 1);
-            TableRef tr = (TableRef) tablesByAlias.get(tblAlias);
-            f = new Field((Field) tr.table.fieldsByName.get(fn));
+          if (fref.alias != null) {
+            TableRef tr = findTable(tablesByAlias, fref.alias, fref.loc);
+            f = new Field(findField(tr.table, fref.name, fref.loc));
             f.table = tr;
-            f.fullName = fName;
+            f.fullName = fref.fullName;
           } else {
-            f = (Field) otherTd.fieldsByName.get(fName);
+            f = findField(otherTd, fref.name, fref.loc);
           }
           fields.add(f);
           ref.rfields.add(f);
           ref.fieldsAndParams.add(f);
         }
-      }
 
-      // Identify the joins associated with this reference (simple form).
-      ln = lines.getOneByFirstWord("by");
-      if (ln != null) {
-        LineList jns = (LineList) ln.get(1);
-        for (Iterator jli = jns.iterator(); jli.hasNext();) {
-          List jline = (List) jli.next();
+        // Identify the joins associated with this reference (simple form).
+        for (Iterator jli = rr.by.iterator(); jli.hasNext();) {
+          RawJoin rj = (RawJoin) jli.next();
           JoinAtom ja = new JoinAtom();
           ja.t1 = thisTable;
           ja.t2 = otherTable;
-          ja.f1 = (String) jline.get(0);
-          ja.f2 = (String) jline.get(1);
+          ja.f1 = rj.field1;
+          ja.f2 = rj.field2;
           ref.paramJoins.add(ja);
           Field f = (Field) otherTd.fieldsByName.get(ja.f2);
           fields.add(f);
           ref.rjoins.add(ja);
         }
-      }
 
-      // Identify the joins associated with this reference (full form).
-      ln = lines.getOneByFirstWord("joins");
-      if (ln != null) {
-        LineList jns = (LineList) ln.get(1);
-        for (Iterator jli = jns.iterator(); jli.hasNext();) {
-          List jline = (List) jli.next();
-          if (!"to".equals(jline.get(1))) {
-            throw new RuntimeException("Expected 'to'");
-          }
-          String tbl1 = (String) jline.get(0);
-          String tbl2 = (String) jline.get(2);
-          LineList jfields = (LineList) jline.get(3);
-          TableRef tr1 = "*".equals(tbl1) ? thisTable
-              : (TableRef) tablesByAlias.get(tbl1);
-          TableRef tr2 = "*".equals(tbl2) ? otherTable
-              : (TableRef) tablesByAlias.get(tbl2);
-          for (Iterator fli = jfields.iterator(); fli.hasNext();) {
-            List fline = (List) fli.next();
-            JoinAtom ja = new JoinAtom();
-            ja.t1 = tr1;
-            ja.t2 = tr2;
-            ja.f1 = (String) fline.get(0);
-            ja.f2 = (String) fline.get(1);
-            if (tr1.isparam && tr2.isparam) {
-              throw new RuntimeException("Cannot join two param tables");
-            } else if (tr1.isparam || tr2.isparam) {
-              ref.paramJoins.add(ja);
-              TableRef jtr = tr1.isparam ? tr2 : tr1;
-              String jfn = tr1.isparam ? ja.f2 : ja.f1;
-              Field f = new Field((Field) jtr.table.fieldsByName.get(jfn));
-              f.table = jtr;
-              if (jtr != otherTable) {
-                f.fullName = jtr.alias + "." + jfn;
-              }
-              fields.add(f);
-            } else {
-              joins.add(ja);
+        // Identify the joins associated with this reference (full form).
+        for (Iterator jli = rr.joins.iterator(); jli.hasNext();) {
+          RawJoin rj = (RawJoin) jli.next();
+          TableRef tr1 = "*".equals(rj.table1) ? thisTable : findTable(
+              tablesByAlias, rj.table1, rj.loc);
+          TableRef tr2 = "*".equals(rj.table2) ? otherTable : findTable(
+              tablesByAlias, rj.table2, rj.loc);
+          JoinAtom ja = new JoinAtom();
+          ja.t1 = tr1;
+          ja.t2 = tr2;
+          ja.f1 = rj.field1;
+          ja.f2 = rj.field2;
+          if (tr1.isparam && tr2.isparam) {
+            throw new ParseException(rj.loc, "Cannot join two param tables");
+          } else if (tr1.isparam || tr2.isparam) {
+            ref.paramJoins.add(ja);
+            TableRef jtr = tr1.isparam ? tr2 : tr1;
+            String jfn = tr1.isparam ? ja.f2 : ja.f1;
+            Field f = new Field(findField(jtr.table, jfn, rj.loc));
+            f.table = jtr;
+            if (jtr != otherTable) {
+              f.fullName = jtr.alias + "." + jfn;
             }
-            ref.rjoins.add(ja);
+            fields.add(f);
+          } else {
+            joins.add(ja);
           }
+          ref.rjoins.add(ja);
         }
-      }
 
-      // Identify the other parameters associated with this reference.
-      ln = lines.getOneByFirstWord("where");
-      if (ln != null) {
-        where = (String) ln.get(1);
+        // Identify the other parameters associated with this reference.
+        where = rr.where;
         ref.rwhere = where;
-      }
-
-      ln = lines.getOneByFirstWord("called");
-      if (ln != null) ref.name = (String) ln.get(1);
-
-      ln = lines.getOneByFirstWord("orderby");
-      if (ln != null) {
-        orderby = otherTd.parseOrderBy(tablesByAlias, ln);
-        ref.rorderby = orderby;
-      }
-
-      ln = lines.getOneByFirstWord("description");
-      if (ln != null) ref.description = (String) ln.get(1);
-
-      ref.nocode = (lines.getOneByFirstWord("nocode") != null);
-
-      ln = lines.getOneByFirstWord("fkey");
-      if (ln != null) {
-        ref.fkey = true;
-        ref.cascading = ln.size() > 1 && "cascade".equals(ln.get(1));
-      }
-
-      if (ref.fkey
-          && (!tables.isEmpty() || !params.isEmpty()
-              || fields.size() != ref.paramJoins.size() || where != null)) {
-        throw new RuntimeException("Illegal argument with fkey");
-      }
-      if (ref.fkey && ref.otherTable.existingName != null) {
-        throw new RuntimeException(
-            "Fkey cannot be used against 'existing' tables");
-      }
-      String defaultMinName = "";
-      String splitter = "";
-      for (Iterator li = ref.paramTables.iterator(); li.hasNext();) {
-        defaultMinName += splitter + ((TableRef) li.next()).alias;
-        splitter = "_";
-      }
-      for (Iterator li = ref.fieldsAndParams.iterator(); li.hasNext();) {
-        defaultMinName += splitter + ((Field) li.next()).name;
-        splitter = "_";
-      }
-      String defaultName = otherTable.table.name;
-      if (multi) defaultName += "s";
-      if (!"".equals(defaultMinName)) defaultName += "_by_" + defaultMinName;
-      
-      if (ref.name == null) ref.name = defaultName;
-
-      if (ref.description == null) {
-        ref.description = "get " + ref.name;
-      }
-
-      // Go and find the get on the other table that corresponds to this ref.
-      for (Iterator gli = otherTd.gets.iterator(); gli.hasNext();) {
-        Get get = (Get) gli.next();
-        boolean diagnose = get.name.endsWith(ref.name);
-        if (get.nocode && !ref.nocode) {
-          diag(diagnose, "Nocode");
-          continue;
+        ref.name = rr.called;
+        if (rr.orderby != null) {
+          orderby = otherTd.resolveOrderBy(tablesByAlias, rr.orderby);
+          ref.rorderby = orderby;
         }
-        if (get.noindex && ref.fkey) {
-          diag(diagnose, "noindex/fkey");
-          continue;
+        ref.description = rr.description;
+        ref.nocode = rr.nocode;
+        ref.fkey = rr.fkey;
+        ref.cascading = rr.cascade;
+        if (ref.fkey
+            && (!tables.isEmpty() || !params.isEmpty()
+                || fields.size() != ref.paramJoins.size() || where != null)) {
+          throw new ParseException(rr.loc, "Illegal argument with fkey");
         }
-        if (where == null ? get.rawWhere != null : !where.equals(get.rawWhere)) {
-          {
-            diag(diagnose, "where");
-            continue;
-          }
+        if (ref.fkey && ref.otherTable.existingName != null) {
+          throw new ParseException(rr.loc,
+              "Fkey cannot be used against 'existing' tables");
         }
-        if (orderby != null && !orderby.equals(get.orderby)) {
-          diag(diagnose, "orderby");
-          continue;
+        String defaultMinName = "";
+        String splitter = "";
+        for (Iterator li = ref.paramTables.iterator(); li.hasNext();) {
+          defaultMinName += splitter + ((TableRef) li.next()).alias;
+          splitter = "_";
         }
-
-        if (params.size() != get.params.size()
-            || !params.containsAll(get.params)) {
-          diag(diagnose, "params");
-          continue;
+        for (Iterator li = ref.fieldsAndParams.iterator(); li.hasNext();) {
+          defaultMinName += splitter + ((Field) li.next()).name;
+          splitter = "_";
         }
+        String defaultName = otherTable.table.name;
+        if (multi) defaultName += "s";
+        if (!"".equals(defaultMinName)) defaultName += "_by_" + defaultMinName;
+      
+        if (ref.name == null) ref.name = defaultName;
 
-        // "Fields" now includes fields joined to param tables.
-        if (fields.size() != get.fields.size()
-            || !fields.containsAll(get.fields)) {
-          diag(diagnose, "fields " + fields + get.fields);
-          continue;
+        if (ref.description == null) {
+          ref.description = "get " + ref.name;
         }
 
-        if (tables.size() != get.tables.size()
-            || !tables.containsAll(get.tables)) {
-          diag(diagnose, "tables");
-          continue;
+        // Go and find the get on the other table that corresponds to this ref.
+        // Only gets with the same signature can match, so those are the only
+        // ones that need checking in full.
+        List candidates = otherTd.getsWithSignature(getSignature(where, params,
+            fields, tables, joins));
+        for (Iterator gli = candidates.iterator(); gli.hasNext();) {
+          Get get = (Get) gli.next();
+          if (matchFailure(ref, get, where, orderby, params, fields, tables,
+              joins) == null) {
+            ref.get = get;
+            break;
+          }
         }
 
-        if (joins.size() != get.joins.size() || !joins.containsAll(get.joins)) {
-          diag(diagnose, "joins");
-          continue;
+        // Explain why any similarly-named gets ahead of the match (or all of
+        // them, if there wasn't one) didn't match.
+        for (Iterator gli = otherTd.gets.iterator(); gli.hasNext();) {
+          Get get = (Get) gli.next();
+          if (get == ref.get) break;
+          if (get.name.endsWith(ref.name)) {
+            diag(true, matchFailure(ref, get, where, orderby, params, fields,
+                tables, joins));
+          }
         }
-
-        ref.get = get;
-        break;
+        if (ref.get == null) {
+          throw new ParseException(rr.loc, "no matching get for reference: "
+              + this.fullName + "/" + otherTd.fullName + "/" + ref.name);
+        }
+        if (ref.fkey) {
+          ref.fkeyName = "fk_" + ref.thisTable.table.hash + "_"
+              + ref.otherTable.hash;
+          if (!ref.name.equals(defaultName)) {
+            ref.fkeyName += "_" + ref.name;
+          } else if (!"".equals(defaultMinName)) {
+            ref.fkeyName += "_" + defaultMinName;
+          }
+        }
+        references.add(ref);
       }
-      if (ref.get == null) {
-        throw new RuntimeException("no matching get for reference: "
-            + this.fullName + "/" + otherTd.fullName + "/" + ref.name);
+      raw = null;
+      if (dfnbase.verbose) Output.println("Fully resolved table " + fullName);
+    }
+  }
+
+  /**
+   * Check whether a get matches a reference, returning null if it does or the
+   * reason it doesn't if not.
+   */
+  private static String matchFailure(Reference ref, Get get, String where,
+      List orderby, List params, List fields, List tables, List joins) {
+    if (get.nocode && !ref.nocode) return "Nocode";
+    if (get.noindex && ref.fkey) return "noindex/fkey";
+    if (where == null ? get.rawWhere != null : !where.equals(get.rawWhere)) {
+      return "where";
+    }
+    if (orderby != null && !orderby.equals(get.orderby)) return "orderby";
+    if (params.size() != get.params.size() || !params.containsAll(get.params)) {
+      return "params";
+    }
+    // "Fields" now includes fields joined to param tables.
+    if (fields.size() != get.fields.size() || !fields.containsAll(get.fields)) {
+      return "fields " + fields + get.fields;
+    }
+    if (tables.size() != get.tables.size() || !tables.containsAll(get.tables)) {
+      return "tables";
+    }
+    if (joins.size() != get.joins.size() || !joins.containsAll(get.joins)) {
+      return "joins";
+    }
+    return null;
+  }
+
+  /**
+   * Gets indexed by getSignature, plus those that can't be indexed that way
+   * because they have duplicate entries in some list.
+   */
+  private transient Map getsBySignature;
+  private transient List unsignedGets;
+
+  /**
+   * A key that is equal for any get and reference that can match. Matching
+   * only compares the lists' sizes and checks that one contains everything in
+   * the other, so this is built from the sizes and from an order-independent
+   * hash of the distinct entries.
+   */
+  private static List getSignature(String where, List params, List fields,
+      List tables, List joins) {
+    return Arrays.asList(new Object[] { where, new Integer(params.size()),
+        new Integer(setHash(params)), new Integer(fields.size()),
+        new Integer(setHash(fields)), new Integer(tables.size()),
+        new Integer(setHash(tables)), new Integer(joins.size()),
+        new Integer(setHash(joins)) });
+  }
+
+  private static int setHash(List l) {
+    List seen = new ArrayList(l.size());
+    int hash = 0;
+    for (Iterator i = l.iterator(); i.hasNext();) {
+      Object o = i.next();
+      if (!seen.contains(o)) {
+        seen.add(o);
+        hash += hashOf(o);
       }
-      if (ref.fkey) {
-        ref.fkeyName = "fk_" + ref.thisTable.table.hash + "_"
-            + ref.otherTable.hash;
-        if (!ref.name.equals(defaultName)) {
-          ref.fkeyName += "_" + ref.name;
-        } else if (!"".equals(defaultMinName)) {
-          ref.fkeyName += "_" + defaultMinName;
+    }
+    return hash;
+  }
+
+  private static boolean hasDuplicates(List l) {
+    for (int i = 1; i < l.size(); i++) {
+      if (l.subList(0, i).contains(l.get(i))) return true;
+    }
+    return false;
+  }
+
+  // TableRef and JoinAtom define equals but not hashCode, and giving them one
+  // would change how they behave as keys elsewhere, so hash them here instead.
+  private static int hashOf(Object o) {
+    if (o instanceof TableRef) {
+      TableRef tr = (TableRef) o;
+      return tr.name.hashCode() * 31 + tr.alias.hashCode() + (tr.isparam ? 1 : 0);
+    } else if (o instanceof JoinAtom) {
+      JoinAtom ja = (JoinAtom) o;
+      return (hashOf(ja.t1) * 31 + ja.f1.hashCode())
+          + (hashOf(ja.t2) * 31 + ja.f2.hashCode());
+    } else {
+      return o.hashCode();
+    }
+  }
+
+  /**
+   * The gets that could match a reference with the given signature, in the
+   * order they are declared.
+   */
+  synchronized List getsWithSignature(List signature) {
+    if (getsBySignature == null) {
+      getsBySignature = new HashMap();
+      unsignedGets = new ArrayList();
+      for (Iterator i = gets.iterator(); i.hasNext();) {
+        Get get = (Get) i.next();
+        if (hasDuplicates(get.params) || hasDuplicates(get.fields)
+            || hasDuplicates(get.tables) || hasDuplicates(get.joins)) {
+          unsignedGets.add(get);
+          continue;
         }
+        List key = getSignature(get.rawWhere, get.params, get.fields,
+            get.tables, get.joins);
+        List bucket = (List) getsBySignature.get(key);
+        if (bucket == null) {
+          bucket = new ArrayList(1);
+          getsBySignature.put(key, bucket);
+        }
+        bucket.add(get);
+      }
+    }
+    List bucket = (List) getsBySignature.get(signature);
+    if (unsignedGets.isEmpty()) {
+      return bucket == null ? Collections.EMPTY_LIST : bucket;
+    }
+    List result = new ArrayList();
+    for (Iterator i = gets.iterator(); i.hasNext();) {
+      Get get = (Get) i.next();
+      if (unsignedGets.contains(get)
+          || (bucket != null && bucket.contains(get))) {
+        result.add(get);
       }
-      references.add(ref);
     }
-    ll = null;
-    if (dfnbase.verbose) Output.println("Fully resolved table " + fullName);
+    return result;
   }
 
   void diag(boolean diag, String msg) {
@@ -1538,6 +1490,64 @@ public class TableDef implements Mappable, Comparable {
     return false;
   }
 
+  /**
+   * Whether the references have been resolved, and with them everything
+   * addLinkedTables looks at.
+   */
+  boolean isResolved() {
+    synchronized (refsLock) {
+      return getsFullyResolved && raw == null;
+    }
+  }
+
+  /**
+   * Add every table that the resolved parts of this one point to - through its
+   * fields, gets, references and indexes - to the given set.
+   */
+  void addLinkedTables(Set into) {
+    addLinkedTables(into, fields);
+    for (Iterator i = gets.iterator(); i.hasNext();) {
+      Get g = (Get) i.next();
+      addLinkedTables(into, g.fields);
+      addLinkedTables(into, g.params);
+      addLinkedTables(into, g.tables);
+      addLinkedTables(into, g.joins);
+      if (g.orderby != null) addLinkedTables(into, g.orderby);
+    }
+    for (Iterator i = references.iterator(); i.hasNext();) {
+      Reference r = (Reference) i.next();
+      into.add(r.otherTable);
+      if (r.thisTable != null) into.add(r.thisTable.table);
+      addLinkedTables(into, r.paramTables);
+      addLinkedTables(into, r.paramJoins);
+      addLinkedTables(into, r.fieldsAndParams);
+      addLinkedTables(into, r.rorderby);
+      addLinkedTables(into, r.rparams);
+      addLinkedTables(into, r.rfields);
+      addLinkedTables(into, r.rtables);
+      addLinkedTables(into, r.rjoins);
+    }
+    if (indexes != null) {
+      for (Iterator i = indexes.iterator(); i.hasNext();) {
+        addLinkedTables(into, (List) i.next());
+      }
+    }
+  }
+
+  private static void addLinkedTables(Set into, List items) {
+    for (Iterator i = items.iterator(); i.hasNext();) {
+      Object o = i.next();
+      if (o instanceof OrderByClause) o = ((OrderByClause) o).field;
+      if (o instanceof Field) o = ((Field) o).table;
+      if (o instanceof JoinAtom) {
+        into.add(((JoinAtom) o).t1.table);
+        into.add(((JoinAtom) o).t2.table);
+      } else if (o instanceof TableRef) {
+        into.add(((TableRef) o).table);
+      }
+    }
+  }
+
   private static final Set availSet = new HashSet(Arrays.asList(new String[] {
       // Fields that can be populated with no load at all:
       "module", "dbobject", "hash", "modparts",
@@ -1546,9 +1556,9 @@ public class TableDef implements Mappable, Comparable {
       "indexes", "before", "renamed",
       // Fields that require references to be resolved:
       "gets", "references" }));
-  private Map asMap;
+  private transient Map asMap;
 
-  public Map toMap() {
+  public synchronized Map toMap() {
     if (asMap == null) {
       asMap = new LazyMap() {
         private int state = 0;
@@ -37,6 +37,7 @@ package net.netreach.nrdo.tools;
 
 // Collections classes used to implement the appropriate behavior.
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -52,16 +53,18 @@ import net.netreach.util.Mappable;
  */
 public class Util {
 
-  public static class SQLParam implements Mappable {
+  public static class SQLParam implements Mappable, Serializable {
+    private static final long serialVersionUID = Snapshot.VERSION;
+
     public String sqlbefore;
 
     public SQLParam(String sqlbefore) {
       this.sqlbefore = sqlbefore;
     }
 
-    protected Map asMap;
+    protected transient Map asMap;
 
-    public Map toMap() {
+    public synchronized Map toMap() {
       if (asMap == null) {
         asMap = new HashMap();
         asMap.put("sqlbefore", sqlbefore);
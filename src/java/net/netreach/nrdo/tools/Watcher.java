@@ -0,0 +1,309 @@
+package net.netreach.nrdo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.netreach.cgl.CGLParser;
+import net.netreach.util.Output;
+import net.netreach.util.PathUtil;
+
+/**
+ * Runs nrdo once as the command line asks, then again each time a file it
+ * read changes, for as long as it is left running. A change to a dfn file
+ * only generates code again for that table and the tables that link to it,
+ * as found when they were last resolved, and a change to a qu file only for
+ * that query; everything else is kept in memory from the run before, as the
+ * server keeps it, with the model snapshot in place of loading and resolving
+ * the tables that are left alone. A change to a config, a template or
+ * anything it imports, a file being removed, or a run that failed means the
+ * next run does everything again, though still with what's kept. Changes are
+ * only acted on once no more have come for DEBOUNCE milliseconds, so that a
+ * burst of saves is one run. Only the first run updates the database, unless
+ * -create asked for nothing else; after that only code is generated.
+ */
+final class Watcher {
+
+  private static final long DEBOUNCE = 100;
+
+  private final WatchService service;
+
+  /** The directory each key was registered for. */
+  private final Map dirs = new HashMap();
+
+  /** The canonical paths of the dfn and qu directories being watched. */
+  private final Set roots = new HashSet();
+
+  /** The canonical paths of the other files that changing means a full run. */
+  private final Set watched = new HashSet();
+
+  /** The canonical paths of the dfn and qu files known to the last run. */
+  private final Set known = new HashSet();
+
+  /**
+   * The canonical path of each table's dfn file mapped to the Set of those of
+   * the tables it links to, as of the last run that resolved it: a run that
+   * leaves a table out only loads as much of it as other tables need.
+   */
+  private final Map linksOf = new HashMap();
+
+  /** The reverse of linksOf. */
+  private final Map linkedFrom = new HashMap();
+
+  private Watcher() throws IOException {
+    service = FileSystems.getDefault().newWatchService();
+  }
+
+  static void watch(String[] args) throws Throwable {
+    String configPath = null;
+    for (int i = 0; i < args.length && configPath == null; i++) {
+      if (!args[i].startsWith("-")) configPath = args[i];
+    }
+    // Later runs only generate code, unless all that was asked for was the
+    // database.
+    List later = new ArrayList(Arrays.asList(args));
+    if (!later.contains("-create")) later.add("-gen");
+    String[] genArgs = (String[]) later.toArray(new String[later.size()]);
+
+    DfnBase.setRetainParses(true);
+    Snapshot.setKeepInMemory(true);
+    new Watcher().loop(configPath, args, genArgs);
+  }
+
+  private void loop(String configPath, String[] args, String[] genArgs)
+      throws Throwable {
+    Map only = null;
+    boolean first = true;
+    while (true) {
+      long start = System.currentTimeMillis();
+      NRDOTool.reset();
+      ParallelGen.setOnly(only);
+      boolean ok;
+      try {
+        ok = NRDOTool.run(first ? args : genArgs);
+      } catch (Throwable t) {
+        Output.reportException(t);
+        ok = false;
+      }
+      first = false;
+      Output.println("nrdo: " + (ok ? "Done" : "Failed") + " in "
+          + (System.currentTimeMillis() - start) + "ms; watching for changes.");
+      if (configPath == null) return;
+
+      boolean scanned;
+      try {
+        scan(Config.get(configPath));
+        scanned = true;
+      } catch (Exception e) {
+        // The run has already said what is wrong with the config; until it
+        // can be read, only it and its directory are watched.
+        watched.add(PathUtil.canonicalPath(new File(configPath)));
+        register(PathUtil.canonicalFile(new File(configPath)).getParentFile());
+        scanned = false;
+      }
+      only = waitForChanges();
+      if (!ok || !scanned) only = null;
+    }
+  }
+
+  /**
+   * Find the files a run just made depends on, and watch their directories.
+   */
+  private void scan(Config cfg) throws IOException {
+    roots.clear();
+    watched.clear();
+    known.clear();
+    for (Iterator i = CGLParser.getTouchedFiles().iterator(); i.hasNext();) {
+      watched.add(PathUtil.canonicalPath((File) i.next()));
+    }
+    scan(cfg, new HashSet());
+
+    linksOf.keySet().retainAll(known);
+    linkedFrom.clear();
+    for (Iterator i = linksOf.entrySet().iterator(); i.hasNext();) {
+      Map.Entry e = (Map.Entry) i.next();
+      for (Iterator j = ((Set) e.getValue()).iterator(); j.hasNext();) {
+        Object to = j.next();
+        Set from = (Set) linkedFrom.get(to);
+        if (from == null) {
+          from = new HashSet();
+          linkedFrom.put(to, from);
+        }
+        from.add(e.getKey());
+      }
+    }
+
+    for (Iterator i = roots.iterator(); i.hasNext();) {
+      registerAll(new File((String) i.next()), null);
+    }
+    for (Iterator i = watched.iterator(); i.hasNext();) {
+      register(new File((String) i.next()).getParentFile());
+    }
+  }
+
+  private void scan(Config cfg, Set seen) throws IOException {
+    if (!seen.add(cfg)) return;
+    for (Config c = cfg; c != null; c = c.baseConfig) {
+      watched.add(PathUtil.canonicalPath(c.cfgfile));
+    }
+    for (Iterator i = cfg.dfnbase.dfnPath.iterator(); i.hasNext();) {
+      File root = new File((String) i.next());
+      if (root.isFile()) {
+        // A project or solution file lists the files, so it is a file to
+        // watch itself.
+        watched.add(root.getPath());
+        root = root.getParentFile();
+      }
+      roots.add(root.getPath());
+    }
+    for (Iterator i = cfg.dfnbase.getAllQueries().iterator(); i.hasNext();) {
+      known.add(PathUtil.canonicalPath(((QueryDef) i.next()).dfnFile));
+    }
+    for (Iterator i = cfg.dfnbase.getAll().iterator(); i.hasNext();) {
+      TableDef td = (TableDef) i.next();
+      String path = PathUtil.canonicalPath(td.dfnFile);
+      known.add(path);
+      if (!td.isResolved()) continue;
+      Set links = new HashSet();
+      td.addLinkedTables(links);
+      Set paths = new HashSet();
+      for (Iterator j = links.iterator(); j.hasNext();) {
+        TableDef linked = (TableDef) j.next();
+        if (linked != null && linked != td) {
+          paths.add(PathUtil.canonicalPath(linked.dfnFile));
+        }
+      }
+      linksOf.put(path, paths);
+    }
+    for (Iterator i = cfg.depends.iterator(); i.hasNext();) {
+      scan((Config) i.next(), seen);
+    }
+  }
+
+  /**
+   * Watch a directory and those under it, adding the files in them to the
+   * set if one is given.
+   */
+  private void registerAll(File dir, Set changed) throws IOException {
+    if (!dir.isDirectory()) return;
+    register(dir);
+    File[] files = dir.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      if (files[i].isDirectory()) {
+        registerAll(files[i], changed);
+      } else if (changed != null) {
+        changed.add(files[i]);
+      }
+    }
+  }
+
+  private void register(File dir) throws IOException {
+    if (dir == null || !dir.isDirectory() || dirs.containsValue(dir)) return;
+    WatchKey key = dir.toPath().register(service,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    dirs.put(key, dir);
+  }
+
+  /**
+   * Wait for a burst of changes that matter and return what the next run
+   * should be limited to, as for ParallelGen.setOnly, or null for a full run.
+   */
+  private Map waitForChanges() throws IOException, InterruptedException {
+    while (true) {
+      Set changed = new HashSet();
+      boolean overflow = take(service.take(), changed);
+      WatchKey key;
+      while ((key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+        overflow |= take(key, changed);
+      }
+      if (overflow) return null;
+
+      Map only = new HashMap();
+      for (Iterator i = changed.iterator(); i.hasNext();) {
+        File f = (File) i.next();
+        String path = PathUtil.canonicalPath(f);
+        if (watched.contains(path)) return null;
+        String name = f.getName();
+        if (!name.endsWith(".dfn") && !name.endsWith(".qu")) continue;
+        if (!isUnderRoot(path)) continue;
+        if (!f.isFile()) {
+          if (known.contains(path)) return null;
+          continue;
+        }
+        only.put(path, new Long(0));
+      }
+      if (only.isEmpty()) continue;
+
+      // The tables that link to a changed table are generated again too,
+      // as if they had changed when it did.
+      Set changedPaths = new HashSet(only.keySet());
+      for (Iterator i = changedPaths.iterator(); i.hasNext();) {
+        String path = (String) i.next();
+        Set from = (Set) linkedFrom.get(path);
+        if (from == null) continue;
+        long age = new File(path).lastModified();
+        for (Iterator j = from.iterator(); j.hasNext();) {
+          String linker = (String) j.next();
+          if (changedPaths.contains(linker)) continue;
+          Long forced = (Long) only.get(linker);
+          if (forced == null || forced.longValue() < age) {
+            only.put(linker, new Long(age));
+          }
+        }
+      }
+      return only;
+    }
+  }
+
+  /**
+   * Add the files a key has seen change to the set, registering any new
+   * directories under a root. Returns true if changes were lost.
+   */
+  private boolean take(WatchKey key, Set changed) throws IOException {
+    File dir = (File) dirs.get(key);
+    boolean overflow = false;
+    List events = key.pollEvents();
+    for (Iterator i = events.iterator(); i.hasNext();) {
+      WatchEvent event = (WatchEvent) i.next();
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        overflow = true;
+      } else if (dir != null) {
+        File f = new File(dir, ((Path) event.context()).toString());
+        if (f.isDirectory()) {
+          // Files may have been put in it before it was registered.
+          if (isUnderRoot(PathUtil.canonicalPath(f))) registerAll(f, changed);
+        } else {
+          changed.add(f);
+        }
+      }
+    }
+    if (!key.reset()) dirs.remove(key);
+    return overflow;
+  }
+
+  private boolean isUnderRoot(String path) {
+    for (Iterator i = roots.iterator(); i.hasNext();) {
+      String root = (String) i.next();
+      if (path.equals(root) || path.startsWith(root + File.separator)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,645 @@
+package net.netreach.nrdo.tools.dfn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import net.netreach.smelt.ParseException;
+import net.netreach.util.FileLocation;
+
+/**
+ * A directory of binary files holding the Raw* records parsed from .dfn and .qu
+ * files, so that unchanged files need not be parsed again on the next run.
+ * Each entry records the path, size, modification time and SHA-1 hash of the
+ * file it came from. An entry is used without reading the file at all if the
+ * size and time match, and after checking the hash if only the time differs
+ * (as happens when a file is checked out again without changing). Anything
+ * else, including an entry that cannot be read, just means the file is parsed
+ * and the entry written again.
+ */
+public class ParseCache {
+
+  private static final int MAGIC = 0x4e524450; // "NRDP"
+  private static final int VERSION = 2;
+  private static final byte TABLE = 'T';
+  private static final byte QUERY = 'Q';
+
+  private final File dir;
+  int hits;
+  int misses;
+
+  public ParseCache(File dir) {
+    this.dir = dir;
+  }
+
+  public RawTable getTable(File file) throws IOException, ParseException {
+    return (RawTable) get(file, TABLE);
+  }
+
+  public RawQuery getQuery(File file) throws IOException, ParseException {
+    return (RawQuery) get(file, QUERY);
+  }
+
+  private Object get(File file, byte kind) throws IOException, ParseException {
+    String path = file.getCanonicalPath();
+    long length = file.length();
+    long modified = file.lastModified();
+    File entry = new File(dir, file.getName() + "-"
+        + Integer.toHexString(path.hashCode()) + ".cache");
+
+    byte[] contents = null;
+    byte[] hash = null;
+    if (entry.isFile()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(entry)));
+      try {
+        if (in.readInt() == MAGIC && in.readInt() == VERSION
+            && path.equals(readString(in)) && in.readLong() == length) {
+          boolean sameTime = in.readLong() == modified;
+          byte[] oldHash = new byte[in.readInt()];
+          in.readFully(oldHash);
+          if (!sameTime) {
+            contents = readFile(file, length);
+            hash = sha1(contents);
+          }
+          if ((sameTime || Arrays.equals(hash, oldHash))
+              && in.readByte() == kind) {
+            Object result = kind == TABLE ? (Object) readTable(in, file)
+                : (Object) readQuery(in, file);
+            hits++;
+            if (!sameTime) write(entry, path, length, modified, hash, result);
+            return result;
+          }
+        }
+      } catch (IOException e) {
+        // An unreadable entry is treated the same as a missing one.
+      } finally {
+        in.close();
+      }
+    }
+
+    misses++;
+    if (contents == null) {
+      contents = readFile(file, length);
+      hash = sha1(contents);
+    }
+    char[] chars = new String(contents).toCharArray();
+    Object result = kind == TABLE ? (Object) Parser.parseTable(file, chars)
+        : (Object) Parser.parseQuery(file, chars);
+    write(entry, path, length, modified, hash, result);
+    return result;
+  }
+
+  private void write(File entry, String path, long length, long modified,
+      byte[] hash, Object raw) {
+    File tmp = null;
+    try {
+      dir.mkdirs();
+      tmp = File.createTempFile(entry.getName(), ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, path);
+        out.writeLong(length);
+        out.writeLong(modified);
+        out.writeInt(hash.length);
+        out.write(hash);
+        if (raw instanceof RawTable) {
+          out.writeByte(TABLE);
+          writeTable(out, (RawTable) raw);
+        } else {
+          out.writeByte(QUERY);
+          writeQuery(out, (RawQuery) raw);
+        }
+      } finally {
+        out.close();
+      }
+      entry.delete();
+      if (tmp.renameTo(entry)) tmp = null;
+    } catch (IOException e) {
+      // Failing to write the cache only means the file will be parsed again
+      // next time.
+    } finally {
+      if (tmp != null) tmp.delete();
+    }
+  }
+
+  private static byte[] readFile(File file, long length) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] result = new byte[(int) length];
+      int len = 0;
+      while (len < result.length) {
+        int n = in.read(result, len, result.length - len);
+        if (n < 0) break;
+        len += n;
+      }
+      if (len < result.length) {
+        byte[] trimmed = new byte[len];
+        System.arraycopy(result, 0, trimmed, 0, len);
+        result = trimmed;
+      }
+      return result;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] sha1(byte[] contents) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(contents);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Writing the records. Every write method has a read method below that
+  // must be kept in step with it; change VERSION if the format changes.
+
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l.size());
+    for (int i = 0; i < l.size(); i++) {
+      writeString(out, (String) l.get(i));
+    }
+  }
+
+  private static void writeLoc(DataOutputStream out, FileLocation loc)
+      throws IOException {
+    out.writeBoolean(loc != null);
+    if (loc != null) {
+      out.writeInt(loc.getLine());
+      out.writeInt(loc.getCol());
+      out.writeInt(loc.getEndLine());
+      out.writeInt(loc.getEndCol());
+    }
+  }
+
+  private static void writeCgl(DataOutputStream out, RawCgl cgl)
+      throws IOException {
+    out.writeBoolean(cgl != null);
+    if (cgl != null) {
+      // The fragment starts with padding that only reflects its position in
+      // the file, so just store the size of it.
+      String fragment = cgl.getFragment();
+      int lines = 0;
+      while (lines < fragment.length() && fragment.charAt(lines) == '\n') {
+        lines++;
+      }
+      int start = lines;
+      while (start < fragment.length() && fragment.charAt(start) == ' ') {
+        start++;
+      }
+      out.writeInt(lines);
+      out.writeInt(start - lines);
+      writeString(out, fragment.substring(start));
+    }
+  }
+
+  private static void writeTable(DataOutputStream out, RawTable t)
+      throws IOException {
+    writeString(out, t.fullName);
+    writeLoc(out, t.fullNameLoc);
+    writeString(out, t.description);
+    writeString(out, t.longDesc);
+    writeCgl(out, t.extra);
+    out.writeBoolean(t.existing);
+    writeString(out, t.existingAs);
+    writeStrings(out, t.renamedFrom);
+    writeBefores(out, t.befores);
+    out.writeInt(t.fields.size());
+    for (int i = 0; i < t.fields.size(); i++) {
+      RawField f = (RawField) t.fields.get(i);
+      writeString(out, f.type);
+      writeString(out, f.name);
+      writeString(out, f.dbType);
+      out.writeBoolean(f.nullable);
+      out.writeBoolean(f.readonly);
+      writeString(out, f.description);
+      writeCgl(out, f.extra);
+      writeLoc(out, f.loc);
+    }
+    writeGet(out, t.pkey);
+    out.writeBoolean(t.isPkeySequenced);
+    out.writeBoolean(t.pkeyHasInfo);
+    out.writeInt(t.gets.size());
+    for (int i = 0; i < t.gets.size(); i++) {
+      writeGet(out, (RawGet) t.gets.get(i));
+    }
+    out.writeInt(t.refs.size());
+    for (int i = 0; i < t.refs.size(); i++) {
+      RawReference r = (RawReference) t.refs.get(i);
+      out.writeBoolean(r.multi);
+      writeString(out, r.table);
+      writeLoc(out, r.tableLoc);
+      writeParams(out, r.params);
+      writeTableRefs(out, r.tables);
+      writeFieldRefs(out, r.fields);
+      writeJoins(out, r.by);
+      writeJoins(out, r.joins);
+      writeString(out, r.where);
+      writeString(out, r.called);
+      writeOrderBy(out, r.orderby);
+      writeString(out, r.description);
+      out.writeBoolean(r.nocode);
+      out.writeBoolean(r.fkey);
+      out.writeBoolean(r.cascade);
+      writeLoc(out, r.loc);
+    }
+    out.writeInt(t.warnings.size());
+    for (int i = 0; i < t.warnings.size(); i++) {
+      RawWarning w = (RawWarning) t.warnings.get(i);
+      writeString(out, w.message);
+      writeLoc(out, w.loc);
+    }
+  }
+
+  private static void writeQuery(DataOutputStream out, RawQuery q)
+      throws IOException {
+    writeString(out, q.fullName);
+    writeLoc(out, q.fullNameLoc);
+    out.writeBoolean(q.multi);
+    out.writeBoolean(q.isVoid);
+    writeString(out, q.description);
+    writeString(out, q.longDesc);
+    writeString(out, q.sql);
+    writeParams(out, q.params);
+    writeParams(out, q.results);
+    out.writeBoolean(q.storedproc);
+    out.writeBoolean(q.storedfunction);
+    out.writeBoolean(q.preUpgradeHook);
+    writeBefores(out, q.befores);
+    writeCgl(out, q.extra);
+  }
+
+  private static void writeBefores(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l.size());
+    for (int i = 0; i < l.size(); i++) {
+      RawBefore b = (RawBefore) l.get(i);
+      writeString(out, b.step);
+      writeString(out, b.name);
+      out.writeBoolean(b.initially);
+      out.writeBoolean(b.upgrade);
+      writeCgl(out, b.sql);
+      writeLoc(out, b.loc);
+    }
+  }
+
+  private static void writeGet(DataOutputStream out, RawGet g)
+      throws IOException {
+    out.writeBoolean(g.multi);
+    writeTableRefs(out, g.tables);
+    writeFieldRefs(out, g.fields);
+    writeParams(out, g.params);
+    writeJoins(out, g.joins);
+    writeString(out, g.where);
+    writeString(out, g.called);
+    writeOrderBy(out, g.orderby);
+    writeString(out, g.description);
+    out.writeBoolean(g.noindex);
+    out.writeBoolean(g.nocode);
+    writeCgl(out, g.extra);
+    writeLoc(out, g.loc);
+  }
+
+  private static void writeParams(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l.size());
+    for (int i = 0; i < l.size(); i++) {
+      RawParam p = (RawParam) l.get(i);
+      writeString(out, p.type);
+      writeString(out, p.name);
+      writeString(out, p.sqlType);
+      out.writeBoolean(p.nullable);
+      writeString(out, p.description);
+      writeCgl(out, p.extra);
+      writeLoc(out, p.loc);
+    }
+  }
+
+  private static void writeTableRefs(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l.size());
+    for (int i = 0; i < l.size(); i++) {
+      RawTableRef tr = (RawTableRef) l.get(i);
+      boolean isParam = tr instanceof RawParamTable;
+      out.writeBoolean(isParam);
+      if (isParam) writeString(out, ((RawParamTable) tr).description);
+      writeString(out, tr.name);
+      writeString(out, tr.alias);
+      writeLoc(out, tr.loc);
+    }
+  }
+
+  private static void writeFieldRef(DataOutputStream out, RawFieldRef fr)
+      throws IOException {
+    writeString(out, fr.fullName);
+    writeString(out, fr.alias);
+    writeString(out, fr.name);
+    writeLoc(out, fr.loc);
+  }
+
+  private static void writeFieldRefs(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l.size());
+    for (int i = 0; i < l.size(); i++) {
+      writeFieldRef(out, (RawFieldRef) l.get(i));
+    }
+  }
+
+  private static void writeJoins(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l.size());
+    for (int i = 0; i < l.size(); i++) {
+      RawJoin j = (RawJoin) l.get(i);
+      writeString(out, j.table1);
+      writeString(out, j.table2);
+      writeString(out, j.field1);
+      writeString(out, j.field2);
+      writeLoc(out, j.loc);
+    }
+  }
+
+  private static void writeOrderBy(DataOutputStream out, List l)
+      throws IOException {
+    out.writeInt(l == null ? -1 : l.size());
+    if (l == null) return;
+    for (int i = 0; i < l.size(); i++) {
+      RawOrderBy ob = (RawOrderBy) l.get(i);
+      boolean isSql = ob instanceof RawOrderBySql;
+      out.writeBoolean(isSql);
+      if (isSql) {
+        writeString(out, ((RawOrderBySql) ob).sql);
+        out.writeBoolean(((RawOrderBySql) ob).legacy);
+      } else {
+        writeFieldRef(out, ((RawOrderByField) ob).field);
+      }
+      out.writeBoolean(ob.descending);
+      writeLoc(out, ob.loc);
+    }
+  }
+
+  // Reading the records.
+
+  private static String readString(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) return null;
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void readStrings(DataInputStream in, List into)
+      throws IOException {
+    for (int n = in.readInt(); n > 0; n--) {
+      into.add(readString(in));
+    }
+  }
+
+  private static FileLocation readLoc(DataInputStream in, File file)
+      throws IOException {
+    if (!in.readBoolean()) return null;
+    return new FileLocation(file, in.readInt(), in.readInt(), in.readInt(),
+        in.readInt());
+  }
+
+  private static RawCgl readCgl(DataInputStream in, File file)
+      throws IOException {
+    if (!in.readBoolean()) return null;
+    int lines = in.readInt();
+    int col = in.readInt();
+    String text = readString(in);
+    StringBuffer sb = new StringBuffer(lines + col + text.length());
+    for (int i = 0; i < lines; i++) {
+      sb.append('\n');
+    }
+    for (int i = 0; i < col; i++) {
+      sb.append(' ');
+    }
+    sb.append(text);
+    return new RawCgl(file, sb.toString(), null);
+  }
+
+  private static RawTable readTable(DataInputStream in, File file)
+      throws IOException {
+    RawTable t = new RawTable();
+    t.fullName = readString(in);
+    t.fullNameLoc = readLoc(in, file);
+    t.description = readString(in);
+    t.longDesc = readString(in);
+    t.extra = readCgl(in, file);
+    t.existing = in.readBoolean();
+    t.existingAs = readString(in);
+    readStrings(in, t.renamedFrom);
+    readBefores(in, file, t.befores);
+    for (int n = in.readInt(); n > 0; n--) {
+      RawField f = new RawField();
+      f.type = readString(in);
+      f.name = readString(in);
+      f.dbType = readString(in);
+      f.nullable = in.readBoolean();
+      f.readonly = in.readBoolean();
+      f.description = readString(in);
+      f.extra = readCgl(in, file);
+      f.loc = readLoc(in, file);
+      t.fields.add(f);
+    }
+    t.pkey = readGet(in, file);
+    t.isPkeySequenced = in.readBoolean();
+    t.pkeyHasInfo = in.readBoolean();
+    for (int n = in.readInt(); n > 0; n--) {
+      t.gets.add(readGet(in, file));
+    }
+    for (int n = in.readInt(); n > 0; n--) {
+      RawReference r = new RawReference();
+      r.multi = in.readBoolean();
+      r.table = readString(in);
+      r.tableLoc = readLoc(in, file);
+      readParams(in, file, r.params);
+      readTableRefs(in, file, r.tables);
+      readFieldRefs(in, file, r.fields);
+      readJoins(in, file, r.by);
+      readJoins(in, file, r.joins);
+      r.where = readString(in);
+      r.called = readString(in);
+      r.orderby = readOrderBy(in, file);
+      r.description = readString(in);
+      r.nocode = in.readBoolean();
+      r.fkey = in.readBoolean();
+      r.cascade = in.readBoolean();
+      r.loc = readLoc(in, file);
+      t.refs.add(r);
+    }
+    for (int n = in.readInt(); n > 0; n--) {
+      RawWarning w = new RawWarning();
+      w.message = readString(in);
+      w.loc = readLoc(in, file);
+      t.warnings.add(w);
+    }
+    return t;
+  }
+
+  private static RawQuery readQuery(DataInputStream in, File file)
+      throws IOException {
+    RawQuery q = new RawQuery();
+    q.fullName = readString(in);
+    q.fullNameLoc = readLoc(in, file);
+    q.multi = in.readBoolean();
+    q.isVoid = in.readBoolean();
+    q.description = readString(in);
+    q.longDesc = readString(in);
+    q.sql = readString(in);
+    readParams(in, file, q.params);
+    readParams(in, file, q.results);
+    q.storedproc = in.readBoolean();
+    q.storedfunction = in.readBoolean();
+    q.preUpgradeHook = in.readBoolean();
+    readBefores(in, file, q.befores);
+    q.extra = readCgl(in, file);
+    return q;
+  }
+
+  private static void readBefores(DataInputStream in, File file, List into)
+      throws IOException {
+    for (int n = in.readInt(); n > 0; n--) {
+      RawBefore b = new RawBefore();
+      b.step = readString(in);
+      b.name = readString(in);
+      b.initially = in.readBoolean();
+      b.upgrade = in.readBoolean();
+      b.sql = readCgl(in, file);
+      b.loc = readLoc(in, file);
+      into.add(b);
+    }
+  }
+
+  private static RawGet readGet(DataInputStream in, File file)
+      throws IOException {
+    RawGet g = new RawGet();
+    g.multi = in.readBoolean();
+    readTableRefs(in, file, g.tables);
+    readFieldRefs(in, file, g.fields);
+    readParams(in, file, g.params);
+    readJoins(in, file, g.joins);
+    g.where = readString(in);
+    g.called = readString(in);
+    g.orderby = readOrderBy(in, file);
+    g.description = readString(in);
+    g.noindex = in.readBoolean();
+    g.nocode = in.readBoolean();
+    g.extra = readCgl(in, file);
+    g.loc = readLoc(in, file);
+    return g;
+  }
+
+  private static void readParams(DataInputStream in, File file, List into)
+      throws IOException {
+    for (int n = in.readInt(); n > 0; n--) {
+      RawParam p = new RawParam();
+      p.type = readString(in);
+      p.name = readString(in);
+      p.sqlType = readString(in);
+      p.nullable = in.readBoolean();
+      p.description = readString(in);
+      p.extra = readCgl(in, file);
+      p.loc = readLoc(in, file);
+      into.add(p);
+    }
+  }
+
+  private static void readTableRefs(DataInputStream in, File file, List into)
+      throws IOException {
+    for (int n = in.readInt(); n > 0; n--) {
+      RawTableRef tr;
+      if (in.readBoolean()) {
+        RawParamTable pt = new RawParamTable();
+        pt.description = readString(in);
+        tr = pt;
+      } else {
+        tr = new RawTableRef();
+      }
+      tr.name = readString(in);
+      tr.alias = readString(in);
+      tr.loc = readLoc(in, file);
+      into.add(tr);
+    }
+  }
+
+  private static RawFieldRef readFieldRef(DataInputStream in, File file)
+      throws IOException {
+    RawFieldRef fr = new RawFieldRef();
+    fr.fullName = readString(in);
+    fr.alias = readString(in);
+    fr.name = readString(in);
+    fr.loc = readLoc(in, file);
+    return fr;
+  }
+
+  private static void readFieldRefs(DataInputStream in, File file, List into)
+      throws IOException {
+    for (int n = in.readInt(); n > 0; n--) {
+      into.add(readFieldRef(in, file));
+    }
+  }
+
+  private static void readJoins(DataInputStream in, File file, List into)
+      throws IOException {
+    for (int n = in.readInt(); n > 0; n--) {
+      RawJoin j = new RawJoin();
+      j.table1 = readString(in);
+      j.table2 = readString(in);
+      j.field1 = readString(in);
+      j.field2 = readString(in);
+      j.loc = readLoc(in, file);
+      into.add(j);
+    }
+  }
+
+  private static List readOrderBy(DataInputStream in, File file)
+      throws IOException {
+    int n = in.readInt();
+    if (n < 0) return null;
+    List result = new java.util.ArrayList(n);
+    for (; n > 0; n--) {
+      RawOrderBy ob;
+      if (in.readBoolean()) {
+        RawOrderBySql sqlClause = new RawOrderBySql();
+        sqlClause.sql = readString(in);
+        sqlClause.legacy = in.readBoolean();
+        ob = sqlClause;
+      } else {
+        RawOrderByField fieldClause = new RawOrderByField();
+        fieldClause.field = readFieldRef(in, file);
+        ob = fieldClause;
+      }
+      ob.descending = in.readBoolean();
+      ob.loc = readLoc(in, file);
+      result.add(ob);
+    }
+    return result;
+  }
+}
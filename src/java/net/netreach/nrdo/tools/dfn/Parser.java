@@ -1,5 +1,779 @@
 package net.netreach.nrdo.tools.dfn;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.netreach.cgl.CGLParser;
+import net.netreach.cgl.Definition;
+import net.netreach.cgl.Expr;
+import net.netreach.nrdo.tools.BeforeStmt;
+import net.netreach.smelt.ParseException;
+import net.netreach.smelt.SmeltReader;
+import net.netreach.util.FileLocation;
+
+/**
+ * Reads .dfn and .qu files into Raw* records in a single pass over the tokens
+ * of the file. Everything that can be checked without looking at other files
+ * or at the configuration is checked here, so that errors point at the exact
+ * token that caused them. CGL blocks are parsed in place.
+ *
+ * The blocks of a .dfn file have always ignored lines they don't know, extra
+ * words at the end of most lines, and settings given more than once, so they
+ * still do, with a RawWarning for each; a .qu file fails on all of them.
+ */
 public class Parser {
 
+  private final File file;
+  private final SmeltReader sr;
+
+  /** Where warnings go when reading a .dfn file; null for a .qu file. */
+  private List warnings;
+
+  private Parser(File file, SmeltReader sr) throws ParseException {
+    this.file = file;
+    this.sr = sr;
+    sr.readToken();
+  }
+
+  public static RawTable parseTable(File file) throws IOException,
+      ParseException {
+    return new Parser(file, new SmeltReader(file)).table();
+  }
+
+  public static RawQuery parseQuery(File file) throws IOException,
+      ParseException {
+    return new Parser(file, new SmeltReader(file)).query();
+  }
+
+  static RawTable parseTable(File file, char[] chars) throws IOException,
+      ParseException {
+    return new Parser(file, new SmeltReader(chars, file)).table();
+  }
+
+  static RawQuery parseQuery(File file, char[] chars) throws IOException,
+      ParseException {
+    return new Parser(file, new SmeltReader(chars, file)).query();
+  }
+
+  private RawTable table() throws IOException, ParseException {
+    RawTable t = new RawTable();
+    warnings = t.warnings;
+    sr.skipToken("table");
+    t.fullNameLoc = sr.getLastTokenLocation();
+    t.fullName = sr.skipString();
+
+    Set seen = new HashSet();
+    Set forget = new HashSet();
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      String kw = keyword();
+      // A second 'fields' or 'pkey' has always been an error.
+      if (!"fields".equals(kw) && !"pkey".equals(kw)
+          && repeated(seen, forget, kw)) {
+        continue;
+      }
+      if ("description".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        t.description = sr.skipString();
+      } else if ("longdesc".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        t.longDesc = sr.skipString();
+      } else if ("extra".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        t.extra = definition();
+      } else if ("existing".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        t.existing = true;
+        if (sr.wasToken("as")) {
+          sr.skipString();
+          t.existingAs = sr.skipString();
+        }
+        sr.checkEOL();
+      } else if ("renamed".equals(kw)) {
+        sr.skipString();
+        sr.skipToken("from");
+        t.renamedFrom.add(sr.skipString());
+        sr.checkEOL();
+      } else if ("before".equals(kw)) {
+        t.befores.add(before());
+      } else if ("fields".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        sr.skipSOB();
+        while (!sr.wasEOB()) {
+          t.fields.add(field());
+        }
+        sr.skipEOB();
+      } else if ("pkey".equals(kw)) {
+        once(seen, kw);
+        pkey(t);
+        sr.checkEOL();
+      } else if ("get".equals(kw)) {
+        t.gets.add(get());
+      } else if ("references".equals(kw)) {
+        t.refs.add(reference());
+      } else {
+        unknown(kw);
+      }
+      endLine();
+    }
+    sr.skipEOB();
+    sr.skipEOL();
+    sr.checkEOF();
+
+    if (forget.contains("description")) t.description = null;
+    if (forget.contains("longdesc")) t.longDesc = null;
+    if (forget.contains("extra")) t.extra = null;
+    if (forget.contains("existing")) {
+      t.existing = false;
+      t.existingAs = null;
+    }
+    if (!seen.contains("fields")) {
+      throw new ParseException(t.fullNameLoc, "No 'fields' block in "
+          + t.fullName);
+    }
+    if (!seen.contains("pkey")) {
+      throw new ParseException(t.fullNameLoc, "No 'pkey' in " + t.fullName);
+    }
+    return t;
+  }
+
+  private RawQuery query() throws IOException, ParseException {
+    RawQuery q = new RawQuery();
+    sr.skipToken("query");
+    if (sr.wasToken("multi")) {
+      q.multi = true;
+    } else if (sr.wasToken("void")) {
+      q.isVoid = true;
+    } else if (!sr.wasToken("single")) {
+      throw new ParseException(sr, "Expected 'single', 'multi' or 'void', "
+          + "found " + sr.lastToString());
+    }
+    sr.skipString();
+    q.fullNameLoc = sr.getLastTokenLocation();
+    q.fullName = sr.skipString();
+
+    Set seen = new HashSet();
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      String kw = sr.checkString();
+      if ("description".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        q.description = sr.skipString();
+      } else if ("longdesc".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        q.longDesc = sr.skipString();
+      } else if ("sql".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        q.sql = sr.skipString();
+      } else if ("params".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        params(q.params, true, false);
+      } else if ("results".equals(kw)) {
+        once(seen, kw);
+        if (q.isVoid) {
+          throw new ParseException(sr, "Void query cannot specify results");
+        }
+        sr.skipString();
+        params(q.results, true, false);
+      } else if ("storedproc".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        q.storedproc = true;
+      } else if ("storedfunction".equals(kw)) {
+        once(seen, kw);
+        if (q.multi || q.isVoid) {
+          throw new ParseException(sr, "Stored function must be a query single");
+        }
+        sr.skipString();
+        q.storedfunction = true;
+      } else if ("pre-upgrade-hook".equals(kw)) {
+        once(seen, kw);
+        if (!q.isVoid) {
+          throw new ParseException(sr,
+              "Pre upgrade hook must be a void storedproc");
+        }
+        sr.skipString();
+        q.preUpgradeHook = true;
+      } else if ("before".equals(kw)) {
+        q.befores.add(before());
+      } else if ("extra".equals(kw)) {
+        once(seen, kw);
+        sr.skipString();
+        q.extra = definition();
+      } else {
+        throw new ParseException(sr, "Unknown keyword '" + kw + "'");
+      }
+      sr.skipEOL();
+    }
+    sr.skipEOB();
+    sr.skipEOL();
+    sr.checkEOF();
+
+    if (q.sql == null) {
+      throw new ParseException(q.fullNameLoc, "No SQL statement specified");
+    }
+    return q;
+  }
+
+  /**
+   * Fail if the keyword that is the current token has been seen before in the
+   * same block.
+   */
+  private void once(Set seen, String kw) throws ParseException {
+    if (!seen.add(kw)) throw new ParseException(sr, "'" + kw + "' set twice");
+  }
+
+  private void warn(String message) {
+    RawWarning w = new RawWarning();
+    w.message = message;
+    w.loc = sr.getLastTokenLocation();
+    warnings.add(w);
+  }
+
+  /**
+   * The keyword the current line of a .dfn block starts with, or null if it
+   * doesn't start with one.
+   */
+  private String keyword() throws ParseException {
+    return sr.wasString() ? sr.checkString() : null;
+  }
+
+  /**
+   * If the keyword that is the current token is in the seen set, skip its
+   * line with a warning and add it to the set of those the block must forget
+   * once it has been read: a .dfn block finds nothing for a setting given
+   * more than once.
+   */
+  private boolean repeated(Set seen, Set forget, String kw)
+      throws ParseException {
+    if (kw == null || !seen.contains(kw)) return false;
+    warn("'" + kw + "' set more than once; ignoring all of them");
+    forget.add(kw);
+    skipLine();
+    sr.skipEOL();
+    return true;
+  }
+
+  /** Skip a line of a .dfn block that doesn't start with a known keyword. */
+  private void unknown(String kw) throws ParseException {
+    if (kw != null) {
+      warn("Unknown keyword '" + kw + "'; ignoring the line");
+    } else if (!sr.wasEOL()) {
+      warn("Expected a keyword, found " + sr.lastToString()
+          + "; ignoring the line");
+    }
+    skipLine();
+  }
+
+  /**
+   * Expect the end of a line in a .dfn file, ignoring anything else on it with
+   * a warning.
+   */
+  private void endLine() throws ParseException {
+    if (!sr.wasEOL()) {
+      warn("Ignoring " + sr.lastToString() + " and the rest of the line");
+      skipLine();
+    }
+    sr.skipEOL();
+  }
+
+  /** Skip to the end of the current line, past any blocks in it. */
+  private void skipLine() throws ParseException {
+    int depth = 0;
+    while (depth > 0 || !sr.wasEOL()) {
+      if (sr.wasSOB()) {
+        depth++;
+      } else if (sr.wasEOB()) {
+        depth--;
+      }
+      sr.readToken();
+    }
+  }
+
+  private RawCgl definition() throws IOException, ParseException {
+    int start = sr.getLastTokenIndex();
+    Definition def = CGLParser.loadDefinition(file, sr);
+    return new RawCgl(file, sr.getFragment(start, sr.getLastTokenIndex()), def);
+  }
+
+  private boolean multi() throws ParseException {
+    boolean multi;
+    if (sr.wasToken("multi")) {
+      multi = true;
+    } else if (sr.wasToken("single")) {
+      multi = false;
+    } else if (sr.wasString()) {
+      warn("Expected 'single' or 'multi', found " + sr.lastToString()
+          + "; taking it as single");
+      multi = false;
+    } else {
+      throw new ParseException(sr, "Expected 'single' or 'multi', found "
+          + sr.lastToString());
+    }
+    sr.skipString();
+    return multi;
+  }
+
+  private boolean nullable() throws ParseException {
+    boolean nullable;
+    if (sr.wasToken("nullable")) {
+      nullable = true;
+    } else if (sr.wasToken("notnull")) {
+      nullable = false;
+    } else {
+      throw new ParseException(sr, "Expected 'nullable' or 'notnull', found "
+          + sr.lastToString());
+    }
+    sr.skipString();
+    return nullable;
+  }
+
+  private RawField field() throws IOException, ParseException {
+    RawField f = new RawField();
+    f.loc = sr.getLastTokenLocation();
+    f.type = sr.skipString();
+    f.name = sr.skipString();
+    f.dbType = sr.skipString();
+    f.nullable = nullable();
+    if (sr.wasToken("readonly")) {
+      f.readonly = true;
+    } else if (!sr.wasToken("readwrite")) {
+      throw new ParseException(sr, "Expected 'readonly' or 'readwrite', found "
+          + sr.lastToString());
+    }
+    sr.skipString();
+    f.description = sr.skipString();
+    if (sr.wasSOB()) f.extra = definition();
+    sr.skipEOL();
+    return f;
+  }
+
+  private void params(List into, boolean allowSqlType, boolean allowExtra)
+      throws IOException, ParseException {
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      RawParam p = new RawParam();
+      p.loc = sr.getLastTokenLocation();
+      p.type = sr.skipString();
+      p.name = sr.skipString();
+      if (allowSqlType && !sr.wasToken("nullable") && !sr.wasToken("notnull")) {
+        p.sqlType = sr.skipString();
+      }
+      p.nullable = nullable();
+      p.description = sr.skipString();
+      if (allowExtra && sr.wasSOB()) p.extra = definition();
+      // Only the params of a reference have always ignored anything after
+      // the description.
+      if (allowSqlType || allowExtra) {
+        sr.skipEOL();
+      } else {
+        endLine();
+      }
+      into.add(p);
+    }
+    sr.skipEOB();
+  }
+
+  private RawBefore before() throws IOException, ParseException {
+    RawBefore b = new RawBefore();
+    b.loc = sr.getLastTokenLocation();
+    sr.skipToken("before");
+    if (sr.wasToken("initially")) {
+      b.upgrade = false;
+      sr.skipString();
+    } else if (sr.wasToken("upgrade")) {
+      b.initially = false;
+      sr.skipString();
+    }
+    b.step = sr.checkString();
+    if (!BeforeStmt.legalBefores.contains(b.step)) {
+      throw new ParseException(sr, "unknown before step " + b.step);
+    }
+    sr.skipString();
+    b.name = sr.skipString();
+    sr.skipToken("by");
+    int start = sr.getLastTokenIndex();
+    Expr expr = CGLParser.loadExpr(file, sr);
+    b.sql = new RawCgl(file, sr.getFragment(start, sr.getLastTokenIndex()), expr);
+    return b;
+  }
+
+  private void pkey(RawTable t) throws IOException, ParseException {
+    RawGet g = new RawGet();
+    g.loc = sr.getLastTokenLocation();
+    sr.skipString();
+    if (sr.wasToken("sequenced")) {
+      sr.skipString();
+      t.isPkeySequenced = true;
+      g.fields.add(fieldRef());
+    } else {
+      fieldRefs(g.fields);
+    }
+    if (sr.wasSOB()) {
+      t.pkeyHasInfo = true;
+      Set seen = new HashSet();
+      Set forget = new HashSet();
+      sr.skipSOB();
+      while (!sr.wasEOB()) {
+        String kw = keyword();
+        if (repeated(seen, forget, kw)) continue;
+        if ("noindex".equals(kw)) {
+          seen.add(kw);
+          sr.skipString();
+          g.noindex = true;
+        } else if ("nocode".equals(kw)) {
+          seen.add(kw);
+          sr.skipString();
+          g.nocode = true;
+        } else if ("called".equals(kw)) {
+          seen.add(kw);
+          sr.skipString();
+          g.called = sr.skipString();
+        } else if ("extra".equals(kw)) {
+          seen.add(kw);
+          sr.skipString();
+          g.extra = definition();
+        } else {
+          unknown(kw);
+        }
+        endLine();
+      }
+      sr.skipEOB();
+      forget(g, forget);
+    }
+    t.pkey = g;
+  }
+
+  private RawGet get() throws IOException, ParseException {
+    RawGet g = new RawGet();
+    g.loc = sr.getLastTokenLocation();
+    sr.skipToken("get");
+    g.multi = multi();
+
+    Set seen = new HashSet();
+    Set forget = new HashSet();
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      String kw = keyword();
+      if (repeated(seen, forget, kw)) continue;
+      if ("tables".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        tables(g.tables);
+      } else if ("fields".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        fieldRefs(g.fields);
+      } else if ("params".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        params(g.params, false, true);
+      } else if ("joins".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        joins(g.joins);
+      } else if ("where".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        g.where = sr.skipString();
+      } else if ("called".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        g.called = sr.skipString();
+      } else if ("orderby".equals(kw)) {
+        seen.add(kw);
+        g.orderby = orderBy();
+      } else if ("description".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        g.description = sr.skipString();
+      } else if ("noindex".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        g.noindex = true;
+      } else if ("nocode".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        g.nocode = true;
+      } else if ("extra".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        g.extra = definition();
+      } else {
+        unknown(kw);
+      }
+      endLine();
+    }
+    sr.skipEOB();
+    forget(g, forget);
+    return g;
+  }
+
+  private RawReference reference() throws IOException, ParseException {
+    RawReference r = new RawReference();
+    r.loc = sr.getLastTokenLocation();
+    sr.skipToken("references");
+    r.multi = multi();
+    r.tableLoc = sr.getLastTokenLocation();
+    r.table = sr.skipString();
+
+    Set seen = new HashSet();
+    Set forget = new HashSet();
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      String kw = keyword();
+      if (repeated(seen, forget, kw)) continue;
+      if ("params".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        params(r.params, false, false);
+      } else if ("tables".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        tables(r.tables);
+      } else if ("fields".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        fieldRefs(r.fields);
+      } else if ("by".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        sr.skipSOB();
+        while (!sr.wasEOB()) {
+          RawJoin j = new RawJoin();
+          j.loc = sr.getLastTokenLocation();
+          j.field1 = sr.skipString();
+          j.field2 = sr.skipString();
+          endLine();
+          r.by.add(j);
+        }
+        sr.skipEOB();
+      } else if ("joins".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        joins(r.joins);
+      } else if ("where".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        r.where = sr.skipString();
+      } else if ("called".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        r.called = sr.skipString();
+      } else if ("orderby".equals(kw)) {
+        seen.add(kw);
+        r.orderby = orderBy();
+      } else if ("description".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        r.description = sr.skipString();
+      } else if ("nocode".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        r.nocode = true;
+      } else if ("fkey".equals(kw)) {
+        seen.add(kw);
+        sr.skipString();
+        r.fkey = true;
+        if (sr.wasToken("cascade")) {
+          sr.skipString();
+          r.cascade = true;
+        }
+      } else {
+        unknown(kw);
+      }
+      endLine();
+    }
+    sr.skipEOB();
+    forget(r, forget);
+    return r;
+  }
+
+  /**
+   * Clear the settings of a get, or of the block after a primary key, that
+   * were given more than once.
+   */
+  private static void forget(RawGet g, Set forget) {
+    if (forget.contains("tables")) g.tables.clear();
+    if (forget.contains("fields")) g.fields.clear();
+    if (forget.contains("params")) g.params.clear();
+    if (forget.contains("joins")) g.joins.clear();
+    if (forget.contains("where")) g.where = null;
+    if (forget.contains("called")) g.called = null;
+    if (forget.contains("orderby")) g.orderby = null;
+    if (forget.contains("description")) g.description = null;
+    if (forget.contains("noindex")) g.noindex = false;
+    if (forget.contains("nocode")) g.nocode = false;
+    if (forget.contains("extra")) g.extra = null;
+  }
+
+  /** Clear the settings of a reference that were given more than once. */
+  private static void forget(RawReference r, Set forget) {
+    if (forget.contains("params")) r.params.clear();
+    if (forget.contains("tables")) r.tables.clear();
+    if (forget.contains("fields")) r.fields.clear();
+    if (forget.contains("by")) r.by.clear();
+    if (forget.contains("joins")) r.joins.clear();
+    if (forget.contains("where")) r.where = null;
+    if (forget.contains("called")) r.called = null;
+    if (forget.contains("orderby")) r.orderby = null;
+    if (forget.contains("description")) r.description = null;
+    if (forget.contains("nocode")) r.nocode = false;
+    if (forget.contains("fkey")) {
+      r.fkey = false;
+      r.cascade = false;
+    }
+  }
+
+  private void tables(List into) throws ParseException {
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      RawTableRef tr;
+      FileLocation loc = sr.getLastTokenLocation();
+      String name = sr.skipString();
+      String alias = sr.skipString();
+      if (sr.wasString()) {
+        RawParamTable pt = new RawParamTable();
+        pt.description = sr.skipString();
+        if (sr.wasString()) {
+          throw new ParseException(sr, "tables line too long");
+        }
+        tr = pt;
+      } else {
+        tr = new RawTableRef();
+      }
+      tr.loc = loc;
+      tr.name = name;
+      tr.alias = alias;
+      sr.skipEOL();
+      into.add(tr);
+    }
+    sr.skipEOB();
+  }
+
+  private void fieldRefs(List into) throws ParseException {
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      into.add(fieldRef());
+      endLine();
+    }
+    sr.skipEOB();
+  }
+
+  private RawFieldRef fieldRef() throws ParseException {
+    RawFieldRef r = new RawFieldRef();
+    r.loc = sr.getLastTokenLocation();
+    r.fullName = sr.skipString();
+    int dotpos = r.fullName.indexOf('.');
+    if (dotpos > 0) {
+      r.alias = r.fullName.substring(0, dotpos);
+      r.name = r.fullName.substring(dotpos + 1);
+    } else {
+      r.name = r.fullName;
+    }
+    return r;
+  }
+
+  private void joins(List into) throws ParseException {
+    sr.skipSOB();
+    while (!sr.wasEOB()) {
+      String tbl1 = sr.skipString();
+      sr.skipToken("to");
+      String tbl2 = sr.skipString();
+      sr.skipSOB();
+      while (!sr.wasEOB()) {
+        RawJoin j = new RawJoin();
+        j.loc = sr.getLastTokenLocation();
+        j.table1 = tbl1;
+        j.table2 = tbl2;
+        j.field1 = sr.skipString();
+        j.field2 = sr.skipString();
+        endLine();
+        into.add(j);
+      }
+      sr.skipEOB();
+      endLine();
+    }
+    sr.skipEOB();
+  }
+
+  private List orderBy() throws ParseException {
+    List clauses = new ArrayList();
+    sr.skipString();
+    if (sr.wasString()) {
+      RawOrderBySql clause = new RawOrderBySql();
+      clause.loc = sr.getLastTokenLocation();
+      clause.sql = sr.skipString();
+      clause.legacy = true;
+      clauses.add(clause);
+
+      // Legacy parsing actually ignored any words after the first; for
+      // backcompat we need to continue to do that.
+      while (sr.wasString()) {
+        sr.skipString();
+      }
+      return clauses;
+    }
+
+    sr.skipSOB();
+    if (sr.wasEOB()) {
+      throw new ParseException(sr, "orderby given without any clauses!");
+    }
+    while (!sr.wasEOB()) {
+      // Legal combinations are "fieldname", "fieldname desc", "something sql"
+      // or "something sql desc"
+      RawFieldRef first = fieldRef();
+      RawOrderBy clause;
+      if (sr.wasToken("sql")) {
+        sr.skipString();
+        RawOrderBySql sqlClause = new RawOrderBySql();
+        sqlClause.sql = first.fullName;
+        clause = sqlClause;
+        if (sr.wasString()) {
+          if (!sr.wasToken("desc")) {
+            throw new ParseException(sr, "Expected 'desc', found "
+                + sr.lastToString());
+          }
+          sr.skipString();
+          clause.descending = true;
+        }
+      } else {
+        RawOrderByField fieldClause = new RawOrderByField();
+        fieldClause.field = first;
+        clause = fieldClause;
+        if (sr.wasString()) {
+          if (!sr.wasToken("desc")) {
+            throw new ParseException(sr, "Expected 'desc' or 'sql', found "
+                + sr.lastToString());
+          }
+          sr.skipString();
+          clause.descending = true;
+        }
+      }
+      clause.loc = first.loc;
+      if (!sr.wasEOL()) {
+        throw new ParseException(sr, "Syntax error in orderby clause");
+      }
+      sr.skipEOL();
+      clauses.add(clause);
+    }
+    sr.skipEOB();
+    if (!sr.wasEOL()) {
+      throw new ParseException(sr, "Syntax error on 'orderby' line");
+    }
+    return clauses;
+  }
 }
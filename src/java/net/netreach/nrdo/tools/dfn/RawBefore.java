@@ -1,5 +1,20 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawBefore {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * A 'before' line. The statement is kept as an unevaluated CGL expression.
+ */
+public class RawBefore implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String step;
+  public String name;
+  public boolean initially = true;
+  public boolean upgrade = true;
+  public RawCgl sql;
+  public FileLocation loc;
 }
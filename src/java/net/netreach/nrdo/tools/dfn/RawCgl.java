@@ -0,0 +1,54 @@
+package net.netreach.nrdo.tools.dfn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import net.netreach.cgl.CGLParser;
+import net.netreach.cgl.Definition;
+import net.netreach.cgl.Expr;
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.smelt.ParseException;
+import net.netreach.smelt.SmeltReader;
+
+/**
+ * A piece of CGL embedded in a .dfn or .qu file: either a definition block or
+ * the expression of a 'before' line. The source text is kept as a fragment of
+ * the file (see SmeltReader.getFragment) so that it can be stored in the
+ * ParseCache and parsed again later with the same locations. When it comes
+ * straight from the Parser the parsed form is already available; it is not
+ * serialized, so a deserialized RawCgl parses its fragment again when asked.
+ */
+public class RawCgl implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  private final File file;
+  private final String fragment;
+  private transient Object parsed;
+
+  RawCgl(File file, String fragment, Object parsed) {
+    this.file = file;
+    this.fragment = fragment;
+    this.parsed = parsed;
+  }
+
+  String getFragment() {
+    return fragment;
+  }
+
+  private SmeltReader reader() throws ParseException {
+    SmeltReader sr = new SmeltReader(fragment.toCharArray(), file);
+    sr.readToken();
+    return sr;
+  }
+
+  public Definition getDefinition() throws IOException, ParseException {
+    if (parsed == null) parsed = CGLParser.loadDefinition(file, reader());
+    return (Definition) parsed;
+  }
+
+  public Expr getExpr() throws IOException, ParseException {
+    if (parsed == null) parsed = CGLParser.loadExpr(file, reader());
+    return (Expr) parsed;
+  }
+}
@@ -0,0 +1,16 @@
+package net.netreach.nrdo.tools.dfn;
+
+import java.io.Serializable;
+
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * The parts common to everything that can be defined in a .dfn or .qu file.
+ */
+public class RawDBObject implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String fullName;
+  public FileLocation fullNameLoc;
+}
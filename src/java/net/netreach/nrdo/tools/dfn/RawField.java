@@ -1,5 +1,22 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawField {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * One line of the 'fields' block of a table.
+ */
+public class RawField implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String type;
+  public String name;
+  public String dbType;
+  public boolean nullable;
+  public boolean readonly;
+  public String description;
+  public RawCgl extra;
+  public FileLocation loc;
 }
@@ -1,5 +1,21 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawFieldRef {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * A reference to a field, either on the table itself or as alias.field on one
+ * of the tables of a get or reference.
+ */
+public class RawFieldRef implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  /** The name exactly as written. */
+  public String fullName;
+  /** The table alias, or null if the field is not qualified. */
+  public String alias;
+  public String name;
+  public FileLocation loc;
 }
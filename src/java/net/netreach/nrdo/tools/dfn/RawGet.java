@@ -1,5 +1,31 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawGet {
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * A 'get' line, or the primary key of a table.
+ */
+public class RawGet implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public boolean multi;
+  /** RawTableRefs and RawParamTables, in the order they appear. */
+  public List tables = new ArrayList();
+  public List fields = new ArrayList();
+  public List params = new ArrayList();
+  public List joins = new ArrayList();
+  public String where;
+  public String called;
+  /** The RawOrderBy clauses, or null if no 'orderby' was given. */
+  public List orderby;
+  public String description;
+  public boolean noindex;
+  public boolean nocode;
+  public RawCgl extra;
+  public FileLocation loc;
 }
@@ -1,5 +1,20 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawJoin {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * A single pair of joined fields. For the 'by' block of a reference the table
+ * aliases are null.
+ */
+public class RawJoin implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String table1;
+  public String table2;
+  public String field1;
+  public String field2;
+  public FileLocation loc;
 }
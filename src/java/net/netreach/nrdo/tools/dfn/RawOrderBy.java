@@ -1,5 +1,16 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawOrderBy {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * One clause of an 'orderby'.
+ */
+public abstract class RawOrderBy implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public boolean descending;
+  public FileLocation loc;
 }
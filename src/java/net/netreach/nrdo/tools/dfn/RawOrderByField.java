@@ -1,5 +1,12 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawOrderByField {
+import net.netreach.nrdo.tools.Snapshot;
 
+/**
+ * An orderby clause naming a field.
+ */
+public class RawOrderByField extends RawOrderBy {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public RawFieldRef field;
 }
@@ -1,5 +1,14 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawOrderBySql {
+import net.netreach.nrdo.tools.Snapshot;
 
+/**
+ * An orderby clause giving literal SQL. Legacy clauses come from the old
+ * 'orderby <sql>;' syntax rather than a block.
+ */
+public class RawOrderBySql extends RawOrderBy {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String sql;
+  public boolean legacy;
 }
@@ -1,5 +1,22 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawParam {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * A parameter of a get, reference or query, or a result of a query. Only
+ * queries may give an SQL type and only gets may have an extra definition.
+ */
+public class RawParam implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String type;
+  public String name;
+  public String sqlType;
+  public boolean nullable;
+  public String description;
+  public RawCgl extra;
+  public FileLocation loc;
 }
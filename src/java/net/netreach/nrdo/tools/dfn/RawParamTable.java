@@ -1,5 +1,13 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawParamTable {
+import net.netreach.nrdo.tools.Snapshot;
 
+/**
+ * A line of a 'tables' block that has a description, making the table a
+ * parameter rather than something joined to.
+ */
+public class RawParamTable extends RawTableRef {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String description;
 }
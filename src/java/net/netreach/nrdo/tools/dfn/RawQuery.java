@@ -1,5 +1,27 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawQuery {
+import java.util.ArrayList;
+import java.util.List;
 
+import net.netreach.nrdo.tools.Snapshot;
+
+
+/**
+ * The contents of a .qu file, as read by the Parser.
+ */
+public class RawQuery extends RawDBObject {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public boolean multi;
+  public boolean isVoid;
+  public String description;
+  public String longDesc;
+  public String sql;
+  public List params = new ArrayList();
+  public List results = new ArrayList();
+  public boolean storedproc;
+  public boolean storedfunction;
+  public boolean preUpgradeHook;
+  public List befores = new ArrayList();
+  public RawCgl extra;
 }
@@ -1,5 +1,34 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawReference {
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * A 'references' line.
+ */
+public class RawReference implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public boolean multi;
+  public String table;
+  public FileLocation tableLoc;
+  public List params = new ArrayList();
+  /** RawTableRefs and RawParamTables, in the order they appear. */
+  public List tables = new ArrayList();
+  public List fields = new ArrayList();
+  public List by = new ArrayList();
+  public List joins = new ArrayList();
+  public String where;
+  public String called;
+  /** The RawOrderBy clauses, or null if no 'orderby' was given. */
+  public List orderby;
+  public String description;
+  public boolean nocode;
+  public boolean fkey;
+  public boolean cascade;
+  public FileLocation loc;
 }
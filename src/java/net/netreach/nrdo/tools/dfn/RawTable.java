@@ -1,21 +1,36 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawTable {
-  /*
-   * class RawDBObject {
-   *   String fullName;
-   *   FileLocation fullNameLoc;
-   * }
-   * class RawTable extends RawDBObject {
-   *   List<RawField> fields;
-   *   RawGet pkey;
-   *   boolean isPkeySequenced;
-   *   List<RawGet> gets;
-   *   List<RawReference> refs;
-   *   List<RawBefore> befores;
-   *   boolean existing;
-   *   String existingAs;
-   *   String renamedFrom;
-   * }
+import java.util.ArrayList;
+import java.util.List;
+
+import net.netreach.nrdo.tools.Snapshot;
+
+
+/**
+ * The contents of a .dfn file, as read by the Parser.
+ */
+public class RawTable extends RawDBObject {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String description;
+  public String longDesc;
+  public RawCgl extra;
+  public boolean existing;
+  public String existingAs;
+  /** The names from 'renamed from' lines, in the order they appear. */
+  public List renamedFrom = new ArrayList();
+  public List befores = new ArrayList();
+  public List fields = new ArrayList();
+  /**
+   * The primary key. Its fields are always names of fields on this table, and
+   * its only other settings come from the optional block after the key.
    */
+  public RawGet pkey;
+  public boolean isPkeySequenced;
+  /** Whether the optional block was given after the primary key. */
+  public boolean pkeyHasInfo;
+  public List gets = new ArrayList();
+  public List refs = new ArrayList();
+  /** The RawWarnings for what was ignored in the file. */
+  public List warnings = new ArrayList();
 }
@@ -1,5 +1,17 @@
 package net.netreach.nrdo.tools.dfn;
 
-public class RawTableRef {
+import java.io.Serializable;
 
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * One line of the 'tables' block of a get or reference.
+ */
+public class RawTableRef implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String name;
+  public String alias;
+  public FileLocation loc;
 }
@@ -0,0 +1,17 @@
+package net.netreach.nrdo.tools.dfn;
+
+import java.io.Serializable;
+
+import net.netreach.nrdo.tools.Snapshot;
+import net.netreach.util.FileLocation;
+
+/**
+ * Something the Parser ignored in a .dfn file, to be reported each time the
+ * table is loaded.
+ */
+public class RawWarning implements Serializable {
+  private static final long serialVersionUID = Snapshot.VERSION;
+
+  public String message;
+  public FileLocation loc;
+}
@@ -0,0 +1,64 @@
+package net.netreach.smelt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Parses a Smelt file and reports its structure to a SmeltHandler as it goes.
+ * This accepts exactly the same input as OMParser, but nothing is kept in
+ * memory beyond what the handler chooses to keep, so a consumer can build its
+ * own model of the file in a single pass.
+ * 
+ * @see OMParser
+ */
+public class EventParser {
+
+  public static void parse(File f, SmeltHandler handler) throws IOException,
+      ParseException {
+    parse(new SmeltReader(f), handler);
+  }
+
+  public static void parse(Reader in, String filename, SmeltHandler handler)
+      throws ParseException {
+    parse(new SmeltReader(in, filename), handler);
+  }
+
+  public static void parse(SmeltReader sr, SmeltHandler handler)
+      throws ParseException {
+    sr.readToken();
+    while (!sr.wasEOF()) {
+      parseSingleLine(sr, handler);
+    }
+  }
+
+  public static void parseSingleLine(SmeltReader sr, SmeltHandler handler)
+      throws ParseException {
+    handler.startLine(sr);
+    while (!sr.wasEOL()) {
+      if (sr.wasSOB()) {
+        parseBlock(sr, handler);
+      } else if (sr.wasString()) {
+        handler.word(sr, (String) sr.getLastToken());
+        sr.readToken();
+      } else {
+        throw new ParseException(sr, "Internal error: Illegal token in line: "
+            + sr.lastToString());
+      }
+    }
+    handler.endLine(sr);
+    sr.readToken();
+  }
+
+  public static void parseBlock(SmeltReader sr, SmeltHandler handler)
+      throws ParseException {
+    sr.checkSOB();
+    handler.startBlock(sr);
+    sr.readToken();
+    while (!sr.wasEOB()) {
+      parseSingleLine(sr, handler);
+    }
+    handler.endBlock(sr);
+    sr.readToken();
+  }
+}
@@ -36,23 +36,31 @@
 package net.netreach.smelt;
 
 // Collections classes used to implement the appropriate behavior.
-import java.util.AbstractSequentialList;
+import java.util.AbstractList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.RandomAccess;
 
 /**
  * Represent a list of lines in a configuration file. The lines can be accessed
  * either by normal list iteration or through a map-like interface that returns
  * a line based on its first word, if any.
  * 
+ * The lines are held in an array, so positional access is constant-time. Once
+ * parsing is complete the list is frozen (either explicitly or by the first
+ * lookup by first word) and no more lines can be added; the first-word index is
+ * built once at that point, and lookups after that don't allocate anything.
+ * 
  * @author Stuart Ballard &lt;sballard@netreach.net&gt;
  */
-public class LineList extends AbstractSequentialList {
+public class LineList extends AbstractList implements RandomAccess {
+
+  private static final Object[] NO_LINES = new Object[0];
 
-  private LinkedList backing = new LinkedList();
+  private Object[] lines = NO_LINES;
+  private int size = 0;
+  private boolean frozen = false;
   private HashMap byFirstWord = null;
 
   public List getLine(int i) {
@@ -60,20 +68,45 @@ public class LineList extends AbstractSequentialList {
   }
 
   public boolean add(Object o) {
-    if (byFirstWord != null) {
+    if (frozen) {
       throw new IllegalArgumentException("LineList frozen");
     }
     List l = (List) o;
-    return backing.add(l);
+    if (size == lines.length) {
+      Object[] newLines = new Object[size < 4 ? 4 : size * 2];
+      System.arraycopy(lines, 0, newLines, 0, size);
+      lines = newLines;
+    }
+    lines[size++] = l;
+    modCount++;
+    return true;
+  }
+
+  /**
+   * Prevent any further lines from being added, and release any unused space.
+   * This is done by OMParser once a block has been completely parsed.
+   */
+  public void freeze() {
+    if (frozen) return;
+    frozen = true;
+    if (size < lines.length) {
+      Object[] newLines = size == 0 ? NO_LINES : new Object[size];
+      System.arraycopy(lines, 0, newLines, 0, size);
+      lines = newLines;
+    }
+  }
+
+  public boolean isFrozen() {
+    return frozen;
   }
 
   public List getOneByFirstWord(String fword) {
     if (byFirstWord == null) {
       buildFirstWordMap();
     }
-    Object o = byFirstWord.get(fword);
-    if (o instanceof List) {
-      return (List) o;
+    Multi m = (Multi) byFirstWord.get(fword);
+    if (m != null && m.size == 1) {
+      return (List) m.lines[0];
     } else {
       return null;
     }
@@ -83,92 +116,88 @@ public class LineList extends AbstractSequentialList {
     if (byFirstWord == null) {
       buildFirstWordMap();
     }
-    Object o = byFirstWord.get(fword);
-    if (o == null) {
-      return new LinkedList();
-    } else if (o instanceof List) {
-      List res = new LinkedList();
-      res.add(o);
-      return res;
+    Multi m = (Multi) byFirstWord.get(fword);
+    if (m == null) {
+      return Collections.EMPTY_LIST;
     } else {
-      return ((Multi) o).list;
+      return m;
     }
   }
 
-  private class Multi {
-    private List list = new LinkedList();
+  /**
+   * The (read-only) list of all the lines starting with a particular word.
+   */
+  private static class Multi extends AbstractList implements RandomAccess {
+    private Object[] lines;
+    private int size;
 
-    Multi(List line) {
-      list.add(line);
+    Multi(Object[] lines, int size) {
+      this.lines = lines;
+      this.size = size;
     }
-  }
 
-  private void buildFirstWordMap() {
-    byFirstWord = new HashMap();
-    Iterator li = iterator();
-    while (li.hasNext()) {
-      List line = (List) li.next();
-      if (line.size() > 0) {
-        Object w1 = line.get(0);
-        if (w1 instanceof String) {
-          if (!byFirstWord.containsKey(w1)) {
-            byFirstWord.put(w1, line);
-          } else {
-            Object existing = byFirstWord.get(w1);
-            if (existing instanceof List) {
-              existing = new Multi((List) existing);
-              byFirstWord.put(w1, existing);
-            }
-            ((Multi) existing).list.add(line);
-          }
-        }
+    public Object get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("" + index);
       }
+      return lines[index];
     }
-  }
 
-  public int size() {
-    return backing.size();
+    public int size() {
+      return size;
+    }
   }
 
-  public ListIterator listIterator(final int index) {
-    return new ListIterator() {
-      private final ListIterator li = backing.listIterator(index);
-
-      public int nextIndex() {
-        return li.nextIndex();
-      }
-
-      public int previousIndex() {
-        return li.previousIndex();
-      }
-
-      public boolean hasNext() {
-        return li.hasNext();
-      }
-
-      public boolean hasPrevious() {
-        return li.hasPrevious();
-      }
-
-      public Object next() {
-        return li.next();
+  private void buildFirstWordMap() {
+    freeze();
+
+    // Count the lines for each word first so that each Multi can be given an
+    // array of exactly the right size.
+    HashMap counts = new HashMap();
+    for (int i = 0; i < size; i++) {
+      Object w1 = firstWord(i);
+      if (w1 != null) {
+        int[] count = (int[]) counts.get(w1);
+        if (count == null) {
+          counts.put(w1, new int[] {1});
+        } else {
+          count[0]++;
+        }
       }
-
-      public Object previous() {
-        return li.previous();
+    }
+    HashMap map = new HashMap(counts.size() * 4 / 3 + 1);
+    for (int i = 0; i < size; i++) {
+      Object w1 = firstWord(i);
+      if (w1 != null) {
+        Multi m = (Multi) map.get(w1);
+        if (m == null) {
+          m = new Multi(new Object[((int[]) counts.get(w1))[0]], 0);
+          map.put(w1, m);
+        }
+        m.lines[m.size++] = lines[i];
       }
+    }
+    byFirstWord = map;
+  }
 
-      public void remove() {
-        throw new UnsupportedOperationException();
-      }
+  private Object firstWord(int i) {
+    List line = (List) lines[i];
+    if (line.size() > 0) {
+      Object w1 = line.get(0);
+      if (w1 instanceof String) return w1;
+    }
+    return null;
+  }
 
-      public void add(Object o) {
-        throw new UnsupportedOperationException();
-      }
+  public Object get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+          + size);
+    }
+    return lines[index];
+  }
 
-      public void set(Object o) {
-        throw new UnsupportedOperationException();
-      }
-    };
+  public int size() {
+    return size;
   }
 }
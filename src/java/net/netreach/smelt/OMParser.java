@@ -95,6 +95,7 @@ public class OMParser {
       if (DEBUG) System.err.println("OMP: Done a toplevel line.");
     }
     if (DEBUG) System.err.println("OMP: EOF reached.");
+    l.freeze();
     return l;
   }
 
@@ -127,6 +128,7 @@ public class OMParser {
       l.add(parseSingleLine(sr));
     }
     sr.skipEOB();
+    l.freeze();
     if (DEBUG)
       System.err.println("OMP: Done a block. (next token " + sr.lastToString()
           + ")");
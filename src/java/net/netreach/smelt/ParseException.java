@@ -35,6 +35,8 @@
 
 package net.netreach.smelt;
 
+import net.netreach.util.FileLocation;
+
 public class ParseException extends SmeltException {
   private static final long serialVersionUID = -1674198599047538846L;
 
@@ -53,4 +55,8 @@ public class ParseException extends SmeltException {
   public ParseException(SmeltReader sr, String msg, boolean atEnd) {
     super(atEnd ? sr.getLastTokenEndLocation() : sr.getLastTokenLocation(), msg);
   }
+
+  public ParseException(FileLocation loc, String msg) {
+    super(loc, msg);
+  }
 }
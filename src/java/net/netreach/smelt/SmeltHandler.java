@@ -0,0 +1,45 @@
+package net.netreach.smelt;
+
+/**
+ * Receives the structure of a Smelt file as a series of events, as an
+ * alternative to having OMParser build the whole file into a LineList first.
+ * Each method is called while the token it relates to is the last token read
+ * by the SmeltReader that is passed in, so that the location of that token is
+ * available for error messages. The events for a file look like this:
+ * 
+ * <pre>
+ *   a b { c; };   startLine, word(a), word(b), startBlock,
+ *                   startLine, word(c), endLine,
+ *                 endBlock, endLine
+ * </pre>
+ * 
+ * @see EventParser
+ */
+public interface SmeltHandler {
+
+  /**
+   * Called at the start of each line, before any of its words or blocks.
+   */
+  void startLine(SmeltReader sr) throws ParseException;
+
+  /**
+   * Called for each word or bracketed string in a line.
+   */
+  void word(SmeltReader sr, String word) throws ParseException;
+
+  /**
+   * Called when a '{' is found in a line. The lines inside the block are
+   * reported before the matching endBlock.
+   */
+  void startBlock(SmeltReader sr) throws ParseException;
+
+  /**
+   * Called when the '}' matching a startBlock is found.
+   */
+  void endBlock(SmeltReader sr) throws ParseException;
+
+  /**
+   * Called at the end of each line, after all of its words and blocks.
+   */
+  void endLine(SmeltReader sr) throws ParseException;
+}
@@ -74,18 +74,37 @@ public class SmeltReader {
   public static final Object EOF = new Object();
 
   /**
-   * Create a SmeltReader based on a file. Equivalent to SmeltReader(new
-   * FileReader(f), f.toString()).
+   * Create a SmeltReader based on a file. The entire file is read into memory
+   * up front and tokens are scanned directly out of the character array, which
+   * is considerably faster than pulling characters one at a time through a
+   * Reader. Otherwise equivalent to SmeltReader(new FileReader(f), f).
    * 
    * @param f
    *          the smelt file to interpret.
    */
   public SmeltReader(File f) throws IOException, ParseException {
-    this(new FileReader(f), f);
+    this(readFully(new FileReader(f), f.length()), f);
   }
 
   /**
-   * Create a SmeltReader based on a stream of characters.
+   * Create a SmeltReader based on an array of characters that has already been
+   * read into memory. The array is used directly and must not be modified
+   * while the SmeltReader is in use.
+   * 
+   * @param chars
+   *          the characters to interpret.
+   * @param filename
+   *          the name to associate with these characters in error messages.
+   */
+  public SmeltReader(char[] chars, File filename) throws ParseException {
+    this.buf = chars;
+    this.filename = filename;
+    readChar();
+  }
+
+  /**
+   * Create a SmeltReader based on a stream of characters. The stream is read
+   * to the end and closed before any tokens are returned.
    * 
    * @param in
    *          the stream of characters to interpret.
@@ -93,8 +112,13 @@ public class SmeltReader {
    *          the name to associate with this stream in error messages.
    */
   public SmeltReader(Reader in, File filename) throws ParseException {
-    this.in = new LineColReader(in);
     this.filename = filename;
+    try {
+      buf = readFully(in, 8192);
+    } catch (IOException e) {
+      buf = new char[0];
+      throw new ParseException(this, "I/O Error: " + e);
+    }
     readChar();
   }
   
@@ -127,6 +151,7 @@ public class SmeltReader {
    */
   public Object readToken() throws ParseException {
     readWhitespace();
+    tokenIndex = ch == -1 ? buf.length : bufPos - 1;
     boolean readNext = true;
     switch (ch) {
     case -1:
@@ -134,8 +159,7 @@ public class SmeltReader {
         throw new ParseException(this, "End of file reached with "
             + nestingDepth + " block(s) unclosed");
       }
-      tokenStartRow = tokenEndRow = in.getLineNumber() + 1;
-      tokenStartCol = tokenEndCol = in.getColumnNumber();
+      tokenStart = tokenEnd = bufPos;
       if (lastToken == EOL || lastToken == null) {
         lastToken = EOF;
       } else {
@@ -144,19 +168,16 @@ public class SmeltReader {
       readNext = false;
       break;
     case ';':
-      tokenStartRow = tokenEndRow = in.getLineNumber() + 1;
-      tokenStartCol = tokenEndCol = in.getColumnNumber();
+      tokenStart = tokenEnd = bufPos;
       lastToken = EOL;
       break;
     case '{':
-      tokenStartRow = tokenEndRow = in.getLineNumber() + 1;
-      tokenStartCol = tokenEndCol = in.getColumnNumber();
+      tokenStart = tokenEnd = bufPos;
       nestingDepth++;
       lastToken = SOB;
       break;
     case '}':
-      tokenStartRow = tokenEndRow = in.getLineNumber() + 1;
-      tokenStartCol = tokenEndCol = in.getColumnNumber();
+      tokenStart = tokenEnd = bufPos;
       if (nestingDepth <= 0) {
         throw new ParseException(this, "Unmatched end-of-block ('}') found");
       }
@@ -500,7 +521,7 @@ public class SmeltReader {
     if (pos < 0 || pos > s.length()) {
       throw new IndexOutOfBoundsException("" + pos);
     }
-    int result = tokenStartRow - 1;
+    int result = rowAt(tokenStart) - 1;
     while (pos != -1) {
       result++;
       pos--;
@@ -533,7 +554,7 @@ public class SmeltReader {
     String resultLine;
     if (lstart == -1) {
       resultLine = s.substring(0, pos);
-      result = tokenStartCol + pos;
+      result = colAt(tokenStart) + pos;
     } else {
       resultLine = s.substring(lstart, pos);
       result = pos - lstart - 1;
@@ -562,13 +583,31 @@ public class SmeltReader {
     return new FileLocation(filename, line, col, endLine, endCol);
   }
 
-  private LineColReader in;
+  /**
+   * The entire contents of the input. Tokens are scanned directly out of this
+   * array.
+   */
+  private char[] buf;
+
+  /**
+   * The number of characters of buf that have been consumed, so buf[bufPos - 1]
+   * is the current character, ch. All positions in the input are recorded in
+   * this form.
+   */
+  private int bufPos = 0;
+
+  /**
+   * The positions in buf at which each line after the first begins. This is
+   * only built when a row or column is first asked for, which in the normal
+   * case of a file with no errors in it may be never.
+   */
+  private int[] lineStarts;
+
   File filename;
   protected Object lastToken = null;
-  private int tokenStartRow = 0;
-  private int tokenStartCol = 0;
-  private int tokenEndRow = 0;
-  private int tokenEndCol = 0;
+  private int tokenStart = 0;
+  private int tokenEnd = 0;
+  private int tokenIndex = 0;
   private int nestingDepth = 0;
 
   /**
@@ -608,23 +647,113 @@ public class SmeltReader {
 
   private int ch;
 
-  private void readChar() throws ParseException {
+  private void readChar() {
+    if (ch != -1) ch = bufPos < buf.length ? buf[bufPos++] : -1;
+  }
+
+  /**
+   * Make the character at position pos in buf the current character, or reach
+   * end-of-file if pos is at the end of buf.
+   */
+  private void skipTo(int pos) {
+    bufPos = pos;
+    ch = pos < buf.length ? buf[bufPos++] : -1;
+  }
+
+  /**
+   * Read the entire contents of a Reader into a character array of exactly the
+   * right size, and close the Reader.
+   * 
+   * @param expected
+   *          the expected number of characters, used to size the array.
+   */
+  private static char[] readFully(Reader in, long expected) throws IOException {
     try {
-      if (ch != -1) {
-        ch = in.read();
-        if (ch == -1) {
-          in.close();
+      char[] result = new char[(int) Math.min(expected, Integer.MAX_VALUE / 2)];
+      int len = 0;
+      while (true) {
+        if (len == result.length) {
+          int c = in.read();
+          if (c == -1) return result;
+          char[] newResult = new char[result.length * 2 + 16];
+          System.arraycopy(result, 0, newResult, 0, len);
+          result = newResult;
+          result[len++] = (char) c;
         }
+        int n = in.read(result, len, result.length - len);
+        if (n < 0) break;
+        len += n;
       }
-    } catch (IOException e) {
-      throw new ParseException(this, "I/O Error: " + e);
+      if (len == result.length) return result;
+      char[] trimmed = new char[len];
+      System.arraycopy(result, 0, trimmed, 0, len);
+      return trimmed;
+    } finally {
+      in.close();
     }
   }
 
+  /**
+   * Get the line number (starting from 1) of the character that was current
+   * when bufPos was at pos. The results of this and colAt() are the same as
+   * when characters were read through a line-counting Reader: a line ends at
+   * a '\n', a '\r' or a "\r\n" pair, and an end-of-line character is
+   * considered to be at column 0 of the following line.
+   */
+  private int rowAt(int pos) {
+    if (buf == null) return 0;
+    int line = lineOf(pos - 1) + 1;
+    if (pos > 0 && (buf[pos - 1] == '\n' || buf[pos - 1] == '\r')) line++;
+    return line;
+  }
+
+  /**
+   * Get the column number (starting from 1) of the character that was current
+   * when bufPos was at pos.
+   */
+  private int colAt(int pos) {
+    if (buf == null) return 0;
+    if (pos > 0 && (buf[pos - 1] == '\n' || buf[pos - 1] == '\r')) return 0;
+    int line = lineOf(pos - 1);
+    return line == 0 ? pos : pos - lineStarts[line - 1];
+  }
+
+  /**
+   * Get the number of lines that begin at or before position i in buf, not
+   * counting the first.
+   */
+  private int lineOf(int i) {
+    if (lineStarts == null) {
+      int count = 0;
+      for (int j = 0; j < buf.length; j++) {
+        if (buf[j] == '\r' || buf[j] == '\n') count++;
+      }
+      int[] starts = new int[count];
+      count = 0;
+      for (int j = 0; j < buf.length; j++) {
+        if (buf[j] == '\r' && j + 1 < buf.length && buf[j + 1] == '\n') j++;
+        if (buf[j] == '\r' || buf[j] == '\n') starts[count++] = j + 1;
+      }
+      lineStarts = new int[count];
+      System.arraycopy(starts, 0, lineStarts, 0, count);
+    }
+    int lo = 0;
+    int hi = lineStarts.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (lineStarts[mid] <= i) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
   private void readWhitespace() throws ParseException {
     boolean inComment = ch == '#';
     if (DEBUG) if (inComment) System.err.print("SR:  Comment: ");
-    while (inComment || Character.isWhitespace((char) ch)) {
+    while (ch != -1 && (inComment || Character.isWhitespace((char) ch))) {
       if (DEBUG) if (inComment) System.err.print((char) ch);
       readChar();
       if (inComment && (ch == '\n' || ch == '\r')) {
@@ -641,9 +770,27 @@ public class SmeltReader {
   private String readLiteral() throws ParseException {
     if (ch != '[') throw new RuntimeException("readLiteral called w/ ch != [");
     readChar();
-    tokenStartRow = in.getLineNumber() + 1;
-    tokenStartCol = in.getColumnNumber();
-    StringBuffer sb = new StringBuffer();
+    tokenStart = bufPos;
+    StringBuffer sb;
+    if (ch != -1) {
+
+      // Find the next bracket. If it's the closing one, there are no escapes
+      // and the literal can be taken straight out of the buffer. Otherwise,
+      // everything up to the bracket can still be copied in one go.
+      int start = bufPos - 1;
+      int end = start;
+      while (end < buf.length && buf[end] != ']' && buf[end] != '[') end++;
+      skipTo(end);
+      if (ch == ']') {
+        tokenEnd = bufPos;
+        readChar(); // Skip the ']'
+        return new String(buf, start, end - start);
+      }
+      sb = new StringBuffer(end - start + 16);
+      sb.append(buf, start, end - start);
+    } else {
+      sb = new StringBuffer();
+    }
     while (ch != ']') {
 
       // The '[' character is used to escape ']' characters in the string.
@@ -651,8 +798,7 @@ public class SmeltReader {
       case '[':
         readChar();
         if (ch != '[' && ch != ']') {
-          tokenEndRow = in.getLineNumber() + 1;
-          tokenEndCol = in.getColumnNumber();
+          tokenEnd = bufPos;
           throw new ParseException(this, "Illegal escaped character '"
               + (char) ch + "'", true);
         }
@@ -662,8 +808,7 @@ public class SmeltReader {
         if (ch == ']') ch = '[';
         break;
       case -1:
-        tokenEndRow = in.getLineNumber() + 1;
-        tokenEndCol = in.getColumnNumber();
+        tokenEnd = bufPos;
         throw new ParseException(this, "Unterminated string literal");
       default:
         sb.append((char) ch);
@@ -671,30 +816,29 @@ public class SmeltReader {
       }
       readChar();
     }
-    tokenEndRow = in.getLineNumber() + 1;
-    tokenEndCol = in.getColumnNumber();
+    tokenEnd = bufPos;
     readChar(); // Skip the ']'
     return sb.toString();
   }
 
   private String readWord() throws ParseException {
-    tokenStartRow = in.getLineNumber() + 1;
-    tokenStartCol = in.getColumnNumber();
-    StringBuffer sb = new StringBuffer();
-    while (ch != -1 && ch != ';' && ch != '{' && ch != '}' && ch != '#'
-        && !Character.isWhitespace((char) ch)) {
-      if (ch == '[' || ch == ']') {
-        tokenEndRow = in.getLineNumber() + 1;
-        tokenEndCol = in.getColumnNumber();
-        throw new ParseException(this,
-            "Illegal character: '" + (char) ch + "'", true);
+    tokenStart = bufPos;
+    int start = bufPos - 1;
+    int end = start;
+    while (end < buf.length) {
+      char c = buf[end];
+      if (c == ';' || c == '{' || c == '}' || c == '#'
+          || Character.isWhitespace(c)) break;
+      if (c == '[' || c == ']') {
+        skipTo(end);
+        tokenEnd = bufPos;
+        throw new ParseException(this, "Illegal character: '" + c + "'", true);
       }
-      sb.append((char) ch);
-      readChar();
+      end++;
     }
-    tokenEndRow = in.getLineNumber() + 1;
-    tokenEndCol = in.getColumnNumber();
-    return sb.toString();
+    skipTo(end);
+    tokenEnd = bufPos;
+    return new String(buf, start, end - start);
   }
 
   /**
@@ -709,11 +853,41 @@ public class SmeltReader {
     }
   }
 
+  /**
+   * Get the index in the input of the first character of the last-read token.
+   * For a bracketed string this is the opening bracket, and for an EOL that
+   * was implied by a '}' it is the '}'.
+   */
+  public int getLastTokenIndex() {
+    return tokenIndex;
+  }
+
+  /**
+   * Get a piece of the input, between two indexes as returned by
+   * getLastTokenIndex(), that can be read by a new SmeltReader with the same
+   * rows and columns as it has in this one. This is done by preceding it with
+   * whitespace that has the same line structure as everything before it.
+   */
+  public String getFragment(int start, int end) {
+    int lines = lineOf(start);
+    int col = lines == 0 ? start : start - lineStarts[lines - 1];
+    StringBuffer sb = new StringBuffer(lines + col + end - start);
+    for (int i = 0; i < lines; i++) {
+      sb.append('\n');
+    }
+    for (int i = 0; i < col; i++) {
+      sb.append(' ');
+    }
+    sb.append(buf, start, end - start);
+    return sb.toString();
+  }
+
   public FileLocation getLastTokenLocation() {
-    return new FileLocation(filename, tokenStartRow, tokenStartCol, tokenEndRow, tokenEndCol);
+    return new FileLocation(filename, rowAt(tokenStart), colAt(tokenStart),
+        rowAt(tokenEnd), colAt(tokenEnd));
   }
   
   public FileLocation getLastTokenEndLocation() {
-    return new FileLocation(filename, tokenEndRow, tokenEndCol);
+    return new FileLocation(filename, rowAt(tokenEnd), colAt(tokenEnd));
   }
 }
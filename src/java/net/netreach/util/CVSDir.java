@@ -52,6 +52,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Manipulate files stored in CVS.
@@ -156,13 +157,70 @@ public class CVSDir {
       if (dirs.containsKey(dir)) {
         instance = (CVSDir) dirs.get(dir);
       } else {
-        instance = new CVSDir(dir);
+        instance = getRetained(dir);
+        if (instance == null) instance = new CVSDir(dir);
         dirs.put(dir, instance);
       }
     }
     return instance;
   }
 
+  /**
+   * Directories kept by retain() for later runs in the same process, each
+   * with its fingerprint as it was then.
+   */
+  private static final HashMap retained = new HashMap();
+
+  /**
+   * Keep the directories scanned so far, so that after a reset() getInstance
+   * can use them again instead of scanning them, as long as nothing in them
+   * has changed.
+   */
+  public static void retain() {
+    synchronized (dirs) {
+      retained.clear();
+      for (Iterator i = dirs.entrySet().iterator(); i.hasNext();) {
+        Map.Entry e = (Map.Entry) i.next();
+        CVSDir instance = (CVSDir) e.getValue();
+        retained.put(e.getKey(), new Object[] { instance,
+            instance.fingerprint() });
+      }
+    }
+  }
+
+  private static CVSDir getRetained(File dir) {
+    Object[] r = (Object[]) retained.remove(dir);
+    if (r == null) return null;
+    CVSDir instance = (CVSDir) r[0];
+    if (instance.inCVS != (cvsEnabled && new File(dir, "CVS").isDirectory())
+        || instance.inVSS != (vssEnabled
+            && new File(dir, "vssver.scc").isFile())
+        || !instance.fingerprint().equals(r[1])) {
+      return null;
+    }
+    return instance;
+  }
+
+  /**
+   * The names, sizes and modification times of the files in the directory and
+   * of its CVS/Entries file.
+   */
+  private String fingerprint() {
+    StringBuffer sb = new StringBuffer();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (int i = 0; i < files.length; i++) {
+        sb.append(files[i].getName()).append('/').append(files[i].length())
+            .append('/').append(files[i].lastModified()).append('\n');
+      }
+    }
+    File cvsEntries = new File(dir, "CVS" + File.separator + "Entries");
+    sb.append(cvsEntries.length()).append('/')
+        .append(cvsEntries.lastModified());
+    return sb.toString();
+  }
+
   Entry getEntry(String name) {
     Entry ent = (Entry) entries.get(name);
     if (ent == null) ent = new Entry(name, NON_EXISTENT);
@@ -3,14 +3,24 @@ package net.netreach.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Files loaded by a Populator, kept until reset() and then reloaded only if
+ * their size or modification time has changed since. Safe to use from several threads: a file that is
+ * already loaded is found without locking, and one being loaded is only
+ * loaded once, by whichever thread got there first, while others wait for it;
+ * different files can load at the same time. Populators must not return null.
+ */
 public class FileCache<T> {
-  private Map<File, T> map = new HashMap<File, T>();
-  private Map<File, T> old = new HashMap<File, T>();
-  private Map<File, Long> timestamps = new HashMap<File, Long>();
+  private Map<File, T> map = new ConcurrentHashMap<File, T>();
+  private Map<File, T> old = new ConcurrentHashMap<File, T>();
+  private Map<File, Long> timestamps = new ConcurrentHashMap<File, Long>();
+  private Map<File, Long> lengths = new ConcurrentHashMap<File, Long>();
+  private ConcurrentHashMap<File, Object> locks = new ConcurrentHashMap<File, Object>();
   private Populator<T> populator;
 
   public FileCache(Populator<T> populator) {
@@ -20,9 +30,19 @@ public class FileCache<T> {
   public void reset() {
     map.clear();
   }
+
+  /**
+   * Forget every file, so that each is loaded again even if it hasn't changed.
+   */
+  public void clear() {
+    map.clear();
+    old.clear();
+    timestamps.clear();
+    lengths.clear();
+  }
   
   public Set<File> getFiles() {
-    return Collections.unmodifiableSet(map.keySet());
+    return Collections.unmodifiableSet(new HashSet<File>(map.keySet()));
   }
   
   public T get(File file) throws IOException, FileLocatedException {
@@ -30,22 +50,49 @@ public class FileCache<T> {
     
     file = file.getCanonicalFile();
     
-    if (map.containsKey(file)) {
-      return map.get(file);
-    } else if (timestamps.containsKey(file)) {
-      long oldStamp = timestamps.get(file);
-      if (oldStamp == file.lastModified()) {
-        T t = old.get(file);
+    T t = map.get(file);
+    if (t != null) return t;
+    synchronized (lock(file)) {
+      t = map.get(file);
+      if (t != null) return t;
+      Long oldStamp = timestamps.get(file);
+      Long oldLength = lengths.get(file);
+      if (oldStamp != null && oldStamp.longValue() == file.lastModified()
+          && oldLength != null && oldLength.longValue() == file.length()) {
+        t = old.get(file);
         map.put(file, t);
         return t;
       }
-    }
     
-    T t = populator.get(file);
-    timestamps.put(file, file.lastModified());
-    map.put(file, t);
-    old.put(file, t);
-    return t;
+      t = populator.get(file);
+      timestamps.put(file, file.lastModified());
+      lengths.put(file, file.length());
+      old.put(file, t);
+      map.put(file, t);
+      return t;
+    }
+  }
+
+  /**
+   * The file's contents if they have been loaded since the last reset(), or
+   * null; unlike get(), never loads it.
+   */
+  public T peek(File file) {
+    try {
+      return map.get(file.getCanonicalFile());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private Object lock(File file) {
+    Object lock = locks.get(file);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = locks.putIfAbsent(file, newLock);
+      if (lock == null) lock = newLock;
+    }
+    return lock;
   }
   
   public static interface Populator<T> {
@@ -0,0 +1,103 @@
+package net.netreach.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of a directory tree, taken with a single walk, that can answer
+ * "does this file exist and how big is it" and "what is in this directory"
+ * without going back to the file system. Paths are relative to the root and
+ * use '/' as the separator; the root itself is "". Symbolic links are
+ * followed, as File.isDirectory and File.listFiles would.
+ */
+public class FileIndex {
+  private final File root;
+  private final Map sizes = new HashMap();
+  private final Map dirs = new HashMap();
+
+  public static class Entry {
+    public final String name;
+    public final boolean isDirectory;
+    public final boolean isFile;
+
+    Entry(String name, boolean isDirectory, boolean isFile) {
+      this.name = name;
+      this.isDirectory = isDirectory;
+      this.isFile = isFile;
+    }
+  }
+
+  public FileIndex(File root) throws IOException {
+    this.root = root;
+    if (!root.isDirectory()) return;
+    final Path rootPath = root.toPath();
+    Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+        Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+          public FileVisitResult preVisitDirectory(Path dir,
+              BasicFileAttributes attrs) {
+            String rel = relative(rootPath, dir);
+            dirs.put(rel, new ArrayList());
+            if (rel.length() > 0) add(rel, true, false);
+            return FileVisitResult.CONTINUE;
+          }
+
+          public FileVisitResult visitFile(Path file,
+              BasicFileAttributes attrs) {
+            String rel = relative(rootPath, file);
+            if (attrs.isRegularFile()) sizes.put(rel, new Long(attrs.size()));
+            add(rel, false, attrs.isRegularFile());
+            return FileVisitResult.CONTINUE;
+          }
+
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            // Unreadable entries and link loops are left out, just as a
+            // failed File.listFiles would have left them out.
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private static String relative(Path root, Path path) {
+    String rel = root.relativize(path).toString();
+    return File.separatorChar == '/' ? rel : rel.replace(File.separatorChar,
+        '/');
+  }
+
+  private void add(String rel, boolean isDirectory, boolean isFile) {
+    int pos = rel.lastIndexOf('/');
+    List parent = (List) dirs.get(pos < 0 ? "" : rel.substring(0, pos));
+    parent.add(new Entry(rel.substring(pos + 1), isDirectory, isFile));
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  /**
+   * The size of the regular file at the given path, or -1 if there was none
+   * there when the index was built.
+   */
+  public long getSize(String path) {
+    Long size = (Long) sizes.get(path);
+    return size == null ? -1 : size.longValue();
+  }
+
+  /**
+   * The entries of the directory at the given path in the order the file
+   * system returned them, or null if it is not a directory.
+   */
+  public List list(String path) {
+    return (List) dirs.get(path);
+  }
+}
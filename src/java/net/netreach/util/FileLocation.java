@@ -1,8 +1,13 @@
 package net.netreach.util;
 
 import java.io.File;
+import java.io.Serializable;
+
+public class FileLocation implements Serializable {
+  // FileLocations are kept in nrdo's model snapshots, so a change to the
+  // fields needs Snapshot.VERSION bumping as well as this.
+  private static final long serialVersionUID = 1L;
 
-public class FileLocation {
   private final File file;
   public File getFile() {
     return file;
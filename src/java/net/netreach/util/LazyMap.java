@@ -43,6 +43,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * A map whose values are filled in by fillIn as they are first asked for.
+ * Access is synchronized, since the maps of tables and queries are shared by
+ * the threads of a parallel codegen.
+ */
 public abstract class LazyMap extends AbstractMap {
   protected Map backing = new HashMap();
 
@@ -50,14 +55,14 @@ public abstract class LazyMap extends AbstractMap {
 
   protected abstract void fillIn(Object key);
 
-  public Object get(Object key) {
+  public synchronized Object get(Object key) {
     if (!backing.containsKey(key)) {
       fillIn(key);
     }
     return backing.get(key);
   }
 
-  public boolean containsKey(Object key) {
+  public synchronized boolean containsKey(Object key) {
     if (getAvailSet().contains(key) || backing.containsKey(key)) {
       return true;
     } else {
@@ -66,7 +71,7 @@ public abstract class LazyMap extends AbstractMap {
     }
   }
 
-  public Object put(Object key, Object value) {
+  public synchronized Object put(Object key, Object value) {
     Object o = (getAvailSet().contains(key) ? this : backing).get(key);
     backing.put(key, value);
     return o;
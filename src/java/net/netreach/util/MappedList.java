@@ -57,7 +57,7 @@ public class MappedList extends AbstractList {
     return backing.size();
   }
 
-  public Object get(int index) {
+  public synchronized Object get(int index) {
     Object o = mapped.get(index);
     if (o == null) {
       o = ((Mappable) backing.get(index)).toMap();
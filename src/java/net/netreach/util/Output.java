@@ -12,6 +12,7 @@ public class Output {
   private static PromptProvider promptProvider = defaultOutput;
   private static int progressCurrent;
   private static int progressTotal;
+  private static ThreadLocal threadOutput = new ThreadLocal();
 
   public static void reset() {
     outputProviders.clear();
@@ -30,20 +31,42 @@ public class Output {
     if (suppressDefault) defaultOutput = null;
   }
 
+  /**
+   * Send everything printed or reported on the current thread to the given
+   * provider alone, or to the usual ones again if it is null.
+   */
+  public static void setThreadOutput(OutputProvider provider) {
+    threadOutput.set(provider);
+  }
+
   public static void println(String str) {
-    for (Iterator i = outputProviders.iterator(); i.hasNext(); ) {
-      OutputProvider provider = (OutputProvider)i.next();
-      provider.println(str);
+    OutputProvider own = (OutputProvider) threadOutput.get();
+    if (own != null) {
+      own.println(str);
+      return;
+    }
+    synchronized (Output.class) {
+      for (Iterator i = outputProviders.iterator(); i.hasNext(); ) {
+        OutputProvider provider = (OutputProvider)i.next();
+        provider.println(str);
+      }
+      if (defaultOutput != null) defaultOutput.println(str);
     }
-    if (defaultOutput != null) defaultOutput.println(str);
   }
 
   public static void reportError(FileLocation loc, String message) {
-    for (Iterator i = outputProviders.iterator(); i.hasNext(); ) {
-      OutputProvider provider = (OutputProvider)i.next();
-      provider.reportError(loc, message);
+    OutputProvider own = (OutputProvider) threadOutput.get();
+    if (own != null) {
+      own.reportError(loc, message);
+      return;
+    }
+    synchronized (Output.class) {
+      for (Iterator i = outputProviders.iterator(); i.hasNext(); ) {
+        OutputProvider provider = (OutputProvider)i.next();
+        provider.reportError(loc, message);
+      }
+      if (defaultOutput != null) defaultOutput.reportError(loc, message);
     }
-    if (defaultOutput != null) defaultOutput.reportError(loc, message);
   }
 
   public static void reportException(Throwable t) {
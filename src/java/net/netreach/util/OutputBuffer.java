@@ -0,0 +1,41 @@
+package net.netreach.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Holds on to the lines and errors sent to it, to be passed on to Output
+ * later with replay(), so that work done on another thread can be logged in
+ * the same order it would have been if it had been done in sequence.
+ */
+public class OutputBuffer implements OutputProvider {
+  private List lines = new ArrayList();
+
+  public synchronized void println(String s) {
+    lines.add(s);
+  }
+
+  public synchronized void reportError(FileLocation loc, String message) {
+    lines.add(new Object[] {loc, message});
+  }
+
+  public void setCurrentProgress(int currentProgress) {
+  }
+
+  public void setTotalProgress(int totalProgress) {
+  }
+
+  public synchronized void replay() {
+    for (Iterator i = lines.iterator(); i.hasNext();) {
+      Object line = i.next();
+      if (line instanceof String) {
+        Output.println((String) line);
+      } else {
+        Object[] error = (Object[]) line;
+        Output.reportError((FileLocation) error[0], (String) error[1]);
+      }
+    }
+    lines.clear();
+  }
+}
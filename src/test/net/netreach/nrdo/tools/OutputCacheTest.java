@@ -0,0 +1,174 @@
+package net.netreach.nrdo.tools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.netreach.util.FileLocation;
+import net.netreach.util.Output;
+import net.netreach.util.OutputProvider;
+
+/**
+ * Checks that the output cache doesn't put back a table's code when a table
+ * it links to has changed. Run it from the src directory, so that it can find
+ * the templates.
+ */
+public class OutputCacheTest {
+
+  private static final String CUSTOMER = "table app:customer {\n"
+      + "  fields {\n"
+      + "    int id int notnull readonly [the id];\n"
+      + "    int region_id int nullable readwrite [region];\n"
+      + "  };\n"
+      + "  pkey sequenced id;\n"
+      + "};\n";
+
+  private static final String ORDERS = "table app:orders {\n"
+      + "  fields {\n"
+      + "    int id int notnull readonly [the id];\n"
+      + "    int customer_id int notnull readwrite [customer];\n"
+      + "  };\n"
+      + "  pkey sequenced id;\n"
+      + "  get multi {\n"
+      + "    tables { app:customer c; };\n"
+      + "    joins { * to c { customer_id id; }; };\n"
+      + "    fields { c.region_id; };\n"
+      + "    called by_customer_region;\n"
+      + "  };\n"
+      + "};\n";
+
+  private static final String ORDERS_OUT = "App/orders.dfn.gen.cs";
+
+  private static int passed = 0;
+  private static int count = 0;
+
+  public static void main(String[] args) throws Throwable {
+    File templates = new File("templates").getAbsoluteFile();
+    File dir = Files.createTempDirectory("nrdo-outputcache").toFile();
+    try {
+      File cache = new File(dir, "cache");
+
+      // The first checkout fills the cache, and a second one the same as it
+      // gets everything back from it.
+      File first = workspace(dir, "first", templates, cache, CUSTOMER);
+      generate(first);
+      File same = workspace(dir, "same", templates, cache, CUSTOMER);
+      List log = generate(same);
+      check("unchanged checkout restores orders", restored(log));
+      check("restored orders are the same", sameContents(first, same));
+
+      // Changing the type of a field of customer changes the code for a get
+      // on orders, so orders mustn't be put back.
+      String changed = CUSTOMER.replaceFirst("int region_id int",
+          "long region_id bigint");
+      File edited = workspace(dir, "edited", templates, cache, changed);
+      log = generate(edited);
+      check("editing customer misses orders", !restored(log));
+      File clean = workspace(dir, "clean", templates, null, changed);
+      generate(clean);
+      check("orders are as generated without a cache", sameContents(edited,
+          clean));
+    } finally {
+      delete(dir);
+    }
+    System.out.println("Passed " + passed + "/" + count);
+    if (passed != count) System.exit(1);
+  }
+
+  private static void check(String name, boolean ok) {
+    count++;
+    if (ok) passed++;
+    System.out.println(name + ": " + (ok ? "PASS" : "FAIL"));
+  }
+
+  private static File workspace(File dir, String name, File templates,
+      File cache, String customer) throws IOException {
+    File ws = new File(dir, name);
+    new File(ws, "dfn").mkdirs();
+    new File(ws, "out").mkdirs();
+    new File(ws, "cache").mkdirs();
+    write(new File(ws, "dfn/customer.dfn"), customer);
+    write(new File(ws, "dfn/orders.dfn"), ORDERS);
+    write(new File(ws, "test.nrdo"), "config {\n"
+        + "  dfnbase dfn;\n"
+        + "  srcbase out;\n"
+        + "  cachebase cache;\n"
+        + "  module app;\n"
+        + "  cgltemplate " + new File(templates, "csharp4-table.cgl") + ";\n"
+        + "  querytemplate " + new File(templates, "csharp4-query.cgl")
+        + ";\n"
+        + "  dbdriver foo;\n"
+        + "  dburl bar;\n"
+        + "  dbadapter mssqlserver;\n"
+        + "  nodatabase;\n"
+        + "  stampfile stamp.txt;\n"
+        + (cache == null ? "" : "  outputcache " + cache + ";\n")
+        + "  global {\n"
+        + "    set nsbase [Test.App];\n"
+        + "    set cachesize [10];\n"
+        + "  };\n"
+        + "};\n");
+    return ws;
+  }
+
+  /**
+   * Generate the code for a workspace, returning what was printed.
+   */
+  private static List generate(File ws) throws Throwable {
+    final List log = new ArrayList();
+    NRDOTool.reset();
+    Output.addOutputProvider(new OutputProvider() {
+      public void println(String s) {
+        log.add(s);
+      }
+
+      public void reportError(FileLocation loc, String message) {
+        log.add(loc + ": " + message);
+      }
+
+      public void setCurrentProgress(int currentProgress) {
+      }
+
+      public void setTotalProgress(int totalProgress) {
+      }
+    }, true);
+    boolean ok = NRDOTool.run(new String[] {
+        new File(ws, "test.nrdo").getPath(), "-gen" });
+    NRDOTool.reset();
+    if (!ok) {
+      throw new RuntimeException("Generating " + ws + " failed: " + log);
+    }
+    return log;
+  }
+
+  private static boolean restored(List log) {
+    return log.contains("Restoring " + ORDERS_OUT + " from the output cache.");
+  }
+
+  private static boolean sameContents(File ws1, File ws2) throws IOException {
+    File f1 = new File(ws1, "out/" + ORDERS_OUT);
+    File f2 = new File(ws2, "out/" + ORDERS_OUT);
+    return f1.isFile() && f2.isFile()
+        && Arrays.equals(Files.readAllBytes(f1.toPath()), Files
+            .readAllBytes(f2.toPath()));
+  }
+
+  private static void write(File file, String str) throws IOException {
+    Writer out = new FileWriter(file);
+    out.write(str);
+    out.close();
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    for (int i = 0; children != null && i < children.length; i++) {
+      delete(children[i]);
+    }
+    f.delete();
+  }
+}